@@ -0,0 +1,115 @@
+package benchmark;
+
+import static org.bytedeco.ffmpeg.avformat.AVFormatContext.AVFMT_FLAG_CUSTOM_IO;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avutil.AV_LOG_INFO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_LOG_QUIET;
+import static org.bytedeco.ffmpeg.global.avutil.av_log_set_level;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.MappedFileIOContext;
+
+/* Setup shared by the JMH benchmarks.
+ *
+ * Work directory : Fixtures and outputs are written under the directory
+ * of the system property benchmark.dir, build/jmh-work by default. The
+ * fixtures are generated by FixtureGenerator on the first run and reused
+ * by the later ones.
+ *
+ * Console : The converters report every file on stdout and ffmpeg logs
+ * every stream it opens. quiet() drops both for the trial, so the
+ * measured iterations do not write to the console.
+ */
+final class BenchmarkSupport {
+    static final PrintStream sConsole = System.out;
+
+    private BenchmarkSupport() {
+    }
+    static Path workDirectory() throws IOException {
+        Path directory = Paths.get(System.getProperty("benchmark.dir", "build/jmh-work"));
+        Files.createDirectories(directory);
+        return directory;
+    }
+    /* fixture :
+     * Input : Fixture name, see FixtureGenerator.Fixture.getName().
+     * Output : Path of the fixture, generated when missing.
+     */
+    static Path fixture(String name) throws IOException {
+        FixtureGenerator.Fixture fixture = FixtureGenerator.Fixture.parse(name);
+        if (fixture == null) {
+            throw new IllegalArgumentException("Invalid fixture " + name);
+        }
+        return FixtureGenerator.generate(workDirectory().resolve("fixtures"), fixture);
+    }
+    /* outputDirectory :
+     * Input : Name of the benchmark.
+     * Output : Directory for its outputs, created when missing.
+     */
+    static Path outputDirectory(String name) throws IOException {
+        Path directory = workDirectory().resolve("output").resolve(name);
+        Files.createDirectories(directory);
+        return directory;
+    }
+    static void quiet() {
+        av_log_set_level(AV_LOG_QUIET);
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte b[], int off, int len) {
+            }
+        }));
+    }
+    static void restore() {
+        System.setOut(sConsole);
+        av_log_set_level(AV_LOG_INFO);
+    }
+    /* demux :
+     * Input :
+     *  File to be read.
+     *  Mapped io context, null to use the file protocol.
+     * Output : Number of packets read. -1 on failure.
+     */
+    static long demux(String file, MappedFileIOContext io) {
+        AVFormatContext ctx;
+        if (io != null) {
+            ctx = avformat_alloc_context();
+            ctx.pb(io.getIOContext());
+            ctx.flags(ctx.flags() | AVFMT_FLAG_CUSTOM_IO);
+        } else {
+            ctx = new AVFormatContext(null);
+        }
+        if (avformat_open_input(ctx, file, null, null) < 0) {
+            return -1;
+        }
+        long packets = 0;
+        if (avformat_find_stream_info(ctx, (PointerPointer<?>)null) >= 0) {
+            AVPacket p = av_packet_alloc();
+            while (av_read_frame(ctx, p) >= 0) {
+                packets++;
+                av_packet_unref(p);
+            }
+            av_packet_free(p);
+        }
+        avformat_close_input(ctx);
+        return packets;
+    }
+}
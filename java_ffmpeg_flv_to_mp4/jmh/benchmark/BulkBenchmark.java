@@ -0,0 +1,94 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import MediaOperations.BatchConverter;
+import MediaOperations.BatchSummary;
+
+/* BulkBenchmark : BatchConverter over many copies of one short fixture,
+ * at several pool sizes. Scores in batches/s, with files/s as a counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BulkBenchmark {
+    @Param({"1", "2", "4"})
+    public int threads;
+    @Param({"32"})
+    public int files;
+
+    List<Path> mFiles = new ArrayList<Path>();
+    Path mOutputDirectory;
+
+    /* Files converted by the iterations, as a rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Converted {
+        public long files;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path fixture = BenchmarkSupport.fixture("320x240_25fps_300k_2s");
+        Path directory = BenchmarkSupport.workDirectory().resolve("bulk");
+        Files.createDirectories(directory);
+        mFiles.clear();
+        for (int i = 0; i < files; i++) {
+            Path copy = directory.resolve("bulk_" + i + ".flv");
+            if (!Files.exists(copy)) {
+                Files.copy(fixture, copy, StandardCopyOption.REPLACE_EXISTING);
+            }
+            mFiles.add(copy);
+        }
+        mOutputDirectory = BenchmarkSupport.outputDirectory("bulk");
+        BenchmarkSupport.quiet();
+    }
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.restore();
+    }
+    @Benchmark
+    public long bulk(Converted converted) throws Exception {
+        BatchConverter batch = new BatchConverter(mOutputDirectory.toString(), "mp4",
+                threads, 2 * threads);
+        for (Path file : mFiles) {
+            batch.submit(file);
+        }
+        BatchSummary summary = batch.finish();
+        if (summary.getSucceeded() != mFiles.size()) {
+            throw new IOException("Bulk conversion failed for "
+                    + (mFiles.size() - summary.getSucceeded()) + " files");
+        }
+        converted.files += summary.getSucceeded();
+        return summary.getBytesOut();
+    }
+}
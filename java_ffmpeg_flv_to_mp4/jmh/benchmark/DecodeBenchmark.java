@@ -0,0 +1,87 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import codec.FrameCallback;
+import codec.FrameExtractor;
+import codec.ScaleSettings;
+
+/* DecodeBenchmark : Every frame of a fixture decoded by PacketDecoder and
+ * scaled to RGB24 of the given width, through FrameExtractor. Scores in
+ * files/s, with frames/s as a counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"320x240_25fps_300k_10s", "640x360_25fps_800k_10s", "1280x720_25fps_2500k_10s",
+            "1920x1080_30fps_5000k_10s"})
+    public String fixture;
+    @Param({"640"})
+    public int width;
+
+    Path mFixture;
+    ScaleSettings mScale = new ScaleSettings();
+
+    /* Frames decoded by the iterations, as a rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Frames {
+        public long frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFixture = BenchmarkSupport.fixture(fixture);
+        mScale.setSize(width, 0);
+        BenchmarkSupport.quiet();
+    }
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.restore();
+    }
+    @Benchmark
+    public void decode(Frames frames, final Blackhole blackhole) throws IOException {
+        try (FrameExtractor e = new FrameExtractor(mFixture.toString())) {
+            e.setScaleSettings(mScale);
+            if (!e.open()) {
+                throw new IOException("Unable to decode " + mFixture);
+            }
+            frames.frames += e.extract(new FrameCallback() {
+                @Override
+                public void onFrame(ByteBuffer pixels, int width, int height,
+                                    int lineSize, long pts) {
+                    // Only the decode and the scale are measured.
+                    blackhole.consume(pixels.get(pixels.limit() - 1));
+                }
+            });
+        }
+    }
+}
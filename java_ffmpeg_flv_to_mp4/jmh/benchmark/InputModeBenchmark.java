@@ -0,0 +1,72 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import FileUtils.CustomIOContext;
+import FileUtils.MappedFileIOContext;
+
+/* InputModeBenchmark : Compares demuxing an input through libavformat's
+ * file protocol with demuxing it through MappedFileIOContext.
+ *
+ * Every operation opens the file, probes it and reads all packets.
+ * Nothing is decoded or written, so the difference between the two
+ * scores is the cost of the input path. The warmup brings the file into
+ * the page cache, the measurement shows the syscall and copy overhead.
+ * Scores in ms/op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InputModeBenchmark {
+    @Param({"640x360_25fps_800k_60s", "1920x1080_30fps_5000k_10s"})
+    public String fixture;
+    @Param({"file", "mmap"})
+    public String input;
+
+    Path mFixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFixture = BenchmarkSupport.fixture(fixture);
+        BenchmarkSupport.quiet();
+    }
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.restore();
+    }
+    @Benchmark
+    public long demux() throws IOException {
+        MappedFileIOContext io = null;
+        if (input.equals("mmap")) {
+            io = MappedFileIOContext.open(mFixture, MappedFileIOContext.DEFAULT_WINDOW_SIZE,
+                    CustomIOContext.DEFAULT_BUFFER_SIZE);
+        }
+        long packets = BenchmarkSupport.demux(mFixture.toString(), io);
+        if (io != null) {
+            io.close();
+        }
+        if (packets < 0) {
+            throw new IOException("Unable to demux " + mFixture);
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,60 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import MediaOperations.FormatConverter;
+
+/* ProbeBenchmark : FormatConverter init() only, i.e. initInput() and the
+ * output setup, and close(). Scores in ms/op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProbeBenchmark {
+    @Param({"320x240_25fps_300k_10s", "640x360_25fps_800k_10s", "1280x720_25fps_2500k_10s",
+            "1920x1080_30fps_5000k_10s"})
+    public String fixture;
+
+    Path mFixture;
+    Path mOutputDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFixture = BenchmarkSupport.fixture(fixture);
+        mOutputDirectory = BenchmarkSupport.outputDirectory("probe");
+        BenchmarkSupport.quiet();
+    }
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.restore();
+    }
+    @Benchmark
+    public long probe() throws IOException {
+        try (FormatConverter c = new FormatConverter(mFixture.toString(),
+                mOutputDirectory.toString(), "mp4")) {
+            if (!c.init()) {
+                throw new IOException("Unable to probe " + mFixture);
+            }
+            return c.getProbeTimeNanos();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import MediaOperations.FormatConverter;
+
+/* RemuxBenchmark : FormatConverter init() and convert() of one fixture.
+ * Scores in files/s, with packets/s and MB/s of input as counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RemuxBenchmark {
+    @Param({"320x240_25fps_300k_10s", "640x360_25fps_800k_10s", "1280x720_25fps_2500k_10s",
+            "1280x720_25fps_6000k_10s", "1920x1080_30fps_5000k_10s", "640x360_25fps_800k_60s"})
+    public String fixture;
+
+    Path mFixture;
+    Path mOutputDirectory;
+    long mPackets;
+    double mMegaBytes;
+
+    /* Input read by the iterations, as rates. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Input {
+        public long packets;
+        public double megaBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+            megaBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFixture = BenchmarkSupport.fixture(fixture);
+        mOutputDirectory = BenchmarkSupport.outputDirectory("remux");
+        mPackets = BenchmarkSupport.demux(mFixture.toString(), null);
+        mMegaBytes = Files.size(mFixture) / (1024.0 * 1024.0);
+        BenchmarkSupport.quiet();
+    }
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.restore();
+    }
+    @Benchmark
+    public String remux(Input input) throws IOException {
+        FormatConverter c = new FormatConverter(mFixture.toString(),
+                mOutputDirectory.toString(), "mp4");
+        if (!c.init() || !c.convert()) {
+            throw new IOException("Unable to remux " + mFixture);
+        }
+        input.packets += mPackets;
+        input.megaBytes += mMegaBytes;
+        return c.getOutputFileName();
+    }
+}
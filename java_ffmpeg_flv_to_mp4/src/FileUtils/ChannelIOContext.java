@@ -0,0 +1,152 @@
+package FileUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/* This class is an AVIOContext backed by a java.nio channel.
+ *
+ * The input side reads from a ReadableByteChannel and the output side
+ * writes to a WritableByteChannel, straight into / out of the native
+ * buffer of the AVIOContext. With a FileChannel or a SocketChannel
+ * no temporary file and no heap copy is needed.
+ * An InputStream or OutputStream can be used through
+ * java.nio.channels.Channels.newChannel.
+ *
+ * Seeking is supported when the channel is a SeekableByteChannel.
+ * e.g. mp4 output needs a seekable sink unless it is fragmented.
+ *
+ * The channel has to block. A SelectableChannel in non-blocking mode is
+ * rejected, the callbacks of libavformat cannot wait for a selector. A
+ * channel which still moves 0 bytes is tried again after a back off,
+ * from MIN_BACKOFF_NS doubling up to MAX_BACKOFF_NS, not in a busy loop.
+ */
+public class ChannelIOContext extends CustomIOContext {
+    static final long MIN_BACKOFF_NS = 50000L;
+    static final long MAX_BACKOFF_NS = 10000000L;
+
+    ReadableByteChannel mReadChannel = null;
+    WritableByteChannel mWriteChannel = null;
+    SeekableByteChannel mSeekableChannel = null;
+
+    ChannelIOContext(ReadableByteChannel readChannel,
+                     WritableByteChannel writeChannel,
+                     SeekableByteChannel seekableChannel,
+                     int bufferSize) {
+        super(bufferSize, writeChannel != null, seekableChannel != null);
+        mReadChannel = readChannel;
+        mWriteChannel = writeChannel;
+        mSeekableChannel = seekableChannel;
+    }
+    /* forReading :
+     * Input :
+     *  Channel the media is read from.
+     *  Size of the AVIOContext buffer.
+     * Output : Input context. Has to be closed after the input format context.
+     */
+    public static ChannelIOContext forReading(ReadableByteChannel channel,
+                                              int bufferSize) {
+        checkBlocking(channel);
+        SeekableByteChannel seekable = (channel instanceof SeekableByteChannel) ?
+                (SeekableByteChannel)channel : null;
+        return new ChannelIOContext(channel, null, seekable, bufferSize);
+    }
+    /* forWriting :
+     * Input :
+     *  Channel the media is written to.
+     *  Size of the AVIOContext buffer.
+     * Output : Output context. Has to be closed after the trailer is written.
+     */
+    public static ChannelIOContext forWriting(WritableByteChannel channel,
+                                              int bufferSize) {
+        checkBlocking(channel);
+        SeekableByteChannel seekable = (channel instanceof SeekableByteChannel) ?
+                (SeekableByteChannel)channel : null;
+        return new ChannelIOContext(null, channel, seekable, bufferSize);
+    }
+    /* checkBlocking :
+     * Desc : Throws IllegalArgumentException for a non-blocking channel,
+     * before the native buffer is allocated.
+     */
+    private static void checkBlocking(Channel channel) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel)channel).isBlocking()) {
+            throw new IllegalArgumentException("ChannelIOContext needs a blocking channel");
+        }
+    }
+    public boolean isSeekable() {
+        return mSeekableChannel != null;
+    }
+    @Override
+    protected int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        // A blocking channel returns at least one byte or -1.
+        int n = mReadChannel.read(dst);
+        long backoffNs = MIN_BACKOFF_NS;
+        while (n == 0) {
+            backoffNs = backOff(backoffNs);
+            n = mReadChannel.read(dst);
+        }
+        return n;
+    }
+    @Override
+    protected int write(ByteBuffer src) throws IOException {
+        int total = 0;
+        long backoffNs = MIN_BACKOFF_NS;
+        while (src.hasRemaining()) {
+            int n = mWriteChannel.write(src);
+            if (n == 0) {
+                backoffNs = backOff(backoffNs);
+            } else {
+                backoffNs = MIN_BACKOFF_NS;
+            }
+            total += n;
+        }
+        return total;
+    }
+    /* backOff :
+     * Input : Time to wait in nanoseconds.
+     * Output : Time to wait the next time.
+     *
+     * Desc : Parks the thread after the channel moved 0 bytes.
+     */
+    private static long backOff(long backoffNs) throws InterruptedIOException {
+        LockSupport.parkNanos(backoffNs);
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting for the channel");
+        }
+        return Math.min(backoffNs * 2, MAX_BACKOFF_NS);
+    }
+    @Override
+    protected long seek(long offset, int whence) throws IOException {
+        if (mSeekableChannel == null) {
+            return -1;
+        }
+        long position;
+        if (whence == SEEK_SET) {
+            position = offset;
+        } else if (whence == SEEK_CUR) {
+            position = mSeekableChannel.position() + offset;
+        } else if (whence == SEEK_END) {
+            position = mSeekableChannel.size() + offset;
+        } else {
+            return -1;
+        }
+        mSeekableChannel.position(position);
+        return position;
+    }
+    @Override
+    protected long size() throws IOException {
+        if (mSeekableChannel == null) {
+            return -1;
+        }
+        return mSeekableChannel.size();
+    }
+}
@@ -0,0 +1,198 @@
+package FileUtils;
+
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_FORCE;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_SIZE;
+import static org.bytedeco.ffmpeg.global.avformat.avio_alloc_context;
+import static org.bytedeco.ffmpeg.global.avformat.avio_context_free;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EXIT;
+import static org.bytedeco.ffmpeg.global.avutil.av_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_malloc;
+import static org.bytedeco.ffmpeg.presets.avutil.AVERROR_EIO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
+import org.bytedeco.ffmpeg.avformat.Write_packet_Pointer_BytePointer_int;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.LongPointer;
+import org.bytedeco.javacpp.Pointer;
+
+/* This class is the base for AVIOContexts whose read, write and seek
+ * are implemented in Java instead of by a libavformat protocol.
+ *
+ * libavformat hands the callbacks a pointer to its own av_malloc'ed
+ * buffer. The subclasses get that buffer as a direct ByteBuffer view,
+ * so the data goes between the native buffer and the Java source or
+ * sink without a copy on the Java heap.
+ *
+ * JavaCPP can create only a limited number of native callback instances,
+ * so one instance of each callback is shared by all the contexts.
+ * The opaque pointer of the AVIOContext carries the id of the Java object.
+ *
+ * Reference :
+ * https://ffmpeg.org/doxygen/4.4/avio_reading_8c-example.html
+ */
+public abstract class CustomIOContext implements AutoCloseable {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // Values of whence passed to seek. Same as stdio.
+    protected static final int SEEK_SET = 0;
+    protected static final int SEEK_CUR = 1;
+    protected static final int SEEK_END = 2;
+
+    static final ConcurrentHashMap<Long, CustomIOContext> sContexts =
+            new ConcurrentHashMap<Long, CustomIOContext>();
+    static final AtomicLong sNextId = new AtomicLong();
+    static final ReadCallback sReadCallback = new ReadCallback();
+    static final WriteCallback sWriteCallback = new WriteCallback();
+    static final SeekCallback sSeekCallback = new SeekCallback();
+
+    AVIOContext mIOContext = null;
+    LongPointer mOpaque = null;
+    long mId = 0;
+
+    /* constuctor :
+     * Input :
+     *  Size of the buffer libavformat reads into / writes from.
+     *  True for an output context, false for an input context.
+     *  True when seek() is supported.
+     */
+    protected CustomIOContext(int bufferSize, boolean writable, boolean seekable) {
+        mId = sNextId.incrementAndGet();
+        mOpaque = new LongPointer(1);
+        mOpaque.put(0, mId);
+        sContexts.put(mId, this);
+        BytePointer buffer = new BytePointer(av_malloc(bufferSize));
+        mIOContext = avio_alloc_context(buffer,
+                bufferSize,
+                writable ? 1 : 0,
+                mOpaque,
+                writable ? null : sReadCallback,
+                writable ? sWriteCallback : null,
+                seekable ? sSeekCallback : null);
+        NativeTracker.allocated(NativeTracker.IO_CONTEXT);
+        if (!seekable) {
+            mIOContext.seekable(0);
+        }
+    }
+    /* getIOContext :
+     * Input : none.
+     * Output : AVIOContext to be set as pb of a format context.
+     */
+    public AVIOContext getIOContext() {
+        return mIOContext;
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees the AVIOContext and its buffer. The format context
+     * using it has to be closed before. The Java source or sink is not
+     * closed, it belongs to the caller.
+     */
+    public void close() {
+        if (mIOContext == null) {
+            return;
+        }
+        // libavformat can replace the buffer, so free the current one.
+        av_free(mIOContext.buffer());
+        avio_context_free(mIOContext);
+        NativeTracker.freed(NativeTracker.IO_CONTEXT);
+        mIOContext = null;
+        sContexts.remove(mId);
+    }
+    /* read :
+     * Input : View over the native buffer to be filled.
+     * Output : Number of bytes read, -1 at end of input.
+     */
+    protected int read(ByteBuffer dst) throws IOException {
+        throw new IOException("Context is not readable");
+    }
+    /* write :
+     * Input : View over the native buffer to be written.
+     * Output : Number of bytes written.
+     */
+    protected int write(ByteBuffer src) throws IOException {
+        throw new IOException("Context is not writable");
+    }
+    /* seek :
+     * Input : Offset and whence (SEEK_SET, SEEK_CUR, SEEK_END).
+     * Output : New position, -1 when the position can not be reached.
+     */
+    protected long seek(long offset, int whence) throws IOException {
+        return -1;
+    }
+    /* size :
+     * Input : none.
+     * Output : Total size of the source or sink. -1 when not known.
+     */
+    protected long size() throws IOException {
+        return -1;
+    }
+
+    static CustomIOContext lookup(Pointer opaque) {
+        return sContexts.get(new LongPointer(opaque).get(0));
+    }
+
+    static class ReadCallback extends Read_packet_Pointer_BytePointer_int {
+        @Override
+        public int call(Pointer opaque, BytePointer buf, int bufSize) {
+            CustomIOContext ctx = lookup(opaque);
+            if (ctx == null) {
+                return AVERROR_EIO();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // The conversion was cancelled, see InterruptCallback.
+                return AVERROR_EXIT;
+            }
+            try {
+                int n = ctx.read(buf.capacity(bufSize).asByteBuffer());
+                return (n < 0) ? AVERROR_EOF : n;
+            } catch (Throwable e) {
+                // Nothing can be thrown back through libavformat.
+                System.out.println("CustomIOContext read failed : " + e);
+                return AVERROR_EIO();
+            }
+        }
+    }
+    static class WriteCallback extends Write_packet_Pointer_BytePointer_int {
+        @Override
+        public int call(Pointer opaque, BytePointer buf, int bufSize) {
+            CustomIOContext ctx = lookup(opaque);
+            if (ctx == null) {
+                return AVERROR_EIO();
+            }
+            try {
+                return ctx.write(buf.capacity(bufSize).asByteBuffer());
+            } catch (Throwable e) {
+                System.out.println("CustomIOContext write failed : " + e);
+                return AVERROR_EIO();
+            }
+        }
+    }
+    static class SeekCallback extends Seek_Pointer_long_int {
+        @Override
+        public long call(Pointer opaque, long offset, int whence) {
+            CustomIOContext ctx = lookup(opaque);
+            if (ctx == null) {
+                return AVERROR_EIO();
+            }
+            try {
+                whence &= ~AVSEEK_FORCE;
+                if (whence == AVSEEK_SIZE) {
+                    return ctx.size();
+                }
+                return ctx.seek(offset, whence);
+            } catch (Throwable e) {
+                System.out.println("CustomIOContext seek failed : " + e);
+                return AVERROR_EIO();
+            }
+        }
+    }
+}
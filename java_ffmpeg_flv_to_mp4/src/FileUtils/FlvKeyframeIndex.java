@@ -0,0 +1,183 @@
+package FileUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/* This class lists the video key frames of an flv file with their byte
+ * position, without demuxing the file.
+ *
+ * An flv file is a header followed by tags, each with an 11 byte tag
+ * header which gives the type, the payload size and the timestamp. The
+ * first payload byte of a video tag holds the frame type. So the index
+ * is built by reading 13 bytes per tag and jumping over the payload.
+ * Small audio tags are read through a 64 KB window, large video
+ * payloads are skipped, so a multi GB file is indexed in a fraction
+ * of the time a demux takes.
+ *
+ * H.264 sequence headers are flagged as key frames too, they are not
+ * listed. A truncated last tag ends the index.
+ *
+ * The positions are the ones libavformat gives as AVPacket.pos for the
+ * packets of those tags, so a range of the file can be demuxed by a
+ * byte seek to a key frame and reading up to the next range.
+ */
+public class FlvKeyframeIndex {
+    static final int TAG_HEADER_SIZE = 11;
+    static final int PREVIOUS_TAG_SIZE = 4;
+    static final int TAG_TYPE_VIDEO = 9;
+    static final int FRAME_TYPE_KEY = 1;
+    static final int CODEC_ID_H264 = 7;
+    static final int AVC_SEQUENCE_HEADER = 0;
+    static final int WINDOW_SIZE = 64 * 1024;
+
+    long mPositions[] = new long[1024];
+    long mTimestamps[] = new long[1024];
+    int mCount = 0;
+    // Timestamps of the first and the last complete tag, in ms.
+    long mFirstTimestamp = -1;
+    long mLastTimestamp = 0;
+    long mFileSize = 0;
+    long mDataOffset = 0;
+
+    /* scan :
+     * Input : flv file.
+     * Output : Key frames of the file. null when the file is not flv.
+     */
+    public static FlvKeyframeIndex scan(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FlvKeyframeIndex index = new FlvKeyframeIndex();
+            return index.read(channel) ? index : null;
+        }
+    }
+    private boolean read(FileChannel channel) throws IOException {
+        mFileSize = channel.size();
+        ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+        long windowStart = 0;
+        window.limit(0);
+        long position = 0;
+        boolean header = true;
+        while (true) {
+            int needed = header ? 9 : TAG_HEADER_SIZE + 2;
+            if (position < windowStart || position + needed > windowStart + window.limit()) {
+                windowStart = position;
+                window.clear();
+                int read;
+                do {
+                    read = channel.read(window, windowStart + window.position());
+                } while (read > 0 && window.hasRemaining());
+                window.flip();
+                if (window.limit() < needed) {
+                    // Truncated or at the end.
+                    return !header;
+                }
+            }
+            int offset = (int)(position - windowStart);
+            if (header) {
+                if (window.get(offset) != 'F' || window.get(offset + 1) != 'L' ||
+                    window.get(offset + 2) != 'V') {
+                    return false;
+                }
+                mDataOffset = window.getInt(offset + 5) & 0xffffffffL;
+                position = mDataOffset + PREVIOUS_TAG_SIZE;
+                header = false;
+                continue;
+            }
+            int type = window.get(offset) & 0x1f;
+            int dataSize = ((window.get(offset + 1) & 0xff) << 16) |
+                           ((window.get(offset + 2) & 0xff) << 8) |
+                           (window.get(offset + 3) & 0xff);
+            long timestamp = ((window.get(offset + 7) & 0xffL) << 24) |
+                             ((window.get(offset + 4) & 0xffL) << 16) |
+                             ((window.get(offset + 5) & 0xffL) << 8) |
+                             (window.get(offset + 6) & 0xffL);
+            long next = position + TAG_HEADER_SIZE + dataSize + PREVIOUS_TAG_SIZE;
+            if (next > mFileSize) {
+                return true;
+            }
+            if (mFirstTimestamp < 0) {
+                mFirstTimestamp = timestamp;
+            }
+            mLastTimestamp = timestamp;
+            if (type == TAG_TYPE_VIDEO && dataSize >= 2) {
+                int flags = window.get(offset + TAG_HEADER_SIZE) & 0xff;
+                boolean key = (flags >> 4) == FRAME_TYPE_KEY;
+                if (key && (flags & 0x0f) == CODEC_ID_H264 &&
+                    window.get(offset + TAG_HEADER_SIZE + 1) == AVC_SEQUENCE_HEADER) {
+                    key = false;
+                }
+                if (key) {
+                    add(position, timestamp);
+                }
+            }
+            position = next;
+        }
+    }
+    private void add(long position, long timestamp) {
+        if (mCount == mPositions.length) {
+            mPositions = Arrays.copyOf(mPositions, mCount * 2);
+            mTimestamps = Arrays.copyOf(mTimestamps, mCount * 2);
+        }
+        mPositions[mCount] = position;
+        mTimestamps[mCount] = timestamp;
+        mCount++;
+    }
+    public int getKeyframeCount() {
+        return mCount;
+    }
+    /* getPosition :
+     * Input : Index of a key frame.
+     * Output : Byte position of its tag.
+     */
+    public long getPosition(int keyframe) {
+        return mPositions[keyframe];
+    }
+    /* getTimestamp :
+     * Input : Index of a key frame.
+     * Output : Its flv timestamp in ms.
+     */
+    public long getTimestamp(int keyframe) {
+        return mTimestamps[keyframe];
+    }
+    /* getFirstTimestamp :
+     * Output : flv timestamp in ms of the first tag, 0 without tags.
+     */
+    public long getFirstTimestamp() {
+        return Math.max(mFirstTimestamp, 0);
+    }
+    /* getLastTimestamp :
+     * Output : flv timestamp in ms of the last complete tag.
+     */
+    public long getLastTimestamp() {
+        return mLastTimestamp;
+    }
+    public long getFileSize() {
+        return mFileSize;
+    }
+    /* split :
+     * Input : Wanted number of ranges.
+     * Output : Index of the key frame every range but the first starts
+     *          at. The ranges are of about the same size in bytes. Fewer
+     *          ranges when there are not enough key frames.
+     */
+    public int[] split(int ranges) {
+        int starts[] = new int[Math.max(ranges - 1, 0)];
+        int count = 0;
+        int keyframe = 1;
+        for (int i = 1; i < ranges; i++) {
+            long target = mDataOffset + (mFileSize - mDataOffset) * i / ranges;
+            while (keyframe < mCount && mPositions[keyframe] < target) {
+                keyframe++;
+            }
+            if (keyframe >= mCount) {
+                break;
+            }
+            starts[count++] = keyframe;
+            keyframe++;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+}
@@ -0,0 +1,116 @@
+package FileUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/* This class reads a file which is still being written, e.g. the flv of
+ * a running recorder.
+ *
+ * read() returns the bytes written so far. At the end of them it does
+ * not return -1, it waits for the file to grow and checks again every
+ * poll interval. The file ends when
+ *  - the end marker exists, a file with the name of the input plus
+ *    END_MARKER_SUFFIX which the recorder creates after its last write,
+ *    and everything up to it is read, or
+ *  - the file did not grow for the idle timeout, e.g. the recorder died,
+ *  - the file got shorter than what was read, e.g. it was truncated to
+ *    start a new recording,
+ *  - the reading thread is interrupted.
+ * So a demuxer on top of it, through ChannelIOContext, sees one stream
+ * which ends with the recording. A tag the recorder had not completed
+ * at that point is the usual truncated last tag.
+ *
+ * The channel is not seekable, the demuxer reads it front to back.
+ */
+public class GrowingFileChannel implements ReadableByteChannel {
+    public static final String END_MARKER_SUFFIX = ".done";
+    public static final long DEFAULT_POLL_MILLIS = 100;
+
+    FileChannel mChannel = null;
+    Path mFile = null;
+    Path mEndMarker = null;
+    long mIdleTimeoutNanos = 0;
+    long mPollMillis = DEFAULT_POLL_MILLIS;
+    long mLastDataNanos = 0;
+    boolean mEndMarkerSeen = false;
+    boolean mEnded = false;
+
+    GrowingFileChannel(FileChannel channel, Path file, long idleTimeoutMillis) {
+        mChannel = channel;
+        mFile = file;
+        mEndMarker = file.resolveSibling(file.getFileName() + END_MARKER_SUFFIX);
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        mLastDataNanos = System.nanoTime();
+    }
+    /* open :
+     * Input :
+     *  File to be read while it is written.
+     *  Time in ms without new data after which the file is taken as complete.
+     * Output : Channel positioned at the start of the file.
+     */
+    public static GrowingFileChannel open(Path file, long idleTimeoutMillis) throws IOException {
+        return new GrowingFileChannel(FileChannel.open(file, StandardOpenOption.READ),
+                file, idleTimeoutMillis);
+    }
+    /* setPollInterval :
+     * Input : Time in ms between two checks for new data.
+     * Output : none.
+     */
+    public void setPollInterval(long pollMillis) {
+        mPollMillis = Math.max(pollMillis, 1);
+    }
+    /* read :
+     * Input : Buffer to fill.
+     * Output : Number of bytes read, -1 once the file has ended.
+     *
+     * Desc : Blocks until there is new data or the file has ended.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (!mEnded) {
+            int n = mChannel.read(dst);
+            if (n != -1) {
+                if (n > 0) {
+                    mLastDataNanos = System.nanoTime();
+                }
+                return n;
+            }
+            if (mEndMarkerSeen) {
+                mEnded = true;
+            } else if (Files.exists(mEndMarker)) {
+                // Read once more, the last data can have landed just
+                // before the marker.
+                mEndMarkerSeen = true;
+            } else if (mChannel.size() < mChannel.position()) {
+                System.out.println(mFile + " got shorter while it was followed, ending it");
+                mEnded = true;
+            } else if (System.nanoTime() - mLastDataNanos >= mIdleTimeoutNanos) {
+                System.out.println("No new data in " + mFile + " for "
+                        + TimeUnit.NANOSECONDS.toMillis(mIdleTimeoutNanos) + " ms, ending it");
+                mEnded = true;
+            } else {
+                try {
+                    Thread.sleep(mPollMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mEnded = true;
+                }
+            }
+        }
+        return -1;
+    }
+    @Override
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
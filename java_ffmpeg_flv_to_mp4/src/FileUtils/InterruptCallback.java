@@ -0,0 +1,34 @@
+package FileUtils;
+
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOInterruptCB;
+import org.bytedeco.javacpp.Pointer;
+
+/* This class stops a blocking libavformat call when the thread which
+ * made it is interrupted, e.g. a conversion cancelled by the timeout of
+ * BatchConverter.
+ *
+ * libavformat calls the interrupt callback of a format context while it
+ * opens, probes and reads through a protocol, and gives up with
+ * AVERROR_EXIT once it returns 1. Input read through a CustomIOContext
+ * is checked by the read callback of the context instead.
+ *
+ * Like the callbacks of CustomIOContext, one instance is shared by all
+ * the format contexts. It needs no opaque pointer, the interrupt flag of
+ * the calling thread is all it looks at.
+ */
+public class InterruptCallback extends AVIOInterruptCB.Callback_Pointer {
+    static final InterruptCallback sInstance = new InterruptCallback();
+
+    /* install :
+     * Input : Format context, before avformat_open_input.
+     * Output : none.
+     */
+    public static void install(AVFormatContext ctx) {
+        ctx.interrupt_callback().callback(sInstance);
+    }
+    @Override
+    public int call(Pointer opaque) {
+        return Thread.currentThread().isInterrupted() ? 1 : 0;
+    }
+}
@@ -0,0 +1,121 @@
+package FileUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* This class is an input AVIOContext over a memory mapped file.
+ *
+ * libavformat's file protocol serves the demuxer with small read()
+ * calls. Here the file is mapped and every read is a memory copy from
+ * the mapped region into the avio buffer, without a system call.
+ * Seeking only moves the read position.
+ *
+ * A MappedByteBuffer can not be larger than 2 GB, so the file is mapped
+ * in windows. A new window is mapped when the read position leaves the
+ * current one. Demuxing is mostly sequential, so this happens once per
+ * window size for a multi gigabyte recording.
+ *
+ * Note : Java 7 has no API to unmap a buffer. The mapping is released
+ * when the buffer is garbage collected.
+ */
+public class MappedFileIOContext extends CustomIOContext {
+    public static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    FileChannel mChannel = null;
+    long mFileSize = 0;
+    long mWindowSize = 0;
+    MappedByteBuffer mWindow = null;
+    long mWindowStart = 0;
+    long mPosition = 0;
+
+    MappedFileIOContext(FileChannel channel, long windowSize, int bufferSize)
+            throws IOException {
+        super(bufferSize, false, true);
+        mChannel = channel;
+        mFileSize = channel.size();
+        mWindowSize = Math.min(windowSize, Integer.MAX_VALUE);
+    }
+    /* open :
+     * Input :
+     *  File to be read.
+     *  Size of the mapped windows. At most 2 GB.
+     *  Size of the AVIOContext buffer.
+     * Output : Input context. Has to be closed after the input format context.
+     */
+    public static MappedFileIOContext open(Path file, long windowSize, int bufferSize)
+            throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new MappedFileIOContext(channel, windowSize, bufferSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    /* mapWindow :
+     * Input : File position which has to be readable.
+     * Output : none.
+     *
+     * Desc : Maps the window which starts at the given position.
+     */
+    private void mapWindow(long position) throws IOException {
+        long length = Math.min(mWindowSize, mFileSize - position);
+        mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        mWindowStart = position;
+    }
+    @Override
+    protected int read(ByteBuffer dst) throws IOException {
+        if (mPosition >= mFileSize) {
+            return -1;
+        }
+        if (mWindow == null ||
+            mPosition < mWindowStart ||
+            mPosition >= mWindowStart + mWindow.capacity()) {
+            mapWindow(mPosition);
+        }
+        int offset = (int)(mPosition - mWindowStart);
+        int length = Math.min(dst.remaining(), mWindow.capacity() - offset);
+        ByteBuffer src = mWindow.duplicate();
+        src.position(offset);
+        src.limit(offset + length);
+        dst.put(src);
+        mPosition += length;
+        return length;
+    }
+    @Override
+    protected long seek(long offset, int whence) throws IOException {
+        long position;
+        if (whence == SEEK_SET) {
+            position = offset;
+        } else if (whence == SEEK_CUR) {
+            position = mPosition + offset;
+        } else if (whence == SEEK_END) {
+            position = mFileSize + offset;
+        } else {
+            return -1;
+        }
+        if (position < 0) {
+            return -1;
+        }
+        mPosition = position;
+        return position;
+    }
+    @Override
+    protected long size() {
+        return mFileSize;
+    }
+    @Override
+    public void close() {
+        super.close();
+        mWindow = null;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close mapped file : " + e);
+        }
+    }
+}
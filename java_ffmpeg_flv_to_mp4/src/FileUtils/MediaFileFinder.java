@@ -0,0 +1,130 @@
+package FileUtils;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+
+/* This class walks a directory tree and hands every matching file to a
+ * listener as soon as it is found.
+ *
+ * Nothing is collected. Files.walkFileTree keeps one open directory per
+ * level of the tree, so memory does not depend on the number of files.
+ * The first file reaches the listener after reading only the first
+ * directory entries, and a listener which blocks (e.g. a full
+ * BatchConverter queue) simply pauses the walk.
+ *
+ * A pattern without '/' is matched against the file name, e.g. "*.flv".
+ * Otherwise it is matched against the path relative to the root,
+ * e.g. "2021/**.flv". Patterns use the PathMatcher glob syntax.
+ */
+public class MediaFileFinder {
+    public static final String DEFAULT_PATTERN = "*.flv";
+
+    /* Receives the files found by the walk.
+     */
+    public interface Listener {
+        /* onFile :
+         * Input :
+         *  Matching file.
+         *  Directory of the file relative to the root. Empty for the root.
+         * Output : False to stop the walk.
+         */
+        boolean onFile(Path file, Path relativeDirectory) throws InterruptedException;
+    }
+
+    Path mRoot = null;
+    PathMatcher mMatcher = null;
+    boolean mMatchFileName = true;
+    int mMaxDepth = Integer.MAX_VALUE;
+
+    /* constuctor :
+     * Input :
+     *  Root directory of the walk.
+     *  Glob pattern of the files to be reported.
+     */
+    public MediaFileFinder(Path root, String pattern) {
+        mRoot = root;
+        mMatcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        mMatchFileName = (pattern.indexOf('/') < 0);
+    }
+    /* setMaxDepth :
+     * Input : Number of directory levels to descend. 1 for the root only.
+     * Output : none.
+     */
+    public void setMaxDepth(int maxDepth) {
+        mMaxDepth = maxDepth;
+    }
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+    /* matches :
+     * Input : File under the root.
+     * Output : True when the file matches the pattern.
+     */
+    public boolean matches(Path file) {
+        return mMatcher.matches(mMatchFileName ? file.getFileName() : mRoot.relativize(file));
+    }
+    /* getRelativeDirectory :
+     * Input : File under the root.
+     * Output : Directory of the file relative to the root. Empty for the root.
+     */
+    public Path getRelativeDirectory(Path file) {
+        Path relativeDirectory = mRoot.relativize(file).getParent();
+        if (relativeDirectory == null) {
+            relativeDirectory = mRoot.getFileSystem().getPath("");
+        }
+        return relativeDirectory;
+    }
+    public Path getRoot() {
+        return mRoot;
+    }
+    /* find :
+     * Input : Listener called for every matching file, in walk order.
+     * Output : False when the walk was stopped by the listener.
+     *
+     * Desc : Walks the tree. Unreadable directories and files are
+     * reported and skipped.
+     */
+    public boolean find(final Listener listener) throws IOException, InterruptedException {
+        final boolean completed[] = { true };
+        final InterruptedException interrupted[] = { null };
+        Files.walkFileTree(mRoot, EnumSet.noneOf(FileVisitOption.class), mMaxDepth,
+                new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!matches(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                try {
+                    if (!listener.onFile(file, getRelativeDirectory(file))) {
+                        completed[0] = false;
+                        return FileVisitResult.TERMINATE;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted[0] = e;
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.out.println("Unable to read " + file + " : " + e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (interrupted[0] != null) {
+            throw interrupted[0];
+        }
+        return completed[0];
+    }
+}
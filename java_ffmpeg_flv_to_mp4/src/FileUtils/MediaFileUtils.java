@@ -4,6 +4,8 @@ import static org.bytedeco.ffmpeg.global.avformat.AVIO_FLAG_WRITE;
 import static org.bytedeco.ffmpeg.global.avformat.avio_closep;
 import static org.bytedeco.ffmpeg.global.avformat.avio_open;
 
+import java.nio.channels.WritableByteChannel;
+
 import org.bytedeco.ffmpeg.avformat.AVFormatContext;
 import org.bytedeco.ffmpeg.avformat.AVIOContext;
 
@@ -19,10 +21,38 @@ public class MediaFileUtils {
         if (ret < 0) {
             return false;
         }
+        NativeTracker.allocated(NativeTracker.IO_CONTEXT);
         ctx.pb(ioContext);
         return true;
     }
+    /* closeMediaFile :
+     * Input : io context opened by openMediaFile, null or a null pointer
+     *         when the file was not opened.
+     * Output : none.
+     */
     public static void closeMediaFile(AVIOContext ioContext) {
+        if (ioContext == null || ioContext.isNull()) {
+            return;
+        }
         avio_closep(ioContext);
+        NativeTracker.freed(NativeTracker.IO_CONTEXT);
+    }
+    /* openMediaChannel :
+     * Input :
+     *  Output format context.
+     *  Channel the output is written to.
+     *  Size of the io buffer.
+     * Output : The io context set on the format context. It has to be
+     *          closed with closeMediaChannel, not closeMediaFile.
+     */
+    public static ChannelIOContext openMediaChannel(AVFormatContext ctx,
+                                                    WritableByteChannel channel,
+                                                    int bufferSize) {
+        ChannelIOContext ioContext = ChannelIOContext.forWriting(channel, bufferSize);
+        ctx.pb(ioContext.getIOContext());
+        return ioContext;
+    }
+    public static void closeMediaChannel(ChannelIOContext ioContext) {
+        ioContext.close();
     }
 }
@@ -0,0 +1,101 @@
+package FileUtils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* This class counts the native ffmpeg objects which are alive.
+ *
+ * javacpp knows only the memory it allocates itself (Pointer.totalBytes).
+ * Format, codec and io contexts, frames, packets and the sws and swr
+ * contexts are allocated by ffmpeg and invisible to it, a leaked one only
+ * shows up much later in the resident size. So every owner of such an
+ * object calls allocated() when it gets one and freed() when it lets it
+ * go. Once every converter and decoder is closed, the live count of each
+ * kind is back to what it was, except for the scalers kept by
+ * ScalerCache.
+ *
+ * One atomic increment per object, objects are created per file or per
+ * stream, never per packet, so the tracker is always on.
+ */
+public class NativeTracker {
+    public static final String FORMAT_CONTEXT = "AVFormatContext";
+    public static final String IO_CONTEXT = "AVIOContext";
+    public static final String CODEC_CONTEXT = "AVCodecContext";
+    public static final String FRAME = "AVFrame";
+    public static final String PACKET = "AVPacket";
+    public static final String AUDIO_FIFO = "AVAudioFifo";
+    public static final String SWS_CONTEXT = "SwsContext";
+    public static final String SWR_CONTEXT = "SwrContext";
+
+    static final ConcurrentHashMap<String, AtomicLong> sLive =
+            new ConcurrentHashMap<String, AtomicLong>();
+    static final AtomicLong sAllocated = new AtomicLong();
+    static final AtomicLong sFreed = new AtomicLong();
+
+    /* allocated :
+     * Input : Kind of the object, one of the constants above.
+     * Output : none.
+     */
+    public static void allocated(String kind) {
+        counter(kind).incrementAndGet();
+        sAllocated.incrementAndGet();
+    }
+    /* freed :
+     * Input : Kind of the object given to allocated().
+     * Output : none.
+     */
+    public static void freed(String kind) {
+        counter(kind).decrementAndGet();
+        sFreed.incrementAndGet();
+    }
+    private static AtomicLong counter(String kind) {
+        AtomicLong counter = sLive.get(kind);
+        if (counter == null) {
+            AtomicLong added = new AtomicLong();
+            counter = sLive.putIfAbsent(kind, added);
+            if (counter == null) {
+                counter = added;
+            }
+        }
+        return counter;
+    }
+    /* getLive :
+     * Input : Kind of the object.
+     * Output : Number of objects of that kind which are not freed yet.
+     */
+    public static long getLive(String kind) {
+        AtomicLong counter = sLive.get(kind);
+        return (counter == null) ? 0 : counter.get();
+    }
+    /* getTotalLive :
+     * Input : none.
+     * Output : Number of objects of all kinds which are not freed yet.
+     */
+    public static long getTotalLive() {
+        long total = 0;
+        for (AtomicLong counter : sLive.values()) {
+            total += counter.get();
+        }
+        return total;
+    }
+    /* getLiveCounts :
+     * Input : none.
+     * Output : Live objects by kind, sorted by kind. Kinds which were
+     *          never allocated are left out.
+     */
+    public static Map<String, Long> getLiveCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : sLive.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+    public static long getAllocated() {
+        return sAllocated.get();
+    }
+    public static long getFreed() {
+        return sFreed.get();
+    }
+}
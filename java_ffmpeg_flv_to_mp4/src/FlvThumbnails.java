@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import codec.FrameExtractor;
+import codec.ImageFrameWriter;
+import codec.ScaleSettings;
+
+/* FlvThumbnails : Writes a few frames of a video file as images.
+ *
+ * Modes :
+ *  --keyframes      : Key frames only. Non key packets are not decoded.
+ *  --every SECONDS  : One frame every SECONDS, found by seeking.
+ *  --first K        : The first K frames.
+ * --max N limits the number of images of --keyframes and --every.
+ * --size WxH scales the frames while converting them, 0 for a side
+ * keeps the aspect ratio, e.g. --size 320x0.
+ * --scaler picks the sws algorithm, --scale-threads splits large frames
+ * into bands scaled in parallel.
+ *
+ * Usage : FlvThumbnails <input file> <output directory> <mode> [--max N] [--format jpg|png]
+ *         [--size WxH] [--scaler bilinear|bicubic|area|lanczos|point|fast_bilinear]
+ *         [--scale-threads N]
+ */
+public class FlvThumbnails {
+    /* usage :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Prints the command line.
+     */
+    static void usage() {
+        System.out.println("Usage : FlvThumbnails <input file> <output directory>"
+                + " --keyframes | --every SECONDS | --first K"
+                + " [--max N] [--format jpg|png] [--size WxH] [--scaler ALGORITHM]"
+                + " [--scale-threads N]");
+    }
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            usage();
+            return;
+        }
+        String mode = args[2];
+        int i = 3;
+        double seconds = 0;
+        long first = 0;
+        if (!mode.equals("--keyframes") && !mode.equals("--every")
+            && !mode.equals("--first")) {
+            System.out.println("Unknown mode " + mode);
+            return;
+        }
+        if (!mode.equals("--keyframes") && i == args.length) {
+            System.out.println("Missing value of " + mode);
+            usage();
+            return;
+        }
+        if (mode.equals("--every")) {
+            seconds = Double.parseDouble(args[i++]);
+        } else if (mode.equals("--first")) {
+            first = Long.parseLong(args[i++]);
+        }
+        long maxFrames = Long.MAX_VALUE;
+        String format = ImageFrameWriter.DEFAULT_FORMAT;
+        // Images are written from RGB24, the default pixel format.
+        ScaleSettings scaleSettings = new ScaleSettings();
+        for (; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                // Every option takes a value.
+                System.out.println("Missing value of " + args[i]);
+                usage();
+                return;
+            }
+            if (args[i].equals("--max")) {
+                maxFrames = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("--format")) {
+                format = args[i + 1];
+            } else if (args[i].equals("--size")) {
+                String size[] = args[i + 1].split("x");
+                if (size.length != 2) {
+                    System.out.println("Size has to be WxH, e.g. 320x0");
+                    return;
+                }
+                scaleSettings.setSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            } else if (args[i].equals("--scaler")) {
+                int flags = ScaleSettings.parseAlgorithm(args[i + 1]);
+                if (flags < 0) {
+                    System.out.println("Unknown scaler " + args[i + 1]);
+                    return;
+                }
+                scaleSettings.setFlags(flags);
+            } else if (args[i].equals("--scale-threads")) {
+                scaleSettings.setThreads(Integer.parseInt(args[i + 1]));
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        String name = Paths.get(args[0]).getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        String prefix = (extension > 0) ? name.substring(0, extension) : name;
+
+        try (FrameExtractor extractor = new FrameExtractor(args[0])) {
+            extractor.setScaleSettings(scaleSettings);
+            Files.createDirectories(Paths.get(args[1]));
+            if (!extractor.open()) {
+                return;
+            }
+            ImageFrameWriter writer = new ImageFrameWriter(args[1], prefix, format);
+            long start = System.nanoTime();
+            long frames;
+            if (mode.equals("--every")) {
+                frames = extractor.extractEvery(seconds, writer, maxFrames);
+            } else if (mode.equals("--first")) {
+                frames = extractor.extractFirst(first, writer);
+            } else {
+                frames = extractor.extractKeyFrames(writer, maxFrames);
+            }
+            System.out.printf("%d images, %d frames decoded, %.1f ms%n",
+                    frames, extractor.getDecodedFrameCount(),
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
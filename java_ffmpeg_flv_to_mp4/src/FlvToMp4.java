@@ -1,15 +1,18 @@
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 
-import MediaOperations.FormatConverter;
-import MediaOperations.FormatConverterWithTranscoding;
+import FileUtils.MediaFileFinder;
+import MediaOperations.BatchConverter;
+import MediaOperations.BatchSummary;
+import MediaOperations.CompletionJournal;
+import MediaOperations.ConversionMetrics;
+import MediaOperations.ConversionOptions;
+import MediaOperations.OutputTarget;
+import MediaOperations.ProbeCache;
+import MediaOperations.SpoolWatcher;
+import codec.EncoderSettings;
 
 /* FlvToMp4 : Converts flv with mp4 without transcoding.
  * Testcases :
@@ -30,23 +33,69 @@ import MediaOperations.FormatConverterWithTranscoding;
  *      Output : Not yet tested.
  * 6. Bulk conversion 100,000 files. Robustness test.
  *      Expectation : Should convert 100,000 files without exceptions or memory leak
- *      Output : Not yet tested.
+ *      Output : Not yet run for 100,000 files.
+ *      Run so far : benchmark.SoakTest --rounds 2000, defaults otherwise,
+ *      10,302 conversions in 3.5 min of the two generated 2 s fixtures
+ *      (320x240 and 640x360) and the broken inputs, in a loop. No native
+ *      object left after any round, resident growth 9.2 MB, under the
+ *      32 MB limit. --rounds 20000 would be about 100,000 conversions.
  * 7. flv with h264 and any codec other than mp3 and AAC.
  *      Expectation : Conversion should fail with appropriate error.
  *      Output : Not yet tested.
  */
 public class FlvToMp4 {
-    public static Set<String> listFilesUsingDirectoryStream(String dir) throws IOException {
-        Set<String> fileList = new HashSet<String>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir))) {
-            for (Path path : stream) {
-                if (!Files.isDirectory(path)) {
-                    fileList.add(path.getFileName()
-                        .toString());
+    /* watch :
+     * Input :
+     *  Finder with the spool directory and the file pattern.
+     *  Batch which converts the files.
+     *  Time in ms a file has to stay unchanged before it is converted.
+     *  True to convert files while they are written, see --follow.
+     * Output : none.
+     *
+     * Desc : Runs the watch-folder daemon until the process is stopped.
+     * On shutdown the conversions already started are finished before
+     * the process exits.
+     */
+    static void watch(MediaFileFinder finder, BatchConverter batch, long stableMillis,
+                      boolean follow) throws IOException, InterruptedException {
+        final SpoolWatcher watcher = new SpoolWatcher(finder, batch, stableMillis);
+        watcher.setFollow(follow);
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                watcher.stop();
+                try {
+                    // Let main finish the batch and close the journal.
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    // Exit anyway.
                 }
             }
-        }
-        return fileList;
+        });
+        watcher.run();
+    }
+    /* usage :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Prints the command line.
+     */
+    static void usage() {
+        System.out.println("Usage : FlvToMp4 <input directory> <output directory>"
+                + " [--threads N] [--queue N] [--soak FILES] [--repeat N]"
+                + " [--mmap WINDOW_MB] [--output-mode standard|fragmented|faststart|hls]"
+                + " [--fragment-ms N] [--hls-segment-ms N]"
+                + " [--probesize BYTES] [--analyzeduration MS]"
+                + " [--trust-encoder PREFIX] [--probe-cache FILE] [--journal FILE]"
+                + " [--glob PATTERN] [--depth N] [--watch STABLE_MS]"
+                + " [--transcode ENCODER] [--preset P] [--crf N] [--video-bitrate KBPS]"
+                + " [--audio-bitrate KBPS] [--codec-threads N] [--metrics-log FILE]"
+                + " [--segment-threads N] [--segment-min-mb MB]"
+                + " [--also FORMAT[:STREAMS][:source-ts]=DIRECTORY]"
+                + " [--follow IDLE_MS] [--interleave-ms N]"
+                + " [--order fifo|shortest|largest] [--cpu-threads N]"
+                + " [--timeout-s N] [--cpu-timeout-s N] [--retries N] [--retry-backoff-ms N]");
     }
     public static void main(String[] args) {
 
@@ -63,26 +112,263 @@ public class FlvToMp4 {
          * https://www.learningcontainer.com/mp4-sample-video-files-download/#google_vignette
          * https://filesamples.com/formats/flv
          */
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueDepth = -1;
+        int soakInterval = 0;
+        int repeat = 1;
+        ConversionOptions options = new ConversionOptions();
+        EncoderSettings encoderSettings = options.getEncoderSettings();
+        long probeSize = 0, analyzeDuration = 0;
+        String probeCacheFile = null;
+        String journalFile = null;
+        String metricsLogFile = null;
+        String pattern = MediaFileFinder.DEFAULT_PATTERN;
+        int depth = Integer.MAX_VALUE;
+        long watchStableMillis = -1;
+        int segmentThreads = 0;
+        long segmentMinFileSize = ConversionOptions.DEFAULT_SEGMENT_MIN_FILE_SIZE;
+        BatchConverter.Order order = BatchConverter.Order.FIFO;
+        int cpuThreads = -1;
+        long remuxTimeoutMs = 0, cpuTimeoutMs = 0;
+        int retries = 0;
+        long retryBackoffMs = BatchConverter.DEFAULT_RETRY_BACKOFF_MS;
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                // Every option takes a value.
+                System.out.println("Missing value of " + args[i]);
+                usage();
+                return;
+            }
+            if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--queue")) {
+                queueDepth = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--soak")) {
+                // Report memory every FILES converted files.
+                soakInterval = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--repeat")) {
+                // Convert the directory N times. Used with --soak to
+                // push a small set of files through many conversions.
+                repeat = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--mmap")) {
+                // Read inputs through memory mapped windows of this size.
+                options.setMappedInput(true);
+                options.setMapWindowSize(Long.parseLong(args[i + 1]) * 1024 * 1024);
+            } else if (args[i].equals("--output-mode")) {
+                options.setOutputMode(ConversionOptions.OutputMode.valueOf(
+                        args[i + 1].toUpperCase()));
+            } else if (args[i].equals("--fragment-ms")) {
+                options.setFragmentDurationMs(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("--hls-segment-ms")) {
+                // Target duration of the segments with --output-mode hls.
+                options.setHlsSegmentDurationMs(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("--probesize")) {
+                probeSize = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("--analyzeduration")) {
+                analyzeDuration = Long.parseLong(args[i + 1]) * 1000;
+            } else if (args[i].equals("--trust-encoder")) {
+                options.addTrustedEncoder(args[i + 1]);
+            } else if (args[i].equals("--probe-cache")) {
+                probeCacheFile = args[i + 1];
+            } else if (args[i].equals("--journal")) {
+                // Skip the files converted by an earlier run. A run
+                // which died is resumed by running it again.
+                journalFile = args[i + 1];
+            } else if (args[i].equals("--glob")) {
+                // Files to convert. e.g. "*.flv" or "cam1/**.flv"
+                pattern = args[i + 1];
+            } else if (args[i].equals("--depth")) {
+                // Directory levels to descend. 1 for the input directory only.
+                depth = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--watch")) {
+                // Keep running and convert files landing in the input
+                // directory once unchanged for STABLE_MS.
+                watchStableMillis = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("--metrics-log")) {
+                // Append the metrics of every file as a json line.
+                metricsLogFile = args[i + 1];
+            } else if (args[i].equals("--transcode")) {
+                // Transcode files with codecs mp4 does not take, e.g.
+                // Sorenson video or Nellymoser audio, with this encoder.
+                options.setTranscoding(true);
+                encoderSettings.setVideoEncoder(args[i + 1]);
+            } else if (args[i].equals("--preset")) {
+                encoderSettings.setPreset(args[i + 1]);
+            } else if (args[i].equals("--crf")) {
+                encoderSettings.setCrf(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("--video-bitrate")) {
+                encoderSettings.setVideoBitRate(Long.parseLong(args[i + 1]) * 1000);
+            } else if (args[i].equals("--audio-bitrate")) {
+                encoderSettings.setAudioBitRate(Long.parseLong(args[i + 1]) * 1000);
+            } else if (args[i].equals("--codec-threads")) {
+                // Decoder and encoder threads per transcoded stream.
+                // 0 for one per core.
+                encoderSettings.setThreads(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("--segment-threads")) {
+                // Remux a large file in ranges on N threads. Only with
+                // --output-mode fragmented, the ranges are fragments.
+                segmentThreads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--segment-min-mb")) {
+                // Smallest file remuxed in ranges.
+                segmentMinFileSize = Long.parseLong(args[i + 1]) * 1024 * 1024;
+            } else if (args[i].equals("--follow")) {
+                // Convert files while the recorder still writes them. A
+                // file ends with its .done marker or after IDLE_MS
+                // without new data. With --watch, new files are taken
+                // at once.
+                options.setFollowInput(true, Long.parseLong(args[i + 1]));
+            } else if (args[i].equals("--interleave-ms")) {
+                // Longest wait for a stalled stream of a followed file.
+                options.setFollowInterleaveDelayMs(Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals("--order")) {
+                // Which waiting file is converted next, by input size.
+                order = BatchConverter.Order.valueOf(args[i + 1].toUpperCase());
+            } else if (args[i].equals("--cpu-threads")) {
+                // Workers converting the files with streams to encode.
+                cpuThreads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--timeout-s")) {
+                // Cancel a remux running longer, e.g. on a corrupt file.
+                remuxTimeoutMs = Long.parseLong(args[i + 1]) * 1000;
+            } else if (args[i].equals("--cpu-timeout-s")) {
+                // Same for a transcode.
+                cpuTimeoutMs = Long.parseLong(args[i + 1]) * 1000;
+            } else if (args[i].equals("--retries")) {
+                // Try failed and timed out files again N times.
+                retries = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--retry-backoff-ms")) {
+                // Wait before the first retry, doubled for every next one.
+                retryBackoffMs = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("--also")) {
+                // Also write every file to this output, from the same
+                // read. e.g. mpegts=/broadcast or matroska:a=/archive.
+                // Can be given more than once.
+                OutputTarget target = OutputTarget.parse(args[i + 1]);
+                if (target == null) {
+                    System.out.println("Invalid output " + args[i + 1]);
+                    return;
+                }
+                options.addOutputTarget(target);
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        if (segmentThreads > 0 &&
+            options.getOutputMode() != ConversionOptions.OutputMode.FRAGMENTED) {
+            System.out.println("--segment-threads needs --output-mode fragmented");
+            return;
+        }
+        if (queueDepth < 0) {
+            queueDepth = 2 * threads;
+        }
+        BatchConverter batch = new BatchConverter(args[1], "mp4", threads, queueDepth);
+        batch.setSoakReportInterval(soakInterval);
+        batch.setOrder(order);
+        if (cpuThreads > 0) {
+            batch.setCpuThreads(cpuThreads);
+        }
+        batch.setTimeouts(remuxTimeoutMs, cpuTimeoutMs);
+        batch.setRetries(retries, retryBackoffMs);
+        options.setProbeLimits(probeSize, analyzeDuration);
+        options.setSegmentedRemux(segmentThreads, segmentMinFileSize);
+        // Totals, latencies and native memory, e.g. in jconsole.
+        ConversionMetrics metrics = ConversionMetrics.getInstance();
+        metrics.registerMBean();
+        CompletionJournal journal = null;
+        boolean finished = false;
         try {
-            Set<String> fileList  = FlvToMp4.listFilesUsingDirectoryStream(args[0]);
-            Iterator<String> it = fileList.iterator();
-            while(it.hasNext()){
-               String filename = args[0] + "\\" + it.next();
-               FormatConverter c = new FormatConverter(filename, args[1], "mp4");
-               if (c.init()) {
-                   boolean result = c.convert();
-                   if (result == false) {
-                       System.out.println("Failed to convert file  = " + filename);
-                   }
-               } else {
-                   System.out.println("Failed to initialise conversion. file  = " + filename);
-               }
+            if (metricsLogFile != null) {
+                metrics.openLog(Paths.get(metricsLogFile));
             }
-
-
+            if (probeCacheFile != null) {
+                options.setProbeCache(ProbeCache.open(Paths.get(probeCacheFile)));
+            }
+            batch.setOptions(options);
+            if (journalFile != null) {
+                journal = CompletionJournal.open(Paths.get(journalFile));
+                batch.setJournal(journal);
+            }
+            // Files are submitted while the tree is walked. submit() blocks
+            // when the workers are busy, which also pauses the walk.
+            final BatchConverter target = batch;
+            MediaFileFinder finder = new MediaFileFinder(Paths.get(args[0]), pattern);
+            finder.setMaxDepth(depth);
+            if (watchStableMillis >= 0) {
+                watch(finder, batch, watchStableMillis, options.isFollowInput());
+            } else {
+                for (int r = 0; r < repeat; r++) {
+                    finder.find(new MediaFileFinder.Listener() {
+                        @Override
+                        public boolean onFile(Path file, Path relativeDirectory)
+                                throws InterruptedException {
+                            // Mirror the input tree under the output directory.
+                            target.submit(file, relativeDirectory);
+                            return true;
+                        }
+                    });
+                }
+            }
+            BatchSummary summary = batch.finish();
+            finished = true;
+            summary.print(System.out);
+        } catch (IOException e) {
+            System.out.println("Batch conversion failed : " + e);
+        } catch (InterruptedException e) {
+            System.out.println("Batch conversion interrupted");
+        } finally {
+            // The workers and the journal writer are not daemon threads,
+            // the JVM does not exit before they are stopped.
+            if (!finished) {
+                finish(batch);
+            }
+            close(journal, options.getProbeCache(), metrics);
+        }
+    }
+    /* finish :
+     * Input : Batch which ended on an error.
+     * Output : none.
+     *
+     * Desc : Waits for the files submitted before the error and stops
+     * the workers.
+     */
+    static void finish(BatchConverter batch) {
+        try {
+            batch.finish().print(System.out);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while finishing the batch");
+        }
+    }
+    /* close :
+     * Input : Journal, probe cache and metrics of the run. The journal
+     *         and the cache can be null.
+     * Output : none.
+     *
+     * Desc : Closes all of them, also when one fails.
+     */
+    static void close(CompletionJournal journal, ProbeCache probeCache,
+                      ConversionMetrics metrics) {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close journal : " + e);
+            }
+        }
+        if (probeCache != null) {
+            try {
+                probeCache.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close probe cache : " + e);
+            }
+        }
+        try {
+            metrics.closeLog();
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            System.out.println("Unable to close metrics log : " + e);
         }
     }
 
@@ -0,0 +1,668 @@
+package MediaOperations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.Pointer;
+
+import FileUtils.NativeTracker;
+
+/* This class runs many FormatConverter jobs in parallel on a
+ * bounded pool of worker threads.
+ *
+ * Remux is mostly I/O with some demux/mux CPU work and the jobs do not
+ * share any native state, so one converter per worker scales with
+ * the number of cores.
+ *
+ * Lanes : The workers are split in two lanes. Every file starts in the
+ * remux lane, which converts the files whose streams are all copied.
+ * A file with streams to decode and encode again, hybrid or full
+ * transcode, is handed to the cpu lane and converted there, so cheap
+ * remuxes never wait behind an encode. The jobs hold no native objects
+ * while they wait, the cpu lane probes the file again.
+ *
+ * Order : Waiting files are taken in the order set by setOrder(), as
+ * submitted, smallest first, which gets the most files done early, or
+ * largest first, which keeps a huge file from ending the batch alone.
+ * Only the files in flight are ordered, a deeper queue gives the order
+ * more files to choose from.
+ *
+ * Timeouts : A conversion which runs longer than the timeout of its
+ * lane is cancelled by interrupting its worker. libavformat gives up at
+ * its next read, see InterruptCallback, and the converter discards the
+ * part file. Code which does not read, e.g. an encoder, is not stopped
+ * before it returns, the cancel is cooperative.
+ *
+ * Retries : A failed or timed out conversion is tried again, on the same
+ * lane, after a backoff which doubles with every attempt. Files rejected
+ * by init(), e.g. for their codecs, are not.
+ *
+ * Backpressure : Each lane has its own permits. At most (threads +
+ * queueDepth) files are in flight in the remux lane, and (cpu threads +
+ * queueDepth) in the cpu lane, running, waiting or waiting for a retry.
+ * submit() blocks the caller once the remux lane is full, so a huge
+ * directory is never fully queued in memory. A file handed to the cpu
+ * lane gives its remux permit back, a run of transcodes only fills the
+ * cpu lane and the remux lane goes on with the next files. When the
+ * cpu lane is full too the hand-off waits for it.
+ *
+ * Extra outputs : When the options have output targets, every file is
+ * also written to them, from the same read, see FanOutConverter. The
+ * extra outputs mirror the input tree under their own directories.
+ * Files whose streams one of the targets can not take, and HLS output,
+ * are converted to the main output only.
+ *
+ * Follow mode : With follow input in the options, a file still being
+ * written is converted while it grows and its worker is busy until the
+ * recording ends, so the pool needs a thread per recording. Such files
+ * are converted in one piece to the main output only, and without the
+ * full transcode, which can not follow a file. Hybrid files stay in the
+ * remux lane and the timeout has to be longer than a recording. The
+ * journal gets the size and mtime of the complete file.
+ *
+ * Resume : When a completion journal is set, files converted by an
+ * earlier run are skipped in submit() and every converted file is
+ * recorded with the crc32 of its output.
+ *
+ * Soak mode : When a report interval is set, heap and native memory
+ * are printed every time that many files have completed. With a flat
+ * packet loop these numbers should stay constant over the whole run.
+ */
+public class BatchConverter {
+    /* Order in which waiting files are converted.
+     * FIFO     : As submitted.
+     * SHORTEST : Smallest input file first.
+     * LARGEST  : Largest input file first.
+     */
+    public enum Order {
+        FIFO,
+        SHORTEST,
+        LARGEST
+    }
+    public static final long DEFAULT_RETRY_BACKOFF_MS = 1000;
+
+    /* Result of one run of a job.
+     * TRANSCODE : The file has streams to encode, it goes to the cpu lane.
+     */
+    enum Outcome {
+        SUCCEEDED,
+        FAILED,
+        SKIPPED,
+        TRANSCODE
+    }
+    String mOutputDirectoryPath = null;
+    String mOutputFormatName = null;
+    // Remux lane.
+    ThreadPoolExecutor mExecutor = null;
+    ThreadPoolExecutor mCpuExecutor = null;
+    // Fires the timeouts and the retries.
+    ScheduledThreadPoolExecutor mWatchdog = null;
+    Semaphore mInFlight = null;
+    int mMaxInFlight = 0;
+    Semaphore mCpuInFlight = null;
+    int mMaxCpuInFlight = 0;
+    int mQueueDepth = 0;
+    AtomicLong mNextSequence = new AtomicLong();
+    volatile Order mOrder = Order.FIFO;
+    long mRemuxTimeoutMs = 0;
+    long mCpuTimeoutMs = 0;
+    int mRetries = 0;
+    long mRetryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+    BatchSummary mSummary = new BatchSummary();
+    AtomicInteger mCompleted = new AtomicInteger();
+    int mSoakReportInterval = 0;
+    ConversionOptions mOptions = new ConversionOptions();
+    CompletionJournal mJournal = null;
+
+    /* constuctor :
+     * Input :
+     *  Directory path where the output will be written.
+     *  Output Mux. (Currently only mp4 is supported)
+     *  Number of worker threads of the remux lane. The cpu lane gets
+     *  half of it, see setCpuThreads().
+     *  Number of files which can wait for a free worker.
+     */
+    public BatchConverter(String outputDirectoryPath,
+                          String outputFormat,
+                          int threads,
+                          int queueDepth) {
+        mOutputDirectoryPath = outputDirectoryPath;
+        mOutputFormatName = outputFormat;
+        mQueueDepth = queueDepth;
+        mMaxInFlight = threads + queueDepth;
+        mInFlight = new Semaphore(mMaxInFlight);
+        Comparator<Runnable> order = new Comparator<Runnable>() {
+            @Override
+            public int compare(Runnable a, Runnable b) {
+                return compareJobs((Job)a, (Job)b);
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(mMaxInFlight, order));
+        int cpuThreads = Math.max(threads / 2, 1);
+        mMaxCpuInFlight = cpuThreads + queueDepth;
+        mCpuInFlight = new Semaphore(mMaxCpuInFlight);
+        mCpuExecutor = new ThreadPoolExecutor(cpuThreads, cpuThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(mMaxCpuInFlight, order));
+        mWatchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BatchConverter-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mWatchdog.setRemoveOnCancelPolicy(true);
+    }
+    /* submit :
+     * Input : Input file to be converted.
+     * Output : none.
+     *
+     * Desc : Same as submit(inputFile, "") i.e. the output is written
+     * directly into the output directory.
+     */
+    public void submit(Path inputFile) throws InterruptedException {
+        submit(inputFile, Paths.get(""));
+    }
+    /* submit :
+     * Input :
+     *  Input file to be converted.
+     *  Directory under the output directory where the output is written.
+     *  Created when missing.
+     * Output : none.
+     *
+     * Desc : Queues the file for conversion. Blocks when the pool
+     * and the queue are full. Returns at once for a file which is
+     * already in the journal.
+     */
+    public void submit(final Path inputFile, final Path relativeDirectory)
+            throws InterruptedException {
+        // Size and mtime are taken once, before the conversion. The
+        // journal entry is keyed by what was actually converted.
+        File file = inputFile.toFile();
+        final long inputSize = file.length();
+        final long inputModified = file.lastModified();
+        if (mJournal != null && mJournal.isCompleted(inputFile, inputSize, inputModified)) {
+            mSummary.addResumed();
+            return;
+        }
+        Job job = new Job(inputFile, relativeDirectory,
+                Paths.get(mOutputDirectoryPath).resolve(relativeDirectory),
+                inputSize, inputModified, mNextSequence.getAndIncrement());
+        mInFlight.acquire();
+        try {
+            mExecutor.execute(job);
+        } catch (RuntimeException e) {
+            mInFlight.release();
+            throw e;
+        }
+    }
+    /* warmUp :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Starts all the worker threads and loads the ffmpeg libraries,
+     * so the first file does not pay for it. Used by long running modes.
+     */
+    public void warmUp() {
+        Loader.load(avformat.class);
+        mExecutor.prestartAllCoreThreads();
+        mCpuExecutor.prestartAllCoreThreads();
+    }
+    /* finish :
+     * Input : none.
+     * Output : Summary of the batch.
+     *
+     * Desc : Waits for all the submitted files to be converted and
+     * stops the worker threads.
+     */
+    public BatchSummary finish() throws InterruptedException {
+        // Every file holds a permit of its lane till it is done, also
+        // while it waits for a retry. A hand-off takes the cpu permit
+        // before it gives the remux one back, so once the remux lane is
+        // empty no file can come to the cpu lane any more.
+        // Large files can take long.
+        mInFlight.acquire(mMaxInFlight);
+        mInFlight.release(mMaxInFlight);
+        mCpuInFlight.acquire(mMaxCpuInFlight);
+        mCpuInFlight.release(mMaxCpuInFlight);
+        mExecutor.shutdown();
+        mCpuExecutor.shutdown();
+        mWatchdog.shutdown();
+        while (!mExecutor.awaitTermination(1, TimeUnit.SECONDS) ||
+               !mCpuExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+            // Keep waiting for the workers to stop.
+        }
+        mSummary.finish();
+        return mSummary;
+    }
+    /* setOptions :
+     * Input : Options used for every file. Has to be set before submit().
+     * Output : none.
+     */
+    public void setOptions(ConversionOptions options) {
+        mOptions = options;
+    }
+    /* setJournal :
+     * Input : Journal of completed files, null to convert every file.
+     *         Has to be set before submit().
+     * Output : none.
+     */
+    public void setJournal(CompletionJournal journal) {
+        mJournal = journal;
+    }
+    public BatchSummary getSummary() {
+        return mSummary;
+    }
+    /* setCpuThreads :
+     * Input : Number of worker threads of the cpu lane, which converts
+     *         the files with streams to encode. Has to be set before
+     *         submit().
+     * Output : none.
+     */
+    public void setCpuThreads(int threads) {
+        mMaxCpuInFlight = threads + mQueueDepth;
+        mCpuInFlight = new Semaphore(mMaxCpuInFlight);
+        if (threads > mCpuExecutor.getMaximumPoolSize()) {
+            mCpuExecutor.setMaximumPoolSize(threads);
+            mCpuExecutor.setCorePoolSize(threads);
+        } else {
+            mCpuExecutor.setCorePoolSize(threads);
+            mCpuExecutor.setMaximumPoolSize(threads);
+        }
+    }
+    /* setOrder :
+     * Input : Order in which waiting files are converted.
+     * Output : none.
+     */
+    public void setOrder(Order order) {
+        mOrder = order;
+    }
+    /* setTimeouts :
+     * Input : Longest time in ms one conversion may take in the remux
+     *         lane and in the cpu lane. 0 for no limit.
+     *         Has to be set before submit().
+     * Output : none.
+     */
+    public void setTimeouts(long remuxTimeoutMs, long cpuTimeoutMs) {
+        mRemuxTimeoutMs = remuxTimeoutMs;
+        mCpuTimeoutMs = cpuTimeoutMs;
+    }
+    /* setRetries :
+     * Input :
+     *  Number of times a failed conversion is tried again.
+     *  Wait in ms before the first retry, doubled for every next one.
+     *  Has to be set before submit().
+     * Output : none.
+     */
+    public void setRetries(int retries, long backoffMs) {
+        mRetries = retries;
+        mRetryBackoffMs = backoffMs;
+    }
+    /* setSoakReportInterval :
+     * Input : Number of files after which memory is reported. 0 disables it.
+     * Output : none.
+     */
+    public void setSoakReportInterval(int files) {
+        mSoakReportInterval = files;
+    }
+    private void onFileCompleted() {
+        int completed = mCompleted.incrementAndGet();
+        if (mSoakReportInterval > 0 && completed % mSoakReportInterval == 0) {
+            reportMemory(completed);
+        }
+    }
+    /* reportMemory :
+     * Input : Number of files completed so far.
+     * Output : none.
+     *
+     * Desc : Prints heap in use, native memory tracked by javacpp
+     * (Pointer.totalBytes) and the resident size of the process
+     * (Pointer.physicalBytes). av_malloc'ed packet buffers are not
+     * tracked by javacpp, a leak there only shows up in the resident size.
+     * The ffmpeg objects still alive are counted by NativeTracker, with
+     * the conversions in flight they should stay flat.
+     */
+    private void reportMemory(int completed) {
+        Runtime rt = Runtime.getRuntime();
+        long heapUsed = rt.totalMemory() - rt.freeMemory();
+        System.out.println("Soak : files = " + completed
+                + " heap used = " + (heapUsed / 1024) + " KB"
+                + " native tracked = " + (Pointer.totalBytes() / 1024) + " KB"
+                + " resident = " + (Pointer.physicalBytes() / 1024) + " KB"
+                + " native objects = " + NativeTracker.getTotalLive());
+    }
+    /* compareJobs :
+     * Input : Two waiting jobs.
+     * Output : Negative when the first one is converted first.
+     */
+    private int compareJobs(Job a, Job b) {
+        int bySize = 0;
+        if (mOrder == Order.SHORTEST) {
+            bySize = Long.compare(a.mInputSize, b.mInputSize);
+        } else if (mOrder == Order.LARGEST) {
+            bySize = Long.compare(b.mInputSize, a.mInputSize);
+        }
+        return (bySize != 0) ? bySize : Long.compare(a.mSequence, b.mSequence);
+    }
+    /* complete :
+     * Input : Job which has run and its outcome.
+     * Output : none.
+     *
+     * Desc : Hands the job to the cpu lane, schedules a retry or counts
+     * it. The permit of the file is given back once it is done.
+     */
+    private void complete(final Job job, Outcome outcome) {
+        if (outcome == Outcome.TRANSCODE) {
+            // Waits only when the cpu lane is full.
+            mCpuInFlight.acquireUninterruptibly();
+            job.mCpuLane = true;
+            mCpuExecutor.execute(job);
+            mInFlight.release();
+            return;
+        }
+        if (outcome == Outcome.SUCCEEDED) {
+            recordSucceeded(job);
+        } else if (outcome == Outcome.SKIPPED && !job.mTimedOut) {
+            mSummary.addSkipped();
+        } else if (job.mAttempt < mRetries) {
+            long delayMs = mRetryBackoffMs << Math.min(job.mAttempt, 20);
+            job.mAttempt++;
+            mSummary.addRetried();
+            System.out.println("Retrying file  = " + job.mInputFile + " in " + delayMs
+                    + " ms, retry " + job.mAttempt + " of " + mRetries);
+            mWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    (job.mCpuLane ? mCpuExecutor : mExecutor).execute(job);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+            return;
+        } else {
+            if (job.mTimedOut) {
+                mSummary.addTimedOut();
+            }
+            mSummary.addFailed();
+        }
+        onFileCompleted();
+        (job.mCpuLane ? mCpuInFlight : mInFlight).release();
+    }
+    /* convertFile :
+     * Input : Job of the file.
+     * Output : How the conversion ended. The output of a converted file
+     *          is left in the job for recordSucceeded().
+     *
+     * Desc : In the remux lane a file with streams to encode is only
+     * probed, and handed on. Segmented and fan-out remux copy every
+     * stream, so they are tried in the remux lane only.
+     */
+    private Outcome convertFile(Job job) {
+        String filename = job.mInputFile.toString();
+        Path outputDirectory = job.mOutputDirectory;
+        try {
+            Files.createDirectories(outputDirectory);
+        } catch (IOException e) {
+            System.out.println("Unable to create output directory " + outputDirectory + " : " + e);
+            return Outcome.FAILED;
+        }
+        try {
+            FormatConverter c = new FormatConverter(filename,
+                    outputDirectory.toString(), mOutputFormatName);
+            c.setOptions(mOptions);
+            String outputFileName = job.mCpuLane ? null :
+                    remuxSegmented(filename, outputDirectory, job.mInputSize);
+            FanOutConverter f = job.mCpuLane ? null :
+                    createFanOut(filename, outputDirectory, job.mRelativeDirectory);
+            job.mPath = BatchSummary.ConversionPath.COPY;
+            job.mExtraOutputSize = 0;
+            if (outputFileName != null) {
+                // Large file, remuxed in parallel ranges.
+            } else if (Thread.currentThread().isInterrupted()) {
+                // Timed out in the ranges, not tried again in one piece.
+                return Outcome.FAILED;
+            } else if (f != null && f.init()) {
+                if (!f.convert()) {
+                    System.out.println("Failed to convert file  = " + filename);
+                    return Outcome.FAILED;
+                }
+                outputFileName = f.getOutputFileName();
+                for (String extraFileName : f.getOutputFileNames()) {
+                    if (!extraFileName.equals(outputFileName)) {
+                        job.mExtraOutputSize += new File(extraFileName).length();
+                    }
+                }
+            } else if (c.init()) {
+                if (c.isHybrid() && !job.mCpuLane && !mOptions.isFollowInput()) {
+                    c.close();
+                    return Outcome.TRANSCODE;
+                }
+                if (!c.convert()) {
+                    System.out.println("Failed to convert file  = " + filename);
+                    return Outcome.FAILED;
+                }
+                outputFileName = c.getOutputFileName();
+                if (c.isHybrid()) {
+                    job.mPath = BatchSummary.ConversionPath.HYBRID;
+                }
+            } else if (c.getUnsupportedReason() != null && mOptions.isTranscoding()
+                    && !mOptions.isFollowInput()) {
+                if (!job.mCpuLane) {
+                    return Outcome.TRANSCODE;
+                }
+                System.out.println(c.getUnsupportedReason() + ", transcoding file  = " + filename);
+                outputFileName = transcodeFile(filename, outputDirectory);
+                job.mPath = BatchSummary.ConversionPath.FULL;
+                if (outputFileName == null) {
+                    return Outcome.FAILED;
+                }
+            } else {
+                System.out.println("Failed to initialise conversion. file  = " + filename);
+                return Outcome.SKIPPED;
+            }
+            job.mOutputFileName = outputFileName;
+            return Outcome.SUCCEEDED;
+        } catch (RuntimeException e) {
+            // One bad file should not take the whole batch down.
+            System.out.println("Exception while converting file  = " + filename);
+            e.printStackTrace();
+            return Outcome.FAILED;
+        }
+    }
+    /* recordSucceeded :
+     * Input : Job of a converted file.
+     * Output : none.
+     *
+     * Desc : Adds the file to the journal and the summary. Runs after
+     * the timeout is cleared, an interrupt would close the journal.
+     */
+    private void recordSucceeded(Job job) {
+        long inputSize = job.mInputSize;
+        long inputModified = job.mInputModified;
+        Path outputFile = Paths.get(job.mOutputFileName);
+        if (mOptions.isFollowInput()) {
+            // The file grew while it was converted.
+            inputSize = job.mInputFile.toFile().length();
+            inputModified = job.mInputFile.toFile().lastModified();
+        }
+        if (mJournal != null) {
+            try {
+                mJournal.record(job.mInputFile, inputSize, inputModified, outputFile,
+                        CompletionJournal.checksum(outputFile));
+            } catch (IOException e) {
+                // Not fatal. The file is converted again by the next run.
+                System.out.println("Unable to checksum " + outputFile + " : " + e);
+            }
+        }
+        long outputSize = job.mOutputFileName.endsWith(HlsOutput.PLAYLIST_EXTENSION) ?
+                HlsOutput.size(job.mOutputFileName) : outputFile.toFile().length();
+        mSummary.addSucceeded(job.mPath, inputSize, outputSize + job.mExtraOutputSize);
+    }
+    /* remuxSegmented :
+     * Input : Input file, output directory and the size of the file.
+     * Output : Name of the output file. null when the file is not
+     *          segmented or the segmented remux failed, then it is
+     *          converted in one piece.
+     *
+     * Desc : The ranges are always fragmented mp4, so only a batch in
+     * FRAGMENTED mode is segmented. Every other mode is kept for every
+     * file, whatever its size.
+     */
+    private String remuxSegmented(String filename, Path outputDirectory, long inputSize) {
+        if (mOptions.getSegmentThreads() < 1 || inputSize < mOptions.getSegmentMinFileSize()
+                || mOptions.getOutputMode() != ConversionOptions.OutputMode.FRAGMENTED
+                || !mOptions.getOutputTargets().isEmpty() || mOptions.isFollowInput()) {
+            return null;
+        }
+        try (SegmentedConverter s = new SegmentedConverter(filename,
+                outputDirectory.toString(), mOutputFormatName, mOptions.getSegmentThreads())) {
+            if (!s.init() || !s.convert()) {
+                return null;
+            }
+            return s.getOutputFileName();
+        }
+    }
+    /* createFanOut :
+     * Input : Input file, output directory and the directory relative to
+     *         the output directory.
+     * Output : Converter writing the main output and every output target,
+     *          null when there are no targets, the output is HLS or the
+     *          input is followed.
+     */
+    private FanOutConverter createFanOut(String filename, Path outputDirectory,
+                                         Path relativeDirectory) {
+        if (mOptions.getOutputTargets().isEmpty()
+                || mOptions.getOutputMode() == ConversionOptions.OutputMode.HLS
+                || mOptions.isFollowInput()) {
+            return null;
+        }
+        List<OutputTarget> targets = new ArrayList<OutputTarget>();
+        targets.add(new OutputTarget(mOutputFormatName, outputDirectory.toString()));
+        for (OutputTarget target : mOptions.getOutputTargets()) {
+            targets.add(target.resolve(relativeDirectory));
+        }
+        FanOutConverter f = new FanOutConverter(filename, targets);
+        f.setOptions(mOptions);
+        return f;
+    }
+    /* transcodeFile :
+     * Input : Input file whose codecs can not be copied to the output.
+     *         Output directory.
+     * Output : Name of the output file, null when the transcode failed.
+     */
+    private String transcodeFile(String filename, Path outputDirectory) {
+        FormatConverterWithTranscoding t = new FormatConverterWithTranscoding(filename,
+                outputDirectory.toString(), mOutputFormatName);
+        t.setOptions(mOptions);
+        if (!t.init() || !t.convert()) {
+            System.out.println("Failed to transcode file  = " + filename);
+            return null;
+        }
+        return t.getOutputFileName();
+    }
+    /* This class is one file on its way through the lanes. A job which
+     * waits holds no native objects, the converters are created when it
+     * runs.
+     */
+    class Job implements Runnable {
+        Path mInputFile;
+        Path mRelativeDirectory;
+        Path mOutputDirectory;
+        long mInputSize;
+        long mInputModified;
+        // Submit order, also the order of files of the same size.
+        long mSequence;
+        boolean mCpuLane = false;
+        // Retries done so far.
+        int mAttempt = 0;
+        // Worker running the job, null while it waits.
+        Thread mThread = null;
+        boolean mTimedOut = false;
+        // Output of the conversion, see convertFile.
+        String mOutputFileName = null;
+        BatchSummary.ConversionPath mPath = BatchSummary.ConversionPath.COPY;
+        long mExtraOutputSize = 0;
+
+        Job(Path inputFile, Path relativeDirectory, Path outputDirectory,
+            long inputSize, long inputModified, long sequence) {
+            mInputFile = inputFile;
+            mRelativeDirectory = relativeDirectory;
+            mOutputDirectory = outputDirectory;
+            mInputSize = inputSize;
+            mInputModified = inputModified;
+            mSequence = sequence;
+        }
+        @Override
+        public void run() {
+            ScheduledFuture<?> timeout = start();
+            Outcome outcome = Outcome.FAILED;
+            try {
+                outcome = convertFile(this);
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                stop();
+                complete(this, outcome);
+            }
+        }
+        /* start :
+         * Input : none.
+         * Output : Timeout of this run, null without a timeout.
+         */
+        private ScheduledFuture<?> start() {
+            synchronized (this) {
+                mThread = Thread.currentThread();
+                mTimedOut = false;
+            }
+            long timeoutMs = mCpuLane ? mCpuTimeoutMs : mRemuxTimeoutMs;
+            if (timeoutMs <= 0) {
+                return null;
+            }
+            return mWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timeOut();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        synchronized void timeOut() {
+            if (mThread != null) {
+                System.out.println("Timeout, cancelling conversion of file  = " + mInputFile);
+                mTimedOut = true;
+                mThread.interrupt();
+            }
+        }
+        /* stop :
+         * Input : none.
+         * Output : none.
+         *
+         * Desc : Ends the run on this worker. A timeout which came after
+         * the conversion is cleared, it must not hit the next job.
+         */
+        private void stop() {
+            synchronized (this) {
+                mThread = null;
+            }
+            Thread.interrupted();
+        }
+    }
+}
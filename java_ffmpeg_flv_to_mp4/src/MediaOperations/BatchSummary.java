@@ -0,0 +1,130 @@
+package MediaOperations;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* This class collects the outcome of a batch run.
+ * It is updated concurrently by the conversion jobs, so all the
+ * counters are atomics.
+ *
+ * succeeded : Files converted successfully.
+ * failed    : Files which were accepted by init() but failed in convert(),
+ *             or timed out, also at their last retry.
+ * skipped   : Files rejected by init(). e.g. unsupported codec or
+ *             file could not be opened.
+ * resumed   : Files found in the completion journal of an earlier run.
+ * retried   : Conversions tried again after a failure or a timeout.
+ * timed out : Failed files whose last attempt was cancelled by the timeout.
+ *
+ * Succeeded files are also counted by the path they took :
+ * copy   : Every stream copied.
+ * hybrid : Incompatible streams transcoded, the others copied.
+ * full   : Every stream transcoded.
+ */
+public class BatchSummary {
+    public enum ConversionPath {
+        COPY,
+        HYBRID,
+        FULL
+    }
+    AtomicInteger mSucceeded = new AtomicInteger();
+    AtomicInteger mFailed = new AtomicInteger();
+    AtomicInteger mSkipped = new AtomicInteger();
+    AtomicInteger mResumed = new AtomicInteger();
+    AtomicInteger mRetried = new AtomicInteger();
+    AtomicInteger mTimedOut = new AtomicInteger();
+    AtomicInteger mCopied = new AtomicInteger();
+    AtomicInteger mHybrid = new AtomicInteger();
+    AtomicInteger mFull = new AtomicInteger();
+    AtomicLong mBytesIn = new AtomicLong();
+    AtomicLong mBytesOut = new AtomicLong();
+    long mStartTime = System.nanoTime();
+    long mEndTime = 0;
+
+    void addSucceeded(ConversionPath path, long bytesIn, long bytesOut) {
+        mSucceeded.incrementAndGet();
+        if (path == ConversionPath.HYBRID) {
+            mHybrid.incrementAndGet();
+        } else if (path == ConversionPath.FULL) {
+            mFull.incrementAndGet();
+        } else {
+            mCopied.incrementAndGet();
+        }
+        mBytesIn.addAndGet(bytesIn);
+        mBytesOut.addAndGet(bytesOut);
+    }
+    void addFailed() {
+        mFailed.incrementAndGet();
+    }
+    void addSkipped() {
+        mSkipped.incrementAndGet();
+    }
+    void addResumed() {
+        mResumed.incrementAndGet();
+    }
+    void addRetried() {
+        mRetried.incrementAndGet();
+    }
+    void addTimedOut() {
+        mTimedOut.incrementAndGet();
+    }
+    void finish() {
+        mEndTime = System.nanoTime();
+    }
+    public int getSucceeded() {
+        return mSucceeded.get();
+    }
+    public int getFailed() {
+        return mFailed.get();
+    }
+    public int getSkipped() {
+        return mSkipped.get();
+    }
+    public int getResumed() {
+        return mResumed.get();
+    }
+    public int getRetried() {
+        return mRetried.get();
+    }
+    public int getTimedOut() {
+        return mTimedOut.get();
+    }
+    public int getCopied() {
+        return mCopied.get();
+    }
+    public int getHybrid() {
+        return mHybrid.get();
+    }
+    public int getFull() {
+        return mFull.get();
+    }
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+    /* getWallTimeMillis :
+     * Input : none.
+     * Output : Time from the creation of the summary till finish().
+     *          If the batch is still running, time till now.
+     */
+    public long getWallTimeMillis() {
+        long end = (mEndTime == 0) ? System.nanoTime() : mEndTime;
+        return (end - mStartTime) / 1000000;
+    }
+    public void print(PrintStream out) {
+        out.println("Batch summary :");
+        out.println("  Succeeded  = " + getSucceeded()
+                + " (copy " + getCopied() + ", hybrid " + getHybrid()
+                + ", full " + getFull() + ")");
+        out.println("  Failed     = " + getFailed() + " (timed out " + getTimedOut() + ")");
+        out.println("  Skipped    = " + getSkipped());
+        out.println("  Resumed    = " + getResumed());
+        out.println("  Retried    = " + getRetried());
+        out.println("  Bytes in   = " + getBytesIn());
+        out.println("  Bytes out  = " + getBytesOut());
+        out.println("  Wall time  = " + getWallTimeMillis() + " ms");
+    }
+}
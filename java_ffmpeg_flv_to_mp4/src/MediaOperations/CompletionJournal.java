@@ -0,0 +1,205 @@
+package MediaOperations;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/* This class is an append only journal of finished conversions.
+ * A batch which is run again skips every input found in the journal,
+ * so a run which died half way continues where it stopped.
+ *
+ * One line per converted file, tab separated :
+ *  input path, input size, input modification time, output crc32, output path
+ * An input is done when path, size and mtime match a line. A changed
+ * input gets a new key and is converted again.
+ * All the lines are loaded into a hash map when the journal is opened,
+ * so the check is O(1) per file.
+ *
+ * Group commit : The conversion jobs only queue their line. One writer
+ * thread takes all the lines queued so far, writes them and forces them
+ * to disk with a single fsync. Under high concurrency many lines share
+ * one fsync and no job waits for the disk.
+ * A line is recorded only after the output is renamed to its final name,
+ * so the journal never lists an output which is not complete.
+ * A line cut by a crash is ignored when the journal is loaded, the file
+ * is then simply converted again.
+ */
+public class CompletionJournal {
+    // Queued by close() to stop the writer thread.
+    static final String END_OF_JOURNAL = "";
+
+    Path mJournalFile = null;
+    ConcurrentHashMap<String, String> mCompleted = new ConcurrentHashMap<String, String>();
+    LinkedBlockingQueue<String> mPending = new LinkedBlockingQueue<String>();
+    FileOutputStream mStream = null;
+    BufferedWriter mWriter = null;
+    Thread mWriterThread = null;
+    IOException mWriteError = null;
+
+    /* open :
+     * Input : Journal file. Created if it does not exist.
+     * Output : Journal with all the completed files of the earlier runs.
+     */
+    public static CompletionJournal open(Path journalFile) throws IOException {
+        final CompletionJournal journal = new CompletionJournal();
+        journal.mJournalFile = journalFile;
+        boolean endsWithNewLine = true;
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile,
+                    StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    journal.parseLine(line);
+                }
+            }
+            try (RandomAccessFile file = new RandomAccessFile(journalFile.toFile(), "r")) {
+                if (file.length() > 0) {
+                    file.seek(file.length() - 1);
+                    endsWithNewLine = (file.read() == '\n');
+                }
+            }
+        }
+        journal.mStream = new FileOutputStream(journalFile.toFile(), true);
+        journal.mWriter = new BufferedWriter(new OutputStreamWriter(journal.mStream,
+                StandardCharsets.UTF_8));
+        if (!endsWithNewLine) {
+            // Terminate the line cut by a crash, so it does not swallow
+            // the first line of this run.
+            journal.mWriter.newLine();
+        }
+        journal.mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                journal.writeLoop();
+            }
+        }, "CompletionJournal");
+        journal.mWriterThread.start();
+        return journal;
+    }
+    static String key(Path file, long size, long modifiedTime) {
+        return file.toAbsolutePath().toString() + "\t" + size + "\t" + modifiedTime;
+    }
+    /* isCompleted :
+     * Input : Input file with its size and modification time in ms.
+     * Output : True when the file was converted by an earlier run and
+     *          its output is still there.
+     */
+    public boolean isCompleted(Path file, long size, long modifiedTime) {
+        String outputFile = mCompleted.get(key(file, size, modifiedTime));
+        return outputFile != null && Files.exists(Paths.get(outputFile));
+    }
+    /* record :
+     * Input :
+     *  Input file with its size and modification time in ms, as seen
+     *  before the conversion started.
+     *  Complete output file.
+     *  CRC32 of the output file.
+     * Output : none.
+     *
+     * Desc : Marks the file as done. Returns without waiting for the disk.
+     */
+    public void record(Path file, long size, long modifiedTime,
+                       Path outputFile, long checksum) {
+        String key = key(file, size, modifiedTime);
+        String output = outputFile.toAbsolutePath().toString();
+        mCompleted.put(key, output);
+        mPending.add(key + "\t" + String.format("%08x", checksum) + "\t" + output);
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Writes the lines still queued and closes the journal.
+     */
+    public void close() throws IOException {
+        mPending.add(END_OF_JOURNAL);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter.close();
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+    }
+    /* checksum :
+     * Input : File to be checked.
+     * Output : CRC32 of the whole file.
+     */
+    public static long checksum(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte buffer[] = new byte[256 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+    /* writeLoop :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Body of the writer thread. Waits for a line, then writes it
+     * together with everything queued meanwhile and syncs once.
+     */
+    private void writeLoop() {
+        List<String> lines = new ArrayList<String>();
+        boolean done = false;
+        while (!done) {
+            try {
+                lines.add(mPending.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            mPending.drainTo(lines);
+            try {
+                for (String line : lines) {
+                    if (line.equals(END_OF_JOURNAL)) {
+                        done = true;
+                        continue;
+                    }
+                    mWriter.write(line);
+                    mWriter.newLine();
+                }
+                mWriter.flush();
+                mStream.getChannel().force(false);
+            } catch (IOException e) {
+                // Finished files are still skipped for the rest of this run.
+                System.out.println("Unable to write journal " + mJournalFile + " : " + e);
+                mWriteError = e;
+            }
+            lines.clear();
+        }
+    }
+    private void parseLine(String line) {
+        String fields[] = line.split("\t", -1);
+        if (fields.length != 5) {
+            return;
+        }
+        try {
+            Long.parseLong(fields[1]);
+            Long.parseLong(fields[2]);
+            Long.parseLong(fields[3], 16);
+        } catch (NumberFormatException e) {
+            // A line cut by a crash. The file will just be converted again.
+            return;
+        }
+        mCompleted.put(fields[0] + "\t" + fields[1] + "\t" + fields[2], fields[4]);
+    }
+}
@@ -0,0 +1,230 @@
+package MediaOperations;
+
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.bytedeco.javacpp.Pointer;
+
+import FileUtils.NativeTracker;
+
+/* This class sums up the FileMetrics of every converted file.
+ *
+ * Converters record into their own FileMetrics and hand it over once,
+ * at the end of the file, with record(). The totals are atomics and the
+ * latencies LatencyHistograms, so record() takes no lock and a packet
+ * costs nothing here. Only the optional json-lines log is written
+ * under a lock, one line per file.
+ *
+ * The totals can be read through the getters, through JMX after
+ * registerMBean(), e.g. with jconsole, or from the log written after
+ * openLog().
+ */
+public class ConversionMetrics implements ConversionMetricsMXBean {
+    public static final String OBJECT_NAME = "FlvToMp4:type=ConversionMetrics";
+    static final String MEDIA_TYPES[] = { "video", "audio", "other" };
+    static final ConversionMetrics sInstance = new ConversionMetrics();
+
+    AtomicLong mFilesSucceeded = new AtomicLong();
+    AtomicLong mFilesFailed = new AtomicLong();
+    AtomicLong mBytesIn = new AtomicLong();
+    AtomicLong mBytesOut = new AtomicLong();
+    AtomicLong mNanos = new AtomicLong();
+    AtomicLong mPackets[] = new AtomicLong[MEDIA_TYPES.length];
+    AtomicLong mStreamBytes[] = new AtomicLong[MEDIA_TYPES.length];
+    LatencyHistogram mStages[] = new LatencyHistogram[FileMetrics.Stage.values().length];
+    LatencyHistogram mTotal = new LatencyHistogram();
+    BufferedWriter mLog = null;
+
+    ConversionMetrics() {
+        for (int i = 0; i < MEDIA_TYPES.length; i++) {
+            mPackets[i] = new AtomicLong();
+            mStreamBytes[i] = new AtomicLong();
+        }
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+    /* getInstance :
+     * Input : none.
+     * Output : The metrics all the converters of the process record into.
+     */
+    public static ConversionMetrics getInstance() {
+        return sInstance;
+    }
+    /* registerMBean :
+     * Input : none.
+     * Output : True when the metrics are registered with the platform
+     *          MBean server.
+     */
+    public boolean registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+            return true;
+        } catch (JMException e) {
+            System.out.println("Unable to register " + OBJECT_NAME + " : " + e);
+            return false;
+        }
+    }
+    /* openLog :
+     * Input : File the json-lines log is appended to.
+     * Output : none.
+     */
+    public synchronized void openLog(Path file) throws IOException {
+        closeLog();
+        mLog = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    public synchronized void closeLog() throws IOException {
+        if (mLog != null) {
+            mLog.close();
+            mLog = null;
+        }
+    }
+    /* record :
+     * Input : Metrics of a file which is done, converted or failed.
+     * Output : none.
+     */
+    public void record(FileMetrics file) {
+        if (file.isSucceeded()) {
+            mFilesSucceeded.incrementAndGet();
+        } else {
+            mFilesFailed.incrementAndGet();
+        }
+        mBytesIn.addAndGet(file.getBytesIn());
+        mBytesOut.addAndGet(file.getBytesOut());
+        mNanos.addAndGet(file.getTotalNanos());
+        for (int i = 0; i < file.getStreamCount(); i++) {
+            int type = mediaTypeIndex(file.getCodecType(i));
+            mPackets[type].addAndGet(file.getPackets(i));
+            mStreamBytes[type].addAndGet(file.getBytes(i));
+        }
+        for (FileMetrics.Stage stage : FileMetrics.Stage.values()) {
+            long nanos = file.getStageNanos(stage);
+            if (nanos > 0) {
+                mStages[stage.ordinal()].record(nanos);
+            }
+        }
+        mTotal.record(file.getTotalNanos());
+        if (mLog != null) {
+            writeLog(file);
+        }
+    }
+    private synchronized void writeLog(FileMetrics file) {
+        if (mLog == null) {
+            return;
+        }
+        try {
+            mLog.write(file.toJson(System.currentTimeMillis()));
+            mLog.newLine();
+            // One line per file, flushed so a tail of the log is current.
+            mLog.flush();
+        } catch (IOException e) {
+            System.out.println("Unable to write metrics log : " + e);
+        }
+    }
+    private static int mediaTypeIndex(int codecType) {
+        if (codecType == AVMEDIA_TYPE_VIDEO) {
+            return 0;
+        }
+        return (codecType == AVMEDIA_TYPE_AUDIO) ? 1 : 2;
+    }
+    @Override
+    public long getFilesSucceeded() {
+        return mFilesSucceeded.get();
+    }
+    @Override
+    public long getFilesFailed() {
+        return mFilesFailed.get();
+    }
+    @Override
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+    @Override
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+    @Override
+    public Map<String, Long> getPackets() {
+        return byMediaType(mPackets);
+    }
+    @Override
+    public Map<String, Long> getStreamBytes() {
+        return byMediaType(mStreamBytes);
+    }
+    private static Map<String, Long> byMediaType(AtomicLong counters[]) {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < MEDIA_TYPES.length; i++) {
+            values.put(MEDIA_TYPES[i], counters[i].get());
+        }
+        return values;
+    }
+    @Override
+    public double getThroughput() {
+        long nanos = mNanos.get();
+        return (nanos == 0) ? 0 : (mBytesIn.get() / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+    @Override
+    public Map<String, Double> getLatencyMillis() {
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        for (FileMetrics.Stage stage : FileMetrics.Stage.values()) {
+            addLatency(values, stage.name().toLowerCase(Locale.ROOT), mStages[stage.ordinal()]);
+        }
+        addLatency(values, "total", mTotal);
+        return values;
+    }
+    private static void addLatency(Map<String, Double> values, String name,
+                                   LatencyHistogram histogram) {
+        values.put(name + ".mean", histogram.getMean() / 1e6);
+        values.put(name + ".p50", histogram.getPercentile(50) / 1e6);
+        values.put(name + ".p90", histogram.getPercentile(90) / 1e6);
+        values.put(name + ".p99", histogram.getPercentile(99) / 1e6);
+        values.put(name + ".max", histogram.getMax() / 1e6);
+    }
+    @Override
+    public long getNativeBytes() {
+        return Pointer.totalBytes();
+    }
+    @Override
+    public long getPhysicalBytes() {
+        return Pointer.physicalBytes();
+    }
+    @Override
+    public Map<String, Long> getNativeObjects() {
+        return NativeTracker.getLiveCounts();
+    }
+    @Override
+    public void reset() {
+        mFilesSucceeded.set(0);
+        mFilesFailed.set(0);
+        mBytesIn.set(0);
+        mBytesOut.set(0);
+        mNanos.set(0);
+        for (int i = 0; i < MEDIA_TYPES.length; i++) {
+            mPackets[i].set(0);
+            mStreamBytes[i].set(0);
+        }
+        for (LatencyHistogram histogram : mStages) {
+            histogram.reset();
+        }
+        mTotal.reset();
+    }
+}
@@ -0,0 +1,28 @@
+package MediaOperations;
+
+import java.util.Map;
+
+/* JMX view of ConversionMetrics.
+ * Registered as FlvToMp4:type=ConversionMetrics by ConversionMetrics.registerMBean().
+ */
+public interface ConversionMetricsMXBean {
+    long getFilesSucceeded();
+    long getFilesFailed();
+    long getBytesIn();
+    long getBytesOut();
+    /* Packets and bytes of all the files by media type, "video", "audio", "other". */
+    Map<String, Long> getPackets();
+    Map<String, Long> getStreamBytes();
+    /* MB of input per second of conversion time, over all the files. */
+    double getThroughput();
+    /* Latency of every stage and of the whole file in ms.
+     * Keys are "<stage>.mean", ".p50", ".p90", ".p99" and ".max".
+     */
+    Map<String, Double> getLatencyMillis();
+    /* Native memory allocated through javacpp, and the resident size. */
+    long getNativeBytes();
+    long getPhysicalBytes();
+    /* ffmpeg objects not freed yet by kind, see NativeTracker. */
+    Map<String, Long> getNativeObjects();
+    void reset();
+}
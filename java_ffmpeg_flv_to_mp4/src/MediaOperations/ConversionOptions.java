@@ -0,0 +1,283 @@
+package MediaOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import FileUtils.CustomIOContext;
+import FileUtils.MappedFileIOContext;
+import codec.EncoderSettings;
+import codec.FramePipeline;
+import codec.ScaleSettings;
+
+/* This class holds the settings of a conversion which are not
+ * part of the input / output description.
+ * One instance can be shared by all the converters of a batch.
+ * It is not modified once the batch is started.
+ */
+public class ConversionOptions {
+    /* Layout of mp4 output.
+     * STANDARD   : moov box written by av_write_trailer at the end of the file.
+     * FRAGMENTED : moov first, then moof/mdat fragments flushed while converting.
+     * FASTSTART  : moov at the start of the file, written in a single pass.
+     * HLS        : Media playlist with an init segment and fragmented mp4
+     *              (CMAF) segments, see HlsOutput.
+     */
+    public enum OutputMode {
+        STANDARD,
+        FRAGMENTED,
+        FASTSTART,
+        HLS
+    }
+    public static final int DEFAULT_FRAGMENT_DURATION_MS = 2000;
+    // Limits of the short probe used for cached files and known good encoders.
+    // Enough to see the first audio and video packets of an flv.
+    public static final long FAST_PROBE_SIZE = 128 * 1024;
+    public static final long FAST_ANALYZE_DURATION = 250 * 1000;
+    // Files from this size on are remuxed in parallel ranges when enabled.
+    public static final long DEFAULT_SEGMENT_MIN_FILE_SIZE = 512L * 1024 * 1024;
+    // A followed file without new data for this long is complete.
+    public static final long DEFAULT_FOLLOW_IDLE_TIMEOUT_MS = 30000;
+    // Longest time the muxer holds packets back for a stalled stream
+    // of a followed file.
+    public static final int DEFAULT_FOLLOW_INTERLEAVE_DELAY_MS = 1000;
+
+    boolean mMappedInput = false;
+    long mMapWindowSize = MappedFileIOContext.DEFAULT_WINDOW_SIZE;
+    int mIOBufferSize = CustomIOContext.DEFAULT_BUFFER_SIZE;
+    OutputMode mOutputMode = OutputMode.STANDARD;
+    int mFragmentDurationMs = DEFAULT_FRAGMENT_DURATION_MS;
+    int mHlsSegmentDurationMs = HlsOutput.DEFAULT_SEGMENT_DURATION_MS;
+    long mProbeSize = 0;
+    long mAnalyzeDuration = 0;
+    List<String> mTrustedEncoders = new ArrayList<String>();
+    ProbeCache mProbeCache = null;
+    int mFrameQueueDepth = FramePipeline.DEFAULT_QUEUE_DEPTH;
+    int mDecoderThreads = 1;
+    int mScalerThreads = 1;
+    int mSinkThreads = 1;
+    ScaleSettings mScaleSettings = new ScaleSettings();
+    boolean mTranscoding = false;
+    EncoderSettings mEncoderSettings = new EncoderSettings();
+    int mSegmentThreads = 0;
+    long mSegmentMinFileSize = DEFAULT_SEGMENT_MIN_FILE_SIZE;
+    List<OutputTarget> mOutputTargets = new ArrayList<OutputTarget>();
+    boolean mFollowInput = false;
+    long mFollowIdleTimeoutMs = DEFAULT_FOLLOW_IDLE_TIMEOUT_MS;
+    int mFollowInterleaveDelayMs = DEFAULT_FOLLOW_INTERLEAVE_DELAY_MS;
+
+    /* setMappedInput :
+     * Input : True to read the input file through a memory mapped
+     *         io context instead of libavformat's file protocol.
+     * Output : none.
+     */
+    public void setMappedInput(boolean mappedInput) {
+        mMappedInput = mappedInput;
+    }
+    public boolean isMappedInput() {
+        return mMappedInput;
+    }
+    /* setMapWindowSize :
+     * Input : Size of one mapped window of the input. At most 2 GB.
+     * Output : none.
+     */
+    public void setMapWindowSize(long windowSize) {
+        mMapWindowSize = windowSize;
+    }
+    public long getMapWindowSize() {
+        return mMapWindowSize;
+    }
+    /* setIOBufferSize :
+     * Input : Size of the buffer of custom io contexts.
+     * Output : none.
+     */
+    public void setIOBufferSize(int bufferSize) {
+        mIOBufferSize = bufferSize;
+    }
+    public int getIOBufferSize() {
+        return mIOBufferSize;
+    }
+    public void setOutputMode(OutputMode outputMode) {
+        mOutputMode = outputMode;
+    }
+    public OutputMode getOutputMode() {
+        return mOutputMode;
+    }
+    /* setFragmentDurationMs :
+     * Input : Minimum duration of a fragment in FRAGMENTED mode.
+     *         Fragments start at the first video key frame after it.
+     * Output : none.
+     */
+    public void setFragmentDurationMs(int durationMs) {
+        mFragmentDurationMs = durationMs;
+    }
+    public int getFragmentDurationMs() {
+        return mFragmentDurationMs;
+    }
+    /* setHlsSegmentDurationMs :
+     * Input : Target duration of a segment in HLS mode. Segments are cut
+     *         at the first video key frame after it.
+     * Output : none.
+     */
+    public void setHlsSegmentDurationMs(int durationMs) {
+        mHlsSegmentDurationMs = durationMs;
+    }
+    public int getHlsSegmentDurationMs() {
+        return mHlsSegmentDurationMs;
+    }
+    /* setProbeLimits :
+     * Input :
+     *  Maximum bytes read by avformat_find_stream_info.
+     *  Maximum duration analyzed by avformat_find_stream_info in microseconds.
+     *  0 keeps the libavformat default.
+     * Output : none.
+     */
+    public void setProbeLimits(long probeSize, long analyzeDuration) {
+        mProbeSize = probeSize;
+        mAnalyzeDuration = analyzeDuration;
+    }
+    public long getProbeSize() {
+        return mProbeSize;
+    }
+    public long getAnalyzeDuration() {
+        return mAnalyzeDuration;
+    }
+    /* addTrustedEncoder :
+     * Input : Prefix of the "encoder" metadata of files whose header can be
+     *         trusted. e.g. "Lavf" for files written by libavformat.
+     * Output : none.
+     */
+    public void addTrustedEncoder(String encoderPrefix) {
+        mTrustedEncoders.add(encoderPrefix);
+    }
+    public List<String> getTrustedEncoders() {
+        return mTrustedEncoders;
+    }
+    public boolean hasTrustedEncoders() {
+        return !mTrustedEncoders.isEmpty();
+    }
+    /* setProbeCache :
+     * Input : Cache of probe results, null to always probe.
+     * Output : none.
+     */
+    public void setProbeCache(ProbeCache probeCache) {
+        mProbeCache = probeCache;
+    }
+    public ProbeCache getProbeCache() {
+        return mProbeCache;
+    }
+    /* setFramePipeline :
+     * Input :
+     *  Depth of the queues between the stages of the frame pipeline.
+     *  Threads of the video decoder, 0 for one per core.
+     *  Number of scale threads and sink threads.
+     * Output : none.
+     */
+    public void setFramePipeline(int queueDepth, int decoderThreads,
+                                 int scalerThreads, int sinkThreads) {
+        mFrameQueueDepth = queueDepth;
+        mDecoderThreads = decoderThreads;
+        mScalerThreads = scalerThreads;
+        mSinkThreads = sinkThreads;
+    }
+    public int getFrameQueueDepth() {
+        return mFrameQueueDepth;
+    }
+    public int getDecoderThreads() {
+        return mDecoderThreads;
+    }
+    public int getScalerThreads() {
+        return mScalerThreads;
+    }
+    public int getSinkThreads() {
+        return mSinkThreads;
+    }
+    /* setScaleSettings :
+     * Input : Size, pixel format, algorithm and slice threads of the
+     *         frames the frame pipeline gives to its sink.
+     * Output : none.
+     */
+    public void setScaleSettings(ScaleSettings scaleSettings) {
+        mScaleSettings = scaleSettings;
+    }
+    public ScaleSettings getScaleSettings() {
+        return mScaleSettings;
+    }
+    /* setTranscoding :
+     * Input : True to transcode files with codecs mp4 does not support
+     *         to H.264 / AAC instead of skipping them.
+     * Output : none.
+     */
+    public void setTranscoding(boolean transcoding) {
+        mTranscoding = transcoding;
+    }
+    public boolean isTranscoding() {
+        return mTranscoding;
+    }
+    /* setEncoderSettings :
+     * Input : Encoder, preset, quality and codec threads of transcoded streams.
+     * Output : none.
+     */
+    public void setEncoderSettings(EncoderSettings encoderSettings) {
+        mEncoderSettings = encoderSettings;
+    }
+    public EncoderSettings getEncoderSettings() {
+        return mEncoderSettings;
+    }
+    /* setSegmentedRemux :
+     * Input :
+     *  Threads remuxing the ranges of one file, 0 to convert every file
+     *  in one piece.
+     *  Files smaller than this many bytes are converted in one piece.
+     * Output : none.
+     */
+    public void setSegmentedRemux(int threads, long minFileSize) {
+        mSegmentThreads = threads;
+        mSegmentMinFileSize = minFileSize;
+    }
+    public int getSegmentThreads() {
+        return mSegmentThreads;
+    }
+    public long getSegmentMinFileSize() {
+        return mSegmentMinFileSize;
+    }
+    /* addOutputTarget :
+     * Input : Output written in addition to the output of the batch, from
+     *         the same read of every input, see FanOutConverter.
+     * Output : none.
+     */
+    public void addOutputTarget(OutputTarget target) {
+        mOutputTargets.add(target);
+    }
+    public List<OutputTarget> getOutputTargets() {
+        return mOutputTargets;
+    }
+    /* setFollowInput :
+     * Input :
+     *  True to convert input files while they are still being written,
+     *  see GrowingFileChannel.
+     *  Time in ms without new data after which a file is complete, when
+     *  the recorder does not write an end marker.
+     * Output : none.
+     */
+    public void setFollowInput(boolean follow, long idleTimeoutMs) {
+        mFollowInput = follow;
+        mFollowIdleTimeoutMs = idleTimeoutMs;
+    }
+    public boolean isFollowInput() {
+        return mFollowInput;
+    }
+    public long getFollowIdleTimeoutMs() {
+        return mFollowIdleTimeoutMs;
+    }
+    /* setFollowInterleaveDelayMs :
+     * Input : Longest time in ms packets of a followed file wait in the
+     *         muxer for the other streams.
+     * Output : none.
+     */
+    public void setFollowInterleaveDelayMs(int delayMs) {
+        mFollowInterleaveDelayMs = delayMs;
+    }
+    public int getFollowInterleaveDelayMs() {
+        return mFollowInterleaveDelayMs;
+    }
+}
@@ -0,0 +1,570 @@
+package MediaOperations;
+import static org.bytedeco.ffmpeg.avcodec.AVCodecContext.FF_COMPLIANCE_NORMAL;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_ref;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_copy;
+import static org.bytedeco.ffmpeg.global.avformat.AVFMT_NOFILE;
+import static org.bytedeco.ffmpeg.global.avformat.av_interleaved_write_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_write_trailer;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_output_context2;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_query_codec;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_write_header;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_free;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.InterruptCallback;
+import FileUtils.MediaFileUtils;
+import FileUtils.NativeTracker;
+
+/* This class remuxes one input into several outputs, e.g. an mp4 for
+ * download, an mpegts for broadcast and a matroska archive, in a single
+ * read of the input.
+ *
+ * Converting the file once per output reads and demuxes it once per
+ * output. Here the caller thread demuxes every packet once and hands a
+ * reference to it to every output which takes its stream :
+ *
+ *  demux  : The caller. Reads a packet, queues a reference per output
+ *           and releases its own.
+ *  output : One thread per output. Rescales the timestamps to its own
+ *           streams, writes the packet to its own AVFormatContext and
+ *           at the end writes the trailer.
+ *
+ * Every output has its own bounded queue and its own free list of
+ * packets. A queued packet shares the payload of the demuxed packet,
+ * nothing is copied, and the payload is freed when the last output has
+ * written it. A slow disk fills the queue of its output only. The other
+ * outputs go on until that queue is full, then the demux waits for the
+ * slow output, so memory stays bounded by the queue depth.
+ *
+ * An output which fails, e.g. a full disk, is dropped : its thread
+ * keeps releasing its packets and the other outputs are completed. Every
+ * output is written to a part file and renamed when complete, see
+ * FormatConverter.commitPartFile, and convert() returns false when any
+ * of them failed.
+ *
+ * Streams : Every output takes the streams its OutputTarget selects.
+ * init() returns false when a selected audio or video stream can not be
+ * stored by the format of an output, the caller then converts the file
+ * the usual way. Subtitle and data streams the format can not store are
+ * dropped, as in FormatConverter.
+ */
+public class FanOutConverter implements AutoCloseable {
+    public static final int DEFAULT_QUEUE_DEPTH = 64;
+
+    // Passed down the queue of every output after the last packet.
+    static final AVPacket END_OF_PACKETS = new AVPacket((Pointer)null);
+
+    String mInputFileName = null;
+    List<Output> mOutputs = new ArrayList<Output>();
+    ConversionOptions mOptions = new ConversionOptions();
+    int mQueueDepth = DEFAULT_QUEUE_DEPTH;
+    AVFormatContext mInputFmtCtx = null;
+    AVPacket mPacket = null;
+    // Why init() rejected the input, null otherwise.
+    String mUnsupportedReason = null;
+    FileMetrics mMetrics = null;
+
+    /* constuctor :
+     * Input :
+     *  Input file to be converted.
+     *  Outputs to write. The first one is the main output, see
+     *  getOutputFileName().
+     */
+    public FanOutConverter(String inputFile, List<OutputTarget> targets) {
+        mInputFileName = inputFile;
+        for (OutputTarget target : targets) {
+            mOutputs.add(new Output(target, FormatConverter.outputFileName(inputFile,
+                    target.getOutputDirectoryPath(), target.getExtension())));
+        }
+    }
+    /* setOptions :
+     * Input : Options of the conversion. Has to be called before init().
+     * Output : none.
+     *
+     * Desc : The probe limits and the output mode of mp4 outputs are taken.
+     */
+    public void setOptions(ConversionOptions options) {
+        mOptions = options;
+    }
+    /* setQueueDepth :
+     * Input : Number of packets every output can have queued.
+     * Output : none.
+     */
+    public void setQueueDepth(int queueDepth) {
+        mQueueDepth = Math.max(queueDepth, 1);
+    }
+    /* init :
+     * Input : none.
+     * Output : True when the input is probed and every output has its
+     *          streams.
+     */
+    public boolean init() {
+        mMetrics = new FileMetrics(mInputFileName);
+        if (mOutputs.isEmpty() || !openInput()) {
+            return false;
+        }
+        int codecTypes[] = new int[mInputFmtCtx.nb_streams()];
+        for (int i = 0; i < codecTypes.length; i++) {
+            codecTypes[i] = mInputFmtCtx.streams(i).codecpar().codec_type();
+        }
+        mMetrics.setStreams(codecTypes);
+        for (Output output : mOutputs) {
+            mUnsupportedReason = output.init(mInputFmtCtx);
+            if (mUnsupportedReason != null) {
+                System.out.println(mUnsupportedReason + " : " + mInputFileName);
+                close();
+                return false;
+            }
+        }
+        mPacket = av_packet_alloc();
+        NativeTracker.allocated(NativeTracker.PACKET);
+        return true;
+    }
+    private boolean openInput() {
+        long start = System.nanoTime();
+        mInputFmtCtx = avformat_alloc_context();
+        NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+        InterruptCallback.install(mInputFmtCtx);
+        if (mOptions.getProbeSize() > 0) {
+            mInputFmtCtx.probesize(mOptions.getProbeSize());
+        }
+        if (mOptions.getAnalyzeDuration() > 0) {
+            mInputFmtCtx.max_analyze_duration(mOptions.getAnalyzeDuration());
+        }
+        int ret = avformat_open_input(mInputFmtCtx, mInputFileName, null, null);
+        long opened = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.OPEN, opened - start);
+        if (ret < 0) {
+            System.out.printf("Open video file %s failed \n", mInputFileName);
+            closeInput();
+            return false;
+        }
+        ret = avformat_find_stream_info(mInputFmtCtx, (PointerPointer)null);
+        mMetrics.addStage(FileMetrics.Stage.PROBE, System.nanoTime() - opened);
+        if (ret < 0) {
+            closeInput();
+            return false;
+        }
+        return true;
+    }
+    /* convert :
+     * Input : none.
+     * Output : True when every output is complete and at its final name.
+     */
+    public boolean convert() {
+        long start = System.nanoTime();
+        for (Output output : mOutputs) {
+            if (!output.open(mOptions, mQueueDepth)) {
+                output.mFailed = true;
+            }
+        }
+        long loopStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.HEADER, loopStart - start);
+        boolean interrupted = false;
+        boolean readFailed = false;
+        boolean firstPacket = true;
+        AVPacket p = mPacket;
+        try {
+            int ret;
+            while ((ret = av_read_frame(mInputFmtCtx, p)) >= 0) {
+                if (firstPacket) {
+                    // Same offsets as in FormatConverter.copyFrames. They
+                    // reach the output threads through their queues.
+                    firstPacket = false;
+                    for (Output output : mOutputs) {
+                        output.setFirstTimestamps(p.pts(), p.dts());
+                    }
+                }
+                mMetrics.addPacket(p.stream_index(), p.size());
+                for (Output output : mOutputs) {
+                    output.offer(p);
+                }
+                av_packet_unref(p);
+            }
+            // The read also ends when the thread is interrupted, see
+            // InterruptCallback.
+            interrupted = Thread.currentThread().isInterrupted();
+            if (!interrupted && ret != AVERROR_EOF) {
+                // Every output would be truncated.
+                System.out.println("Failure in reading frame of " + mInputFileName + " : " + ret);
+                readFailed = true;
+            }
+        } catch (InterruptedException e) {
+            av_packet_unref(p);
+            interrupted = true;
+        }
+        for (Output output : mOutputs) {
+            output.end();
+        }
+        long trailerStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.PACKET_LOOP, trailerStart - loopStart);
+        // The output threads write their trailers, this waits for the
+        // slowest of them.
+        for (Output output : mOutputs) {
+            output.join();
+        }
+        long closeStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.TRAILER, closeStart - trailerStart);
+        close();
+        boolean complete = !interrupted && !readFailed;
+        boolean committed = complete;
+        for (Output output : mOutputs) {
+            if (!complete || output.mFailed) {
+                System.out.println("Error in writing " + output.mOutputFileName);
+                FormatConverter.discardPartFile(output.mPartFileName);
+                committed = false;
+            } else {
+                output.mCommitted = FormatConverter.commitPartFile(output.mPartFileName,
+                        output.mOutputFileName);
+                committed &= output.mCommitted;
+            }
+        }
+        mMetrics.addStage(FileMetrics.Stage.CLOSE, System.nanoTime() - closeStart);
+        recordMetrics(committed);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return committed;
+    }
+    /* recordMetrics :
+     * Input : True when every output is written.
+     * Output : none.
+     *
+     * Desc : One record for the file, with the main output and the bytes
+     * of all outputs.
+     */
+    private void recordMetrics(boolean succeeded) {
+        long bytesOut = 0;
+        for (Output output : mOutputs) {
+            if (output.mCommitted) {
+                bytesOut += new File(output.mOutputFileName).length();
+            }
+        }
+        mMetrics.setResult(succeeded, succeeded ? getOutputFileName() : null,
+                new File(mInputFileName).length(), bytesOut);
+        ConversionMetrics.getInstance().record(mMetrics);
+    }
+    /* getOutputFileName :
+     * Input : none.
+     * Output : File of the main output, the first target.
+     */
+    public String getOutputFileName() {
+        return mOutputs.isEmpty() ? null : mOutputs.get(0).mOutputFileName;
+    }
+    /* getOutputFileNames :
+     * Input : none.
+     * Output : Files of the outputs which were written, in target order.
+     */
+    public List<String> getOutputFileNames() {
+        List<String> files = new ArrayList<String>();
+        for (Output output : mOutputs) {
+            if (output.mCommitted) {
+                files.add(output.mOutputFileName);
+            }
+        }
+        return files;
+    }
+    public String getUnsupportedReason() {
+        return mUnsupportedReason;
+    }
+    private void closeInput() {
+        if (mInputFmtCtx != null) {
+            avformat_close_input(mInputFmtCtx);
+            NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+            mInputFmtCtx = null;
+        }
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees the input, the packet and the native objects of every
+     * output. Safe to call more than once. Part files are left to
+     * convert().
+     */
+    @Override
+    public void close() {
+        closeInput();
+        if (mPacket != null) {
+            av_packet_free(mPacket);
+            NativeTracker.freed(NativeTracker.PACKET);
+            mPacket = null;
+        }
+        for (Output output : mOutputs) {
+            output.close();
+        }
+    }
+
+    /* One output of the fan-out : its format context, its streams and
+     * the thread which writes it. The demux thread calls offer() and
+     * end(), everything else of the packet path runs on the thread of
+     * the output.
+     */
+    static class Output implements Runnable {
+        OutputTarget mTarget;
+        String mOutputFileName;
+        String mPartFileName;
+        AVFormatContext mOutputFmtCtx = null;
+        StreamRoutingTable mRoutes = null;
+        // Offsets subtracted from the timestamps, 0 with source timestamps.
+        long mFirstPts = 0;
+        long mFirstDts = 0;
+        // Packets waiting to be written, and the packets free for the
+        // next reference. Both sized by the queue depth.
+        BlockingQueue<AVPacket> mQueue = null;
+        BlockingQueue<AVPacket> mFreePackets = null;
+        List<AVPacket> mPackets = new ArrayList<AVPacket>();
+        Thread mThread = null;
+        // Set by either thread. The packets of a failed output are dropped.
+        volatile boolean mFailed = false;
+        boolean mCommitted = false;
+
+        /* constuctor :
+         * Input : Target and the output file written for it.
+         */
+        Output(OutputTarget target, String outputFileName) {
+            mTarget = target;
+            mOutputFileName = outputFileName;
+            mPartFileName = outputFileName + FormatConverter.PART_FILE_SUFFIX;
+        }
+        /* init :
+         * Input : Probed input.
+         * Output : null when the output context and its streams are set
+         *          up, else why the input can not be written to it.
+         */
+        String init(AVFormatContext input) {
+            mOutputFmtCtx = new AVFormatContext(null);
+            if (avformat_alloc_output_context2(mOutputFmtCtx, null, mTarget.getFormatName(),
+                    mPartFileName) < 0) {
+                mOutputFmtCtx = null;
+                return "Unknown output format " + mTarget.getFormatName();
+            }
+            NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+            mRoutes = new StreamRoutingTable(input.nb_streams());
+            for (int i = 0; i < input.nb_streams(); i++) {
+                AVStream inputStream = input.streams(i);
+                AVCodecParameters inputParams = inputStream.codecpar();
+                int codecType = inputParams.codec_type();
+                if (!mTarget.isSelected(codecType)) {
+                    continue;
+                }
+                if (codecType == AVMEDIA_TYPE_AUDIO || codecType == AVMEDIA_TYPE_VIDEO) {
+                    // 0 : the format can not store the codec. A negative
+                    // value means the muxer does not know, it is tried.
+                    if (avformat_query_codec(mOutputFmtCtx.oformat(), inputParams.codec_id(),
+                            FF_COMPLIANCE_NORMAL) == 0) {
+                        return "Codec " + inputParams.codec_id() + " of stream " + i
+                                + " not supported by " + mTarget.getFormatName();
+                    }
+                } else if (!StreamRoutingTable.isCopyable(mOutputFmtCtx.oformat(),
+                        codecType, inputParams.codec_id())) {
+                    continue;
+                }
+                AVStream outputStream = avformat_new_stream(mOutputFmtCtx, null);
+                avcodec_parameters_copy(outputStream.codecpar(), inputParams);
+                outputStream.codecpar().codec_tag(0);
+                mRoutes.addRoute(i, inputStream, outputStream, codecType);
+            }
+            if (mOutputFmtCtx.nb_streams() == 0) {
+                return "No stream selected for " + mTarget;
+            }
+            return null;
+        }
+        /* open :
+         * Input : Options of the conversion and the queue depth.
+         * Output : True when the header is written and the thread of
+         *          the output runs.
+         */
+        boolean open(ConversionOptions options, int queueDepth) {
+            try {
+                Files.createDirectories(Paths.get(mTarget.getOutputDirectoryPath()));
+            } catch (IOException e) {
+                System.out.println("Unable to create output directory "
+                        + mTarget.getOutputDirectoryPath() + " : " + e);
+                return false;
+            }
+            if ((mOutputFmtCtx.oformat().flags() & AVFMT_NOFILE) == 0 &&
+                !MediaFileUtils.openMediaFile(mOutputFmtCtx, mPartFileName)) {
+                System.out.println("Unable to open output file " + mPartFileName);
+                return false;
+            }
+            AVDictionary muxerOptions = new AVDictionary(null);
+            // Output mode of mp4 and mov, other muxers ignore it. No moov
+            // size estimate here, faststart takes the second pass.
+            FormatConverter.applyMuxerOptions(muxerOptions, options, true, 0);
+            int ret = avformat_write_header(mOutputFmtCtx, muxerOptions);
+            av_dict_free(muxerOptions);
+            if (ret < 0) {
+                System.out.println("Error in writing header of " + mPartFileName);
+                return false;
+            }
+            mRoutes.resolveTimeBases();
+            mQueue = new ArrayBlockingQueue<AVPacket>(queueDepth + 1);
+            mFreePackets = new ArrayBlockingQueue<AVPacket>(queueDepth);
+            for (int i = 0; i < queueDepth; i++) {
+                AVPacket packet = av_packet_alloc();
+                NativeTracker.allocated(NativeTracker.PACKET);
+                mPackets.add(packet);
+                mFreePackets.add(packet);
+            }
+            mThread = new Thread(this, "FanOutConverter-" + mTarget.getFormatName());
+            mThread.start();
+            return true;
+        }
+        void setFirstTimestamps(long pts, long dts) {
+            if (!mTarget.isSourceTimestamps()) {
+                mFirstPts = pts;
+                mFirstDts = dts;
+            }
+        }
+        /* offer :
+         * Input : Demuxed packet.
+         * Output : none.
+         *
+         * Desc : Queues a reference to the packet when the output takes
+         * its stream. Blocks while all packets of the output are queued.
+         */
+        void offer(AVPacket p) throws InterruptedException {
+            if (mThread == null || mFailed ||
+                mRoutes.getOutputIndex(p.stream_index()) == StreamRoutingTable.UNMAPPED) {
+                return;
+            }
+            AVPacket reference = mFreePackets.take();
+            if (av_packet_ref(reference, p) < 0) {
+                mFreePackets.add(reference);
+                mFailed = true;
+                return;
+            }
+            mQueue.put(reference);
+        }
+        /* end :
+         * Input : none.
+         * Output : none.
+         *
+         * Desc : Tells the thread there are no more packets. There is
+         * always room for it, the queue is one longer than the free list.
+         */
+        void end() {
+            if (mThread != null) {
+                mQueue.add(END_OF_PACKETS);
+            }
+        }
+        void join() {
+            if (mThread == null) {
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mThread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    // The thread holds native objects, wait for it anyway.
+                    interrupted = true;
+                }
+            }
+            mThread = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        /* run :
+         * Input : none.
+         * Output : none.
+         *
+         * Desc : Writes the queued packets until END_OF_PACKETS, then the
+         * trailer. After a failure the packets are only released, so the
+         * demux thread is never blocked by a dead output.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    AVPacket p = mQueue.take();
+                    if (p == END_OF_PACKETS) {
+                        break;
+                    }
+                    if (!mFailed && !write(p)) {
+                        mFailed = true;
+                    }
+                    av_packet_unref(p);
+                    mFreePackets.add(p);
+                }
+                if (!mFailed && av_write_trailer(mOutputFmtCtx) < 0) {
+                    System.out.println("Error in writing trailer of " + mPartFileName);
+                    mFailed = true;
+                }
+            } catch (InterruptedException e) {
+                mFailed = true;
+            }
+        }
+        private boolean write(AVPacket p) {
+            int inputIndex = p.stream_index();
+            p.stream_index(mRoutes.getOutputIndex(inputIndex));
+            p.pts(mRoutes.rescale(inputIndex, p.pts() - mFirstPts));
+            p.dts(mRoutes.rescale(inputIndex, p.dts() - mFirstDts));
+            p.duration(mRoutes.rescale(inputIndex, p.duration()));
+            p.pos(-1);
+            try {
+                if (av_interleaved_write_frame(mOutputFmtCtx, p) >= 0) {
+                    return true;
+                }
+                System.out.println("Error in writing packet to " + mPartFileName);
+            } catch (RuntimeException e) {
+                // The thread has to live on, the demux waits for its packets.
+                System.out.println("Exception in writing packet to " + mPartFileName + " : " + e);
+            }
+            return false;
+        }
+        /* close :
+         * Input : none.
+         * Output : none.
+         *
+         * Desc : Frees the format context and the packets. Called after
+         * join(), or when the thread was never started.
+         */
+        void close() {
+            if (mOutputFmtCtx != null) {
+                MediaFileUtils.closeMediaFile(mOutputFmtCtx.pb());
+                mOutputFmtCtx.pb(null);
+                avformat_free_context(mOutputFmtCtx);
+                NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+                mOutputFmtCtx = null;
+            }
+            for (AVPacket packet : mPackets) {
+                av_packet_free(packet);
+                NativeTracker.freed(NativeTracker.PACKET);
+            }
+            mPackets.clear();
+        }
+    }
+}
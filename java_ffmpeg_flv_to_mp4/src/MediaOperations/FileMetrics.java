@@ -0,0 +1,199 @@
+package MediaOperations;
+
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+
+import java.util.Locale;
+
+/* This class records the metrics of the conversion of one file.
+ *
+ * It is owned by one converter and only touched by the thread running
+ * it, so the packet loop updates plain arrays, no atomics or locks.
+ * When the file is done the converter hands it to ConversionMetrics,
+ * which adds it to the totals and writes it to the json-lines log.
+ *
+ * Stages :
+ *  OPEN        : avformat_open_input, including the custom io setup.
+ *  PROBE       : avformat_find_stream_info. A short probe which falls
+ *                back to the full one counts both.
+ *  HEADER      : Opening the output and avformat_write_header.
+ *  PACKET_LOOP : Reading, routing and writing every packet, including
+ *                the transcoded streams and their flush.
+ *  TRAILER     : av_write_trailer, e.g. the moov box.
+ *  CLOSE       : Closing the input and output and renaming the part file.
+ */
+public class FileMetrics {
+    public enum Stage {
+        OPEN,
+        PROBE,
+        HEADER,
+        PACKET_LOOP,
+        TRAILER,
+        CLOSE
+    }
+
+    String mInputFileName;
+    String mOutputFileName = null;
+    boolean mSucceeded = false;
+    long mStageNanos[] = new long[Stage.values().length];
+    // Per input stream. Sized by setStreams().
+    int mCodecTypes[] = new int[0];
+    long mPackets[] = new long[0];
+    long mBytes[] = new long[0];
+    long mBytesIn = 0;
+    long mBytesOut = 0;
+
+    /* constuctor :
+     * Input : Input file of the conversion.
+     */
+    public FileMetrics(String inputFileName) {
+        mInputFileName = inputFileName;
+    }
+    /* addStage :
+     * Input : Stage and the time spent in it. Adds to earlier time of
+     *         the same stage.
+     * Output : none.
+     */
+    public void addStage(Stage stage, long nanos) {
+        mStageNanos[stage.ordinal()] += nanos;
+    }
+    /* setStreams :
+     * Input : Media type (AVMEDIA_TYPE_*) of every input stream.
+     * Output : none.
+     */
+    public void setStreams(int codecTypes[]) {
+        mCodecTypes = codecTypes;
+        mPackets = new long[codecTypes.length];
+        mBytes = new long[codecTypes.length];
+    }
+    /* addPacket :
+     * Input : Index of the input stream and the size of the packet.
+     * Output : none.
+     */
+    public void addPacket(int streamIndex, int size) {
+        if (streamIndex < mPackets.length) {
+            mPackets[streamIndex]++;
+            mBytes[streamIndex] += size;
+        }
+    }
+    /* addPackets :
+     * Input : Index of the input stream, number of packets and their
+     *         total size. For converters which count on other threads.
+     * Output : none.
+     */
+    public void addPackets(int streamIndex, long packets, long bytes) {
+        if (streamIndex < mPackets.length) {
+            mPackets[streamIndex] += packets;
+            mBytes[streamIndex] += bytes;
+        }
+    }
+    /* setResult :
+     * Input :
+     *  True when the output was written.
+     *  Output file, null if there is none.
+     *  Size of the input and the output in bytes.
+     * Output : none.
+     */
+    public void setResult(boolean succeeded, String outputFileName, long bytesIn, long bytesOut) {
+        mSucceeded = succeeded;
+        mOutputFileName = outputFileName;
+        mBytesIn = bytesIn;
+        mBytesOut = bytesOut;
+    }
+    public boolean isSucceeded() {
+        return mSucceeded;
+    }
+    public long getStageNanos(Stage stage) {
+        return mStageNanos[stage.ordinal()];
+    }
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : mStageNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+    public int getStreamCount() {
+        return mPackets.length;
+    }
+    public int getCodecType(int streamIndex) {
+        return mCodecTypes[streamIndex];
+    }
+    public long getPackets(int streamIndex) {
+        return mPackets[streamIndex];
+    }
+    public long getBytes(int streamIndex) {
+        return mBytes[streamIndex];
+    }
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+    /* getThroughput :
+     * Input : none.
+     * Output : MB of input converted per second of all the stages.
+     */
+    public double getThroughput() {
+        long total = getTotalNanos();
+        return (total == 0) ? 0 : (mBytesIn / (1024.0 * 1024.0)) / (total / 1e9);
+    }
+    static String mediaType(int codecType) {
+        if (codecType == AVMEDIA_TYPE_VIDEO) {
+            return "video";
+        }
+        if (codecType == AVMEDIA_TYPE_AUDIO) {
+            return "audio";
+        }
+        return "other";
+    }
+    /* toJson :
+     * Input : Wall clock time the record is written, in ms since the epoch.
+     * Output : The record as one line of json, without the line break.
+     */
+    public String toJson(long timeMillis) {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"time\":").append(timeMillis);
+        json.append(",\"file\":").append(quote(mInputFileName));
+        json.append(",\"output\":").append((mOutputFileName == null) ? "null" : quote(mOutputFileName));
+        json.append(",\"succeeded\":").append(mSucceeded);
+        json.append(",\"stagesMs\":{");
+        for (Stage stage : Stage.values()) {
+            json.append((stage.ordinal() == 0) ? "" : ",")
+                .append(quote(stage.name().toLowerCase(Locale.ROOT))).append(':')
+                .append(millis(mStageNanos[stage.ordinal()]));
+        }
+        json.append("},\"totalMs\":").append(millis(getTotalNanos()));
+        json.append(",\"bytesIn\":").append(mBytesIn);
+        json.append(",\"bytesOut\":").append(mBytesOut);
+        json.append(",\"mbPerSecond\":").append(String.format(Locale.ROOT, "%.3f", getThroughput()));
+        json.append(",\"streams\":[");
+        for (int i = 0; i < mPackets.length; i++) {
+            json.append((i == 0) ? "" : ",")
+                .append("{\"index\":").append(i)
+                .append(",\"type\":").append(quote(mediaType(mCodecTypes[i])))
+                .append(",\"packets\":").append(mPackets[i])
+                .append(",\"bytes\":").append(mBytes[i]).append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
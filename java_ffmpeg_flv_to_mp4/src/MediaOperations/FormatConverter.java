@@ -3,63 +3,161 @@ import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_FLAG_GLOBAL_HEADER;
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_AAC;
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
 import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_MP3;
-import static org.bytedeco.ffmpeg.global.avcodec.av_init_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_copy;
+import static org.bytedeco.ffmpeg.avformat.AVFormatContext.AVFMT_FLAG_CUSTOM_IO;
+import static org.bytedeco.ffmpeg.global.avformat.AVFMT_DURATION_FROM_BITRATE;
 import static org.bytedeco.ffmpeg.global.avformat.AVFMT_GLOBALHEADER;
 import static org.bytedeco.ffmpeg.global.avformat.AVFMT_NOFILE;
 import static org.bytedeco.ffmpeg.global.avformat.av_dump_format;
 import static org.bytedeco.ffmpeg.global.avformat.av_interleaved_write_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_write_frame;
 import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
 import static org.bytedeco.ffmpeg.global.avformat.av_write_trailer;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_output_context2;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_write_header;
+import static org.bytedeco.ffmpeg.global.avformat.avio_flush;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
 import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
 import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
-import static org.bytedeco.ffmpeg.global.avutil.AV_ROUND_NEAR_INF;
-import static org.bytedeco.ffmpeg.global.avutil.AV_ROUND_PASS_MINMAX;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.AV_TIME_BASE;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_copy;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_get;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_set;
+import static org.bytedeco.ffmpeg.global.avutil.av_make_q;
 import static org.bytedeco.ffmpeg.global.avutil.av_rescale_q;
-import static org.bytedeco.ffmpeg.global.avutil.av_rescale_q_rnd;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
 import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.avformat.AVFormatContext;
-import org.bytedeco.ffmpeg.avformat.AVIOContext;
 import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
 import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVDictionaryEntry;
+import org.bytedeco.ffmpeg.avutil.AVRational;
 import org.bytedeco.javacpp.PointerPointer;
 
+import FileUtils.ChannelIOContext;
+import FileUtils.CustomIOContext;
+import FileUtils.FlvKeyframeIndex;
+import FileUtils.GrowingFileChannel;
+import FileUtils.InterruptCallback;
+import FileUtils.MappedFileIOContext;
 import FileUtils.MediaFileUtils;
+import FileUtils.NativeTracker;
+import codec.AudioTranscoder;
+import codec.StreamTranscoder;
+import codec.VideoTranscoder;
 
 /* This class is responsible for converting input flv to 
  * mp4. 
- * Transcoding is not supported. mp4 does not support all codecs
- * which are supported by flv. e.g vp6 and mp3 is not supported by mp4
+ * mp4 does not support all codecs which are supported by flv.
+ * e.g vp6 and nellymoser is not supported by mp4
  * So this class expects that input file is muxed with the codecs
- * needed for mp4 file. If we want to support generic flv, we will have to
- * support transcoding.
+ * needed for mp4 file.
+ *
+ * Hybrid mode : With transcoding enabled in the options, a file where only
+ * some of the streams are incompatible (commonly H.264 video with
+ * Nellymoser or Speex audio) is still converted here. The compatible
+ * streams are copied as before, only the incompatible ones are decoded
+ * and encoded again by a StreamTranscoder. Their packets get the same
+ * start offset as the copied ones, so lip sync is kept. A file where no
+ * audio or video stream can be copied is left to
+ * FormatConverterWithTranscoding.
+ *
+ * Follow mode : With follow input in the options, the input is a file
+ * still being written, read through a GrowingFileChannel. The packet loop
+ * waits for new tags instead of ending at the current end of the file,
+ * and ends with the recording. The output is fragmented, or HLS, and
+ * every fragment is written out as soon as the muxer completes it, so a
+ * player can follow the .part file or the playlist a few seconds behind
+ * the recorder. The muxer holds packets back for at most the interleave
+ * delay when one stream stalls.
+ *
+ * Faststart : The moov is written into space reserved after the header,
+ * sized from the input duration, see estimateMoovSize(). The duration of
+ * an flv is the onMetaData value or a guess from the bit rate, and both
+ * are often wrong for live recordings. When the moov does not fit,
+ * convert() converts the file once more with movflags=faststart, which
+ * moves the moov to the front in a second pass over the output.
+ *
+ * Lifecycle : convert() frees every native object of the file, whether
+ * it succeeds or not, and so does a failed init(). A converter which is
+ * initialised but not converted has to be closed, e.g. with
+ * try-with-resources. close() can be called any number of times.
  * 
  * Following is used as a reference :
  * https://github.com/bytedeco/javacpp-presets/tree/master/ffmpeg
  * http://bytedeco.org/javacpp-presets/ffmpeg/apidocs/
  * https://stackoverflow.com/questions/48788630/how-can-i-copy-file-frame-by-frame-to-get-exactly-the-same-file-ffmpeg
  */
-public class FormatConverter {
+public class FormatConverter implements AutoCloseable {
+    // Suffix of the output file while it is being written.
+    public static final String PART_FILE_SUFFIX = ".part";
+    // Time base of the HLS segment times.
+    static final AVRational MICROSECONDS = av_make_q(1, AV_TIME_BASE);
+
     String mInputFileName = null;
     String mOutputFileName = null;
+    // Output is written here and renamed to mOutputFileName when complete.
+    String mPartFileName = null;
     String mOutputDirectoryPath = null;
     String mOutputFormatName = null;
     AVFormatContext mInputFmtCtx =  null;
     AVFormatContext mOutputFmtCtx =  null;
     AVOutputFormat mOutputFormat = null;
 
-    AVStream mAudioStream = null;
-    AVStream mVideoStream = null;
-    int mStreamMapping[] = {0,0};
+    StreamRoutingTable mRoutes = null;
+    // Transcoder of every input stream, null for copied and dropped streams.
+    StreamTranscoder mTranscoders[] = null;
+    int mTranscodedStreams = 0;
+    // Reused for every packet of the file. See copyFrames.
+    AVPacket mPacket = null;
+
+    // Channel mode. See the channel constructor.
+    ReadableByteChannel mInputChannel = null;
+    WritableByteChannel mOutputChannel = null;
+    int mIOBufferSize = CustomIOContext.DEFAULT_BUFFER_SIZE;
+    CustomIOContext mInputIO = null;
+    // Input in follow mode, read through mInputIO.
+    GrowingFileChannel mFollowChannel = null;
+    ChannelIOContext mOutputIO = null;
+    // Segments and playlist in HLS mode, written through mOutputIO.
+    HlsOutput mHls = null;
+    ConversionOptions mOptions = new ConversionOptions();
+    long mProbeTimeNanos = 0;
+    String mProbeMode = null;
+    // Why init() rejected the codecs of the input, null otherwise.
+    String mUnsupportedReason = null;
+    // Stage timings and packet counts, handed to ConversionMetrics at the end.
+    FileMetrics mMetrics = null;
+    // Bytes reserved for the moov in faststart mode, 0 for none.
+    long mMoovSize = 0;
+    // True after the reserved moov was too small, see convert().
+    boolean mTwoPassFaststart = false;
     /* constuctor :
      * Input :
      *  Input file to be converted.
@@ -73,6 +171,226 @@ public class FormatConverter {
         mOutputDirectoryPath = outputDirectoryPath;
         mOutputFormatName = outputFormat;
     }
+    /* constuctor :
+     * Input :
+     *  Channel the input is read from.
+     *  Channel the output is written to.
+     *  Output Mux. (Currently only mp4 is supported)
+     *  Size of the io buffers.
+     *
+     * Desc : Remuxes from one channel into another without any intermediate
+     * file. The channels are not closed by the converter.
+     * If the output channel is not seekable, mp4 is written fragmented
+     * whatever the output mode is, see setMuxerOptions.
+     */
+    public FormatConverter(ReadableByteChannel input,
+                           WritableByteChannel output,
+                           String outputFormat,
+                           int ioBufferSize) {
+        mInputChannel = input;
+        mOutputChannel = output;
+        mOutputFormatName = outputFormat;
+        mIOBufferSize = ioBufferSize;
+        mInputFileName = "pipe:";
+        mOutputFileName = "pipe:";
+    }
+    /* setOptions :
+     * Input : Options of the conversion. Has to be called before init().
+     * Output : none.
+     */
+    public void setOptions(ConversionOptions options) {
+        mOptions = options;
+    }
+    /* openOutput :
+     * Input : none.
+     * Output : True when the output io is opened and the header is written.
+     */
+    private boolean openOutput() {
+        boolean seekable = true;
+        if (mOutputChannel != null) {
+            mOutputIO = MediaFileUtils.openMediaChannel(mOutputFmtCtx,
+                    mOutputChannel, mIOBufferSize);
+            seekable = mOutputIO.isSeekable();
+        } else if (isHlsOutput()) {
+            mHls = new HlsOutput(mOutputFileName, mOptions.getHlsSegmentDurationMs(),
+                    hasCopiedVideo());
+            mHls.setKeyframeIndex(scanKeyframes());
+            if (!mHls.open()) {
+                return false;
+            }
+            mOutputIO = MediaFileUtils.openMediaChannel(mOutputFmtCtx,
+                    mHls.getChannel(), mIOBufferSize);
+            seekable = false;
+        } else if ((mOutputFmtCtx.oformat().flags() & AVFMT_NOFILE)  == 0) {
+            // Check if file exists. If not, create one
+            if (!MediaFileUtils.openMediaFile(mOutputFmtCtx,
+                    mPartFileName)) {
+                System.out.println("Unable to open output file");
+                return false;
+            }
+        }
+        AVDictionary options = new AVDictionary(null);
+        setMuxerOptions(options, seekable);
+        int ret = avformat_write_header(mOutputFmtCtx, options);
+        av_dict_free(options);
+        if (ret < 0) {
+            System.out.println("Error in writing header");
+            return false;
+        }
+        return true;
+    }
+    /* setMuxerOptions :
+     * Input :
+     *  Dictionary passed to avformat_write_header.
+     *  True when the output can be seeked.
+     * Output : none.
+     */
+    private void setMuxerOptions(AVDictionary options, boolean seekable) {
+        if (mOptions.isFollowInput()) {
+            // Live : hand every fragment to the file as soon as the muxer
+            // has it, and do not wait longer than the interleave delay
+            // for a stream which has no packets.
+            av_dict_set(options, "flush_packets", "1", 0);
+            av_dict_set(options, "max_interleave_delta",
+                    Long.toString(mOptions.getFollowInterleaveDelayMs() * 1000L), 0);
+            // A followed output is read while it grows, it has to be
+            // fragmented, see applyMuxerOptions.
+            seekable = false;
+        }
+        if (isHlsOutput()) {
+            // Fragments are flushed only at the segment starts, see
+            // startHlsSegment. No mfra at the end of the last segment.
+            // frag_discont without an edit list makes the tfdt of every
+            // fragment the real decode time, a player takes the stream
+            // offsets from there.
+            av_dict_set(options, "movflags",
+                    "frag_custom+empty_moov+default_base_moof+skip_trailer+frag_discont", 0);
+            av_dict_set(options, "use_editlist", "0", 0);
+            av_dict_set(options, "avoid_negative_ts", "disabled", 0);
+            return;
+        }
+        mMoovSize = 0;
+        if (seekable && mOptions.getOutputMode() == ConversionOptions.OutputMode.FASTSTART &&
+            !mTwoPassFaststart) {
+            mMoovSize = Math.max(estimateMoovSize(), 0);
+            if (mMoovSize == 0) {
+                System.out.println("Duration unknown, using two pass faststart for "
+                        + mInputFileName);
+            }
+        }
+        applyMuxerOptions(options, mOptions, seekable, mMoovSize);
+    }
+    /* applyMuxerOptions :
+     * Input :
+     *  Dictionary passed to avformat_write_header.
+     *  Options of the conversion.
+     *  True when the output can be seeked.
+     *  Bytes to reserve for the moov box in faststart mode, 0 or less to
+     *  move the moov to the front in a second pass.
+     * Output : none.
+     *
+     * Desc : Translates the output mode to mp4 muxer options.
+     * Other muxers ignore them. HLS output of FormatConverter is set
+     * up by setMuxerOptions, anything else gets FRAGMENTED mp4 in HLS
+     * mode.
+     */
+    static void applyMuxerOptions(AVDictionary options, ConversionOptions conversionOptions,
+                                  boolean seekable, long moovSize) {
+        ConversionOptions.OutputMode mode = conversionOptions.getOutputMode();
+        if (!seekable || mode == ConversionOptions.OutputMode.HLS) {
+            // The moov box can not be patched at the end of a
+            // non-seekable output. Only fragments can be written.
+            mode = ConversionOptions.OutputMode.FRAGMENTED;
+        }
+        if (mode == ConversionOptions.OutputMode.FRAGMENTED) {
+            // Write an empty moov first and then self contained
+            // moof/mdat fragments. Every fragment starts at a key frame
+            // and is flushed as soon as it is complete, so the output
+            // can be served while the conversion is still running.
+            av_dict_set(options, "movflags",
+                    "frag_keyframe+empty_moov+default_base_moof", 0);
+            av_dict_set(options, "min_frag_duration",
+                    Long.toString(conversionOptions.getFragmentDurationMs() * 1000L), 0);
+        } else if (mode == ConversionOptions.OutputMode.FASTSTART) {
+            // movflags=faststart writes the moov at the end and then
+            // rewrites the whole file to move it to the front.
+            // Instead, reserve space for the moov right after the header.
+            // av_write_trailer writes the moov into the reserved space.
+            if (moovSize > 0) {
+                av_dict_set(options, "moov_size", Long.toString(moovSize), 0);
+            } else {
+                av_dict_set(options, "movflags", "faststart", 0);
+            }
+        }
+    }
+    /* estimateMoovSize :
+     * Input : none.
+     * Output : Number of bytes to reserve for the moov box. -1 when the
+     *          input duration is not known or only guessed from the bit
+     *          rate.
+     *
+     * Desc : The moov box grows with the number of samples. Per sample it
+     * holds the size, the duration, the composition offset, the chunk
+     * offset and, for video, the sync sample entry. The estimate assumes
+     * the worst case of one sample per chunk and adds 50% margin.
+     */
+    private long estimateMoovSize() {
+        long duration = mInputFmtCtx.duration();
+        if (duration <= 0 || duration == AV_NOPTS_VALUE ||
+            mInputFmtCtx.duration_estimation_method() == AVFMT_DURATION_FROM_BITRATE) {
+            return -1;
+        }
+        double seconds = duration / (double)AV_TIME_BASE;
+        long size = 4096;
+        for (int i = 0; i < mRoutes.getInputStreamCount(); i++) {
+            if (mRoutes.getOutputIndex(i) == StreamRoutingTable.UNMAPPED &&
+                mTranscoders[i] == null) {
+                continue;
+            }
+            AVStream stream = mInputFmtCtx.streams(i);
+            AVCodecParameters params = stream.codecpar();
+            double samplesPerSecond;
+            long bytesPerSample;
+            if (params.codec_type() == AVMEDIA_TYPE_VIDEO) {
+                AVRational rate = stream.avg_frame_rate();
+                samplesPerSecond = (rate.num() > 0 && rate.den() > 0) ?
+                        rate.num() / (double)rate.den() : 60;
+                bytesPerSample = 4 + 8 + 8 + 8 + 4;
+            } else if (params.codec_type() == AVMEDIA_TYPE_AUDIO) {
+                int frameSize = (params.frame_size() > 0) ? params.frame_size() : 1024;
+                samplesPerSecond = (params.sample_rate() > 0) ?
+                        params.sample_rate() / (double)frameSize : 50;
+                bytesPerSample = 4 + 8 + 8;
+            } else {
+                samplesPerSecond = 10;
+                bytesPerSample = 4 + 8 + 8;
+            }
+            size += 2048 + (long)(seconds * samplesPerSecond * bytesPerSample);
+        }
+        return size + size / 2;
+    }
+    /* closeOutput :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Closes the output io context, if it was opened, and frees
+     * the output format context together with its streams.
+     */
+    private void closeOutput() {
+        if (mOutputIO != null) {
+            MediaFileUtils.closeMediaChannel(mOutputIO);
+            mOutputIO = null;
+        } else if (mOutputFmtCtx != null) {
+            MediaFileUtils.closeMediaFile(mOutputFmtCtx.pb());
+        }
+        if (mOutputFmtCtx != null) {
+            // avio_closep only cleared our copy of the pointer.
+            mOutputFmtCtx.pb(null);
+            avformat_free_context(mOutputFmtCtx);
+            NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+            mOutputFmtCtx = null;
+        }
+    }
     /* copyFrames :
      * Input : None.
      * Output : True whe all packets are successfully copied.
@@ -82,27 +400,34 @@ public class FormatConverter {
      * timestamps.
      */
     private boolean copyFrames() {
-        // Check if file exists. If not, create one
-        if ((mOutputFmtCtx.oformat().flags() & AVFMT_NOFILE)  == 0) {
-            if (!MediaFileUtils.openMediaFile(mOutputFmtCtx,
-                    mOutputFileName)) {
-                System.out.println("Unable to open output file");
-                return false;
-            }
-            int ret = avformat_write_header(mOutputFmtCtx, (PointerPointer)null);
-            if (ret < 0) {
-                System.out.println("Error in writing header");
-                return false;
-            }
+        long stageStart = System.nanoTime();
+        if (!openOutput()) {
+            close();
+            discardOutput();
+            recordMetrics(false);
+            return false;
         }
+        long loopStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.HEADER, loopStart - stageStart);
+        // The output time bases are final only after the header is written.
+        mRoutes.resolveTimeBases();
         boolean firstPacket = true;
+        boolean failed = false;
         long pts = 0, dts = 0;
+        // One packet is used for the whole file. av_read_frame fills it
+        // and av_packet_unref releases the payload after every write,
+        // so native packet buffers never pile up waiting for the GC.
+        AVPacket p = mPacket;
         while(true) {
-            AVPacket p = new AVPacket();
-            av_init_packet(p);
             int ret = av_read_frame(mInputFmtCtx, p);
             if (ret < 0) {
-                System.out.println("Failure in reading frame");
+                // Anything but the end of the file would leave the output
+                // truncated, it must not be committed as complete.
+                if (ret != AVERROR_EOF) {
+                    System.out.println("Failure in reading frame of " + mInputFileName
+                            + " : " + ret);
+                    failed = true;
+                }
                 break;
             }
             /* This had to be done, it was observed that
@@ -122,92 +447,247 @@ public class FormatConverter {
             }
 
             int currentStreamId = p.stream_index();
-            mInputFmtCtx.streams(currentStreamId);
-            AVStream  mCurrentOutputStream = null;
-            /* Find out which stream it belongs to
-             * Audio or video based on the stream index.
+            StreamTranscoder transcoder = (currentStreamId < mTranscoders.length) ?
+                    mTranscoders[currentStreamId] : null;
+            if (transcoder != null) {
+                // Same offset as the copied streams, the transcoder
+                // keeps it through to the encoded packets.
+                p.pts(p.pts() - pts);
+                p.dts(p.dts() - dts);
+                mMetrics.addPacket(currentStreamId, p.size());
+                boolean ok = transcoder.transcode(p);
+                av_packet_unref(p);
+                if (!ok) {
+                    failed = true;
+                    break;
+                }
+                continue;
+            }
+            /* Find out which output stream it belongs to
+             * based on the input stream index. Streams which
+             * are not copied to the output are dropped here.
              */
-            if (mInputFmtCtx.streams(currentStreamId).
-                    codecpar().codec_type() == AVMEDIA_TYPE_AUDIO) {
-                mCurrentOutputStream = mAudioStream;
-            } else if (mInputFmtCtx.streams(p.stream_index()).
-                    codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
-                mCurrentOutputStream = mVideoStream;
-            }
-            p.stream_index(currentStreamId);
+            int outputStreamId = mRoutes.getOutputIndex(currentStreamId);
+            if (outputStreamId == StreamRoutingTable.UNMAPPED) {
+                av_packet_unref(p);
+                continue;
+            }
+            p.stream_index(outputStreamId);
             // Modify the packet presentation timestamp as per the output formats time stamp
             // 
-            p.pts( av_rescale_q_rnd(p.pts() - pts,
-                                       mInputFmtCtx.streams(currentStreamId).time_base(),
-                                       mCurrentOutputStream.time_base(),
-                                       AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX));
+            p.pts(mRoutes.rescale(currentStreamId, p.pts() - pts));
             // Modify the packet decoding timestamp as per the output formats time stamp
             //             
-            p.dts(av_rescale_q_rnd(p.dts() - dts,
-                                    mInputFmtCtx.streams(currentStreamId).time_base(),
-                                    mCurrentOutputStream.time_base(),
-                                    AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX));
+            p.dts(mRoutes.rescale(currentStreamId, p.dts() - dts));
             // Adjust the duration as per the output format's timebase.
             //                         
-            p.duration(av_rescale_q(p.duration(),
-                       mInputFmtCtx.streams(currentStreamId).time_base(),
-                       mCurrentOutputStream.time_base()));
+            p.duration(mRoutes.rescale(currentStreamId, p.duration()));
             p.pos(-1);
+            if (mHls != null && !startHlsSegment(currentStreamId, p)) {
+                av_packet_unref(p);
+                failed = true;
+                break;
+            }
+            // The write takes over the payload, count it before.
+            mMetrics.addPacket(currentStreamId, p.size());
             // Packets are added interleaved. Sequence of audio and video packets.
             // Instead of all audio together and all video together.
             // Write the packet to the output format.                      
             ret = av_interleaved_write_frame(mOutputFmtCtx, p);
+            av_packet_unref(p);
+            if (ret < 0) {
+                // e.g. the disk is full.
+                System.out.println("Error in writing packet to " + mPartFileName + " : " + ret);
+                failed = true;
+                break;
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // Cancelled, e.g. by the timeout of BatchConverter. The read
+            // stopped before the end of the file.
+            System.out.println("Conversion of " + mInputFileName + " cancelled");
+            failed = true;
+        }
+        // Drain the decoders and encoders of the transcoded streams.
+        for (int i = 0; i < mTranscoders.length && !failed; i++) {
+            if (mTranscoders[i] != null) {
+                failed = !mTranscoders[i].flush();
+            }
         }
+        long trailerStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.PACKET_LOOP, trailerStart - loopStart);
         // Write mp4 trailer and close the input format, output format
         // and io context.
-        av_write_trailer(mOutputFmtCtx);
-        avformat_close_input(mInputFmtCtx);
-        MediaFileUtils.closeMediaFile(mOutputFmtCtx.pb());
+        int ret = av_write_trailer(mOutputFmtCtx);
+        long closeStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.TRAILER, closeStart - trailerStart);
+        close();
+        boolean committed = false;
+        if (failed) {
+            System.out.println("Error in converting file " + mInputFileName);
+            discardOutput();
+        } else if (ret < 0 && mMoovSize > 0 && canConvertAgain()) {
+            // The space reserved for the moov was too small. Counted by
+            // the second conversion, see convert().
+            System.out.println("Reserved moov of " + mMoovSize + " bytes too small for "
+                    + mInputFileName);
+            discardOutput();
+            mTwoPassFaststart = true;
+            return false;
+        } else if (ret < 0) {
+            System.out.println("Error in writing trailer for file " + mInputFileName);
+            discardOutput();
+        } else {
+            committed = commitOutput();
+        }
+        mMetrics.addStage(FileMetrics.Stage.CLOSE, System.nanoTime() - closeStart);
+        recordMetrics(committed);
+        return committed;
+    }
+    /* recordMetrics :
+     * Input : True when the output was written.
+     * Output : none.
+     *
+     * Desc : Hands the metrics of the file to ConversionMetrics.
+     */
+    private void recordMetrics(boolean succeeded) {
+        long bytesIn = 0, bytesOut = 0;
+        if (mInputChannel == null) {
+            bytesIn = new File(mInputFileName).length();
+        } else {
+            // Channel input, only the packets are known.
+            for (int i = 0; i < mMetrics.getStreamCount(); i++) {
+                bytesIn += mMetrics.getBytes(i);
+            }
+        }
+        if (succeeded && isHlsOutput()) {
+            bytesOut = HlsOutput.size(mOutputFileName);
+        } else if (succeeded && mPartFileName != null) {
+            bytesOut = new File(mOutputFileName).length();
+        }
+        mMetrics.setResult(succeeded, succeeded ? mOutputFileName : null, bytesIn, bytesOut);
+        ConversionMetrics.getInstance().record(mMetrics);
+    }
+    /* commitOutput :
+     * Input : none.
+     * Output : True when the complete output is at its final name.
+     *
+     * Desc : Renames the finished part file to the output file name.
+     * The rename is atomic, so a file with the final name is always
+     * complete. A crash leaves only a .part file behind.
+     */
+    private boolean commitOutput() {
+        if (mHls != null) {
+            return mHls.finish();
+        }
+        if (mPartFileName == null) {
+            // Written to a channel. Nothing to rename.
+            return true;
+        }
+        return commitPartFile(mPartFileName, mOutputFileName);
+    }
+    /* commitPartFile :
+     * Input : Finished part file and the final name of the output.
+     * Output : True when the output is at its final name. The part file
+     *          is deleted when it can not be renamed.
+     */
+    static boolean commitPartFile(String partFileName, String outputFileName) {
+        Path part = Paths.get(partFileName);
+        Path output = Paths.get(outputFileName);
+        try {
+            // The journal records the output as complete, so its data has
+            // to be on the disk before it gets the final name.
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            try {
+                Files.move(part, output, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(part, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to rename " + partFileName + " : " + e);
+            discardPartFile(partFileName);
+            return false;
+        }
         return true;
     }
+    /* discardOutput :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Deletes the part file of a failed conversion.
+     */
+    private void discardOutput() {
+        if (isHlsOutput()) {
+            if (mHls != null) {
+                mHls.close();
+            }
+            HlsOutput.discard(mOutputFileName);
+            return;
+        }
+        if (mPartFileName == null) {
+            return;
+        }
+        discardPartFile(mPartFileName);
+    }
+    static void discardPartFile(String partFileName) {
+        try {
+            Files.deleteIfExists(Paths.get(partFileName));
+        } catch (IOException e) {
+            System.out.println("Unable to delete " + partFileName + " : " + e);
+        }
+    }
     
     /* initStreamsAndCodecs :
      * Input : none.
      * Output : True.
      *               
      * Desc : This function demuxes the input context.
-     * Reads each stream. This currently handles only one audio and one video stream.
-     * Does not support subtitle or any other stream. 
+     * Reads each stream and builds the stream routing table.
+     * Every audio and video stream is copied. Subtitle and data streams
+     * are copied when the output format can store their codec,
+     * anything else is left unmapped and dropped in copyFrames.
+     * In hybrid mode, audio and video streams mp4 does not support get
+     * a transcoder instead of a route.
      * 
      * It also creates the output stream for the output format 
      * and copies the necessary parameters of the input codec.
-     * Note : Output streams may not be needed as we are copying the packets.
-     * If we remember only input streams, we dont even need to change the packet
-     * timestamp while writing the packet. Though this has not been tested.
      */
     private boolean initStreamsAndCodecs() {
-        // Copy audio video codec parameters from input stream
-
+        // Copy codec parameters from input stream
+        mRoutes = new StreamRoutingTable(mInputFmtCtx.nb_streams());
+        mTranscoders = new StreamTranscoder[mInputFmtCtx.nb_streams()];
+        int codecTypes[] = new int[mInputFmtCtx.nb_streams()];
+        mMetrics.setStreams(codecTypes);
         for (int i = 0; i < mInputFmtCtx.nb_streams(); i++) {
             AVStream inputStream = mInputFmtCtx.streams(i);
-            AVStream outputStream = null;
-            // Skip anything other than audio and video
-            if (inputStream.codecpar().codec_type() == AVMEDIA_TYPE_AUDIO) {
-                // This is audio stream of input. Create output's audio stream
-                // and copy the codec params.  
-                mAudioStream = avformat_new_stream(mOutputFmtCtx,
-                        mInputFmtCtx.audio_codec());
-
-                avcodec_parameters_copy(mAudioStream.codecpar(),
-                                        inputStream.codecpar());
-                outputStream = mAudioStream;
-                mAudioStream.codecpar().codec_tag(0);
-            } else if (inputStream.codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
-                // This is video stream of input. Create output's video stream
-                // and copy the codec params.                 
-                mVideoStream = avformat_new_stream(mOutputFmtCtx,
-                        mInputFmtCtx.video_codec());
-                avcodec_parameters_copy(mVideoStream.codecpar(),
-                                        inputStream.codecpar());
-                outputStream = mVideoStream;
-                mVideoStream.codecpar().codec_tag(0);
+            AVCodecParameters inputParams = inputStream.codecpar();
+            int codecType = inputParams.codec_type();
+            codecTypes[i] = codecType;
+            if (!isSupportedCodec(inputParams)) {
+                mTranscoders[i] = (codecType == AVMEDIA_TYPE_VIDEO) ?
+                        new VideoTranscoder(mOptions.getEncoderSettings()) :
+                        new AudioTranscoder(mOptions.getEncoderSettings());
+                mTranscodedStreams++;
+                if (!mTranscoders[i].open(mInputFmtCtx, inputStream, mOutputFmtCtx)) {
+                    System.out.println("Unable to transcode stream " + i +
+                                       " of file " + mInputFileName);
+                    return false;
+                }
+                continue;
             }
-            
+            if (!StreamRoutingTable.isCopyable(mOutputFmtCtx.oformat(),
+                    codecType, inputParams.codec_id())) {
+                continue;
+            }
+            // Create output's stream and copy the codec params.
+            AVStream outputStream = avformat_new_stream(mOutputFmtCtx, null);
+            avcodec_parameters_copy(outputStream.codecpar(), inputParams);
+            outputStream.codecpar().codec_tag(0);
+            mRoutes.addRoute(i, inputStream, outputStream, codecType);
+
             // Note(Amol) : Not sure if this part of the code is needed.
             if ((mOutputFmtCtx.oformat().flags() & AVFMT_GLOBALHEADER) == 1) {
                 outputStream.codec().flags(outputStream.codec().flags ()|
@@ -217,46 +697,310 @@ public class FormatConverter {
         av_dump_format(mOutputFmtCtx, 0, mOutputFileName, 1);
         return true;
     }
-    /* initInput :
-     * Input : none.
-     * Output : True when Input mux is opened and initialised properly else false.
-     *               
-     * Desc : Initializes input format and reads the stream info. If the input 
-     * containes any of the codecs other than mp3, aac for audio and h264 for 
-     * video, it throws an error.
-     */    
-    private boolean initInput() {
-        mInputFmtCtx = new AVFormatContext(null);
+    /* openInput :
+     * Input :
+     *  Probe size in bytes and analyze duration in microseconds used by
+     *  avformat_find_stream_info. 0 keeps the libavformat default.
+     * Output : True when the input is opened and the stream info is read.
+     *
+     * Desc : Opens the input through the file protocol, a mapped file or
+     * the input channel. On failure the input is closed again.
+     */
+    private boolean openInput(long probeSize, long analyzeDuration) {
+        long start = System.nanoTime();
+        mInputFmtCtx = avformat_alloc_context();
+        NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+        InterruptCallback.install(mInputFmtCtx);
+        if (probeSize > 0) {
+            mInputFmtCtx.probesize(probeSize);
+        }
+        if (analyzeDuration > 0) {
+            mInputFmtCtx.max_analyze_duration(analyzeDuration);
+        }
+        if (mInputChannel != null) {
+            // Read through our own io context instead of a file protocol.
+            mInputIO = ChannelIOContext.forReading(mInputChannel, mIOBufferSize);
+            mInputFmtCtx.pb(mInputIO.getIOContext());
+            mInputFmtCtx.flags(mInputFmtCtx.flags() | AVFMT_FLAG_CUSTOM_IO);
+        } else if (mOptions.isFollowInput()) {
+            // Tail a file still being written, see GrowingFileChannel.
+            try {
+                mFollowChannel = GrowingFileChannel.open(Paths.get(mInputFileName),
+                        mOptions.getFollowIdleTimeoutMs());
+            } catch (IOException e) {
+                System.out.printf("Unable to follow video file %s : %s \n", mInputFileName, e);
+                return false;
+            }
+            mInputIO = ChannelIOContext.forReading(mFollowChannel, mOptions.getIOBufferSize());
+            mInputFmtCtx.pb(mInputIO.getIOContext());
+            mInputFmtCtx.flags(mInputFmtCtx.flags() | AVFMT_FLAG_CUSTOM_IO);
+        } else if (mOptions.isMappedInput()) {
+            // Demux straight from the mapped file, see MappedFileIOContext.
+            try {
+                mInputIO = MappedFileIOContext.open(Paths.get(mInputFileName),
+                        mOptions.getMapWindowSize(),
+                        mOptions.getIOBufferSize());
+            } catch (IOException e) {
+                System.out.printf("Unable to map video file %s : %s \n", mInputFileName, e);
+                return false;
+            }
+            mInputFmtCtx.pb(mInputIO.getIOContext());
+            mInputFmtCtx.flags(mInputFmtCtx.flags() | AVFMT_FLAG_CUSTOM_IO);
+        }
         int ret = avformat_open_input(mInputFmtCtx, mInputFileName, null, null);
+        long opened = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.OPEN, opened - start);
         if (ret < 0) {
             System.out.printf("Open video file %s failed \n", mInputFileName);
+            closeInput();
             return false;
         }
-        if (avformat_find_stream_info(mInputFmtCtx, (PointerPointer)null) < 0) {
+        ret = avformat_find_stream_info(mInputFmtCtx, (PointerPointer)null);
+        mMetrics.addStage(FileMetrics.Stage.PROBE, System.nanoTime() - opened);
+        if (ret < 0) {
+            closeInput();
+            return false;
+        }
+        return true;
+    }
+    /* closeInput :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Closes the input format context and its custom io context.
+     */
+    private void closeInput() {
+        if (mInputFmtCtx != null) {
+            // Also frees a context avformat_open_input did not open.
+            avformat_close_input(mInputFmtCtx);
+            NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+            mInputFmtCtx = null;
+        }
+        if (mInputIO != null) {
+            // Custom io is not freed by avformat_close_input.
+            mInputIO.close();
+            mInputIO = null;
+        }
+        if (mFollowChannel != null) {
+            try {
+                mFollowChannel.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close " + mInputFileName + " : " + e);
+            }
+            mFollowChannel = null;
+        }
+    }
+    /* probeInput :
+     * Input : Cached probe result of the file or null.
+     * Output : True when the input is opened and probed.
+     *
+     * Desc : Picks the cheapest probe which gives complete stream parameters.
+     * - Cached file : Short probe, just enough to create the streams.
+     *   The parameters are taken from the cache.
+     * - Known good encoder : Short probe. The result is trusted if every
+     *   stream has its parameters.
+     * - Otherwise : Probe with the configured limits.
+     * A short probe which does not pass falls back to the full probe.
+     * A channel input or a followed file can be read only once, so it is
+     * always fully probed.
+     */
+    private boolean probeInput(ProbeCache.Entry cached) {
+        mProbeMode = "full";
+        if (mInputChannel == null && !mOptions.isFollowInput() &&
+            (cached != null || mOptions.hasTrustedEncoders())) {
+            if (openInput(ConversionOptions.FAST_PROBE_SIZE,
+                          ConversionOptions.FAST_ANALYZE_DURATION)) {
+                if (cached != null && cached.apply(mInputFmtCtx)) {
+                    mProbeMode = "cache";
+                    return true;
+                }
+                if (cached == null && isTrustedEncoder() && hasCompleteParameters()) {
+                    mProbeMode = "fast";
+                    return true;
+                }
+                closeInput();
+            }
+        }
+        return openInput(mOptions.getProbeSize(), mOptions.getAnalyzeDuration());
+    }
+    /* isTrustedEncoder :
+     * Input : none.
+     * Output : True when the encoder tag of the input starts with one of
+     *          the trusted encoder names.
+     */
+    private boolean isTrustedEncoder() {
+        AVDictionaryEntry encoder = av_dict_get(mInputFmtCtx.metadata(), "encoder", null, 0);
+        if (encoder == null) {
+            return false;
+        }
+        String name = encoder.value().getString();
+        for (String trusted : mOptions.getTrustedEncoders()) {
+            if (name.startsWith(trusted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /* hasCompleteParameters :
+     * Input : none.
+     * Output : True when every audio and video stream has the parameters
+     *          the muxer needs.
+     */
+    private boolean hasCompleteParameters() {
+        if (mInputFmtCtx.nb_streams() == 0) {
             return false;
         }
-        av_dump_format(mInputFmtCtx, 1, mInputFileName, 0);
-        
+        for (int i = 0; i < mInputFmtCtx.nb_streams(); i++) {
+            AVCodecParameters params = mInputFmtCtx.streams(i).codecpar();
+            if (params.codec_type() == AVMEDIA_TYPE_VIDEO &&
+                (params.width() <= 0 || params.height() <= 0)) {
+                return false;
+            }
+            if (params.codec_type() == AVMEDIA_TYPE_AUDIO &&
+                (params.sample_rate() <= 0 || params.channels() <= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    /* outputFileName :
+     * Input : Input file, output directory and output format name.
+     * Output : Path of the output file.
+     */
+    static String outputFileName(String inputFileName, String outputDirectoryPath,
+                                 String outputFormatName) {
+        // Get the just the filename from input file name.
+        String file = Paths.get(inputFileName).getFileName().toString();
+        // Create full output file path based on output directory and
+        // replace the file extension of the file name found above by
+        // output format name. i.e mp4 in our case.
+        int extension = file.lastIndexOf('.');
+        String baseName = (extension > 0) ? file.substring(0, extension) : file;
+        return Paths.get(outputDirectoryPath, baseName + "." + outputFormatName).toString();
+    }
+    /* isSupportedCodec :
+     * Input : Parameters of an input stream.
+     * Output : True when the stream can be copied to mp4. Only mp3, aac
+     *          for audio and h264 for video are accepted. Streams other
+     *          than audio and video are always accepted.
+     */
+    static boolean isSupportedCodec(AVCodecParameters params) {
+        if (params.codec_type() == AVMEDIA_TYPE_AUDIO) {
+            return params.codec_id() == AV_CODEC_ID_AAC ||
+                   params.codec_id() == AV_CODEC_ID_MP3;
+        }
+        if (params.codec_type() == AVMEDIA_TYPE_VIDEO) {
+            return params.codec_id() == AV_CODEC_ID_H264;
+        }
+        return true;
+    }
+    /* hasCopyableStream :
+     * Input : none.
+     * Output : True when at least one audio or video stream of the input
+     *          can be copied, i.e. the file can take the hybrid path.
+     */
+    private boolean hasCopyableStream() {
+        for (int i = 0; i < mInputFmtCtx.nb_streams(); i++) {
+            AVCodecParameters params = mInputFmtCtx.streams(i).codecpar();
+            if ((params.codec_type() == AVMEDIA_TYPE_AUDIO ||
+                 params.codec_type() == AVMEDIA_TYPE_VIDEO) && isSupportedCodec(params)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /* findUnsupportedCodec :
+     * Input : none.
+     * Output : Why the input can not be converted, null if it can.
+     *
+     * Desc : Without transcoding, only mp3, aac for audio and h264 for
+     * video are accepted.
+     */
+    private String findUnsupportedCodec() {
         for (int i = 0; i < mInputFmtCtx.nb_streams(); i++) {
             AVStream inputStream = mInputFmtCtx.streams(i);
             // Skip anything other than audio and video
             if (inputStream.codecpar().codec_type() == AVMEDIA_TYPE_AUDIO &&
                 inputStream.codecpar().codec_id() != AV_CODEC_ID_AAC &&
                 inputStream.codecpar().codec_id() != AV_CODEC_ID_MP3) {
-                System.out.println("initInput() Unsupported Audio codecodec = " + 
-                                    inputStream.codecpar().codec_id() + 
-                                    " For file " + mInputFileName);
-                return false;
+                return "initInput() Unsupported Audio codecodec = " + 
+                       inputStream.codecpar().codec_id() + 
+                       " For file " + mInputFileName;
             }
             
             if (inputStream.codecpar().codec_type() == AVMEDIA_TYPE_VIDEO &&
                     inputStream.codecpar().codec_id() != AV_CODEC_ID_H264) {
-                    System.out.println("initInput() Unsupported Video codecodec = " + 
-                                        inputStream.codecpar().codec_id()  + 
-                                        " For file " + mInputFileName);
-                    return false;
+                    return "initInput() Unsupported Video codecodec = " + 
+                           inputStream.codecpar().codec_id()  + 
+                           " For file " + mInputFileName;
             }            
         }
+        return null;
+    }
+    /* initInput :
+     * Input : none.
+     * Output : True when Input mux is opened and initialised properly else false.
+     *               
+     * Desc : Initializes input format and reads the stream info. If the input 
+     * containes any of the codecs other than mp3, aac for audio and h264 for 
+     * video, it throws an error.
+     * With transcoding enabled, a file with at least one compatible audio
+     * or video stream is accepted for the hybrid path.
+     * The result of the probe is kept in the probe cache, if one is set.
+     * A file which the cache knows as unsupported is not opened at all,
+     * unless it may take the hybrid path.
+     */    
+    private boolean initInput() {
+        long probeStart = System.nanoTime();
+        // A followed file changes size and mtime until it is complete.
+        ProbeCache cache = (mInputChannel == null && !mOptions.isFollowInput()) ?
+                mOptions.getProbeCache() : null;
+        Path inputPath = null;
+        long inputSize = 0, inputModified = 0;
+        ProbeCache.Entry cached = null;
+        if (cache != null) {
+            inputPath = Paths.get(mInputFileName);
+            File inputFile = inputPath.toFile();
+            inputSize = inputFile.length();
+            inputModified = inputFile.lastModified();
+            cached = cache.get(inputPath, inputSize, inputModified);
+            if (cached != null && !cached.isSupported() && mOptions.isTranscoding()) {
+                // The cache does not know which streams are incompatible.
+                System.out.println(cached.getReason() + " (probe cache), probing streams");
+                cached = null;
+            } else if (cached != null && !cached.isSupported()) {
+                mProbeTimeNanos = System.nanoTime() - probeStart;
+                mUnsupportedReason = cached.getReason();
+                System.out.println(cached.getReason() + " (probe cache)");
+                return false;
+            }
+        }
+        if (!probeInput(cached)) {
+            return false;
+        }
+        mProbeTimeNanos = System.nanoTime() - probeStart;
+        System.out.printf("Probe time %.2f ms (%s) for file %s \n",
+                mProbeTimeNanos / 1e6, mProbeMode, mInputFileName);
+        av_dump_format(mInputFmtCtx, 1, mInputFileName, 0);
+
+        String unsupported = findUnsupportedCodec();
+        if (cache != null && cached == null) {
+            if (unsupported == null) {
+                cache.putSupported(inputPath, inputSize, inputModified, mInputFmtCtx);
+            } else {
+                cache.putUnsupported(inputPath, inputSize, inputModified, unsupported);
+            }
+        }
+        if (unsupported != null && mOptions.isTranscoding() && hasCopyableStream()) {
+            System.out.println(unsupported + ", transcoding only the incompatible streams");
+            unsupported = null;
+        }
+        if (unsupported != null) {
+            mUnsupportedReason = unsupported;
+            System.out.println(unsupported);
+            closeInput();
+            return false;
+        }
         return true;
     }
     /* initOutput :
@@ -269,34 +1013,53 @@ public class FormatConverter {
      *        directory and input file.
      */    
     private boolean initOutput() {
-        mOutputFmtCtx = new AVFormatContext();
-        // Allocate and set the IO context for the output context.
-        AVIOContext ioContext = new AVIOContext();
-        mOutputFmtCtx.pb(ioContext);
-        // Get the just the filename from input file name.
-        String file = Paths.get(mInputFileName).getFileName().toString();
-        // Create full output file path based on output directory and
-        // replace the file extension of the file name found above by
-        // output format name. i.e mp4 in our case.
-        mOutputFileName = mOutputDirectoryPath + "\\" +
-        file.substring(0, file.lastIndexOf('.')) + "." + mOutputFormatName;
+        // Filled in by avformat_alloc_output_context2. The io context is
+        // opened later, in openOutput.
+        mOutputFmtCtx = new AVFormatContext(null);
+        int ret;
+        if (mOutputChannel != null) {
+            // No file name to guess the format from. Use the format name.
+            ret = avformat_alloc_output_context2(mOutputFmtCtx,
+                                                 null,
+                                                 mOutputFormatName,
+                                                 null);
+        } else if (isHlsOutput()) {
+            // Written through HlsOutput, see openOutput.
+            mOutputFileName = HlsOutput.playlistFileName(mInputFileName,
+                    mOutputDirectoryPath);
+            ret = avformat_alloc_output_context2(mOutputFmtCtx,
+                                                 null,
+                                                 mOutputFormatName,
+                                                 null);
+        } else {
+            mOutputFileName = outputFileName(mInputFileName, mOutputDirectoryPath,
+                    mOutputFormatName);
+            mPartFileName = mOutputFileName + PART_FILE_SUFFIX;
 
-        // Create the output context for the output format.
-        int ret = avformat_alloc_output_context2(mOutputFmtCtx,
-                                             null,
-                                             null,
-                                             mOutputFileName);
+            // Create the output context for the output format.
+            // The format can not be guessed from the .part name, so it
+            // is given by name.
+            ret = avformat_alloc_output_context2(mOutputFmtCtx,
+                                                 null,
+                                                 mOutputFormatName,
+                                                 mPartFileName);
+        }
         if (ret < 0) {
             System.out.printf("initOutput()::Unable to open output format");
+            mOutputFmtCtx = null;
             return false;
         }
+        NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
         // As we are doing just conversion without transcoding,
         // Almost all the inpput paramters will remain the same.
         mOutputFormat = mOutputFmtCtx.oformat();
         mOutputFmtCtx.duration(mInputFmtCtx.duration());
         mOutputFmtCtx.bit_rate(mInputFmtCtx.bit_rate());
         mOutputFmtCtx.start_time(mInputFmtCtx.start_time());
-        mOutputFmtCtx.metadata(mInputFmtCtx.metadata());
+        // A copy, as both contexts free their own metadata.
+        AVDictionary metadata = new AVDictionary(null);
+        av_dict_copy(metadata, mInputFmtCtx.metadata(), 0);
+        mOutputFmtCtx.metadata(metadata);
         return initStreamsAndCodecs();
     }
     /* init :
@@ -308,11 +1071,37 @@ public class FormatConverter {
      * for copying the data.
      */    
     public boolean init() {
-        if (initInput() && initOutput()) {
-           return true;
+        mMetrics = new FileMetrics(mInputFileName);
+        if (initInput()) {
+            if (initOutput()) {
+                mPacket = av_packet_alloc();
+                NativeTracker.allocated(NativeTracker.PACKET);
+                return true;
+            }
+        }
+        close();
+        // Rejected files are counted too, their probe time is real.
+        // A file which goes on to be transcoded is counted there.
+        if (mUnsupportedReason == null || !mOptions.isTranscoding()) {
+            recordMetrics(false);
         }
         return false;
     }
+    /* closeTranscoders :
+     * Input : none.
+     * Output : none.
+     */
+    private void closeTranscoders() {
+        if (mTranscoders == null) {
+            return;
+        }
+        for (StreamTranscoder transcoder : mTranscoders) {
+            if (transcoder != null) {
+                transcoder.close();
+            }
+        }
+        mTranscoders = null;
+    }
 
     /* convert :
      * Input : none.
@@ -321,6 +1110,143 @@ public class FormatConverter {
      * Desc : This function calls copy frames to copy the data.
      */    
     public boolean convert() {
-        return copyFrames();
+        if (copyFrames()) {
+            return true;
+        }
+        if (!mTwoPassFaststart) {
+            return false;
+        }
+        // copyFrames() freed everything, open the file again.
+        System.out.println("Converting " + mInputFileName + " again with two pass faststart");
+        mTranscodedStreams = 0;
+        return init() && copyFrames();
+    }
+    /* canConvertAgain :
+     * Input : none.
+     * Output : True when the file can be converted a second time, i.e.
+     *          the input is a complete file, the output a part file, and
+     *          this is the first conversion.
+     */
+    private boolean canConvertAgain() {
+        return mInputChannel == null && mOutputChannel == null &&
+               !mOptions.isFollowInput() && !mTwoPassFaststart;
+    }
+
+    /* startHlsSegment :
+     * Input : Index of the input stream and the packet about to be
+     *         written, with output timestamps.
+     * Output : False when a new segment was due and could not be started.
+     *
+     * Desc : At a segment start the packets queued for interleaving and
+     * the fragment in the muxer are written out first, so the segment
+     * before ends with a complete fragment.
+     */
+    private boolean startHlsSegment(int inputIndex, AVPacket p) {
+        AVRational timeBase = mOutputFmtCtx.streams(p.stream_index()).time_base();
+        long startUs = av_rescale_q(p.pts(), timeBase, MICROSECONDS);
+        long endUs = av_rescale_q(p.pts() + p.duration(), timeBase, MICROSECONDS);
+        boolean video = mInputFmtCtx.streams(inputIndex).codecpar().codec_type()
+                == AVMEDIA_TYPE_VIDEO;
+        boolean key = (p.flags() & AV_PKT_FLAG_KEY) != 0;
+        if (!mHls.onPacket(video, key, startUs, endUs)) {
+            return true;
+        }
+        av_interleaved_write_frame(mOutputFmtCtx, null);
+        av_write_frame(mOutputFmtCtx, null);
+        avio_flush(mOutputFmtCtx.pb());
+        return mHls.startSegment(startUs);
+    }
+    /* hasCopiedVideo :
+     * Input : none.
+     * Output : True when a video stream is copied, HLS segments then
+     *          start at its key frames.
+     */
+    private boolean hasCopiedVideo() {
+        for (int i = 0; i < mInputFmtCtx.nb_streams(); i++) {
+            if (mRoutes.getOutputIndex(i) != StreamRoutingTable.UNMAPPED &&
+                mInputFmtCtx.streams(i).codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /* isHlsOutput :
+     * Input : none.
+     * Output : True when a playlist and segments are written instead of
+     *          one file.
+     */
+    /* scanKeyframes :
+     * Input : none.
+     * Output : Key frames of the input for the HLS target duration. null
+     *          when the input is followed, not flv or not readable.
+     */
+    private FlvKeyframeIndex scanKeyframes() {
+        if (mFollowChannel != null || !hasCopiedVideo()) {
+            // A recording still written has no last key frame yet.
+            return null;
+        }
+        try {
+            return FlvKeyframeIndex.scan(Paths.get(mInputFileName));
+        } catch (IOException e) {
+            System.out.println("Unable to index key frames of " + mInputFileName + " : " + e);
+            return null;
+        }
+    }
+    private boolean isHlsOutput() {
+        return mOutputChannel == null &&
+               mOptions.getOutputMode() == ConversionOptions.OutputMode.HLS;
+    }
+    /* getOutputFileName :
+     * Input : none.
+     * Output : Full path of the output file, the playlist in HLS mode.
+     *          Valid after init().
+     */
+    public String getOutputFileName() {
+        return mOutputFileName;
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees the transcoders, the input, the output io and format
+     * context and the packet, whatever of them is still there. Needed
+     * for a converter which is initialised but not converted, e.g. when
+     * only the probe is needed. convert() and a failed init() call it
+     * by themselves.
+     */
+    @Override
+    public void close() {
+        closeTranscoders();
+        closeInput();
+        closeOutput();
+        if (mPacket != null) {
+            av_packet_free(mPacket);
+            NativeTracker.freed(NativeTracker.PACKET);
+            mPacket = null;
+        }
+    }
+    /* isHybrid :
+     * Input : none.
+     * Output : True when some streams of the file are transcoded and the
+     *          others copied. Valid after init().
+     */
+    public boolean isHybrid() {
+        return mTranscodedStreams > 0;
+    }
+    /* getUnsupportedReason :
+     * Input : none.
+     * Output : Why init() failed when the input has a codec mp4 can not
+     *          store without transcoding. null when init() succeeded or
+     *          failed for another reason.
+     */
+    public String getUnsupportedReason() {
+        return mUnsupportedReason;
+    }
+    /* getProbeTimeNanos :
+     * Input : none.
+     * Output : Time spent opening and probing the input in init().
+     */
+    public long getProbeTimeNanos() {
+        return mProbeTimeNanos;
     }
 }
@@ -1,55 +1,85 @@
 package MediaOperations;
-import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_FLAG_GLOBAL_HEADER;
-import static org.bytedeco.ffmpeg.global.avcodec.av_init_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
 import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
-import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_copy;
-import static org.bytedeco.ffmpeg.global.avformat.AVFMT_GLOBALHEADER;
 import static org.bytedeco.ffmpeg.global.avformat.AVFMT_NOFILE;
 import static org.bytedeco.ffmpeg.global.avformat.av_dump_format;
-import static org.bytedeco.ffmpeg.global.avformat.av_interleaved_write_frame;
 import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
 import static org.bytedeco.ffmpeg.global.avformat.av_write_trailer;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_output_context2;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
-import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
 import static org.bytedeco.ffmpeg.global.avformat.avformat_write_header;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
 import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
 import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
-import static org.bytedeco.ffmpeg.global.avutil.AV_ROUND_NEAR_INF;
-import static org.bytedeco.ffmpeg.global.avutil.AV_ROUND_PASS_MINMAX;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_copy;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_free;
 import static org.bytedeco.ffmpeg.global.avutil.av_rescale_q;
-import static org.bytedeco.ffmpeg.global.avutil.av_rescale_q_rnd;
 
-import java.io.IOException;
+import java.io.File;
 import java.nio.file.Paths;
 
 import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.avformat.AVFormatContext;
-import org.bytedeco.ffmpeg.avformat.AVIOContext;
-import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
 import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
 import org.bytedeco.javacpp.PointerPointer;
 
+import FileUtils.InterruptCallback;
 import FileUtils.MediaFileUtils;
-import codec.PacketDecoder;
-@SuppressWarnings("unused")
+import FileUtils.NativeTracker;
+import codec.AudioTranscoder;
+import codec.StreamTranscoder;
+import codec.VideoTranscoder;
+
+/* This class converts a media file of any codec ffmpeg can decode to
+ * mp4 with H.264 video and AAC audio.
+ *
+ * FormatConverter only copies packets, so a file with e.g. VP6 or
+ * Sorenson (FLV1) video, or Nellymoser or Speex audio, can not be
+ * written to mp4 by it. Here the first video and the first audio stream
+ * are decoded and encoded again with a StreamTranscoder each. Other
+ * streams are dropped.
+ *
+ * Threading : The decoder and the encoder of every stream use the
+ * threads of the EncoderSettings, frame and slice threading, so one
+ * file keeps all the cores busy. With many files in a batch, fewer
+ * codec threads per file give the same throughput with less overhead.
+ *
+ * The output is written to a .part file and renamed when complete,
+ * like FormatConverter does. At the end the encode rate is printed.
+ * Native objects are freed the same way as in FormatConverter, by
+ * convert(), by a failed init() or by close().
+ */
 //http://bytedeco.org/javacpp-presets/ffmpeg/apidocs/
-// https://stackoverflow.com/questions/48788630/how-can-i-copy-file-frame-by-frame-to-get-exactly-the-same-file-ffmpeg
-public class FormatConverterWithTranscoding {
+public class FormatConverterWithTranscoding implements AutoCloseable {
     String mInputFileName = null;
     String mOutputFileName = null;
+    String mPartFileName = null;
     String mOutputDirectoryPath = null;
     String mOutputFormatName = null;
     AVFormatContext mInputFmtCtx =  null;
     AVFormatContext mOutputFmtCtx =  null;
-    AVOutputFormat mOutputFormat = null;
 
-    AVStream mAudioStream = null;
-    AVStream mVideoStream = null;
-    PacketDecoder mPacketDecoder = null;
-    int mStreamMapping[] = {0,0};
+    // Transcoder of every input stream, null for dropped streams.
+    StreamTranscoder mTranscoders[] = null;
+    VideoTranscoder mVideoTranscoder = null;
+    AudioTranscoder mAudioTranscoder = null;
+    ConversionOptions mOptions = new ConversionOptions();
+    double mEncodeFps = 0;
+    FileMetrics mMetrics = null;
+
+    /* constuctor :
+     * Input :
+     *  Input file to be converted.
+     *  Directory path where the output will be written.
+     *  Output Mux. (Currently only mp4 is supported)
+     */
     public FormatConverterWithTranscoding(String inputFile,
                            String outputDirectoryPath,
                            String outputFormat) {
@@ -57,127 +87,217 @@ public class FormatConverterWithTranscoding {
         mOutputDirectoryPath = outputDirectoryPath;
         mOutputFormatName = outputFormat;
     }
-    private boolean copyFrames() {
-        // Check if file exists. If not, create one
-        if ((mOutputFmtCtx.oformat().flags() & AVFMT_NOFILE)  == 0) {
-            if (!MediaFileUtils.openMediaFile(mOutputFmtCtx,
-                    mOutputFileName)) {
-                System.out.println("Unable to open output file");
-                return false;
-            }
-            int ret = avformat_write_header(mOutputFmtCtx, (PointerPointer)null);
-            if (ret < 0) {
-                System.out.println("Error in writing header");
-                return false;
-            }
+    /* setOptions :
+     * Input : Options of the conversion. Has to be set before init().
+     * Output : none.
+     */
+    public void setOptions(ConversionOptions options) {
+        mOptions = options;
+    }
+    /* transcodeFrames :
+     * Input : none.
+     * Output : True when every stream is transcoded and the output is
+     *          at its final name.
+     *
+     * Desc : Reads every packet, shifts its timestamps so the output
+     * starts at 0, and hands it to the transcoder of its stream. At the
+     * end the transcoders are flushed and the trailer is written.
+     */
+    private boolean transcodeFrames() {
+        long headerStart = System.nanoTime();
+        if (!openOutput()) {
+            close();
+            FormatConverter.discardPartFile(mPartFileName);
+            recordMetrics(false);
+            return false;
         }
-        boolean firstPacket = true;
-        long pts = 0, dts = 0;
-        while(true) {
-            AVPacket p = new AVPacket();
-            av_init_packet(p);
+        long start = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.HEADER, start - headerStart);
+        AVPacket p = av_packet_alloc();
+        NativeTracker.allocated(NativeTracker.PACKET);
+        // Offset of every stream, taken from the first packet of the file.
+        long offsets[] = null;
+        boolean ok = true;
+        while (ok) {
             int ret = av_read_frame(mInputFmtCtx, p);
             if (ret < 0) {
-                System.out.println("Failure in reading frame");
+                // Same as FormatConverter.copyFrames, only the end of the
+                // file ends the transcode cleanly.
+                if (ret != AVERROR_EOF) {
+                    System.out.println("Failure in reading frame of " + mInputFileName
+                            + " : " + ret);
+                    ok = false;
+                }
                 break;
             }
-            /* This had to be done, it was observed that
-             * the start time was becoming non-zero.
-             * in all the examples of avformat, it is seen that
-             * there is no special need for handling the pts and dts
-             * for the first packet and adust them later.
-             * But according to
-             * https://stackoverflow.com/questions/59059320/the-start-timestamp-is-non-zero-when-remuxing-using-libavformat,
-             * the start time was seen non-zero. It also spoilt the seek
-             * To avoid this, added the handling for pts and dts.
-             */
-            if (firstPacket) {
-                firstPacket = false;
-                pts = p.pts();
-                dts = p.dts();
+            int streamId = p.stream_index();
+            StreamTranscoder transcoder = (streamId < mTranscoders.length) ?
+                    mTranscoders[streamId] : null;
+            if (transcoder == null) {
+                av_packet_unref(p);
+                continue;
             }
-            int currentStreamId = p.stream_index();
-            mInputFmtCtx.streams(currentStreamId);
-            AVStream  mCurrentOutputStream = null;
-            if (mInputFmtCtx.streams(currentStreamId).
-                    codecpar().codec_type() == AVMEDIA_TYPE_AUDIO) {
-                mCurrentOutputStream = mAudioStream;
-            } else if (mInputFmtCtx.streams(p.stream_index()).
-                    codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
-                mCurrentOutputStream = mVideoStream;
-                try {
-                    mPacketDecoder.decodeAndDumpPacket(p);
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+            if (offsets == null) {
+                offsets = startOffsets(p);
             }
-            p.stream_index(currentStreamId);
-            System.out.println("Before = " + p.pts());
-            p.pts( av_rescale_q_rnd(p.pts() - pts,
-                                       mInputFmtCtx.streams(currentStreamId).time_base(),
-                                       mCurrentOutputStream.time_base(),
-                                       AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX));
-            System.out.println("After = " + p.pts());
-            p.dts(av_rescale_q_rnd(p.dts() - dts,
-                                    mInputFmtCtx.streams(currentStreamId).time_base(),
-                                    mCurrentOutputStream.time_base(),
-                                    AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX));
-            p.duration(av_rescale_q(p.duration(),
-                       mInputFmtCtx.streams(currentStreamId).time_base(),
-                       mCurrentOutputStream.time_base()));
-            p.pos(-1);
-
-            ret = av_interleaved_write_frame(mOutputFmtCtx, p);
+            if (p.pts() != AV_NOPTS_VALUE) {
+                p.pts(p.pts() - offsets[streamId]);
+            }
+            if (p.dts() != AV_NOPTS_VALUE) {
+                p.dts(p.dts() - offsets[streamId]);
+            }
+            mMetrics.addPacket(streamId, p.size());
+            ok = transcoder.transcode(p);
             av_packet_unref(p);
         }
-        av_write_trailer(mOutputFmtCtx);
-        avformat_close_input(mInputFmtCtx);
-
-        MediaFileUtils.closeMediaFile(mOutputFmtCtx.pb());
+        if (Thread.currentThread().isInterrupted()) {
+            // Cancelled, e.g. by the timeout of BatchConverter.
+            System.out.println("Transcode of " + mInputFileName + " cancelled");
+            ok = false;
+        }
+        av_packet_free(p);
+        NativeTracker.freed(NativeTracker.PACKET);
+        for (StreamTranscoder transcoder : mTranscoders) {
+            if (ok && transcoder != null) {
+                ok = transcoder.flush();
+            }
+        }
+        long trailerStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.PACKET_LOOP, trailerStart - start);
+        int ret = av_write_trailer(mOutputFmtCtx);
+        long closeStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.TRAILER, closeStart - trailerStart);
+        report((closeStart - start) / 1e9);
+        close();
+        boolean committed = false;
+        if (!ok || ret < 0) {
+            System.out.println("Failed to transcode file " + mInputFileName);
+            FormatConverter.discardPartFile(mPartFileName);
+        } else {
+            committed = FormatConverter.commitPartFile(mPartFileName, mOutputFileName);
+        }
+        mMetrics.addStage(FileMetrics.Stage.CLOSE, System.nanoTime() - closeStart);
+        recordMetrics(committed);
+        return committed;
+    }
+    /* recordMetrics :
+     * Input : True when the output was written.
+     * Output : none.
+     */
+    private void recordMetrics(boolean succeeded) {
+        long bytesOut = succeeded ? new File(mOutputFileName).length() : 0;
+        mMetrics.setResult(succeeded, succeeded ? mOutputFileName : null,
+                new File(mInputFileName).length(), bytesOut);
+        ConversionMetrics.getInstance().record(mMetrics);
+    }
+    /* startOffsets :
+     * Input : First packet of the file.
+     * Output : Start offset of every stream in its own time base.
+     *
+     * Desc : Same as the first packet handling of FormatConverter, the
+     * output starts at 0. One offset in time is used for all the
+     * streams, so their relative timing and lip sync stay unchanged.
+     */
+    private long[] startOffsets(AVPacket first) {
+        long offsets[] = new long[mTranscoders.length];
+        long time = (first.dts() != AV_NOPTS_VALUE) ? first.dts() : first.pts();
+        if (time == AV_NOPTS_VALUE) {
+            return offsets;
+        }
+        AVStream firstStream = mInputFmtCtx.streams(first.stream_index());
+        for (int i = 0; i < offsets.length; i++) {
+            if (mTranscoders[i] != null) {
+                offsets[i] = av_rescale_q(time, firstStream.time_base(),
+                                          mInputFmtCtx.streams(i).time_base());
+            }
+        }
+        return offsets;
+    }
+    /* report :
+     * Input : Wall time of the transcode in seconds.
+     * Output : none.
+     */
+    private void report(double seconds) {
+        long videoFrames = (mVideoTranscoder == null) ? 0 : mVideoTranscoder.getFrameCount();
+        long audioFrames = (mAudioTranscoder == null) ? 0 : mAudioTranscoder.getFrameCount();
+        mEncodeFps = (seconds > 0) ? videoFrames / seconds : 0;
+        System.out.printf("Transcoded %s : %d video frames, %d audio frames in %.2f s,"
+                + " %.1f fps (%s, %s)%n",
+                mInputFileName, videoFrames, audioFrames, seconds, mEncodeFps,
+                (mVideoTranscoder == null) ? "no video" : mVideoTranscoder.getEncoderName(),
+                mOptions.getEncoderSettings());
+    }
+    private boolean openOutput() {
+        if ((mOutputFmtCtx.oformat().flags() & AVFMT_NOFILE) == 0) {
+            if (!MediaFileUtils.openMediaFile(mOutputFmtCtx, mPartFileName)) {
+                System.out.println("Unable to open output file");
+                return false;
+            }
+        }
+        AVDictionary options = new AVDictionary(null);
+        // The sample counts of the encoded streams are not known up
+        // front, faststart moves the moov in a second pass.
+        FormatConverter.applyMuxerOptions(options, mOptions, true, 0);
+        int ret = avformat_write_header(mOutputFmtCtx, options);
+        av_dict_free(options);
+        if (ret < 0) {
+            System.out.println("Error in writing header");
+            return false;
+        }
         return true;
     }
+    /* initStreamsAndCodecs :
+     * Input : none.
+     * Output : True when at least one stream is set up for transcoding.
+     */
     private boolean initStreamsAndCodecs() {
-        // Copy audio video codec parameters from input stream
-
+        mTranscoders = new StreamTranscoder[mInputFmtCtx.nb_streams()];
+        int codecTypes[] = new int[mInputFmtCtx.nb_streams()];
+        mMetrics.setStreams(codecTypes);
         for (int i = 0; i < mInputFmtCtx.nb_streams(); i++) {
             AVStream inputStream = mInputFmtCtx.streams(i);
-            AVStream outputStream = null;
-            // Skip anything other than audio and video
-            if (inputStream.codecpar().codec_type() == AVMEDIA_TYPE_AUDIO) {
-                mAudioStream = avformat_new_stream(mOutputFmtCtx,
-                        mInputFmtCtx.audio_codec());
-
-                avcodec_parameters_copy(mAudioStream.codecpar(),
-                                        inputStream.codecpar());
-                outputStream = mAudioStream;
-                mAudioStream.codecpar().codec_tag(0);
-            } else if (inputStream.codecpar().codec_type() == AVMEDIA_TYPE_VIDEO) {
-                mVideoStream = avformat_new_stream(mOutputFmtCtx,
-                        mInputFmtCtx.video_codec());
-                avcodec_parameters_copy(mVideoStream.codecpar(),
-                                        inputStream.codecpar());
-                outputStream = mVideoStream;
-                mVideoStream.codecpar().codec_tag(0);
+            int codecType = inputStream.codecpar().codec_type();
+            codecTypes[i] = codecType;
+            StreamTranscoder transcoder = null;
+            if (codecType == AVMEDIA_TYPE_VIDEO && mVideoTranscoder == null) {
+                mVideoTranscoder = new VideoTranscoder(mOptions.getEncoderSettings());
+                transcoder = mVideoTranscoder;
+            } else if (codecType == AVMEDIA_TYPE_AUDIO && mAudioTranscoder == null) {
+                mAudioTranscoder = new AudioTranscoder(mOptions.getEncoderSettings());
+                transcoder = mAudioTranscoder;
+            } else {
+                continue;
             }
-            if ((mOutputFmtCtx.oformat().flags() & AVFMT_GLOBALHEADER) == 1) {
-                outputStream.codec().flags(outputStream.codec().flags ()|
-                        AV_CODEC_FLAG_GLOBAL_HEADER);
+            mTranscoders[i] = transcoder;
+            if (!transcoder.open(mInputFmtCtx, inputStream, mOutputFmtCtx)) {
+                System.out.println("Unable to transcode stream " + i + " of file " + mInputFileName);
+                return false;
             }
         }
-        mPacketDecoder = new PacketDecoder(mAudioStream.codecpar(), mVideoStream.codecpar());
-        mPacketDecoder.initDecoders();
+        if (mVideoTranscoder == null && mAudioTranscoder == null) {
+            System.out.println("No audio or video stream in file " + mInputFileName);
+            return false;
+        }
         av_dump_format(mOutputFmtCtx, 0, mOutputFileName, 1);
         return true;
     }
     private boolean initInput() {
-        mInputFmtCtx = new AVFormatContext(null);
+        long start = System.nanoTime();
+        mInputFmtCtx = avformat_alloc_context();
+        InterruptCallback.install(mInputFmtCtx);
+        // Freed by avformat_open_input when it fails.
         int ret = avformat_open_input(mInputFmtCtx, mInputFileName, null, null);
+        long opened = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.OPEN, opened - start);
         if (ret < 0) {
             System.out.printf("Open video file %s failed \n", mInputFileName);
+            mInputFmtCtx = null;
             return false;
         }
-        if (avformat_find_stream_info(mInputFmtCtx, (PointerPointer)null) < 0) {
+        NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+        ret = avformat_find_stream_info(mInputFmtCtx, (PointerPointer)null);
+        mMetrics.addStage(FileMetrics.Stage.PROBE, System.nanoTime() - opened);
+        if (ret < 0) {
             return false;
         }
         av_dump_format(mInputFmtCtx, 1, mInputFileName, 0);
@@ -185,37 +305,90 @@ public class FormatConverterWithTranscoding {
     }
 
     private boolean initOutput() {
-        mOutputFmtCtx = new AVFormatContext();
-        AVIOContext ioContext = new AVIOContext(10 *1024 * 1024);
-        mOutputFmtCtx.pb(ioContext);
+        mOutputFmtCtx = new AVFormatContext(null);
         String file = Paths.get(mInputFileName).getFileName().toString();
-        mOutputFileName = mOutputDirectoryPath + "\\" +
-        file.substring(0, file.lastIndexOf('.')) + "." + mOutputFormatName;
-
+        int extension = file.lastIndexOf('.');
+        String baseName = (extension > 0) ? file.substring(0, extension) : file;
+        mOutputFileName = Paths.get(mOutputDirectoryPath,
+                baseName + "." + mOutputFormatName).toString();
+        mPartFileName = mOutputFileName + FormatConverter.PART_FILE_SUFFIX;
 
         int ret = avformat_alloc_output_context2(mOutputFmtCtx,
                                              null,
-                                             null,
-                                             mOutputFileName);
+                                             mOutputFormatName,
+                                             mPartFileName);
         if (ret < 0) {
             System.out.printf("initOutput()::Unable to open output format");
+            mOutputFmtCtx = null;
             return false;
         }
-        mOutputFormat = mOutputFmtCtx.oformat();
-        mOutputFmtCtx.duration(mInputFmtCtx.duration());
-        mOutputFmtCtx.bit_rate(mInputFmtCtx.bit_rate());
-        mOutputFmtCtx.start_time(mInputFmtCtx.start_time());
-        mOutputFmtCtx.metadata(mInputFmtCtx.metadata());
+        NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+        AVDictionary metadata = new AVDictionary(null);
+        av_dict_copy(metadata, mInputFmtCtx.metadata(), 0);
+        mOutputFmtCtx.metadata(metadata);
         return initStreamsAndCodecs();
     }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees the transcoders, closes the input and the output io
+     * and frees the output format context. Can be called more than once.
+     */
+    @Override
+    public void close() {
+        if (mTranscoders != null) {
+            for (StreamTranscoder transcoder : mTranscoders) {
+                if (transcoder != null) {
+                    transcoder.close();
+                }
+            }
+            mTranscoders = null;
+        }
+        if (mInputFmtCtx != null) {
+            avformat_close_input(mInputFmtCtx);
+            NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+            mInputFmtCtx = null;
+        }
+        if (mOutputFmtCtx != null) {
+            MediaFileUtils.closeMediaFile(mOutputFmtCtx.pb());
+            mOutputFmtCtx.pb(null);
+            avformat_free_context(mOutputFmtCtx);
+            NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+            mOutputFmtCtx = null;
+        }
+    }
+    /* init :
+     * Input : none.
+     * Output : True when the input is opened and a transcoder is ready
+     *          for every stream which is kept.
+     */
     public boolean init() {
+        mMetrics = new FileMetrics(mInputFileName);
         if (initInput() && initOutput()) {
            return true;
         }
+        close();
+        recordMetrics(false);
         return false;
     }
 
     public boolean convert() {
-        return copyFrames();
+        return transcodeFrames();
+    }
+    /* getOutputFileName :
+     * Input : none.
+     * Output : Full path of the output file. Valid after init().
+     */
+    public String getOutputFileName() {
+        return mOutputFileName;
+    }
+    /* getEncodeFps :
+     * Input : none.
+     * Output : Video frames encoded per second of wall time. Valid after
+     *          convert().
+     */
+    public double getEncodeFps() {
+        return mEncodeFps;
     }
 }
@@ -0,0 +1,375 @@
+package MediaOperations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import FileUtils.FlvKeyframeIndex;
+
+/* This class writes the HLS output of one file : an init segment, media
+ * segments and the media playlist, in the pass which remuxes the file.
+ *
+ *  <output directory>/<name>/<name>.m3u8       media playlist
+ *  <output directory>/<name>/<name>_init.mp4   init segment, ftyp and moov
+ *  <output directory>/<name>/<name>_00000.m4s  media segments, moof and mdat
+ *
+ * The converter keeps its mp4 muxer, in fragmented mode with an empty
+ * moov, and writes it to getChannel(). Everything up to the first packet
+ * goes to the init segment. When onPacket() says a segment starts, the
+ * converter flushes the muxer so the fragment is complete, and calls
+ * startSegment(), which closes the current file and continues in the
+ * next one. So every segment is one or more whole fragments and starts
+ * at a video key frame, or, without video, at the first packet after
+ * the target duration. The segments are CMAF fragments of the same
+ * init segment and the playlist is an EVENT playlist of version 7.
+ *
+ * Target duration : #EXT-X-TARGETDURATION is written once and never
+ * changed, as RFC 8216 asks of a playlist which is only appended to. No
+ * segment may be longer, but a segment only ends at a key frame, so with
+ * a long GOP it is longer than the target. setKeyframeIndex() runs the
+ * cuts below on the key frames of the flv index before the first
+ * segment, and the value is the longest segment they give, rounded up to
+ * whole seconds, or the rounded up target when that is longer. Without
+ * an index, e.g. for a recording still written, it is the rounded up
+ * target only.
+ *
+ * The hls muxer of libavformat 4.4 is not used. In fmp4 mode it writes
+ * the media of the first segment into the init segment.
+ *
+ * Every file is written under a .tmp name and renamed when complete.
+ * The playlist is written again, and renamed, after every segment, so a
+ * player can start while the file is still converted. It gets
+ * #EXT-X-ENDLIST from finish() only. A playlist without it is what a
+ * failed or killed conversion leaves, like the .part file of mp4.
+ */
+public class HlsOutput implements AutoCloseable {
+    public static final String PLAYLIST_EXTENSION = ".m3u8";
+    public static final int DEFAULT_SEGMENT_DURATION_MS = 6000;
+    static final String TEMP_SUFFIX = ".tmp";
+
+    String mPlaylistFileName;
+    Path mDirectory;
+    String mBaseName;
+    long mTargetDurationUs;
+    // Whole seconds of #EXT-X-TARGETDURATION, see setKeyframeIndex().
+    long mTargetSeconds;
+    boolean mHasVideo;
+    // File written now, the init segment before the first packet.
+    FileChannel mFile = null;
+    Path mFilePath = null;
+    int mSegmentCount = 0;
+    long mSegmentStartUs = -1;
+    long mEndUs = 0;
+    List<String> mSegmentNames = new ArrayList<String>();
+    List<Long> mSegmentDurationsUs = new ArrayList<Long>();
+    WritableByteChannel mChannel = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (mFile == null) {
+                throw new ClosedChannelException();
+            }
+            int written = 0;
+            while (src.hasRemaining()) {
+                written += mFile.write(src);
+            }
+            return written;
+        }
+        @Override
+        public boolean isOpen() {
+            return mFile != null;
+        }
+        @Override
+        public void close() {
+            // The files are closed by HlsOutput.
+        }
+    };
+
+    /* constuctor :
+     * Input :
+     *  Playlist file, see playlistFileName().
+     *  Target duration of a segment in ms.
+     *  True when the output has a video stream to cut at.
+     */
+    public HlsOutput(String playlistFileName, int targetDurationMs, boolean hasVideo) {
+        mPlaylistFileName = playlistFileName;
+        Path playlist = Paths.get(playlistFileName);
+        mDirectory = playlist.getParent();
+        mBaseName = baseName(playlist.getFileName().toString());
+        mTargetDurationUs = targetDurationMs * 1000L;
+        mTargetSeconds = Math.max((mTargetDurationUs + 999999) / 1000000, 1);
+        mHasVideo = hasVideo;
+    }
+    /* playlistFileName :
+     * Input : Input file and output directory.
+     * Output : Path of the media playlist of the input.
+     */
+    static String playlistFileName(String inputFileName, String outputDirectoryPath) {
+        String baseName = baseName(Paths.get(inputFileName).getFileName().toString());
+        return Paths.get(outputDirectoryPath, baseName, baseName + PLAYLIST_EXTENSION).toString();
+    }
+    private static String baseName(String file) {
+        int extension = file.lastIndexOf('.');
+        return (extension > 0) ? file.substring(0, extension) : file;
+    }
+    /* open :
+     * Input : none.
+     * Output : True when the directory is ready and the init segment is
+     *          open for the muxer header.
+     *
+     * Desc : Files left by an earlier attempt are deleted, a shorter run
+     * would otherwise leave segments the playlist does not list. Other
+     * files in the directory are kept, see isOutputFile().
+     */
+    public boolean open() {
+        try {
+            Files.createDirectories(mDirectory);
+            deleteFiles(mDirectory, mBaseName);
+            openFile(mBaseName + "_init.mp4");
+        } catch (IOException e) {
+            System.out.println("Unable to open HLS output " + mDirectory + " : " + e);
+            return false;
+        }
+        return true;
+    }
+    /* setKeyframeIndex :
+     * Input : Key frames of the input, null when not known.
+     * Output : none.
+     *
+     * Desc : Has to be called before open(). The key frames are cut as
+     * onPacket() cuts them, so the longest segment is known before the
+     * playlist is first written.
+     */
+    public void setKeyframeIndex(FlvKeyframeIndex index) {
+        if (index == null || !mHasVideo || index.getKeyframeCount() == 0) {
+            return;
+        }
+        long targetMs = mTargetDurationUs / 1000;
+        long startMs = index.getFirstTimestamp();
+        long longestMs = 0;
+        for (int i = 0; i < index.getKeyframeCount(); i++) {
+            long keyframeMs = index.getTimestamp(i);
+            if (keyframeMs - startMs >= targetMs) {
+                longestMs = Math.max(longestMs, keyframeMs - startMs);
+                startMs = keyframeMs;
+            }
+        }
+        longestMs = Math.max(longestMs, index.getLastTimestamp() - startMs);
+        mTargetSeconds = Math.max(mTargetSeconds, (longestMs + 999) / 1000);
+    }
+    public WritableByteChannel getChannel() {
+        return mChannel;
+    }
+    /* onPacket :
+     * Input :
+     *  True for a packet of the video stream, and true when it is a key frame.
+     *  Start and end time of the packet in microseconds.
+     * Output : True when a new segment has to start with this packet.
+     *          The converter then flushes the muxer and calls startSegment().
+     */
+    public boolean onPacket(boolean video, boolean key, long startUs, long endUs) {
+        mEndUs = Math.max(mEndUs, endUs);
+        if (mSegmentStartUs < 0) {
+            return true;
+        }
+        if (mHasVideo && !(video && key)) {
+            return false;
+        }
+        return startUs - mSegmentStartUs >= mTargetDurationUs;
+    }
+    /* startSegment :
+     * Input : Start time of the new segment in microseconds.
+     * Output : True when the current file is complete and the next
+     *          segment is open.
+     */
+    public boolean startSegment(long startUs) {
+        try {
+            completeFile(startUs);
+            String name = String.format(Locale.ROOT, "%s_%05d.m4s", mBaseName, mSegmentCount++);
+            openFile(name);
+            mSegmentNames.add(name);
+            mSegmentStartUs = startUs;
+        } catch (IOException e) {
+            System.out.println("Unable to start HLS segment in " + mDirectory + " : " + e);
+            return false;
+        }
+        return true;
+    }
+    /* finish :
+     * Input : none.
+     * Output : True when the last segment and the final playlist are written.
+     *
+     * Desc : Has to be called after the muxer trailer is written and the
+     * io context flushed.
+     */
+    public boolean finish() {
+        try {
+            completeFile(mEndUs);
+            writePlaylist(true);
+        } catch (IOException e) {
+            System.out.println("Unable to finish HLS output " + mDirectory + " : " + e);
+            return false;
+        }
+        return true;
+    }
+    /* completeFile :
+     * Input : End time of the segment in microseconds.
+     * Output : none.
+     *
+     * Desc : Closes the file written now and gives it its final name.
+     * A media segment is added to the playlist.
+     */
+    private void completeFile(long endUs) throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        // On the disk before the playlist lists it, see commitPartFile.
+        mFile.force(true);
+        mFile.close();
+        mFile = null;
+        String name = mFilePath.getFileName().toString();
+        moveAtomic(mFilePath, mFilePath.resolveSibling(
+                name.substring(0, name.length() - TEMP_SUFFIX.length())));
+        if (mSegmentStartUs >= 0) {
+            mSegmentDurationsUs.add(Math.max(endUs - mSegmentStartUs, 0));
+            writePlaylist(false);
+        }
+    }
+    private void openFile(String name) throws IOException {
+        mFilePath = mDirectory.resolve(name + TEMP_SUFFIX);
+        mFile = FileChannel.open(mFilePath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    /* writePlaylist :
+     * Input : True to mark the playlist complete.
+     * Output : none.
+     */
+    private void writePlaylist(boolean complete) throws IOException {
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n");
+        playlist.append("#EXT-X-VERSION:7\n");
+        playlist.append("#EXT-X-TARGETDURATION:").append(mTargetSeconds).append('\n');
+        playlist.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        playlist.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        if (mHasVideo) {
+            playlist.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        }
+        playlist.append("#EXT-X-MAP:URI=\"").append(mBaseName).append("_init.mp4\"\n");
+        for (int i = 0; i < mSegmentDurationsUs.size(); i++) {
+            playlist.append(String.format(Locale.ROOT, "#EXTINF:%.6f,\n",
+                    mSegmentDurationsUs.get(i) / 1e6));
+            playlist.append(mSegmentNames.get(i)).append('\n');
+        }
+        if (complete) {
+            playlist.append("#EXT-X-ENDLIST\n");
+        }
+        Path playlistPath = Paths.get(mPlaylistFileName);
+        Path temp = playlistPath.resolveSibling(playlistPath.getFileName() + TEMP_SUFFIX);
+        Files.write(temp, playlist.toString().getBytes(StandardCharsets.US_ASCII));
+        moveAtomic(temp, playlistPath);
+    }
+    private static void moveAtomic(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Closes the file still open after a failure. The files are
+     * left for discard().
+     */
+    @Override
+    public void close() {
+        if (mFile == null) {
+            return;
+        }
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close " + mFilePath + " : " + e);
+        }
+        mFile = null;
+    }
+    /* discard :
+     * Input : Playlist file name.
+     * Output : none.
+     *
+     * Desc : Deletes the playlist, the segments and, when nothing else
+     * is in it, their directory after a failed conversion.
+     */
+    static void discard(String playlistFileName) {
+        Path directory = Paths.get(playlistFileName).getParent();
+        try {
+            deleteFiles(directory, baseName(Paths.get(playlistFileName).getFileName().toString()));
+            Files.deleteIfExists(directory);
+        } catch (DirectoryNotEmptyException e) {
+            // Files which are not ours are kept.
+        } catch (IOException e) {
+            System.out.println("Unable to delete " + directory + " : " + e);
+        }
+    }
+    private static void deleteFiles(Path directory, String baseName) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (isOutputFile(baseName, file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+    /* isOutputFile :
+     * Input : Base name of the output and a file name in its directory.
+     * Output : True for the playlist, the init segment and the media
+     *          segments of the output, complete or .tmp.
+     */
+    static boolean isOutputFile(String baseName, String name) {
+        if (name.endsWith(TEMP_SUFFIX)) {
+            name = name.substring(0, name.length() - TEMP_SUFFIX.length());
+        }
+        if (name.equals(baseName + PLAYLIST_EXTENSION) || name.equals(baseName + "_init.mp4")) {
+            return true;
+        }
+        return name.startsWith(baseName + "_") && name.endsWith(".m4s") &&
+               name.substring(baseName.length() + 1, name.length() - 4).matches("[0-9]+");
+    }
+    /* size :
+     * Input : Playlist file name.
+     * Output : Bytes of the playlist, the init segment and the media segments.
+     */
+    static long size(String playlistFileName) {
+        File playlist = new File(playlistFileName);
+        String baseName = baseName(playlist.getName());
+        File files[] = playlist.getParentFile().listFiles();
+        long size = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (isOutputFile(baseName, file.getName())) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+}
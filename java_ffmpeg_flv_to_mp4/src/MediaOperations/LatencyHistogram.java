@@ -0,0 +1,96 @@
+package MediaOperations;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* This class counts latencies in nanoseconds in logarithmic buckets.
+ *
+ * Every power of two is split into 8 buckets, so a percentile is exact
+ * to about 12%, from nanoseconds to hours, in a fixed 4 KB of counters.
+ * record() is lock free, one atomic increment per value plus the sum
+ * and the maximum, so it can be called from any number of converters.
+ * A read while values are recorded sees some of them, which is fine
+ * for monitoring.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKETS = 8;
+    static final int BUCKETS = SUB_BUCKETS * 62;
+
+    AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    AtomicLong mCount = new AtomicLong();
+    AtomicLong mSum = new AtomicLong();
+    AtomicLong mMax = new AtomicLong();
+
+    /* bucket :
+     * Input : Value, 0 or more.
+     * Output : Index of the bucket of the value. Values below 8 have a
+     *          bucket of their own, then every power of two has 8.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - 2) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+    /* lowerBound :
+     * Input : Index of a bucket.
+     * Output : Smallest value counted in the bucket.
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 2;
+        return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+    }
+    public void record(long nanos) {
+        mCounts.incrementAndGet(bucket(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+    public long getCount() {
+        return mCount.get();
+    }
+    public long getMax() {
+        return mMax.get();
+    }
+    public double getMean() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mSum.get() / (double)count;
+    }
+    /* getPercentile :
+     * Input : Percentile between 0 and 100.
+     * Output : Value at the percentile, the upper end of its bucket and
+     *          never more than the maximum. 0 when nothing is recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                long upper = (i + 1 < BUCKETS) ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upper, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+}
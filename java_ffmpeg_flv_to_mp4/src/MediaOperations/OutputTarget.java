@@ -0,0 +1,133 @@
+package MediaOperations;
+import static org.bytedeco.ffmpeg.global.avformat.av_guess_format;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
+
+/* This class describes one output of a FanOutConverter : the container,
+ * the directory, which streams go into it and how its timestamps start.
+ *
+ * Streams : Video, audio and other streams (subtitles, data) can be left
+ * out per output, e.g. an audio only archive.
+ * Timestamps : By default every output starts at 0, like FormatConverter.
+ * With source timestamps the packets keep the times of the input, only
+ * rescaled to the time base of the output, e.g. for an archive which is
+ * matched against other recordings of the same clock.
+ *
+ * Targets are given on the command line as FORMAT[:OPTION...]=DIRECTORY
+ * where FORMAT is an ffmpeg muxer name and the options are
+ *  v, a, s, or a combination like av : The streams to write, all by default.
+ *  source-ts                          : Keep the source timestamps.
+ * e.g. mpegts=/archive or matroska:a:source-ts=/audio
+ */
+public class OutputTarget {
+    String mFormatName;
+    String mOutputDirectoryPath;
+    boolean mVideo = true;
+    boolean mAudio = true;
+    boolean mOther = true;
+    boolean mSourceTimestamps = false;
+
+    /* constuctor :
+     * Input : ffmpeg muxer name and the directory the output is written to.
+     */
+    public OutputTarget(String formatName, String outputDirectoryPath) {
+        mFormatName = formatName;
+        mOutputDirectoryPath = outputDirectoryPath;
+    }
+    /* parse :
+     * Input : Target as FORMAT[:OPTION...]=DIRECTORY, see above.
+     * Output : The target, null when the text is not valid.
+     */
+    public static OutputTarget parse(String text) {
+        int equals = text.indexOf('=');
+        if (equals <= 0 || equals == text.length() - 1) {
+            return null;
+        }
+        String parts[] = text.substring(0, equals).split(":");
+        OutputTarget target = new OutputTarget(parts[0], text.substring(equals + 1));
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals("source-ts")) {
+                target.mSourceTimestamps = true;
+            } else if (parts[i].matches("[vas]+")) {
+                target.setStreams(parts[i].indexOf('v') >= 0, parts[i].indexOf('a') >= 0,
+                        parts[i].indexOf('s') >= 0);
+            } else {
+                return null;
+            }
+        }
+        return target;
+    }
+    /* setStreams :
+     * Input : True to write the video, the audio and the other streams.
+     * Output : none.
+     */
+    public void setStreams(boolean video, boolean audio, boolean other) {
+        mVideo = video;
+        mAudio = audio;
+        mOther = other;
+    }
+    /* isSelected :
+     * Input : Media type (AVMEDIA_TYPE_*) of an input stream.
+     * Output : True when streams of this type go into the output.
+     */
+    public boolean isSelected(int codecType) {
+        if (codecType == AVMEDIA_TYPE_VIDEO) {
+            return mVideo;
+        }
+        if (codecType == AVMEDIA_TYPE_AUDIO) {
+            return mAudio;
+        }
+        return mOther;
+    }
+    /* setSourceTimestamps :
+     * Input : True to keep the timestamps of the input, false to start at 0.
+     * Output : none.
+     */
+    public void setSourceTimestamps(boolean sourceTimestamps) {
+        mSourceTimestamps = sourceTimestamps;
+    }
+    public boolean isSourceTimestamps() {
+        return mSourceTimestamps;
+    }
+    public String getFormatName() {
+        return mFormatName;
+    }
+    public String getOutputDirectoryPath() {
+        return mOutputDirectoryPath;
+    }
+    /* getExtension :
+     * Input : none.
+     * Output : File extension of the format, e.g. ts for mpegts. The
+     *          format name when ffmpeg does not know one.
+     */
+    public String getExtension() {
+        AVOutputFormat format = av_guess_format(mFormatName, null, null);
+        if (format == null || format.isNull() || format.extensions() == null ||
+            format.extensions().isNull()) {
+            return mFormatName;
+        }
+        String extensions = format.extensions().getString();
+        int comma = extensions.indexOf(',');
+        return (comma > 0) ? extensions.substring(0, comma) : extensions;
+    }
+    /* resolve :
+     * Input : Directory relative to the output directory.
+     * Output : Copy of the target writing into that directory.
+     */
+    public OutputTarget resolve(Path relativeDirectory) {
+        OutputTarget target = new OutputTarget(mFormatName,
+                Paths.get(mOutputDirectoryPath).resolve(relativeDirectory).toString());
+        target.setStreams(mVideo, mAudio, mOther);
+        target.mSourceTimestamps = mSourceTimestamps;
+        return target;
+    }
+    @Override
+    public String toString() {
+        return mFormatName + "=" + mOutputDirectoryPath;
+    }
+}
@@ -0,0 +1,235 @@
+package MediaOperations;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+
+/* This class remembers the result of probing an input file, so
+ * re-processing the same input does not pay avformat_find_stream_info
+ * again.
+ *
+ * An entry is keyed by path, size and modification time. If the file is
+ * replaced, the key changes and the file is probed again.
+ * For a supported file the stream parameters found by the full probe are
+ * kept. For an unsupported file only the reason is kept, so it can be
+ * skipped without opening it.
+ *
+ * The cache is a tab separated text file. It is loaded once and new
+ * entries are appended, so it can be shared by many converter threads
+ * and survives restarts.
+ */
+public class ProbeCache {
+    /* Stream parameters needed to copy a stream, as found by a full probe.
+     */
+    static class StreamInfo {
+        int mCodecType;
+        int mCodecId;
+        int mWidth;
+        int mHeight;
+        int mFormat;
+        int mSampleRate;
+        int mChannels;
+        long mChannelLayout;
+    }
+    /* Result of probing one file.
+     */
+    public static class Entry {
+        boolean mSupported;
+        String mReason;
+        StreamInfo mStreams[];
+
+        public boolean isSupported() {
+            return mSupported;
+        }
+        public String getReason() {
+            return mReason;
+        }
+        /* apply :
+         * Input : Input format context opened with a short probe.
+         * Output : True when the context has the same streams as the cached
+         *          probe. Missing parameters are then filled from the cache.
+         *          False when the streams differ and a full probe is needed.
+         */
+        boolean apply(AVFormatContext ctx) {
+            if (mStreams == null || ctx.nb_streams() != mStreams.length) {
+                return false;
+            }
+            for (int i = 0; i < mStreams.length; i++) {
+                AVCodecParameters params = ctx.streams(i).codecpar();
+                if (params.codec_type() != mStreams[i].mCodecType ||
+                    params.codec_id() != mStreams[i].mCodecId) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < mStreams.length; i++) {
+                AVCodecParameters params = ctx.streams(i).codecpar();
+                StreamInfo info = mStreams[i];
+                if (params.width() <= 0) {
+                    params.width(info.mWidth);
+                }
+                if (params.height() <= 0) {
+                    params.height(info.mHeight);
+                }
+                if (params.format() < 0) {
+                    params.format(info.mFormat);
+                }
+                if (params.sample_rate() <= 0) {
+                    params.sample_rate(info.mSampleRate);
+                }
+                if (params.channels() <= 0) {
+                    params.channels(info.mChannels);
+                }
+                if (params.channel_layout() == 0) {
+                    params.channel_layout(info.mChannelLayout);
+                }
+            }
+            return true;
+        }
+    }
+
+    Path mCacheFile = null;
+    ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    BufferedWriter mWriter = null;
+
+    /* open :
+     * Input : Cache file. Created if it does not exist.
+     * Output : Cache with all the entries of the file.
+     */
+    public static ProbeCache open(Path cacheFile) throws IOException {
+        ProbeCache cache = new ProbeCache();
+        cache.mCacheFile = cacheFile;
+        if (Files.exists(cacheFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(cacheFile,
+                    StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    cache.parseLine(line);
+                }
+            }
+        }
+        cache.mWriter = Files.newBufferedWriter(cacheFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return cache;
+    }
+    static String key(Path file, long size, long modifiedTime) {
+        return file.toAbsolutePath().toString() + "|" + size + "|" + modifiedTime;
+    }
+    /* get :
+     * Input : Input file with its size and modification time in ms.
+     * Output : Cached probe result, null when the file has to be probed.
+     */
+    public Entry get(Path file, long size, long modifiedTime) {
+        return mEntries.get(key(file, size, modifiedTime));
+    }
+    /* putSupported :
+     * Input :
+     *  Input file with its size and modification time in ms.
+     *  Input format context after a full probe.
+     * Output : none.
+     */
+    public void putSupported(Path file, long size, long modifiedTime,
+                             AVFormatContext ctx) {
+        Entry entry = new Entry();
+        entry.mSupported = true;
+        entry.mReason = "";
+        entry.mStreams = new StreamInfo[ctx.nb_streams()];
+        for (int i = 0; i < ctx.nb_streams(); i++) {
+            AVCodecParameters params = ctx.streams(i).codecpar();
+            StreamInfo info = new StreamInfo();
+            info.mCodecType = params.codec_type();
+            info.mCodecId = params.codec_id();
+            info.mWidth = params.width();
+            info.mHeight = params.height();
+            info.mFormat = params.format();
+            info.mSampleRate = params.sample_rate();
+            info.mChannels = params.channels();
+            info.mChannelLayout = params.channel_layout();
+            entry.mStreams[i] = info;
+        }
+        put(key(file, size, modifiedTime), entry);
+    }
+    /* putUnsupported :
+     * Input :
+     *  Input file with its size and modification time in ms.
+     *  Why the file can not be converted.
+     * Output : none.
+     */
+    public void putUnsupported(Path file, long size, long modifiedTime, String reason) {
+        Entry entry = new Entry();
+        entry.mSupported = false;
+        // The reason is stored in a single tab separated field.
+        entry.mReason = reason.replace('\t', ' ').replace('\n', ' ');
+        entry.mStreams = new StreamInfo[0];
+        put(key(file, size, modifiedTime), entry);
+    }
+    public void close() throws IOException {
+        synchronized (this) {
+            mWriter.close();
+        }
+    }
+    private void put(String key, Entry entry) {
+        mEntries.put(key, entry);
+        StringBuilder line = new StringBuilder();
+        line.append(key).append('\t')
+            .append(entry.mSupported ? "ok" : "unsupported").append('\t')
+            .append(entry.mReason);
+        for (StreamInfo info : entry.mStreams) {
+            line.append('\t')
+                .append(info.mCodecType).append(',')
+                .append(info.mCodecId).append(',')
+                .append(info.mWidth).append(',')
+                .append(info.mHeight).append(',')
+                .append(info.mFormat).append(',')
+                .append(info.mSampleRate).append(',')
+                .append(info.mChannels).append(',')
+                .append(info.mChannelLayout);
+        }
+        synchronized (this) {
+            try {
+                mWriter.write(line.toString());
+                mWriter.newLine();
+                mWriter.flush();
+            } catch (IOException e) {
+                // The entry is still cached in memory for this run.
+                System.out.println("Unable to write probe cache " + mCacheFile + " : " + e);
+            }
+        }
+    }
+    private void parseLine(String line) {
+        String fields[] = line.split("\t", -1);
+        if (fields.length < 3) {
+            return;
+        }
+        try {
+            Entry entry = new Entry();
+            entry.mSupported = fields[1].equals("ok");
+            entry.mReason = fields[2];
+            entry.mStreams = new StreamInfo[fields.length - 3];
+            for (int i = 3; i < fields.length; i++) {
+                String values[] = fields[i].split(",");
+                StreamInfo info = new StreamInfo();
+                info.mCodecType = Integer.parseInt(values[0]);
+                info.mCodecId = Integer.parseInt(values[1]);
+                info.mWidth = Integer.parseInt(values[2]);
+                info.mHeight = Integer.parseInt(values[3]);
+                info.mFormat = Integer.parseInt(values[4]);
+                info.mSampleRate = Integer.parseInt(values[5]);
+                info.mChannels = Integer.parseInt(values[6]);
+                info.mChannelLayout = Long.parseLong(values[7]);
+                entry.mStreams[i - 3] = info;
+            }
+            // Later lines win, the file is append only.
+            mEntries.put(fields[0], entry);
+        } catch (RuntimeException e) {
+            // A line cut by a crash. The file will just be probed again.
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package MediaOperations;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_copy;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_FLAG_BYTE;
+import static org.bytedeco.ffmpeg.global.avformat.av_interleaved_write_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_seek_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_write_trailer;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_output_context2;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_write_header;
+import static org.bytedeco.ffmpeg.global.avformat.avio_tell;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_dict_set;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.FlvKeyframeIndex;
+import FileUtils.InterruptCallback;
+import FileUtils.MediaFileUtils;
+import FileUtils.NativeTracker;
+
+/* This class remuxes one large flv file on several threads.
+ *
+ * FormatConverter reads and writes a file in one loop, so a recording of
+ * some hours sets the tail latency of a whole batch. Here the file is
+ * cut into ranges of about the same size, each starting at a video key
+ * frame, and every range is remuxed on its own thread :
+ *
+ *  1. FlvKeyframeIndex lists the key frames and their byte positions
+ *     from the flv tag headers, without demuxing.
+ *  2. Every range gets its own input, opened with a byte seek to its
+ *     first key frame, and reads the packets up to the start of the
+ *     next range. Packets are assigned by byte position, so every packet
+ *     of the file lands in exactly one range, in file order.
+ *  3. Every range is written as fragmented mp4 to a file of its own.
+ *     The timestamps get the offset of the first packet of the whole
+ *     file, like in FormatConverter, and frag_discont makes the muxer
+ *     keep them, so the fragments of all ranges continue each other.
+ *     The moof boxes address their data relative to themselves
+ *     (default_base_moof) and there is no mfra, so a fragment does not
+ *     depend on where it ends up in the file.
+ *  4. The output is the first range file as is, followed by the other
+ *     range files without their ftyp and moov, which are the same in
+ *     every range. The copy is done by the kernel (transferTo).
+ *
+ * The output is always fragmented mp4, so BatchConverter takes this path
+ * only when the output mode of the batch is FRAGMENTED. Only files whose streams can all be copied are taken. init()
+ * returns false for anything else, and for files too small to split, so
+ * the caller falls back to FormatConverter.
+ */
+public class SegmentedConverter implements AutoCloseable {
+    // A range is not made smaller than this, the setup of a range costs
+    // an open, a probe and a header.
+    public static final long MIN_RANGE_SIZE = 32L * 1024 * 1024;
+    // Suffix of the file of one range, after the part file name.
+    static final String RANGE_FILE_SUFFIX = ".range";
+
+    String mInputFileName = null;
+    String mOutputDirectoryPath = null;
+    String mOutputFormatName = null;
+    String mOutputFileName = null;
+    String mPartFileName = null;
+    int mThreads = 1;
+    FlvKeyframeIndex mIndex = null;
+    // Byte position every range starts at, the first one at 0.
+    long mRangeStarts[] = null;
+    // Number of the first mp4 fragment of every range.
+    int mFirstFragments[] = null;
+    // Offsets of the first packet of the file, see copyFrames in FormatConverter.
+    long mFirstPts = 0;
+    long mFirstDts = 0;
+    int mCodecTypes[] = null;
+    List<String> mRangeFileNames = new ArrayList<String>();
+    FileMetrics mMetrics = null;
+
+    /* constuctor :
+     * Input :
+     *  Input flv file.
+     *  Directory path where the output will be written.
+     *  Output Mux. Has to be mp4 or mov, the ranges are mp4 fragments.
+     *  Number of ranges remuxed at the same time.
+     */
+    public SegmentedConverter(String inputFile,
+                              String outputDirectoryPath,
+                              String outputFormat,
+                              int threads) {
+        mInputFileName = inputFile;
+        mOutputDirectoryPath = outputDirectoryPath;
+        mOutputFormatName = outputFormat;
+        mThreads = threads;
+    }
+    /* init :
+     * Input : none.
+     * Output : True when the file is indexed and cut into two or more
+     *          ranges. False when it has to be converted in one piece.
+     *
+     * Desc : Indexes the key frames, picks the ranges, and probes the
+     * file once to check the codecs and take the timestamp offsets.
+     */
+    public boolean init() {
+        mMetrics = new FileMetrics(mInputFileName);
+        long start = System.nanoTime();
+        try {
+            mIndex = FlvKeyframeIndex.scan(Paths.get(mInputFileName));
+        } catch (IOException e) {
+            System.out.println("Unable to index " + mInputFileName + " : " + e);
+            return false;
+        }
+        if (mIndex == null) {
+            System.out.println("Not an flv file, not segmented : " + mInputFileName);
+            return false;
+        }
+        int ranges = (int)Math.min(2L * mThreads, mIndex.getFileSize() / MIN_RANGE_SIZE);
+        int starts[] = mIndex.split(ranges);
+        if (starts.length == 0) {
+            System.out.println("Too small or too few key frames to segment : " + mInputFileName);
+            return false;
+        }
+        mRangeStarts = new long[starts.length + 1];
+        mFirstFragments = new int[starts.length + 1];
+        mFirstFragments[0] = 1;
+        for (int i = 0; i < starts.length; i++) {
+            mRangeStarts[i + 1] = mIndex.getPosition(starts[i]);
+            // Every key frame starts a fragment.
+            mFirstFragments[i + 1] = starts[i] + 1;
+        }
+        long indexed = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.OPEN, indexed - start);
+        boolean ok = probe();
+        mMetrics.addStage(FileMetrics.Stage.PROBE, System.nanoTime() - indexed);
+        if (!ok) {
+            return false;
+        }
+        mOutputFileName = FormatConverter.outputFileName(mInputFileName,
+                mOutputDirectoryPath, mOutputFormatName);
+        mPartFileName = mOutputFileName + FormatConverter.PART_FILE_SUFFIX;
+        System.out.printf("Segmenting %s : %d key frames, %d ranges on %d threads%n",
+                mInputFileName, mIndex.getKeyframeCount(), mRangeStarts.length, mThreads);
+        return true;
+    }
+    /* probe :
+     * Input : none.
+     * Output : True when every audio and video stream can be copied.
+     *
+     * Desc : Also reads the first packet, its timestamps are the offsets
+     * of every range.
+     */
+    private boolean probe() {
+        AVFormatContext input = avformat_alloc_context();
+        InterruptCallback.install(input);
+        if (avformat_open_input(input, mInputFileName, null, null) < 0) {
+            System.out.printf("Open video file %s failed \n", mInputFileName);
+            return false;
+        }
+        NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+        AVPacket packet = av_packet_alloc();
+        NativeTracker.allocated(NativeTracker.PACKET);
+        boolean ok = false;
+        try {
+            if (avformat_find_stream_info(input, (PointerPointer)null) < 0) {
+                return false;
+            }
+            mCodecTypes = new int[input.nb_streams()];
+            for (int i = 0; i < input.nb_streams(); i++) {
+                AVCodecParameters params = input.streams(i).codecpar();
+                mCodecTypes[i] = params.codec_type();
+                if (!FormatConverter.isSupportedCodec(params)) {
+                    System.out.println("Stream " + i + " can not be copied, not segmented : "
+                            + mInputFileName);
+                    return false;
+                }
+            }
+            if (av_read_frame(input, packet) < 0) {
+                return false;
+            }
+            mFirstPts = packet.pts();
+            mFirstDts = packet.dts();
+            av_packet_unref(packet);
+            ok = true;
+        } finally {
+            av_packet_free(packet);
+            NativeTracker.freed(NativeTracker.PACKET);
+            avformat_close_input(input);
+            NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+        }
+        return ok;
+    }
+    /* convert :
+     * Input : none.
+     * Output : True when every range is remuxed and the output is at
+     *          its final name.
+     */
+    public boolean convert() {
+        mMetrics.setStreams(mCodecTypes);
+        long start = System.nanoTime();
+        List<Range> ranges = new ArrayList<Range>();
+        for (int i = 0; i < mRangeStarts.length; i++) {
+            long end = (i + 1 < mRangeStarts.length) ? mRangeStarts[i + 1] : -1;
+            String fileName = mPartFileName + RANGE_FILE_SUFFIX + i;
+            mRangeFileNames.add(fileName);
+            ranges.add(new Range(mInputFileName, fileName, mOutputFormatName,
+                    mRangeStarts[i], end, mFirstFragments[i], mFirstPts, mFirstDts,
+                    mCodecTypes.length));
+        }
+        boolean ok = remuxRanges(ranges);
+        long stitchStart = System.nanoTime();
+        mMetrics.addStage(FileMetrics.Stage.PACKET_LOOP, stitchStart - start);
+        for (Range range : ranges) {
+            for (int i = 0; i < mCodecTypes.length; i++) {
+                mMetrics.addPackets(i, range.mPackets[i], range.mBytes[i]);
+            }
+        }
+        boolean committed = false;
+        if (ok && stitch(ranges)) {
+            committed = FormatConverter.commitPartFile(mPartFileName, mOutputFileName);
+        } else {
+            System.out.println("Error in segmented remux of file " + mInputFileName);
+            FormatConverter.discardPartFile(mPartFileName);
+        }
+        close();
+        mMetrics.addStage(FileMetrics.Stage.CLOSE, System.nanoTime() - stitchStart);
+        recordMetrics(committed);
+        return committed;
+    }
+    /* remuxRanges :
+     * Input : Ranges of the file.
+     * Output : True when every range is written.
+     */
+    private boolean remuxRanges(List<Range> ranges) {
+        ExecutorService pool = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SegmentedConverter-range");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        boolean ok = true;
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (Range range : ranges) {
+                results.add(pool.submit(range));
+            }
+            for (Future<Boolean> result : results) {
+                try {
+                    ok &= result.get();
+                } catch (InterruptedException e) {
+                    // Cancelled. The ranges stop at their next read, see
+                    // InterruptCallback, and hold native objects till then.
+                    pool.shutdownNow();
+                    awaitRanges(pool);
+                    Thread.currentThread().interrupt();
+                    ok = false;
+                    break;
+                } catch (ExecutionException e) {
+                    System.out.println("SegmentedConverter : range failed " + e.getCause());
+                    ok = false;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return ok;
+    }
+    private static void awaitRanges(ExecutorService pool) {
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                // Already cancelled, keep waiting.
+            }
+        }
+    }
+    /* stitch :
+     * Input : Remuxed ranges.
+     * Output : True when the part file holds all of them.
+     *
+     * Desc : Copies the first range file and the fragments of the others
+     * into the part file. The header of every range has to be the same
+     * size as the first one, else the streams were not set up the same.
+     */
+    private boolean stitch(List<Range> ranges) {
+        long headerSize = ranges.get(0).mHeaderSize;
+        try (FileChannel output = FileChannel.open(Paths.get(mPartFileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                if (ranges.get(i).mHeaderSize != headerSize) {
+                    System.out.println("Header of range " + i + " differs, not stitched");
+                    return false;
+                }
+                try (FileChannel input = FileChannel.open(Paths.get(mRangeFileNames.get(i)),
+                        StandardOpenOption.READ)) {
+                    long position = (i == 0) ? 0 : headerSize;
+                    long size = input.size();
+                    while (position < size) {
+                        position += input.transferTo(position, size - position, output);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to stitch " + mPartFileName + " : " + e);
+            return false;
+        }
+        return true;
+    }
+    private void recordMetrics(boolean succeeded) {
+        long bytesOut = succeeded ? new File(mOutputFileName).length() : 0;
+        mMetrics.setResult(succeeded, succeeded ? mOutputFileName : null,
+                new File(mInputFileName).length(), bytesOut);
+        ConversionMetrics.getInstance().record(mMetrics);
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Deletes the range files. The ranges free their native
+     * objects themselves when they are done.
+     */
+    @Override
+    public void close() {
+        for (String fileName : mRangeFileNames) {
+            FormatConverter.discardPartFile(fileName);
+        }
+        mRangeFileNames.clear();
+    }
+    public String getOutputFileName() {
+        return mOutputFileName;
+    }
+
+    /* Remuxes the packets of one byte range of the input into a file of
+     * mp4 fragments. Runs on a thread of the pool, owns all its native
+     * objects and frees them before it returns.
+     */
+    static class Range implements Callable<Boolean> {
+        String mInputFileName;
+        String mOutputFileName;
+        String mOutputFormatName;
+        long mStart;
+        long mEnd;
+        int mFirstFragment;
+        long mFirstPts;
+        long mFirstDts;
+        AVFormatContext mInputFmtCtx = null;
+        AVFormatContext mOutputFmtCtx = null;
+        StreamRoutingTable mRoutes = null;
+        // Bytes of ftyp and moov at the start of the file.
+        long mHeaderSize = -1;
+        long mPackets[];
+        long mBytes[];
+
+        /* constuctor :
+         * Input :
+         *  Input file, file the range is written to and its format.
+         *  First byte of the range, and the first byte of the next
+         *  range, -1 for the last range.
+         *  Number of the first mp4 fragment.
+         *  Timestamps of the first packet of the file.
+         *  Number of streams of the input.
+         */
+        Range(String inputFileName, String outputFileName, String outputFormatName,
+              long start, long end, int firstFragment, long firstPts, long firstDts,
+              int streams) {
+            mInputFileName = inputFileName;
+            mOutputFileName = outputFileName;
+            mOutputFormatName = outputFormatName;
+            mStart = start;
+            mEnd = end;
+            mFirstFragment = firstFragment;
+            mFirstPts = firstPts;
+            mFirstDts = firstDts;
+            mPackets = new long[streams];
+            mBytes = new long[streams];
+        }
+        @Override
+        public Boolean call() {
+            try {
+                return openInput() && openOutput() && copyPackets();
+            } finally {
+                close();
+            }
+        }
+        private boolean openInput() {
+            mInputFmtCtx = avformat_alloc_context();
+            InterruptCallback.install(mInputFmtCtx);
+            if (avformat_open_input(mInputFmtCtx, mInputFileName, null, null) < 0) {
+                System.out.printf("Open video file %s failed \n", mInputFileName);
+                mInputFmtCtx = null;
+                return false;
+            }
+            NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+            if (avformat_find_stream_info(mInputFmtCtx, (PointerPointer)null) < 0) {
+                return false;
+            }
+            if (mStart > 0 && av_seek_frame(mInputFmtCtx, -1, mStart, AVSEEK_FLAG_BYTE) < 0) {
+                System.out.println("Unable to seek to byte " + mStart + " of " + mInputFileName);
+                return false;
+            }
+            return true;
+        }
+        private boolean openOutput() {
+            mOutputFmtCtx = new AVFormatContext(null);
+            if (avformat_alloc_output_context2(mOutputFmtCtx, null, mOutputFormatName,
+                    mOutputFileName) < 0) {
+                System.out.println("Unable to open output format " + mOutputFormatName);
+                mOutputFmtCtx = null;
+                return false;
+            }
+            NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+            // The same streams in the same order in every range, so the
+            // moov of the first range fits all of them.
+            mRoutes = new StreamRoutingTable(mInputFmtCtx.nb_streams());
+            for (int i = 0; i < mInputFmtCtx.nb_streams(); i++) {
+                AVStream inputStream = mInputFmtCtx.streams(i);
+                AVCodecParameters inputParams = inputStream.codecpar();
+                if (!StreamRoutingTable.isCopyable(mOutputFmtCtx.oformat(),
+                        inputParams.codec_type(), inputParams.codec_id())) {
+                    continue;
+                }
+                AVStream outputStream = avformat_new_stream(mOutputFmtCtx, null);
+                avcodec_parameters_copy(outputStream.codecpar(), inputParams);
+                outputStream.codecpar().codec_tag(0);
+                mRoutes.addRoute(i, inputStream, outputStream, inputParams.codec_type());
+            }
+            if (!MediaFileUtils.openMediaFile(mOutputFmtCtx, mOutputFileName)) {
+                System.out.println("Unable to open output file " + mOutputFileName);
+                return false;
+            }
+            AVDictionary options = new AVDictionary(null);
+            // frag_discont : take the dts of the first packet as the start
+            // of the first fragment, instead of moving the range to 0.
+            // skip_trailer : no mfra, its offsets would be wrong once
+            // the ranges are put together.
+            av_dict_set(options, "movflags",
+                    "frag_keyframe+empty_moov+default_base_moof+frag_discont+skip_trailer", 0);
+            av_dict_set(options, "fragment_index", Integer.toString(mFirstFragment), 0);
+            av_dict_set(options, "use_editlist", "0", 0);
+            // Without an edit list the muxer would move every range to 0.
+            av_dict_set(options, "avoid_negative_ts", "disabled", 0);
+            int ret = avformat_write_header(mOutputFmtCtx, options);
+            av_dict_free(options);
+            if (ret < 0) {
+                System.out.println("Error in writing header of " + mOutputFileName);
+                return false;
+            }
+            mHeaderSize = avio_tell(mOutputFmtCtx.pb());
+            mRoutes.resolveTimeBases();
+            return true;
+        }
+        /* copyPackets :
+         * Input : none.
+         * Output : True when every packet of the range is written.
+         */
+        private boolean copyPackets() {
+            AVPacket p = av_packet_alloc();
+            NativeTracker.allocated(NativeTracker.PACKET);
+            try {
+                while (true) {
+                    int ret = av_read_frame(mInputFmtCtx, p);
+                    if (ret < 0) {
+                        if (ret != AVERROR_EOF) {
+                            System.out.println("Failure in reading range of " + mInputFileName
+                                    + " : " + ret);
+                            return false;
+                        }
+                        break;
+                    }
+                    if (mEnd >= 0 && p.pos() >= mEnd) {
+                        av_packet_unref(p);
+                        break;
+                    }
+                    int inputIndex = p.stream_index();
+                    int outputIndex = mRoutes.getOutputIndex(inputIndex);
+                    if (outputIndex == StreamRoutingTable.UNMAPPED) {
+                        av_packet_unref(p);
+                        continue;
+                    }
+                    if (inputIndex < mPackets.length) {
+                        mPackets[inputIndex]++;
+                        mBytes[inputIndex] += p.size();
+                    }
+                    p.stream_index(outputIndex);
+                    p.pts(mRoutes.rescale(inputIndex, p.pts() - mFirstPts));
+                    p.dts(mRoutes.rescale(inputIndex, p.dts() - mFirstDts));
+                    p.duration(mRoutes.rescale(inputIndex, p.duration()));
+                    p.pos(-1);
+                    ret = av_interleaved_write_frame(mOutputFmtCtx, p);
+                    av_packet_unref(p);
+                    if (ret < 0) {
+                        System.out.println("Error in writing range of " + mInputFileName);
+                        return false;
+                    }
+                }
+            } finally {
+                av_packet_free(p);
+                NativeTracker.freed(NativeTracker.PACKET);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // Cancelled, the read stopped before the end of the range.
+                return false;
+            }
+            return av_write_trailer(mOutputFmtCtx) >= 0;
+        }
+        private void close() {
+            if (mInputFmtCtx != null) {
+                avformat_close_input(mInputFmtCtx);
+                NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+                mInputFmtCtx = null;
+            }
+            if (mOutputFmtCtx != null) {
+                MediaFileUtils.closeMediaFile(mOutputFmtCtx.pb());
+                mOutputFmtCtx.pb(null);
+                avformat_free_context(mOutputFmtCtx);
+                NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+                mOutputFmtCtx = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package MediaOperations;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import FileUtils.MediaFileFinder;
+
+/* This class watches a spool directory tree and converts every new
+ * file as soon as it is complete.
+ *
+ * Files are found with a WatchService. The directory is also walked once
+ * at start, so files which landed while the daemon was down are picked up,
+ * and again when the WatchService lost events. Like MediaFileFinder.find,
+ * the walks and the watches stop at the max depth of the finder.
+ *
+ * Stability : A recorder writes a file for a long time, so a create event
+ * does not mean the file is complete. A new file is put in a pending list
+ * and its size and mtime are checked on every pass. It is submitted once
+ * both have not changed for the stability time.
+ *
+ * Bursts : All the events waiting in the WatchService are drained before
+ * the pending list is checked. Many modify events for the same file only
+ * refresh its one pending entry.
+ *
+ * Rescan : A file is submitted again only when its size or mtime changed
+ * since it was submitted. A walk after lost events finds every file of
+ * the tree, also the ones converted or still in the batch.
+ *
+ * Memory : The entries of a file are dropped when it is deleted, so the
+ * lists hold the files in the spool, not every file ever converted. A
+ * walk after lost events also drops the files which are gone. Files seen
+ * again after a restart are left to the CompletionJournal.
+ *
+ * Follow mode : When the batch follows its inputs, a file is submitted
+ * as soon as it has data, the converter reads it while the recorder
+ * writes it. Its later modify events are ignored while it grows. When it
+ * gets shorter, the recorder truncated it to start a new recording, the
+ * GrowingFileChannel of the running job ends there, and the file is
+ * pending again for the new recording.
+ *
+ * The conversions run on the BatchConverter given by the caller. Its
+ * workers are started up front, so a stable file goes to a thread which
+ * is already running. Use a CompletionJournal with the batch, so files
+ * which are touched again or seen again after a restart are not
+ * converted twice.
+ */
+public class SpoolWatcher {
+    public static final long DEFAULT_STABLE_MILLIS = 2000;
+
+    /* A file which is not yet submitted.
+     */
+    static class Candidate {
+        long mSize = -1;
+        long mModified = -1;
+        long mLastChange = 0;
+    }
+
+    MediaFileFinder mFinder = null;
+    Path mRoot = null;
+    BatchConverter mBatch = null;
+    long mStableNanos = 0;
+    long mPollMillis = 0;
+    WatchService mWatchService = null;
+    Map<WatchKey, Path> mDirectories = new HashMap<WatchKey, Path>();
+    // Insertion ordered, files are submitted in the order they landed.
+    LinkedHashMap<Path, Candidate> mPending = new LinkedHashMap<Path, Candidate>();
+    boolean mFollow = false;
+    // Files submitted in follow mode, with the largest size seen since.
+    Map<Path, Long> mFollowed = new HashMap<Path, Long>();
+    // Size and mtime of the files submitted so far.
+    Map<Path, Candidate> mSubmitted = new HashMap<Path, Candidate>();
+    volatile boolean mStopped = false;
+
+    /* constuctor :
+     * Input :
+     *  Finder with the spool root and the pattern of the files to convert.
+     *  Batch which converts the files.
+     *  Time in ms a file has to stay unchanged before it is converted.
+     */
+    public SpoolWatcher(MediaFileFinder finder, BatchConverter batch, long stableMillis) {
+        mFinder = finder;
+        mRoot = finder.getRoot();
+        mBatch = batch;
+        mStableNanos = TimeUnit.MILLISECONDS.toNanos(stableMillis);
+        // Check a few times per stability period, at most every 500 ms.
+        mPollMillis = Math.max(50, Math.min(500, stableMillis / 4));
+    }
+    /* setFollow :
+     * Input : True to submit files as soon as they have data, for a batch
+     *         which follows its inputs. Has to be set before run().
+     * Output : none.
+     */
+    public void setFollow(boolean follow) {
+        mFollow = follow;
+    }
+    /* run :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Watches the spool until stop() is called. Files still in the
+     * pending list at that point are converted by the next run.
+     */
+    public void run() throws IOException, InterruptedException {
+        mWatchService = mRoot.getFileSystem().newWatchService();
+        try {
+            mBatch.warmUp();
+            registerTree(mRoot);
+            System.out.println("Watching " + mRoot + " for " + mDirectories.size()
+                    + " directories, " + mPending.size() + " files pending");
+            while (!mStopped) {
+                WatchKey key = mWatchService.poll(mPollMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = mWatchService.poll();
+                }
+                submitStableFiles();
+            }
+        } finally {
+            mWatchService.close();
+        }
+    }
+    /* stop :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Makes run() return after the current pass. Can be called
+     * from any thread, e.g. a shutdown hook.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+    /* registerTree :
+     * Input : Directory to be watched.
+     * Output : none.
+     *
+     * Desc : Watches the directory and all its sub directories. Matching
+     * files already in them become pending. Also used for a directory
+     * which is created later, files can land in it before it is watched.
+     */
+    private void registerTree(Path directory) throws IOException {
+        // Levels left below this directory, as in MediaFileFinder.find.
+        int depth = mFinder.getMaxDepth();
+        if (!directory.equals(mRoot)) {
+            depth -= mRoot.relativize(directory).getNameCount();
+        }
+        if (depth < 1) {
+            return;
+        }
+        Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), depth,
+                new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                WatchKey key = dir.register(mWatchService, ENTRY_CREATE, ENTRY_MODIFY,
+                        ENTRY_DELETE);
+                mDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && mFinder.matches(file) &&
+                    !isSubmitted(file, attrs.size(), attrs.lastModifiedTime().toMillis())) {
+                    addCandidate(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.out.println("Unable to read " + file + " : " + e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    /* handleEvents :
+     * Input : Signalled key of a watched directory.
+     * Output : none.
+     */
+    private void handleEvents(WatchKey key) throws IOException {
+        Path directory = mDirectories.get(key);
+        boolean rescan = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Events were lost. Walk everything again.
+                rescan = true;
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path child = directory.resolve((Path)event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                forget(child);
+                continue;
+            }
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    registerTree(child);
+                }
+            } else if (mFinder.matches(child)) {
+                addCandidate(child);
+            }
+        }
+        if (!key.reset()) {
+            // The directory is gone.
+            mDirectories.remove(key);
+        }
+        if (rescan) {
+            forgetDeleted();
+            registerTree(mRoot);
+        }
+    }
+    /* forget :
+     * Input : Deleted file or directory.
+     * Output : none.
+     *
+     * Desc : Drops the entries of the file, or of every file under the
+     * directory, e.g. one moved out of the spool as a whole.
+     */
+    private void forget(Path deleted) {
+        mPending.remove(deleted);
+        mFollowed.remove(deleted);
+        if (mSubmitted.remove(deleted) != null || !mDirectories.containsValue(deleted)) {
+            return;
+        }
+        removeUnder(mPending.keySet(), deleted);
+        removeUnder(mFollowed.keySet(), deleted);
+        removeUnder(mSubmitted.keySet(), deleted);
+    }
+    private static void removeUnder(Set<Path> files, Path directory) {
+        Iterator<Path> it = files.iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(directory)) {
+                it.remove();
+            }
+        }
+    }
+    /* forgetDeleted :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Drops the entries of the files which are gone. Their delete
+     * events may have been lost with the others.
+     */
+    private void forgetDeleted() {
+        Iterator<Path> it = mSubmitted.keySet().iterator();
+        while (it.hasNext()) {
+            if (!Files.exists(it.next(), LinkOption.NOFOLLOW_LINKS)) {
+                it.remove();
+            }
+        }
+        it = mFollowed.keySet().iterator();
+        while (it.hasNext()) {
+            if (!Files.exists(it.next(), LinkOption.NOFOLLOW_LINKS)) {
+                it.remove();
+            }
+        }
+    }
+    private void addCandidate(Path file) {
+        Long followedSize = mFollowed.get(file);
+        if (followedSize != null) {
+            long size = sizeOf(file);
+            if (size >= followedSize) {
+                mFollowed.put(file, size);
+                return;
+            }
+            // Truncated or deleted, a new recording starts under the name.
+            mFollowed.remove(file);
+        }
+        Candidate candidate = mPending.get(file);
+        if (candidate == null) {
+            candidate = new Candidate();
+            mPending.put(file, candidate);
+        }
+        candidate.mLastChange = System.nanoTime();
+    }
+    /* sizeOf :
+     * Input : File.
+     * Output : Its size, -1 when it can not be read.
+     */
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    /* isSubmitted :
+     * Input : File, its size and mtime.
+     * Output : True when the file was submitted with this size and mtime.
+     */
+    private boolean isSubmitted(Path file, long size, long modified) {
+        Candidate submitted = mSubmitted.get(file);
+        return submitted != null && submitted.mSize == size && submitted.mModified == modified;
+    }
+    /* submitStableFiles :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Submits the pending files whose size and mtime did not change
+     * for the stability time. Blocks while the batch is full, the events
+     * wait in the WatchService meanwhile.
+     */
+    private void submitStableFiles() throws InterruptedException {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, Candidate>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Candidate> entry = it.next();
+            Path file = entry.getKey();
+            Candidate candidate = entry.getValue();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                // Deleted or renamed before it was complete.
+                it.remove();
+                continue;
+            } catch (IOException e) {
+                System.out.println("Unable to read " + file + " : " + e);
+                it.remove();
+                continue;
+            }
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            if (mFollow && size > 0) {
+                it.remove();
+                mFollowed.put(file, size);
+                mBatch.submit(file, mFinder.getRelativeDirectory(file));
+                continue;
+            }
+            if (size != candidate.mSize || modified != candidate.mModified) {
+                candidate.mSize = size;
+                candidate.mModified = modified;
+                candidate.mLastChange = now;
+                continue;
+            }
+            if (size == 0 || now - candidate.mLastChange < mStableNanos) {
+                continue;
+            }
+            it.remove();
+            if (isSubmitted(file, size, modified)) {
+                // e.g. touched without a change of size or mtime.
+                continue;
+            }
+            mSubmitted.put(file, candidate);
+            mBatch.submit(file, mFinder.getRelativeDirectory(file));
+        }
+    }
+}
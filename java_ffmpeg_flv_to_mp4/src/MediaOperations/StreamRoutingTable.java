@@ -0,0 +1,192 @@
+package MediaOperations;
+
+import static org.bytedeco.ffmpeg.avcodec.AVCodecContext.FF_COMPLIANCE_NORMAL;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_query_codec;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_DATA;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_SUBTITLE;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_ROUND_NEAR_INF;
+import static org.bytedeco.ffmpeg.global.avutil.AV_ROUND_PASS_MINMAX;
+import static org.bytedeco.ffmpeg.global.avutil.av_make_q;
+import static org.bytedeco.ffmpeg.global.avutil.av_rescale_q_rnd;
+
+import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+
+/* This class maps every input stream index to the output stream
+ * the packets of that stream are written to.
+ *
+ * The table is built once while the output streams are created.
+ * After the header is written, resolveTimeBases() copies the source and
+ * destination time bases to the Java side, so the packet loop does not
+ * have to go through streams(i).codecpar() / time_base() for every packet.
+ *
+ * Any number of audio, video, subtitle and data streams can be routed.
+ * Input streams which are not added are unmapped and their packets
+ * can be dropped with a single array lookup.
+ */
+public class StreamRoutingTable {
+    public static final int UNMAPPED = -1;
+
+    int mOutputIndex[];
+    int mCodecType[];
+    AVStream mInputStreams[];
+    AVStream mOutputStreams[];
+    // Time bases copied to the Java side. Valid after resolveTimeBases().
+    int mInputTimeBaseNum[];
+    int mInputTimeBaseDen[];
+    int mOutputTimeBaseNum[];
+    int mOutputTimeBaseDen[];
+    AVRational mInputTimeBases[];
+    AVRational mOutputTimeBases[];
+
+    /* constuctor :
+     * Input :
+     *  Number of streams in the input format context.
+     */
+    public StreamRoutingTable(int nbInputStreams) {
+        mOutputIndex = new int[nbInputStreams];
+        mCodecType = new int[nbInputStreams];
+        mInputStreams = new AVStream[nbInputStreams];
+        mOutputStreams = new AVStream[nbInputStreams];
+        mInputTimeBaseNum = new int[nbInputStreams];
+        mInputTimeBaseDen = new int[nbInputStreams];
+        mOutputTimeBaseNum = new int[nbInputStreams];
+        mOutputTimeBaseDen = new int[nbInputStreams];
+        mInputTimeBases = new AVRational[nbInputStreams];
+        mOutputTimeBases = new AVRational[nbInputStreams];
+        for (int i = 0; i < nbInputStreams; i++) {
+            mOutputIndex[i] = UNMAPPED;
+        }
+    }
+    /* isCopyable :
+     * Input : Output format, media type and codec id of the input stream.
+     * Output : True when the stream has to be copied to the output.
+     *
+     * Desc : Every audio and video stream is copied. Subtitle and data
+     * streams are copied only when the output format can store their
+     * codec. Anything else stays unmapped.
+     */
+    public static boolean isCopyable(AVOutputFormat outputFormat,
+                                     int codecType,
+                                     int codecId) {
+        if (codecType == AVMEDIA_TYPE_AUDIO || codecType == AVMEDIA_TYPE_VIDEO) {
+            return true;
+        }
+        if (codecType == AVMEDIA_TYPE_SUBTITLE || codecType == AVMEDIA_TYPE_DATA) {
+            return avformat_query_codec(outputFormat, codecId,
+                    FF_COMPLIANCE_NORMAL) == 1;
+        }
+        return false;
+    }
+    /* addRoute :
+     * Input :
+     *  Index of the input stream.
+     *  Input stream and the output stream its packets are written to.
+     *  Media type of the stream (AVMEDIA_TYPE_*).
+     * Output : none.
+     */
+    public void addRoute(int inputIndex,
+                         AVStream inputStream,
+                         AVStream outputStream,
+                         int codecType) {
+        mOutputIndex[inputIndex] = outputStream.index();
+        mCodecType[inputIndex] = codecType;
+        mInputStreams[inputIndex] = inputStream;
+        mOutputStreams[inputIndex] = outputStream;
+    }
+    /* resolveTimeBases :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Copies the input and output time bases of all the routes.
+     * Has to be called after avformat_write_header as the muxer
+     * can change the output stream time base while writing the header.
+     */
+    public void resolveTimeBases() {
+        for (int i = 0; i < mOutputIndex.length; i++) {
+            if (mOutputIndex[i] == UNMAPPED) {
+                continue;
+            }
+            AVRational in = mInputStreams[i].time_base();
+            AVRational out = mOutputStreams[i].time_base();
+            mInputTimeBaseNum[i] = in.num();
+            mInputTimeBaseDen[i] = in.den();
+            mOutputTimeBaseNum[i] = out.num();
+            mOutputTimeBaseDen[i] = out.den();
+            mInputTimeBases[i] = av_make_q(in.num(), in.den());
+            mOutputTimeBases[i] = av_make_q(out.num(), out.den());
+        }
+    }
+    /* getOutputIndex :
+     * Input : Index of the input stream as found in the packet.
+     * Output : Index of the output stream or UNMAPPED if the packet
+     *          has to be dropped.
+     */
+    public int getOutputIndex(int inputIndex) {
+        if (inputIndex < 0 || inputIndex >= mOutputIndex.length) {
+            return UNMAPPED;
+        }
+        return mOutputIndex[inputIndex];
+    }
+    public int getCodecType(int inputIndex) {
+        return mCodecType[inputIndex];
+    }
+    public AVStream getInputStream(int inputIndex) {
+        return mInputStreams[inputIndex];
+    }
+    public AVStream getOutputStream(int inputIndex) {
+        return mOutputStreams[inputIndex];
+    }
+    public AVRational getInputTimeBase(int inputIndex) {
+        return mInputTimeBases[inputIndex];
+    }
+    public AVRational getOutputTimeBase(int inputIndex) {
+        return mOutputTimeBases[inputIndex];
+    }
+    public int getInputStreamCount() {
+        return mOutputIndex.length;
+    }
+    /* findFirst :
+     * Input : Media type (AVMEDIA_TYPE_*).
+     * Output : Index of the first routed input stream of this type, or
+     *          UNMAPPED if there is none.
+     */
+    public int findFirst(int codecType) {
+        for (int i = 0; i < mOutputIndex.length; i++) {
+            if (mOutputIndex[i] != UNMAPPED && mCodecType[i] == codecType) {
+                return i;
+            }
+        }
+        return UNMAPPED;
+    }
+    /* rescale :
+     * Input :
+     *  Index of the input stream.
+     *  Timestamp or duration in input stream time base.
+     * Output : Value in the output stream time base.
+     *
+     * Desc : Same as av_rescale_q_rnd with AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX
+     * but computed on the Java side. Only values which could overflow
+     * the 64 bit multiplication are handed over to libavutil.
+     */
+    public long rescale(int inputIndex, long value) {
+        if (value == Long.MIN_VALUE || value == Long.MAX_VALUE) {
+            return value;
+        }
+        long b = (long)mInputTimeBaseNum[inputIndex] * mOutputTimeBaseDen[inputIndex];
+        long c = (long)mInputTimeBaseDen[inputIndex] * mOutputTimeBaseNum[inputIndex];
+        long abs = (value < 0) ? -value : value;
+        if (b <= 0 || c <= 0 || abs > (Long.MAX_VALUE - c) / b) {
+            return av_rescale_q_rnd(value,
+                                    mInputTimeBases[inputIndex],
+                                    mOutputTimeBases[inputIndex],
+                                    AV_ROUND_NEAR_INF|AV_ROUND_PASS_MINMAX);
+        }
+        // Round half away from zero, as AV_ROUND_NEAR_INF does.
+        long r = (abs * b + c / 2) / c;
+        return (value < 0) ? -r : r;
+    }
+}
@@ -0,0 +1,361 @@
+package benchmark;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_FLAG_GLOBAL_HEADER;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_FLV1;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_rescale_ts;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_from_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_interleaved_write_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_write_trailer;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_alloc_output_context2;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_free_context;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_write_header;
+import static org.bytedeco.ffmpeg.global.avutil.AV_CH_LAYOUT_STEREO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_FLTP;
+import static org.bytedeco.ffmpeg.global.avutil.av_compare_ts;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_get_buffer;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_make_writable;
+import static org.bytedeco.ffmpeg.global.avutil.av_make_q;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.MediaFileUtils;
+
+/* FixtureGenerator : Writes synthetic flv files for the benchmarks, so
+ * they do not depend on sample files which can not be shipped.
+ *
+ * Video : H.264 with the default H.264 encoder of the ffmpeg build,
+ *         Sorenson (FLV1) when the build has none. The picture is a
+ *         moving test pattern, a gradient over checkered bars with
+ *         some noise, so the encoder has real work and the bit rate is
+ *         close to the target.
+ * Audio : AAC stereo 44100 Hz, a 440 Hz tone.
+ *
+ * A fixture is written once. A file which already exists is reused, so
+ * a work directory can be kept between runs.
+ */
+public class FixtureGenerator {
+    static final int SAMPLE_RATE = 44100;
+    static final long AUDIO_BIT_RATE = 128000;
+
+    /* Describes one fixture. */
+    public static class Fixture {
+        static final Pattern NAME_PATTERN =
+                Pattern.compile("(\\d+)x(\\d+)_(\\d+)fps_(\\d+)k_(\\d+)s(\\.flv)?");
+        int mWidth;
+        int mHeight;
+        int mFrameRate;
+        long mBitRate;
+        int mSeconds;
+
+        /* constuctor :
+         * Input :
+         *  Size of the video in pixels.
+         *  Frames per second.
+         *  Target video bit rate in bits per second.
+         *  Duration in seconds.
+         */
+        public Fixture(int width, int height, int frameRate, long bitRate, int seconds) {
+            mWidth = width;
+            mHeight = height;
+            mFrameRate = frameRate;
+            mBitRate = bitRate;
+            mSeconds = seconds;
+        }
+        public int getWidth() {
+            return mWidth;
+        }
+        public int getHeight() {
+            return mHeight;
+        }
+        public long getBitRate() {
+            return mBitRate;
+        }
+        public int getSeconds() {
+            return mSeconds;
+        }
+        /* getName :
+         * Output : File name of the fixture, e.g. 1280x720_25fps_2500k_10s.flv
+         */
+        public String getName() {
+            return mWidth + "x" + mHeight + "_" + mFrameRate + "fps_"
+                    + (mBitRate / 1000) + "k_" + mSeconds + "s.flv";
+        }
+        /* parse :
+         * Input : Name as given by getName(), the .flv can be left out.
+         * Output : The fixture, null when the name is not valid.
+         */
+        public static Fixture parse(String name) {
+            Matcher m = NAME_PATTERN.matcher(name);
+            if (!m.matches()) {
+                return null;
+            }
+            return new Fixture(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)),
+                    Integer.parseInt(m.group(3)), Long.parseLong(m.group(4)) * 1000,
+                    Integer.parseInt(m.group(5)));
+        }
+    }
+
+    /* generate :
+     * Input : Directory of the fixtures and the fixture to write.
+     * Output : Path of the fixture.
+     *
+     * Desc : Encodes the fixture into a temporary file, which is renamed
+     * when complete, so an interrupted run does not leave a broken fixture.
+     */
+    public static Path generate(Path directory, Fixture fixture) throws IOException {
+        Path file = directory.resolve(fixture.getName());
+        if (Files.isRegularFile(file) && Files.size(file) > 0) {
+            return file;
+        }
+        Files.createDirectories(directory);
+        Path part = directory.resolve(fixture.getName() + ".part");
+        System.out.println("Generating fixture " + file);
+        FixtureGenerator generator = new FixtureGenerator(fixture);
+        boolean ok = generator.write(part.toString());
+        generator.close();
+        if (!ok) {
+            Files.deleteIfExists(part);
+            throw new IOException("Unable to generate fixture " + file);
+        }
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    Fixture mFixture;
+    AVFormatContext mOutputFmtCtx = null;
+    AVCodecContext mVideoContext = null;
+    AVCodecContext mAudioContext = null;
+    AVStream mVideoStream = null;
+    AVStream mAudioStream = null;
+    AVFrame mVideoFrame = null;
+    AVFrame mAudioFrame = null;
+    AVPacket mPacket = null;
+    byte mRow[];
+    int mNoise = 1;
+    float mSamples[];
+
+    FixtureGenerator(Fixture fixture) {
+        mFixture = fixture;
+    }
+    /* write :
+     * Input : File to write the fixture to.
+     * Output : True when the whole fixture is written.
+     */
+    boolean write(String fileName) {
+        mOutputFmtCtx = new AVFormatContext(null);
+        if (avformat_alloc_output_context2(mOutputFmtCtx, null, "flv", fileName) < 0) {
+            mOutputFmtCtx = null;
+            return false;
+        }
+        if (!openVideo() || !openAudio()) {
+            return false;
+        }
+        if (!MediaFileUtils.openMediaFile(mOutputFmtCtx, fileName)) {
+            return false;
+        }
+        if (avformat_write_header(mOutputFmtCtx, (PointerPointer)null) < 0) {
+            return false;
+        }
+        mPacket = av_packet_alloc();
+        long videoFrames = (long)mFixture.mFrameRate * mFixture.mSeconds;
+        long audioSamples = (long)SAMPLE_RATE * mFixture.mSeconds;
+        long frame = 0, sample = 0;
+        // Feed the stream which is behind, so the muxer buffers little.
+        while (frame < videoFrames || sample < audioSamples) {
+            boolean video = sample >= audioSamples || (frame < videoFrames &&
+                    av_compare_ts(frame, mVideoContext.time_base(),
+                                  sample, mAudioContext.time_base()) <= 0);
+            if (video) {
+                if (!writeVideoFrame(frame++)) {
+                    return false;
+                }
+            } else {
+                if (!writeAudioFrame(sample)) {
+                    return false;
+                }
+                sample += mAudioFrame.nb_samples();
+            }
+        }
+        if (!encode(mVideoContext, mVideoStream, null) ||
+            !encode(mAudioContext, mAudioStream, null)) {
+            return false;
+        }
+        return av_write_trailer(mOutputFmtCtx) >= 0;
+    }
+    private boolean openVideo() {
+        AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_H264);
+        if (codec == null) {
+            codec = avcodec_find_encoder(AV_CODEC_ID_FLV1);
+        }
+        mVideoContext = avcodec_alloc_context3(codec);
+        mVideoContext.width(mFixture.mWidth);
+        mVideoContext.height(mFixture.mHeight);
+        mVideoContext.pix_fmt(AV_PIX_FMT_YUV420P);
+        mVideoContext.time_base(av_make_q(1, mFixture.mFrameRate));
+        mVideoContext.framerate(av_make_q(mFixture.mFrameRate, 1));
+        mVideoContext.bit_rate(mFixture.mBitRate);
+        mVideoContext.gop_size(2 * mFixture.mFrameRate);
+        mVideoContext.flags(mVideoContext.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+        if (avcodec_open2(mVideoContext, codec, (PointerPointer)null) < 0) {
+            System.out.println("Unable to open video encoder " + codec.name().getString());
+            return false;
+        }
+        mVideoStream = avformat_new_stream(mOutputFmtCtx, null);
+        avcodec_parameters_from_context(mVideoStream.codecpar(), mVideoContext);
+        mVideoStream.time_base(mVideoContext.time_base());
+        mVideoFrame = av_frame_alloc();
+        mVideoFrame.format(AV_PIX_FMT_YUV420P);
+        mVideoFrame.width(mFixture.mWidth);
+        mVideoFrame.height(mFixture.mHeight);
+        mRow = new byte[mFixture.mWidth];
+        return av_frame_get_buffer(mVideoFrame, 0) >= 0;
+    }
+    private boolean openAudio() {
+        AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_AAC);
+        mAudioContext = avcodec_alloc_context3(codec);
+        mAudioContext.sample_fmt(AV_SAMPLE_FMT_FLTP);
+        mAudioContext.sample_rate(SAMPLE_RATE);
+        mAudioContext.channels(2);
+        mAudioContext.channel_layout(AV_CH_LAYOUT_STEREO);
+        mAudioContext.bit_rate(AUDIO_BIT_RATE);
+        mAudioContext.time_base(av_make_q(1, SAMPLE_RATE));
+        mAudioContext.flags(mAudioContext.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+        if (avcodec_open2(mAudioContext, codec, (PointerPointer)null) < 0) {
+            System.out.println("Unable to open audio encoder");
+            return false;
+        }
+        mAudioStream = avformat_new_stream(mOutputFmtCtx, null);
+        avcodec_parameters_from_context(mAudioStream.codecpar(), mAudioContext);
+        mAudioStream.time_base(mAudioContext.time_base());
+        mAudioFrame = av_frame_alloc();
+        mAudioFrame.format(AV_SAMPLE_FMT_FLTP);
+        mAudioFrame.channel_layout(AV_CH_LAYOUT_STEREO);
+        mAudioFrame.sample_rate(SAMPLE_RATE);
+        mAudioFrame.nb_samples(mAudioContext.frame_size());
+        mSamples = new float[mAudioContext.frame_size()];
+        return av_frame_get_buffer(mAudioFrame, 0) >= 0;
+    }
+    /* writeVideoFrame :
+     * Input : Number of the frame.
+     * Output : True when the frame is encoded.
+     *
+     * Desc : Top half, a gradient moving to the left. Bottom half,
+     * checkered bars moving down. Chroma changes over x and y.
+     * Noise which changes every frame keeps it from being too easy to
+     * compress.
+     */
+    private boolean writeVideoFrame(long frame) {
+        // The encoder can still hold the buffer of the last frame.
+        if (av_frame_make_writable(mVideoFrame) < 0) {
+            return false;
+        }
+        int width = mFixture.mWidth, height = mFixture.mHeight;
+        int shift = (int)(frame * 4);
+        BytePointer luma = mVideoFrame.data(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                mRow[x] = (byte)((y < height / 2) ? (x + shift) :
+                        ((((x >> 4) ^ ((y + shift) >> 4)) & 1) * 200 + 28));
+                // Cheap linear congruential generator.
+                mNoise = mNoise * 1103515245 + 12345;
+                mRow[x] += (byte)((mNoise >>> 29) - 4);
+            }
+            luma.position((long)y * mVideoFrame.linesize(0)).put(mRow, 0, width);
+        }
+        for (int plane = 1; plane <= 2; plane++) {
+            BytePointer chroma = mVideoFrame.data(plane);
+            for (int y = 0; y < height / 2; y++) {
+                for (int x = 0; x < width / 2; x++) {
+                    mRow[x] = (byte)((plane == 1) ? (x * 512 / width) :
+                            (y * 512 / height + shift / 4));
+                }
+                chroma.position((long)y * mVideoFrame.linesize(plane)).put(mRow, 0, width / 2);
+            }
+        }
+        mVideoFrame.pts(frame);
+        return encode(mVideoContext, mVideoStream, mVideoFrame);
+    }
+    private boolean writeAudioFrame(long sample) {
+        if (av_frame_make_writable(mAudioFrame) < 0) {
+            return false;
+        }
+        for (int i = 0; i < mSamples.length; i++) {
+            mSamples[i] = (float)(0.3 * Math.sin(2 * Math.PI * 440 * (sample + i) / SAMPLE_RATE));
+        }
+        for (int channel = 0; channel < 2; channel++) {
+            new FloatPointer(mAudioFrame.data(channel)).put(mSamples);
+        }
+        mAudioFrame.pts(sample);
+        return encode(mAudioContext, mAudioStream, mAudioFrame);
+    }
+    /* encode :
+     * Input : Encoder, its stream and the frame, null to flush.
+     * Output : True when the ready packets are written.
+     */
+    private boolean encode(AVCodecContext context, AVStream stream, AVFrame frame) {
+        if (avcodec_send_frame(context, frame) < 0) {
+            return false;
+        }
+        while (avcodec_receive_packet(context, mPacket) >= 0) {
+            av_packet_rescale_ts(mPacket, context.time_base(), stream.time_base());
+            mPacket.stream_index(stream.index());
+            // Takes over the payload of the packet.
+            if (av_interleaved_write_frame(mOutputFmtCtx, mPacket) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    void close() {
+        if (mPacket != null) {
+            av_packet_free(mPacket);
+        }
+        if (mVideoFrame != null) {
+            av_frame_free(mVideoFrame);
+        }
+        if (mAudioFrame != null) {
+            av_frame_free(mAudioFrame);
+        }
+        if (mVideoContext != null) {
+            avcodec_free_context(mVideoContext);
+        }
+        if (mAudioContext != null) {
+            avcodec_free_context(mAudioContext);
+        }
+        if (mOutputFmtCtx != null) {
+            if (mOutputFmtCtx.pb() != null) {
+                MediaFileUtils.closeMediaFile(mOutputFmtCtx.pb());
+            }
+            avformat_free_context(mOutputFmtCtx);
+        }
+    }
+}
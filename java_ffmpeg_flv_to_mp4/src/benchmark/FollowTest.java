@@ -0,0 +1,341 @@
+package benchmark;
+
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avutil.AV_LOG_ERROR;
+import static org.bytedeco.ffmpeg.global.avutil.av_log_set_level;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.GrowingFileChannel;
+import FileUtils.NativeTracker;
+import MediaOperations.ConversionOptions;
+import MediaOperations.FormatConverter;
+
+/* FollowTest : Converts an flv while a simulated recorder writes it and
+ * checks that the output stays close behind the recording.
+ *
+ * Recorder  : A thread copies a source flv tag by tag to the followed
+ *             file, every tag at the wall clock time of its timestamp
+ *             (divided by --speed). Every tag is written in two parts,
+ *             so the converter also meets half written tags. At the end
+ *             it creates the .done marker, or with --no-marker it stops
+ *             and the idle timeout ends the file.
+ * Converter : FormatConverter in follow mode on the main thread, writing
+ *             fragmented mp4.
+ *
+ * Checks :
+ *  - Lag : Sampled every 100 ms as the bytes the recorder has written
+ *    and the output does not have yet, in ms of the recording. The
+ *    maximum may not exceed --max-lag-ms. As it counts bytes it is an
+ *    estimate, good to a few percent of container overhead.
+ *  - End : The conversion has to finish within --max-lag-ms after the
+ *    recorder stopped, plus the idle timeout with --no-marker.
+ *  - Every packet of the source is in the output and no native object
+ *    is left.
+ * The process exits with 1 when a check fails.
+ *
+ * Usage : FollowTest <work directory> [--source FLV] [--seconds S]
+ *          [--speed X] [--fragment-ms N] [--idle-ms N] [--max-lag-ms N]
+ *          [--no-marker]
+ */
+public class FollowTest {
+    static final int FLV_HEADER_SIZE = 9;
+    static final int TAG_HEADER_SIZE = 11;
+    static final int PREVIOUS_TAG_SIZE = 4;
+
+    /* Writes the source flv to the followed file at the pace of its
+     * timestamps.
+     */
+    static class Recorder extends Thread {
+        byte mSource[];
+        Path mTarget;
+        double mSpeed;
+        boolean mMarker;
+        CountDownLatch mCreated = new CountDownLatch(1);
+        volatile long mWrittenBytes = 0;
+        volatile long mEndNanos = 0;
+        volatile IOException mError = null;
+
+        Recorder(byte source[], Path target, double speed, boolean marker) {
+            super("FollowTest-recorder");
+            mSource = source;
+            mTarget = target;
+            mSpeed = speed;
+            mMarker = marker;
+        }
+        @Override
+        public void run() {
+            try (FileChannel out = FileChannel.open(mTarget, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                mCreated.countDown();
+                ByteBuffer source = ByteBuffer.wrap(mSource);
+                int position = FLV_HEADER_SIZE + PREVIOUS_TAG_SIZE;
+                write(out, source, 0, position);
+                long start = System.nanoTime();
+                while (position + TAG_HEADER_SIZE <= mSource.length) {
+                    int dataSize = tagDataSize(mSource, position);
+                    long timestamp = tagTimestamp(mSource, position);
+                    int end = Math.min(position + TAG_HEADER_SIZE + dataSize + PREVIOUS_TAG_SIZE,
+                            mSource.length);
+                    long due = start + (long)(timestamp * 1000000L / mSpeed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    }
+                    // Tag header and half the payload first, a reader
+                    // can see the tag incomplete.
+                    int middle = position + TAG_HEADER_SIZE + dataSize / 2;
+                    write(out, source, position, middle);
+                    write(out, source, middle, end);
+                    position = end;
+                }
+            } catch (IOException e) {
+                mError = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mCreated.countDown();
+                mEndNanos = System.nanoTime();
+            }
+            if (mMarker && mError == null) {
+                try {
+                    Files.write(mTarget.resolveSibling(mTarget.getFileName()
+                            + GrowingFileChannel.END_MARKER_SUFFIX), new byte[0]);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        }
+        private void write(FileChannel out, ByteBuffer source, int from, int to)
+                throws IOException {
+            ByteBuffer slice = source.duplicate();
+            slice.limit(to).position(from);
+            while (slice.hasRemaining()) {
+                out.write(slice);
+            }
+            mWrittenBytes += to - from;
+        }
+    }
+
+    /* Samples the size of the output while the converter runs.
+     */
+    static class LagSampler extends Thread {
+        Recorder mRecorder;
+        File mPartFile;
+        File mOutputFile;
+        double mBytesPerMs;
+        volatile boolean mStopped = false;
+        long mMaxLagMs = 0;
+        long mSamples = 0;
+        long mLagSumMs = 0;
+
+        LagSampler(Recorder recorder, String outputFileName, double bytesPerMs) {
+            super("FollowTest-sampler");
+            setDaemon(true);
+            mRecorder = recorder;
+            mOutputFile = new File(outputFileName);
+            mPartFile = new File(outputFileName + FormatConverter.PART_FILE_SUFFIX);
+            mBytesPerMs = bytesPerMs;
+        }
+        @Override
+        public void run() {
+            while (!mStopped && mRecorder.mEndNanos == 0) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long output = Math.max(mPartFile.length(), mOutputFile.length());
+                long lagMs = (long)(Math.max(mRecorder.mWrittenBytes - output, 0) / mBytesPerMs);
+                mMaxLagMs = Math.max(mMaxLagMs, lagMs);
+                mLagSumMs += lagMs;
+                mSamples++;
+            }
+        }
+    }
+
+    /* countPackets :
+     * Input : Media file.
+     * Output : Number of packets in it, -1 when it can not be read.
+     */
+    static long countPackets(String file) {
+        AVFormatContext ctx = new AVFormatContext(null);
+        if (avformat_open_input(ctx, file, null, null) < 0) {
+            return -1;
+        }
+        long packets = -1;
+        if (avformat_find_stream_info(ctx, (PointerPointer)null) >= 0) {
+            packets = 0;
+            AVPacket p = av_packet_alloc();
+            while (av_read_frame(ctx, p) >= 0) {
+                packets++;
+                av_packet_unref(p);
+            }
+            av_packet_free(p);
+        }
+        avformat_close_input(ctx);
+        return packets;
+    }
+    static void fail(String reason) {
+        System.out.println("Follow FAILED : " + reason);
+        System.exit(1);
+    }
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage : FollowTest <work directory> [--source FLV] [--seconds S]"
+                    + " [--speed X] [--fragment-ms N] [--idle-ms N] [--max-lag-ms N]"
+                    + " [--no-marker]");
+            return;
+        }
+        Path workDirectory = Paths.get(args[0]);
+        String sourceFile = null;
+        int seconds = 20, fragmentMs = 1000, idleMs = 3000;
+        long maxLagMs = 5000;
+        double speed = 1.0;
+        boolean marker = true;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--no-marker")) {
+                marker = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                System.out.println("Missing value of " + args[i]);
+                return;
+            }
+            if (args[i].equals("--source")) {
+                sourceFile = args[++i];
+            } else if (args[i].equals("--seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--speed")) {
+                speed = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--fragment-ms")) {
+                fragmentMs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--idle-ms")) {
+                idleMs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--max-lag-ms")) {
+                maxLagMs = Long.parseLong(args[++i]);
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        av_log_set_level(AV_LOG_ERROR);
+        Path source = (sourceFile != null) ? Paths.get(sourceFile) :
+                FixtureGenerator.generate(workDirectory.resolve("fixtures"),
+                        new FixtureGenerator.Fixture(640, 360, 25, 800000, seconds));
+        Path followDirectory = workDirectory.resolve("follow");
+        Path outputDirectory = followDirectory.resolve("output");
+        Files.createDirectories(outputDirectory);
+        Path target = followDirectory.resolve("recording.flv");
+        Files.deleteIfExists(target.resolveSibling(target.getFileName()
+                + GrowingFileChannel.END_MARKER_SUFFIX));
+        // The lag is taken from the output size, an old output would hide it.
+        Path output = outputDirectory.resolve("recording.mp4");
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(Paths.get(output + FormatConverter.PART_FILE_SUFFIX));
+
+        byte bytes[] = Files.readAllBytes(source);
+        long sourcePackets = countPackets(source.toString());
+        long durationMs = Math.max(1, (long)(countDurationMs(bytes) / speed));
+        Recorder recorder = new Recorder(bytes, target, speed, marker);
+        recorder.start();
+        recorder.mCreated.await();
+
+        ConversionOptions options = new ConversionOptions();
+        options.setFollowInput(true, idleMs);
+        options.setOutputMode(ConversionOptions.OutputMode.FRAGMENTED);
+        options.setFragmentDurationMs(fragmentMs);
+        FormatConverter c = new FormatConverter(target.toString(),
+                outputDirectory.toString(), "mp4");
+        c.setOptions(options);
+        LagSampler sampler = null;
+        boolean converted;
+        try {
+            converted = c.init();
+            if (converted) {
+                sampler = new LagSampler(recorder, c.getOutputFileName(),
+                        bytes.length / (double)durationMs);
+                sampler.start();
+                converted = c.convert();
+            }
+        } finally {
+            c.close();
+        }
+        long doneNanos = System.nanoTime();
+        recorder.join();
+        if (sampler != null) {
+            sampler.mStopped = true;
+            sampler.join();
+        }
+        if (recorder.mError != null) {
+            fail("Recorder failed : " + recorder.mError);
+        }
+        if (!converted) {
+            fail("Unable to convert " + target);
+        }
+        long endLagMs = (doneNanos - recorder.mEndNanos) / 1000000;
+        long outputPackets = countPackets(c.getOutputFileName());
+        System.out.printf("Follow : %d ms recorded, lag max %d ms average %d ms,"
+                + " done %d ms after the recorder, packets %d of %d%n",
+                durationMs, sampler.mMaxLagMs,
+                sampler.mSamples > 0 ? sampler.mLagSumMs / sampler.mSamples : 0,
+                endLagMs, outputPackets, sourcePackets);
+        if (sampler.mMaxLagMs > maxLagMs) {
+            fail("Output lagged " + sampler.mMaxLagMs + " ms behind the recorder");
+        }
+        if (endLagMs > maxLagMs + (marker ? 0 : idleMs)) {
+            fail("Conversion ended " + endLagMs + " ms after the recorder");
+        }
+        if (outputPackets != sourcePackets) {
+            fail("Output has " + outputPackets + " packets, the source " + sourcePackets);
+        }
+        if (NativeTracker.getTotalLive() != 0) {
+            fail(NativeTracker.getTotalLive() + " native objects left");
+        }
+        System.out.println("Follow passed");
+    }
+    /* countDurationMs :
+     * Input : flv file.
+     * Output : Timestamp of its last tag in ms.
+     */
+    static long countDurationMs(byte flv[]) {
+        int position = FLV_HEADER_SIZE + PREVIOUS_TAG_SIZE;
+        long last = 0;
+        while (position + TAG_HEADER_SIZE <= flv.length) {
+            last = tagTimestamp(flv, position);
+            position += TAG_HEADER_SIZE + tagDataSize(flv, position) + PREVIOUS_TAG_SIZE;
+        }
+        return last;
+    }
+    // Payload size and timestamp from the tag header at position, see
+    // FileUtils.FlvKeyframeIndex.
+    static int tagDataSize(byte flv[], int position) {
+        return ((flv[position + 1] & 0xff) << 16) |
+               ((flv[position + 2] & 0xff) << 8) |
+               (flv[position + 3] & 0xff);
+    }
+    static long tagTimestamp(byte flv[], int position) {
+        return ((flv[position + 7] & 0xffL) << 24) |
+               ((flv[position + 4] & 0xffL) << 16) |
+               ((flv[position + 5] & 0xffL) << 8) |
+               (flv[position + 6] & 0xffL);
+    }
+}
@@ -0,0 +1,247 @@
+package benchmark;
+
+import static org.bytedeco.ffmpeg.global.avutil.AV_LOG_ERROR;
+import static org.bytedeco.ffmpeg.global.avutil.av_log_set_level;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bytedeco.javacpp.Pointer;
+
+import FileUtils.NativeTracker;
+import MediaOperations.ConversionOptions;
+import MediaOperations.FormatConverter;
+import MediaOperations.FormatConverterWithTranscoding;
+import codec.FrameCallback;
+import codec.FrameExtractor;
+import codec.ScalerCache;
+
+/* SoakTest : Converts generated fixtures in a loop and fails when native
+ * memory leaks. This is the robustness test of FlvToMp4.
+ *
+ * Every round goes through the success and the failure paths which own
+ * native objects :
+ *  remux      : FormatConverter init() and convert() of every fixture.
+ *  probe      : init() and close(), no conversion.
+ *  decode     : Every frame of the first fixture through FrameExtractor.
+ *  bad input  : A file which is not media, avformat_open_input fails.
+ *  truncated  : The first third of a fixture.
+ *  bad output : The output directory is a file, opening the output fails
+ *               after the input and the streams are set up.
+ *  transcode  : FormatConverterWithTranscoding of the first fixture, every
+ *               --transcode-every rounds as it is slow.
+ *
+ * Checks :
+ *  - After every round NativeTracker has to be back at 0 live objects.
+ *    ScalerCache is cleared first, its idle contexts are not leaks.
+ *    This catches a leaked context or frame in the round it happens.
+ *  - The resident size and the javacpp tracked memory are sampled after
+ *    every round past the warm up. The median of the last tenth of the
+ *    samples may not exceed the median of the first tenth by more than
+ *    --max-growth MB. This catches what is not tracked, e.g. buffers
+ *    av_malloc'ed inside ffmpeg.
+ * The process exits with 1 when a check fails.
+ *
+ * Usage : SoakTest <work directory> [--rounds N] [--warmup N] [--seconds S]
+ *          [--transcode-every N] [--max-growth MB] [--report N]
+ */
+public class SoakTest {
+    static final FrameCallback DISCARD = new FrameCallback() {
+        @Override
+        public void onFrame(ByteBuffer pixels, int width, int height,
+                            int lineSize, long pts) {
+        }
+    };
+
+    List<Path> mFixtures = new ArrayList<Path>();
+    Path mGarbage = null;
+    Path mTruncated = null;
+    Path mOutputDirectory = null;
+    Path mBlockedDirectory = null;
+    long mConversions = 0;
+
+    /* prepare :
+     * Input : Work directory and the duration of the fixtures.
+     * Output : none.
+     *
+     * Desc : Generates the fixtures and writes the broken inputs.
+     */
+    void prepare(Path workDirectory, int seconds) throws IOException {
+        Path fixtureDirectory = workDirectory.resolve("fixtures");
+        mFixtures.add(FixtureGenerator.generate(fixtureDirectory,
+                new FixtureGenerator.Fixture(320, 240, 25, 300000, seconds)));
+        mFixtures.add(FixtureGenerator.generate(fixtureDirectory,
+                new FixtureGenerator.Fixture(640, 360, 25, 800000, seconds)));
+        Path soakDirectory = workDirectory.resolve("soak");
+        mOutputDirectory = soakDirectory.resolve("output");
+        Files.createDirectories(mOutputDirectory);
+        byte garbage[] = new byte[64 * 1024];
+        new Random(1).nextBytes(garbage);
+        mGarbage = soakDirectory.resolve("garbage.flv");
+        Files.write(mGarbage, garbage);
+        byte fixture[] = Files.readAllBytes(mFixtures.get(0));
+        mTruncated = soakDirectory.resolve("truncated.flv");
+        Files.write(mTruncated, Arrays.copyOf(fixture, fixture.length / 3));
+        // A file where a directory is expected, the output can not be opened.
+        mBlockedDirectory = soakDirectory.resolve("blocked");
+        Files.write(mBlockedDirectory, new byte[0]);
+    }
+    /* round :
+     * Input : True to run the transcode case in this round.
+     * Output : Error message, null when every case behaved.
+     */
+    String round(boolean transcode) throws IOException {
+        for (Path fixture : mFixtures) {
+            if (!remux(fixture, mOutputDirectory)) {
+                return "Unable to remux " + fixture;
+            }
+            try (FormatConverter c = newConverter(fixture, mOutputDirectory)) {
+                if (!c.init()) {
+                    return "Unable to probe " + fixture;
+                }
+            }
+        }
+        try (FrameExtractor e = new FrameExtractor(mFixtures.get(0).toString())) {
+            if (!e.open() || e.extract(DISCARD) == 0) {
+                return "Unable to decode " + mFixtures.get(0);
+            }
+        }
+        if (remux(mGarbage, mOutputDirectory)) {
+            return "Converted " + mGarbage + " which is not a media file";
+        }
+        // May convert a part of the file or fail, both are fine.
+        remux(mTruncated, mOutputDirectory);
+        if (remux(mFixtures.get(0), mBlockedDirectory)) {
+            return "Converted into " + mBlockedDirectory + " which is a file";
+        }
+        if (transcode) {
+            ConversionOptions options = new ConversionOptions();
+            options.setTranscoding(true);
+            try (FormatConverterWithTranscoding t = new FormatConverterWithTranscoding(
+                    mFixtures.get(0).toString(), mOutputDirectory.toString(), "mp4")) {
+                t.setOptions(options);
+                mConversions++;
+                if (!t.init() || !t.convert()) {
+                    return "Unable to transcode " + mFixtures.get(0);
+                }
+            }
+        }
+        return null;
+    }
+    private FormatConverter newConverter(Path input, Path outputDirectory) {
+        return new FormatConverter(input.toString(), outputDirectory.toString(), "mp4");
+    }
+    private boolean remux(Path input, Path outputDirectory) {
+        mConversions++;
+        try (FormatConverter c = newConverter(input, outputDirectory)) {
+            return c.init() && c.convert();
+        }
+    }
+    /* median :
+     * Input : Samples and the range [from, to) of them.
+     * Output : Median of the range.
+     */
+    static long median(long samples[], int from, int to) {
+        long range[] = Arrays.copyOfRange(samples, from, to);
+        Arrays.sort(range);
+        return range[range.length / 2];
+    }
+    /* growth :
+     * Input : Samples in the order they were taken.
+     * Output : Median of the last tenth minus the median of the first
+     *          tenth, at least 5 samples each.
+     */
+    static long growth(long samples[]) {
+        int window = Math.min(Math.max(samples.length / 10, 5), samples.length);
+        return median(samples, samples.length - window, samples.length)
+                - median(samples, 0, window);
+    }
+    static void fail(String reason) {
+        System.out.println("Soak FAILED : " + reason);
+        System.exit(1);
+    }
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage : SoakTest <work directory> [--rounds N] [--warmup N]"
+                    + " [--seconds S] [--transcode-every N] [--max-growth MB] [--report N]");
+            return;
+        }
+        int rounds = 500, warmup = 20, seconds = 2, transcodeEvery = 10, report = 50;
+        long maxGrowthMb = 32;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--rounds")) {
+                rounds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--warmup")) {
+                warmup = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--seconds")) {
+                seconds = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--transcode-every")) {
+                // 0 leaves the transcode case out.
+                transcodeEvery = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--max-growth")) {
+                maxGrowthMb = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("--report")) {
+                report = Integer.parseInt(args[i + 1]);
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+        if (rounds < 1) {
+            System.out.println("--rounds has to be 1 or more");
+            return;
+        }
+        av_log_set_level(AV_LOG_ERROR);
+        SoakTest soak = new SoakTest();
+        soak.prepare(Paths.get(args[0]), seconds);
+
+        long resident[] = new long[rounds];
+        long tracked[] = new long[rounds];
+        long start = System.nanoTime();
+        for (int i = 0; i < warmup + rounds; i++) {
+            String error = soak.round(transcodeEvery > 0 && i % transcodeEvery == 0);
+            if (error != null) {
+                fail("round " + i + " : " + error);
+            }
+            ScalerCache.clear();
+            if (NativeTracker.getTotalLive() != 0) {
+                fail("round " + i + " : native objects not freed "
+                        + NativeTracker.getLiveCounts());
+            }
+            if (i < warmup) {
+                continue;
+            }
+            // Lets javacpp free the memory of unreachable pointers.
+            System.gc();
+            int sample = i - warmup;
+            resident[sample] = Pointer.physicalBytes();
+            tracked[sample] = Pointer.totalBytes();
+            if (report > 0 && (sample + 1) % report == 0) {
+                System.out.printf("Soak : round %d, %d conversions, resident = %d KB,"
+                        + " native tracked = %d KB, native objects allocated = %d%n",
+                        sample + 1, soak.mConversions, resident[sample] / 1024,
+                        tracked[sample] / 1024, NativeTracker.getAllocated());
+            }
+        }
+        double minutes = (System.nanoTime() - start) / 60e9;
+        long residentGrowth = growth(resident);
+        long trackedGrowth = growth(tracked);
+        System.out.printf("Soak : %d rounds, %d conversions in %.1f min,"
+                + " resident growth = %d KB, native tracked growth = %d KB%n",
+                rounds, soak.mConversions, minutes, residentGrowth / 1024, trackedGrowth / 1024);
+        if (residentGrowth > maxGrowthMb * 1024 * 1024) {
+            fail("resident size grew by " + residentGrowth / 1024 + " KB");
+        }
+        if (trackedGrowth > maxGrowthMb * 1024 * 1024) {
+            fail("native memory tracked by javacpp grew by " + trackedGrowth / 1024 + " KB");
+        }
+        System.out.println("Soak passed");
+    }
+}
@@ -0,0 +1,266 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.AV_SAMPLE_FMT_FLTP;
+import static org.bytedeco.ffmpeg.global.avutil.av_audio_fifo_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_audio_fifo_drain;
+import static org.bytedeco.ffmpeg.global.avutil.av_audio_fifo_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_audio_fifo_read;
+import static org.bytedeco.ffmpeg.global.avutil.av_audio_fifo_size;
+import static org.bytedeco.ffmpeg.global.avutil.av_audio_fifo_write;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_get_buffer;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_make_writable;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_unref;
+import static org.bytedeco.ffmpeg.global.avutil.av_get_default_channel_layout;
+import static org.bytedeco.ffmpeg.global.avutil.av_make_q;
+import static org.bytedeco.ffmpeg.global.avutil.av_rescale_q;
+import static org.bytedeco.ffmpeg.global.swresample.swr_alloc_set_opts;
+import static org.bytedeco.ffmpeg.global.swresample.swr_convert_frame;
+import static org.bytedeco.ffmpeg.global.swresample.swr_free;
+import static org.bytedeco.ffmpeg.global.swresample.swr_get_delay;
+import static org.bytedeco.ffmpeg.global.swresample.swr_init;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avutil.AVAudioFifo;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swresample.SwrContext;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.NativeTracker;
+
+/* This class transcodes an audio stream to AAC.
+ *
+ * The decoded samples are resampled to the sample format of the encoder
+ * and, when the encoder does not support the input rate, to 44100 Hz.
+ * The AAC encoder takes frames of exactly frame_size samples, while e.g.
+ * Nellymoser gives out 256 and Speex 320 samples per frame, so the samples
+ * are collected in an AVAudioFifo and taken out in encoder sized frames.
+ *
+ * Timestamps : The first frame keeps the pts of the first decoded frame,
+ * so a stream which starts late still starts late. From there the pts
+ * counts samples, in the 1/sample_rate time base of the encoder. Every
+ * decoded frame is checked against that count, see anchor(), so a gap
+ * in the input, e.g. dropped Nellymoser or Speex packets, does not put
+ * the audio out of sync with the video.
+ */
+public class AudioTranscoder extends StreamTranscoder {
+    public static final int FALLBACK_SAMPLE_RATE = 44100;
+
+    SwrContext mResampler = null;
+    AVAudioFifo mFifo = null;
+    AVFrame mResampledFrame = null;
+    AVFrame mEncoderFrame = null;
+    long mNextPts = AV_NOPTS_VALUE;
+
+    /* constuctor :
+     * Input : How the stream is encoded.
+     */
+    public AudioTranscoder(EncoderSettings settings) {
+        super(settings);
+    }
+    @Override
+    protected AVCodec findEncoder() {
+        AVCodec encoder = avcodec_find_encoder(AV_CODEC_ID_AAC);
+        if (encoder == null) {
+            System.out.println("No AAC encoder in this ffmpeg build");
+        }
+        return encoder;
+    }
+    @Override
+    protected boolean configureEncoder(AVFormatContext inputFmtCtx, AVCodec encoder) {
+        int channels = mDecoderContext.channels();
+        int inputRate = mDecoderContext.sample_rate();
+        if (channels <= 0 || inputRate <= 0) {
+            System.out.println("Audio format of the input is not known");
+            return false;
+        }
+        int sampleRate = isSupportedRate(encoder, inputRate) ? inputRate : FALLBACK_SAMPLE_RATE;
+        int sampleFormat = (encoder.sample_fmts() != null) ?
+                encoder.sample_fmts().get(0) : AV_SAMPLE_FMT_FLTP;
+        long layout = av_get_default_channel_layout(Math.min(channels, 2));
+        mEncoderContext.sample_rate(sampleRate);
+        mEncoderContext.sample_fmt(sampleFormat);
+        mEncoderContext.channels(Math.min(channels, 2));
+        mEncoderContext.channel_layout(layout);
+        mEncoderContext.time_base(av_make_q(1, sampleRate));
+        mEncoderContext.bit_rate(mSettings.getAudioBitRate());
+
+        long inputLayout = (mDecoderContext.channel_layout() != 0) ?
+                mDecoderContext.channel_layout() : av_get_default_channel_layout(channels);
+        mResampler = swr_alloc_set_opts(null, layout, sampleFormat, sampleRate,
+                inputLayout, mDecoderContext.sample_fmt(), inputRate, 0, null);
+        if (mResampler != null) {
+            NativeTracker.allocated(NativeTracker.SWR_CONTEXT);
+        }
+        if (mResampler == null || swr_init(mResampler) < 0) {
+            System.out.println("Unable to resample audio of " + inputRate + " Hz");
+            return false;
+        }
+        mFifo = av_audio_fifo_alloc(sampleFormat, Math.min(channels, 2), 4096);
+        if (mFifo == null) {
+            return false;
+        }
+        NativeTracker.allocated(NativeTracker.AUDIO_FIFO);
+        mResampledFrame = av_frame_alloc();
+        NativeTracker.allocated(NativeTracker.FRAME);
+        mEncoderFrame = av_frame_alloc();
+        NativeTracker.allocated(NativeTracker.FRAME);
+        return true;
+    }
+    private static boolean isSupportedRate(AVCodec encoder, int sampleRate) {
+        IntPointer rates = encoder.supported_samplerates();
+        if (rates == null || rates.isNull()) {
+            // Any rate.
+            return true;
+        }
+        for (int i = 0; rates.get(i) != 0; i++) {
+            if (rates.get(i) == sampleRate) {
+                return true;
+            }
+        }
+        return false;
+    }
+    @Override
+    protected boolean encodeFrame(AVFrame frame) {
+        anchor(frame);
+        return resample(frame) && encodeFifo(false);
+    }
+    /* anchor :
+     * Input : Decoded frame, before it is resampled.
+     * Output : none.
+     *
+     * Desc : The samples taken in so far, encoded or still in the fifo
+     * and the resampler, end where this frame should start. When the
+     * frame starts more than one encoder frame later, mNextPts jumps
+     * over the gap. When it starts that much earlier, the overlapping
+     * samples still in the fifo are dropped, the pts never go back.
+     */
+    private void anchor(AVFrame frame) {
+        long pts = frame.best_effort_timestamp();
+        if (pts == AV_NOPTS_VALUE) {
+            if (mNextPts == AV_NOPTS_VALUE) {
+                mNextPts = 0;
+            }
+            return;
+        }
+        long framePts = av_rescale_q(pts, mInputStream.time_base(), mEncoderContext.time_base());
+        if (mNextPts == AV_NOPTS_VALUE) {
+            mNextPts = framePts;
+            return;
+        }
+        // In the encoder rate, the same as the time base.
+        long queued = av_audio_fifo_size(mFifo)
+                + swr_get_delay(mResampler, mEncoderContext.sample_rate());
+        long drift = framePts - (mNextPts + queued);
+        if (Math.abs(drift) <= getFrameSize()) {
+            // Rounding of the input timestamps.
+            return;
+        }
+        if (drift > 0) {
+            mNextPts += drift;
+        } else {
+            av_audio_fifo_drain(mFifo, (int)Math.min(-drift, av_audio_fifo_size(mFifo)));
+        }
+    }
+    @Override
+    protected boolean drain() {
+        // null flushes the samples the resampler still holds.
+        return resample(null) && encodeFifo(true);
+    }
+    /* resample :
+     * Input : Decoded frame, null at the end of the stream.
+     * Output : True when the converted samples are in the fifo.
+     */
+    private boolean resample(AVFrame frame) {
+        mResampledFrame.format(mEncoderContext.sample_fmt());
+        mResampledFrame.channel_layout(mEncoderContext.channel_layout());
+        mResampledFrame.sample_rate(mEncoderContext.sample_rate());
+        int ret = swr_convert_frame(mResampler, mResampledFrame, frame);
+        if (ret < 0) {
+            System.out.println("AudioTranscoder : Error in resampling " + ret);
+            return false;
+        }
+        int samples = mResampledFrame.nb_samples();
+        boolean ok = samples <= 0 ||
+                av_audio_fifo_write(mFifo, mResampledFrame.extended_data(), samples) == samples;
+        av_frame_unref(mResampledFrame);
+        return ok;
+    }
+    /* encodeFifo :
+     * Input : True at the end of the stream, a last shorter frame is sent.
+     * Output : True when the frames are encoded.
+     */
+    private boolean encodeFifo(boolean last) {
+        int frameSize = getFrameSize();
+        while (av_audio_fifo_size(mFifo) >= frameSize ||
+               (last && av_audio_fifo_size(mFifo) > 0)) {
+            int samples = Math.min(frameSize, av_audio_fifo_size(mFifo));
+            if (!allocateEncoderFrame(samples)) {
+                return false;
+            }
+            PointerPointer<?> data = mEncoderFrame.extended_data();
+            if (av_audio_fifo_read(mFifo, data, samples) < samples) {
+                return false;
+            }
+            mEncoderFrame.pts(mNextPts);
+            mNextPts += samples;
+            if (!sendFrame(mEncoderFrame)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    /* getFrameSize :
+     * Output : Samples in one frame of the encoder.
+     */
+    private int getFrameSize() {
+        int frameSize = mEncoderContext.frame_size();
+        // 0 when the encoder takes any size.
+        return (frameSize > 0) ? frameSize : 1024;
+    }
+    /* allocateEncoderFrame :
+     * Desc : Reuses mEncoderFrame when it has the size and the encoder
+     * does not hold it any more.
+     */
+    private boolean allocateEncoderFrame(int samples) {
+        if (mEncoderFrame.nb_samples() != samples) {
+            av_frame_unref(mEncoderFrame);
+            mEncoderFrame.nb_samples(samples);
+            mEncoderFrame.format(mEncoderContext.sample_fmt());
+            mEncoderFrame.channel_layout(mEncoderContext.channel_layout());
+            mEncoderFrame.sample_rate(mEncoderContext.sample_rate());
+            return av_frame_get_buffer(mEncoderFrame, 0) >= 0;
+        }
+        return av_frame_make_writable(mEncoderFrame) >= 0;
+    }
+    @Override
+    public void close() {
+        if (mResampler != null) {
+            swr_free(mResampler);
+            NativeTracker.freed(NativeTracker.SWR_CONTEXT);
+            mResampler = null;
+        }
+        if (mFifo != null) {
+            av_audio_fifo_free(mFifo);
+            NativeTracker.freed(NativeTracker.AUDIO_FIFO);
+            mFifo = null;
+        }
+        if (mResampledFrame != null) {
+            av_frame_free(mResampledFrame);
+            NativeTracker.freed(NativeTracker.FRAME);
+            mResampledFrame = null;
+        }
+        if (mEncoderFrame != null) {
+            av_frame_free(mEncoderFrame);
+            NativeTracker.freed(NativeTracker.FRAME);
+            mEncoderFrame = null;
+        }
+        super.close();
+    }
+}
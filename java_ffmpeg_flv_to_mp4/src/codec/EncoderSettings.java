@@ -0,0 +1,93 @@
+package codec;
+
+/* This class describes how a StreamTranscoder encodes.
+ *
+ * Video encoder : Looked up by name, libx264 by default. When the ffmpeg
+ *                 build does not have it, the default H.264 encoder of
+ *                 the build is used instead.
+ * Preset : Speed / size trade off of the encoder, e.g. "veryfast".
+ *          Ignored by encoders without a preset option.
+ * Quality : With a CRF of 0 or more the encoder keeps a constant quality.
+ *           A video bit rate, or an encoder without CRF, gives a target
+ *           bit rate instead.
+ * Threads : Threads of the decoder and the encoder of every stream,
+ *           0 for one per core. Frame and slice threading are both
+ *           enabled, the codec picks what it supports.
+ */
+public class EncoderSettings {
+    public static final String DEFAULT_VIDEO_ENCODER = "libx264";
+    public static final String DEFAULT_PRESET = "veryfast";
+    public static final int DEFAULT_CRF = 23;
+    public static final long DEFAULT_AUDIO_BIT_RATE = 128000;
+
+    String mVideoEncoder = DEFAULT_VIDEO_ENCODER;
+    String mPreset = DEFAULT_PRESET;
+    int mCrf = DEFAULT_CRF;
+    long mVideoBitRate = 0;
+    long mAudioBitRate = DEFAULT_AUDIO_BIT_RATE;
+    int mThreads = 0;
+
+    /* setVideoEncoder :
+     * Input : Name of the ffmpeg encoder, e.g. "libx264", "libopenh264".
+     * Output : none.
+     */
+    public void setVideoEncoder(String name) {
+        mVideoEncoder = name;
+    }
+    public String getVideoEncoder() {
+        return mVideoEncoder;
+    }
+    public void setPreset(String preset) {
+        mPreset = preset;
+    }
+    public String getPreset() {
+        return mPreset;
+    }
+    /* setCrf :
+     * Input : Constant rate factor, lower is better. -1 to use a bit rate.
+     * Output : none.
+     */
+    public void setCrf(int crf) {
+        mCrf = crf;
+    }
+    public int getCrf() {
+        return mCrf;
+    }
+    /* setVideoBitRate :
+     * Input : Target video bit rate in bits per second. Replaces the CRF.
+     *         0 for CRF, or a rate worked out from the frame size when
+     *         the encoder has no CRF.
+     * Output : none.
+     */
+    public void setVideoBitRate(long bitRate) {
+        mVideoBitRate = bitRate;
+        if (bitRate > 0) {
+            mCrf = -1;
+        }
+    }
+    public long getVideoBitRate() {
+        return mVideoBitRate;
+    }
+    public void setAudioBitRate(long bitRate) {
+        mAudioBitRate = bitRate;
+    }
+    public long getAudioBitRate() {
+        return mAudioBitRate;
+    }
+    /* setThreads :
+     * Input : Threads of every decoder and encoder, 0 for one per core.
+     * Output : none.
+     */
+    public void setThreads(int threads) {
+        mThreads = threads;
+    }
+    public int getThreads() {
+        return mThreads;
+    }
+    @Override
+    public String toString() {
+        return mVideoEncoder + " preset " + mPreset +
+               ((mCrf >= 0) ? " crf " + mCrf : " bit rate " + mVideoBitRate) +
+               " threads " + ((mThreads == 0) ? "auto" : Integer.toString(mThreads));
+    }
+}
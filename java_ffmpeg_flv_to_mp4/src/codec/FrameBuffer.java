@@ -0,0 +1,118 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.avutil.av_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_image_fill_arrays;
+import static org.bytedeco.ffmpeg.global.avutil.av_image_get_buffer_size;
+import static org.bytedeco.ffmpeg.global.avutil.av_malloc;
+
+import java.nio.ByteBuffer;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+/* This class is an off-heap image buffer of a fixed size and pixel
+ * format, taken from and given back to FrameBufferPool.
+ *
+ * The planes are packed one after the other without padding, so the
+ * whole image is one block of native memory. getPixels() is a direct
+ * ByteBuffer over that block, created once with the buffer, so a frame
+ * can be written to a FileChannel without copying it to the heap.
+ */
+public class FrameBuffer {
+    int mWidth = 0;
+    int mHeight = 0;
+    int mPixelFormat = -1;
+    int mSize = 0;
+    long mPts = 0;
+    BytePointer mMemory = null;
+    PointerPointer<BytePointer> mData = null;
+    IntPointer mLinesize = null;
+    ByteBuffer mPixels = null;
+
+    // Only used for the end markers of the FramePipeline queues.
+    FrameBuffer() {
+    }
+    /* allocate :
+     * Input : Size and pixel format of the image.
+     * Output : New buffer, null when the format is not known or there is
+     *          no memory.
+     */
+    static FrameBuffer allocate(int width, int height, int pixelFormat) {
+        int size = av_image_get_buffer_size(pixelFormat, width, height, 1);
+        if (size <= 0) {
+            return null;
+        }
+        BytePointer memory = new BytePointer(av_malloc(size));
+        if (memory.isNull()) {
+            return null;
+        }
+        FrameBuffer buffer = new FrameBuffer();
+        buffer.mWidth = width;
+        buffer.mHeight = height;
+        buffer.mPixelFormat = pixelFormat;
+        buffer.mSize = size;
+        buffer.mMemory = memory;
+        buffer.mData = new PointerPointer<BytePointer>(4);
+        buffer.mLinesize = new IntPointer(4);
+        av_image_fill_arrays(buffer.mData, buffer.mLinesize, memory,
+                             pixelFormat, width, height, 1);
+        buffer.mPixels = memory.capacity(size).asByteBuffer();
+        return buffer;
+    }
+    /* free :
+     * Desc : Frees the native memory. Called by the pool only.
+     */
+    void free() {
+        av_free(mMemory);
+        mMemory = null;
+        mData.deallocate();
+        mLinesize.deallocate();
+        mPixels = null;
+    }
+    public int getWidth() {
+        return mWidth;
+    }
+    public int getHeight() {
+        return mHeight;
+    }
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+    /* getPts :
+     * Input : none.
+     * Output : Presentation time of the frame held, in the stream time base.
+     */
+    public long getPts() {
+        return mPts;
+    }
+    public void setPts(long pts) {
+        mPts = pts;
+    }
+    /* getData :
+     * Input : none.
+     * Output : Plane pointers, to be passed to sws_scale.
+     */
+    public PointerPointer<BytePointer> getData() {
+        return mData;
+    }
+    public IntPointer getLinesize() {
+        return mLinesize;
+    }
+    /* getLineSize :
+     * Input : Plane index.
+     * Output : Bytes from the start of one row of the plane to the next.
+     */
+    public int getLineSize(int plane) {
+        return mLinesize.get(plane);
+    }
+    /* getPixels :
+     * Input : none.
+     * Output : Direct view over the whole image, position 0 and limit at
+     *          the end of the last plane.
+     */
+    public ByteBuffer getPixels() {
+        mPixels.clear();
+        return mPixels;
+    }
+}
@@ -0,0 +1,112 @@
+package codec;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/* This class keeps FrameBuffers for reuse.
+ *
+ * Decoding a stream needs output buffers of the same size and format
+ * for every frame, and a batch of recordings from the same cameras only
+ * a few sizes. Buffers are kept per (size, format) key, so once the
+ * first frames are through, acquire() hands out a buffer which was
+ * used before and nothing is allocated per frame.
+ *
+ * At most MAX_IDLE_PER_KEY buffers are kept per key, more are freed on
+ * release(). The pool is shared by all the decoders and pipelines of
+ * the process. There are only a few keys, so they are searched in a
+ * list, which needs no key object per call.
+ */
+public class FrameBufferPool {
+    public static final int MAX_IDLE_PER_KEY = 32;
+
+    /* Idle buffers of one size and format.
+     */
+    static class Shelf {
+        int mWidth = 0;
+        int mHeight = 0;
+        int mPixelFormat = -1;
+        ArrayDeque<FrameBuffer> mBuffers = new ArrayDeque<FrameBuffer>();
+    }
+
+    static final List<Shelf> sShelves = new ArrayList<Shelf>();
+    static long sAllocated = 0;
+    static long sReused = 0;
+    static long sFreed = 0;
+
+    /* acquire :
+     * Input : Size and pixel format of the image.
+     * Output : Buffer for exclusive use, null when it can not be
+     *          allocated. Has to be given back with release().
+     */
+    public static FrameBuffer acquire(int width, int height, int pixelFormat) {
+        synchronized (FrameBufferPool.class) {
+            Shelf shelf = findShelf(width, height, pixelFormat);
+            if (shelf != null && !shelf.mBuffers.isEmpty()) {
+                sReused++;
+                return shelf.mBuffers.pop();
+            }
+            sAllocated++;
+        }
+        // Allocated outside the lock, other threads keep reusing meanwhile.
+        return FrameBuffer.allocate(width, height, pixelFormat);
+    }
+    /* release :
+     * Input : Buffer from acquire(), or null. Not to be used afterwards.
+     * Output : none.
+     */
+    public static void release(FrameBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (FrameBufferPool.class) {
+            Shelf shelf = findShelf(buffer.mWidth, buffer.mHeight, buffer.mPixelFormat);
+            if (shelf == null) {
+                shelf = new Shelf();
+                shelf.mWidth = buffer.mWidth;
+                shelf.mHeight = buffer.mHeight;
+                shelf.mPixelFormat = buffer.mPixelFormat;
+                sShelves.add(shelf);
+            }
+            if (shelf.mBuffers.size() < MAX_IDLE_PER_KEY) {
+                shelf.mBuffers.push(buffer);
+                return;
+            }
+            sFreed++;
+        }
+        buffer.free();
+    }
+    /* clear :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees all the idle buffers.
+     */
+    public static synchronized void clear() {
+        for (Shelf shelf : sShelves) {
+            for (FrameBuffer buffer : shelf.mBuffers) {
+                buffer.free();
+                sFreed++;
+            }
+        }
+        sShelves.clear();
+    }
+    public static synchronized String getStats() {
+        int idle = 0;
+        for (Shelf shelf : sShelves) {
+            idle += shelf.mBuffers.size();
+        }
+        return "allocated = " + sAllocated + " reused = " + sReused +
+               " freed = " + sFreed + " idle = " + idle;
+    }
+    private static Shelf findShelf(int width, int height, int pixelFormat) {
+        for (int i = 0; i < sShelves.size(); i++) {
+            Shelf shelf = sShelves.get(i);
+            if (shelf.mWidth == width && shelf.mHeight == height &&
+                shelf.mPixelFormat == pixelFormat) {
+                return shelf;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,22 @@
+package codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* Receives the frames extracted by PacketDecoder.
+ */
+public interface FrameCallback {
+    /* onFrame :
+     * Input :
+     *  Pixels in the output format of the decoder, RGB24 by default.
+     *  Planes of planar formats follow each other. A direct view over
+     *  the native frame buffer, only valid during the call. Copy out
+     *  what has to be kept.
+     *  Width and height of the frame in pixels.
+     *  Bytes from the start of one row to the next.
+     *  Presentation time of the frame in the stream time base.
+     * Output : none.
+     */
+    void onFrame(ByteBuffer pixels, int width, int height,
+                 int lineSize, long pts) throws IOException;
+}
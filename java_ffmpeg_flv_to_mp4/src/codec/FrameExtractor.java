@@ -0,0 +1,284 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_PKT_FLAG_KEY;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avformat.AVSEEK_FLAG_BACKWARD;
+import static org.bytedeco.ffmpeg.global.avformat.av_find_best_stream;
+import static org.bytedeco.ffmpeg.global.avformat.av_read_frame;
+import static org.bytedeco.ffmpeg.global.avformat.av_seek_frame;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_close_input;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_find_stream_info;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_open_input;
+import static org.bytedeco.ffmpeg.global.avutil.AVMEDIA_TYPE_VIDEO;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.NativeTracker;
+
+/* This class gives out every video frame of a file as RGB24, or in the
+ * size and format set with setScaleSettings().
+ *
+ * It reads the best video stream of the file, decodes it with a
+ * PacketDecoder and flushes the decoder at the end, so no frame is
+ * lost. The frames go to a FrameCallback as direct views over the
+ * native buffer.
+ *
+ * Sampling : For thumbnails only a few frames are needed. extractKeyFrames,
+ * extractEvery and extractFirst decode only what those frames need.
+ *
+ * Usage :
+ *  try (FrameExtractor e = new FrameExtractor(file)) {
+ *      if (e.open()) { e.extract(callback); }
+ *  }
+ * close() frees everything open() got, also when open() failed half way.
+ */
+public class FrameExtractor implements AutoCloseable {
+    String mInputFileName = null;
+    AVFormatContext mInputFmtCtx = null;
+    AVStream mVideoStream = null;
+    PacketDecoder mDecoder = null;
+    int mDecoderThreads = 1;
+    ScaleSettings mScaleSettings = new ScaleSettings();
+
+    /* constuctor :
+     * Input : Media file to be read.
+     */
+    public FrameExtractor(String inputFile) {
+        mInputFileName = inputFile;
+    }
+    /* setDecoderThreads :
+     * Input : Threads of the video decoder, 0 for one per core.
+     *         Has to be set before open().
+     * Output : none.
+     */
+    public void setDecoderThreads(int threads) {
+        mDecoderThreads = threads;
+    }
+    /* setScaleSettings :
+     * Input : Size, pixel format and algorithm of the frames given out.
+     *         Has to be set before open().
+     * Output : none.
+     */
+    public void setScaleSettings(ScaleSettings settings) {
+        mScaleSettings = settings;
+    }
+    /* open :
+     * Input : none.
+     * Output : True when the file has a video stream which can be decoded.
+     */
+    public boolean open() {
+        mInputFmtCtx = new AVFormatContext(null);
+        if (avformat_open_input(mInputFmtCtx, mInputFileName, null, null) < 0) {
+            System.out.printf("Open video file %s failed \n", mInputFileName);
+            mInputFmtCtx = null;
+            return false;
+        }
+        NativeTracker.allocated(NativeTracker.FORMAT_CONTEXT);
+        if (avformat_find_stream_info(mInputFmtCtx, (PointerPointer)null) < 0) {
+            return false;
+        }
+        int index = av_find_best_stream(mInputFmtCtx, AVMEDIA_TYPE_VIDEO, -1, -1,
+                (AVCodec)null, 0);
+        if (index < 0) {
+            System.out.println("No video stream in file " + mInputFileName);
+            return false;
+        }
+        mVideoStream = mInputFmtCtx.streams(index);
+        mDecoder = new PacketDecoder(mVideoStream.codecpar());
+        mDecoder.setVideoDecoderThreads(mDecoderThreads);
+        mDecoder.setScaleSettings(mScaleSettings);
+        if (!mDecoder.initDecoders()) {
+            System.out.println("Unable to open video decoder for file " + mInputFileName);
+            return false;
+        }
+        return true;
+    }
+    /* getTimeBase :
+     * Input : none.
+     * Output : Time base of the pts given to the callback. Valid after open().
+     */
+    public AVRational getTimeBase() {
+        return mVideoStream.time_base();
+    }
+    /* extract :
+     * Input : Callback which receives every frame.
+     * Output : Number of frames given to the callback.
+     *
+     * Desc : Reads the file till the end and flushes the decoder.
+     */
+    public long extract(FrameCallback callback) throws IOException {
+        LimitedCallback all = new LimitedCallback(callback, Long.MAX_VALUE);
+        decodeStream(all, false);
+        return all.getCount();
+    }
+    /* extractKeyFrames :
+     * Input :
+     *  Callback which receives the frames.
+     *  Maximum number of frames.
+     * Output : Number of frames given to the callback.
+     *
+     * Desc : Gives out key frames only. Other packets are dropped before
+     * they reach the decoder, so only the key frames are decoded.
+     */
+    public long extractKeyFrames(FrameCallback callback, long maxFrames) throws IOException {
+        LimitedCallback limited = new LimitedCallback(callback, maxFrames);
+        mDecoder.setKeyFramesOnly(true);
+        try {
+            decodeStream(limited, true);
+        } finally {
+            mDecoder.setKeyFramesOnly(false);
+            mDecoder.reset();
+        }
+        return limited.getCount();
+    }
+    /* extractFirst :
+     * Input :
+     *  Number of frames from the start of the stream.
+     *  Callback which receives the frames.
+     * Output : Number of frames given to the callback.
+     *
+     * Desc : Stops reading as soon as enough frames are decoded.
+     */
+    public long extractFirst(long frames, FrameCallback callback) throws IOException {
+        LimitedCallback limited = new LimitedCallback(callback, frames);
+        decodeStream(limited, false);
+        mDecoder.reset();
+        return limited.getCount();
+    }
+    /* extractEvery :
+     * Input :
+     *  Interval between the frames in seconds.
+     *  Callback which receives the frames.
+     *  Maximum number of frames.
+     * Output : Number of frames given to the callback.
+     *
+     * Desc : For every multiple of the interval, seeks to the key frame
+     * before it and decodes up to the first frame at or after it. Only
+     * that frame is converted and given out. Everything between the
+     * sampled frames is skipped by the seek, so a long recording costs
+     * a few GOPs of decoding per frame instead of a full decode.
+     */
+    public long extractEvery(double seconds, FrameCallback callback, long maxFrames)
+            throws IOException {
+        AVRational timeBase = mVideoStream.time_base();
+        long start = mVideoStream.start_time();
+        if (start == AV_NOPTS_VALUE) {
+            start = 0;
+        }
+        long step = Math.max(1, (long)(seconds * timeBase.den() / timeBase.num()));
+        LimitedCallback limited = new LimitedCallback(callback, maxFrames);
+        try {
+            for (long target = start; !limited.isDone(); target += step) {
+                if (av_seek_frame(mInputFmtCtx, mVideoStream.index(), target,
+                                  AVSEEK_FLAG_BACKWARD) < 0) {
+                    break;
+                }
+                mDecoder.reset();
+                mDecoder.setMinimumPts(target);
+                if (!decodeStream(new LimitedCallback(limited, 1), false)) {
+                    // Target is past the last frame.
+                    break;
+                }
+            }
+        } finally {
+            mDecoder.setMinimumPts(Long.MIN_VALUE);
+            mDecoder.reset();
+        }
+        return limited.getCount();
+    }
+    /* getDecodedFrameCount :
+     * Input : none.
+     * Output : Frames decoded so far, given out or not.
+     */
+    public long getDecodedFrameCount() {
+        return mDecoder.getDecodedFrameCount();
+    }
+    /* decodeStream :
+     * Input :
+     *  Callback which receives the frames.
+     *  True to drop the packets which are not key frames.
+     * Output : True when the callback got all its frames before the end
+     *          of the file.
+     *
+     * Desc : Reads from the current position till the callback is done.
+     * At the end of the file the decoder is flushed.
+     */
+    private boolean decodeStream(LimitedCallback callback, boolean keyFramesOnly)
+            throws IOException {
+        AVPacket packet = av_packet_alloc();
+        try {
+            while (!callback.isDone()) {
+                if (av_read_frame(mInputFmtCtx, packet) < 0) {
+                    mDecoder.flush(callback);
+                    break;
+                }
+                try {
+                    if (packet.stream_index() == mVideoStream.index() &&
+                        (!keyFramesOnly || (packet.flags() & AV_PKT_FLAG_KEY) != 0)) {
+                        mDecoder.decodePacket(packet, callback);
+                    }
+                } finally {
+                    av_packet_unref(packet);
+                }
+            }
+        } finally {
+            av_packet_free(packet);
+        }
+        return callback.isDone();
+    }
+    /* Passes at most a given number of frames on and counts them.
+     */
+    static class LimitedCallback implements FrameCallback {
+        FrameCallback mCallback = null;
+        long mRemaining = 0;
+        long mCount = 0;
+
+        LimitedCallback(FrameCallback callback, long maxFrames) {
+            mCallback = callback;
+            mRemaining = maxFrames;
+        }
+        @Override
+        public void onFrame(ByteBuffer pixels, int width, int height,
+                            int lineSize, long pts) throws IOException {
+            if (mRemaining <= 0) {
+                return;
+            }
+            mRemaining--;
+            mCount++;
+            mCallback.onFrame(pixels, width, height, lineSize, pts);
+        }
+        boolean isDone() {
+            return mRemaining <= 0;
+        }
+        long getCount() {
+            return mCount;
+        }
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     */
+    @Override
+    public void close() {
+        if (mDecoder != null) {
+            mDecoder.close();
+            mDecoder = null;
+        }
+        if (mInputFmtCtx != null) {
+            avformat_close_input(mInputFmtCtx);
+            NativeTracker.freed(NativeTracker.FORMAT_CONTEXT);
+            mInputFmtCtx = null;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_ref;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_move_ref;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_unref;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacpp.Pointer;
+
+/* This class runs the video decode path of a PacketDecoder as a
+ * pipeline of stages, each on its own threads :
+ *
+ *  demux  : The caller. submitPacket() hands over a reference to the
+ *           packet and returns, so the remux loop is not held up.
+ *  decode : One thread. Sends the packets to the decoder and takes out
+ *           every decoded frame, with PacketDecoder.sendPacket() and
+ *           receiveFrame(). The decoder itself can use more threads
+ *           (see PacketDecoder.setVideoDecoderThreads).
+ *  scale  : N threads. Convert the frames with PacketDecoder.scaleFrame()
+ *           to the size and format of its ScaleSettings, RGB24 of the
+ *           source size by default. The SwsContexts come from
+ *           ScalerCache, one per thread at a time.
+ *  sink   : M threads. Hand the converted frames to the FrameSink.
+ *
+ * The stages are connected by bounded queues. A full queue blocks the
+ * stage in front of it, so memory stays bounded and the pipeline runs
+ * at the speed of its slowest stage instead of the sum of all stages.
+ * With more than one scale or sink thread, frames can reach the sink
+ * out of order. Every frame carries its pts.
+ *
+ * Packets and frames are passed as ffmpeg references. A queued packet
+ * shares the payload of the demuxed packet, nothing is copied.
+ *
+ * Errors : An error of any stage, also a RuntimeException e.g. from
+ * JavaCPP, is kept in mError and makes finish() return false. The
+ * stages do not end on it. They keep taking from their queues and drop
+ * what they take, so the stages in front of them and the caller never
+ * block on a full queue.
+ *
+ * Steady state : The AVPacket and AVFrame structures which carry the
+ * references go back to free lists after use, and the converted images
+ * are FrameBuffers from FrameBufferPool, given back after the sink has
+ * written them. Once the queues have filled, frames go through without
+ * any new native allocation.
+ */
+public class FramePipeline {
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    // Passed down the queues after the last packet / frame.
+    static final AVPacket END_OF_PACKETS = new AVPacket((Pointer)null);
+    static final AVFrame END_OF_FRAMES = new AVFrame((Pointer)null);
+    static final FrameBuffer END_OF_BUFFERS = new FrameBuffer();
+
+    PacketDecoder mDecoder = null;
+    FrameSink mSink = null;
+    int mQueueDepth = DEFAULT_QUEUE_DEPTH;
+    int mScalerThreads = 1;
+    int mSinkThreads = 1;
+    BlockingQueue<AVPacket> mPackets = null;
+    BlockingQueue<AVFrame> mDecodedFrames = null;
+    BlockingQueue<FrameBuffer> mConvertedFrames = null;
+    // Empty structures for reuse.
+    BlockingQueue<AVPacket> mFreePackets = null;
+    BlockingQueue<AVFrame> mFreeFrames = null;
+    List<Thread> mThreads = new ArrayList<Thread>();
+    AtomicInteger mRunningScalers = new AtomicInteger();
+    volatile Throwable mError = null;
+
+    // Frames leaving each stage and time spent working in each stage.
+    AtomicLong mDecodedCount = new AtomicLong();
+    AtomicLong mConvertedCount = new AtomicLong();
+    AtomicLong mWrittenCount = new AtomicLong();
+    AtomicLong mDecodeNanos = new AtomicLong();
+    AtomicLong mScaleNanos = new AtomicLong();
+    AtomicLong mSinkNanos = new AtomicLong();
+    long mStartTime = 0;
+
+    /* constuctor :
+     * Input :
+     *  Decoder with initialised video decoder.
+     *  Sink which receives the converted frames.
+     */
+    public FramePipeline(PacketDecoder decoder, FrameSink sink) {
+        mDecoder = decoder;
+        mSink = sink;
+    }
+    /* setQueueDepth :
+     * Input : Number of packets / frames each queue can hold.
+     * Output : none.
+     */
+    public void setQueueDepth(int queueDepth) {
+        mQueueDepth = queueDepth;
+    }
+    /* setThreads :
+     * Input : Number of scale threads and sink threads.
+     * Output : none.
+     */
+    public void setThreads(int scalerThreads, int sinkThreads) {
+        mScalerThreads = scalerThreads;
+        mSinkThreads = sinkThreads;
+    }
+    /* setScaleSettings :
+     * Input : Size, pixel format and algorithm of the frames given to
+     *         the sink. Has to be set before start().
+     * Output : none.
+     *
+     * Desc : Same as PacketDecoder.setScaleSettings() of the decoder.
+     */
+    public void setScaleSettings(ScaleSettings settings) {
+        mDecoder.setScaleSettings(settings);
+    }
+    /* start :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Creates the queues and starts the stage threads.
+     */
+    public void start() {
+        mPackets = new ArrayBlockingQueue<AVPacket>(mQueueDepth);
+        mDecodedFrames = new ArrayBlockingQueue<AVFrame>(mQueueDepth);
+        mConvertedFrames = new ArrayBlockingQueue<FrameBuffer>(mQueueDepth);
+        // Room for everything which can be in flight at the same time.
+        mFreePackets = new ArrayBlockingQueue<AVPacket>(mQueueDepth + 2);
+        mFreeFrames = new ArrayBlockingQueue<AVFrame>(mQueueDepth + mScalerThreads + 1);
+        mStartTime = System.nanoTime();
+        mRunningScalers.set(mScalerThreads);
+        startThread("decode", new Runnable() {
+            @Override
+            public void run() {
+                decodeStage();
+            }
+        });
+        for (int i = 0; i < mScalerThreads; i++) {
+            startThread("scale-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    scaleStage();
+                }
+            });
+        }
+        for (int i = 0; i < mSinkThreads; i++) {
+            startThread("sink-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    sinkStage();
+                }
+            });
+        }
+    }
+    /* submitPacket :
+     * Input : Demuxed video packet. Still owned by the caller.
+     * Output : none.
+     *
+     * Desc : Queues a new reference to the packet. Blocks while the
+     * packet queue is full.
+     */
+    public void submitPacket(AVPacket packet) throws InterruptedException {
+        AVPacket reference = mFreePackets.poll();
+        if (reference == null) {
+            reference = av_packet_alloc();
+        }
+        if (av_packet_ref(reference, packet) < 0) {
+            av_packet_free(reference);
+            System.out.println("FramePipeline : Unable to reference packet");
+            return;
+        }
+        mPackets.put(reference);
+    }
+    /* finish :
+     * Input : none.
+     * Output : True when every frame reached the sink without error.
+     *
+     * Desc : Signals the end of the stream, waits till the decoder is
+     * flushed and all the frames are written, and prints the stage times.
+     */
+    public boolean finish() throws InterruptedException {
+        mPackets.put(END_OF_PACKETS);
+        for (Thread thread : mThreads) {
+            thread.join();
+        }
+        freeAll();
+        double wallMs = (System.nanoTime() - mStartTime) / 1e6;
+        System.out.printf("Pipeline : %d frames in %.1f ms."
+                + " busy decode %.1f ms, scale %.1f ms (%d threads), sink %.1f ms (%d threads)%n",
+                mWrittenCount.get(), wallMs,
+                mDecodeNanos.get() / 1e6,
+                mScaleNanos.get() / 1e6, mScalerThreads,
+                mSinkNanos.get() / 1e6, mSinkThreads);
+        if (mError != null) {
+            System.out.println("Pipeline failed : " + mError);
+            return false;
+        }
+        return true;
+    }
+    public long getFrameCount() {
+        return mWrittenCount.get();
+    }
+    private void startThread(String name, Runnable stage) {
+        Thread thread = new Thread(stage, "FramePipeline-" + name);
+        mThreads.add(thread);
+        thread.start();
+    }
+    /* decodeStage :
+     * Desc : Takes packets until END_OF_PACKETS, then flushes the decoder.
+     * After an error the packets are only dropped.
+     */
+    private void decodeStage() {
+        AVFrame frame = av_frame_alloc();
+        try {
+            while (true) {
+                AVPacket packet = mPackets.take();
+                boolean end = (packet == END_OF_PACKETS);
+                try {
+                    if (mError == null) {
+                        // null packet puts the decoder in draining mode.
+                        decodePacket(end ? null : packet, frame);
+                    }
+                } catch (RuntimeException e) {
+                    mError = e;
+                } finally {
+                    if (!end) {
+                        releasePacket(packet);
+                    }
+                }
+                if (end) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            mError = e;
+        } finally {
+            av_frame_free(frame);
+            // One end marker for every scale thread.
+            for (int i = 0; i < mScalerThreads; i++) {
+                putQuietly(mDecodedFrames, END_OF_FRAMES);
+            }
+        }
+    }
+    /* decodePacket :
+     * Input : Packet, null to flush the decoder, and a frame to decode into.
+     * Output : none.
+     *
+     * Desc : Every frame the decoder gives out is moved to a new AVFrame
+     * and queued for scaling.
+     */
+    private void decodePacket(AVPacket packet, AVFrame frame) throws InterruptedException {
+        long start = System.nanoTime();
+        int ret = mDecoder.sendPacket(packet);
+        if (ret < 0) {
+            // A broken packet. Skip it, the decoder recovers at the next
+            // key frame.
+            System.out.println("FramePipeline : Error in decoding packet " + ret);
+        }
+        while (mDecoder.receiveFrame(frame)) {
+            AVFrame decoded = mFreeFrames.poll();
+            if (decoded == null) {
+                decoded = av_frame_alloc();
+            }
+            av_frame_move_ref(decoded, frame);
+            mDecodeNanos.addAndGet(System.nanoTime() - start);
+            mDecodedCount.incrementAndGet();
+            mDecodedFrames.put(decoded);
+            start = System.nanoTime();
+        }
+        mDecodeNanos.addAndGet(System.nanoTime() - start);
+    }
+    /* scaleStage :
+     * Desc : Converts decoded frames to the size and format of the
+     * scale settings.
+     */
+    private void scaleStage() {
+        try {
+            while (true) {
+                AVFrame frame = mDecodedFrames.take();
+                if (frame == END_OF_FRAMES) {
+                    break;
+                }
+                long start = System.nanoTime();
+                if (mError != null) {
+                    // Keep the queues moving so no stage blocks forever.
+                    releaseFrame(frame);
+                    continue;
+                }
+                FrameBuffer scaled;
+                try {
+                    scaled = mDecoder.scaleFrame(frame);
+                    if (scaled == null) {
+                        mError = new IllegalStateException("Unable to convert frame of "
+                                + frame.width() + "x" + frame.height() + " format "
+                                + frame.format());
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    mError = e;
+                    continue;
+                } finally {
+                    releaseFrame(frame);
+                }
+                mScaleNanos.addAndGet(System.nanoTime() - start);
+                mConvertedCount.incrementAndGet();
+                mConvertedFrames.put(scaled);
+            }
+        } catch (InterruptedException e) {
+            mError = e;
+        } finally {
+            if (mRunningScalers.decrementAndGet() == 0) {
+                // The last scale thread ends the sink stage.
+                for (int i = 0; i < mSinkThreads; i++) {
+                    putQuietly(mConvertedFrames, END_OF_BUFFERS);
+                }
+            }
+        }
+    }
+    /* sinkStage :
+     * Desc : Hands the converted frames to the sink and gives them back
+     * to the pool.
+     */
+    private void sinkStage() {
+        try {
+            while (true) {
+                FrameBuffer frame = mConvertedFrames.take();
+                if (frame == END_OF_BUFFERS) {
+                    break;
+                }
+                long start = System.nanoTime();
+                try {
+                    if (mError == null) {
+                        mSink.write(frame);
+                        mWrittenCount.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    mError = e;
+                } finally {
+                    FrameBufferPool.release(frame);
+                }
+                mSinkNanos.addAndGet(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            mError = e;
+        }
+    }
+    /* releaseFrame :
+     * Desc : Drops the reference held by a decoded frame and keeps the
+     * empty structure for the next one.
+     */
+    private void releaseFrame(AVFrame frame) {
+        av_frame_unref(frame);
+        if (!mFreeFrames.offer(frame)) {
+            av_frame_free(frame);
+        }
+    }
+    private void releasePacket(AVPacket packet) {
+        av_packet_unref(packet);
+        if (!mFreePackets.offer(packet)) {
+            av_packet_free(packet);
+        }
+    }
+    /* freeAll :
+     * Desc : Frees the structures on the free lists, once all the
+     * stages have ended.
+     */
+    private void freeAll() {
+        AVPacket packet;
+        while ((packet = mFreePackets.poll()) != null) {
+            av_packet_free(packet);
+        }
+        AVFrame frame;
+        while ((frame = mFreeFrames.poll()) != null) {
+            av_frame_free(frame);
+        }
+    }
+    private static <T> void putQuietly(BlockingQueue<T> queue, T item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.avutil.av_pix_fmt_count_planes;
+import static org.bytedeco.ffmpeg.global.avutil.av_pix_fmt_desc_get;
+import static org.bytedeco.ffmpeg.global.swscale.sws_scale;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.LongPointer;
+import org.bytedeco.javacpp.PointerPointer;
+
+/* This class converts decoded frames to the size and format given by
+ * ScaleSettings. Resizing happens inside sws_scale, so a thumbnail is
+ * never converted to a full size RGB frame first.
+ *
+ * The SwsContexts come from ScalerCache and go back to it after every
+ * frame, so files with the same geometry share them.
+ *
+ * Sliced scaling : sws in ffmpeg 4.4 has no threads. A large frame is
+ * cut into horizontal bands which are scaled in parallel, each by its
+ * own context. Band edges are placed where source and output rows line
+ * up exactly (e.g. every 6 source rows for 1080 -> 180) and on chroma
+ * row pairs, so every band is scaled with the same ratio as the whole
+ * frame. Only the filter taps crossing a band edge see the edge row
+ * repeated instead of the next band. If the sizes have no such common
+ * step, the frame is scaled in one piece. The plane pointers of the
+ * bands are allocated with the first sliced frame and kept for the
+ * next ones, see BandPlanes.
+ */
+public class FrameScaler {
+    // Frames smaller than this are not worth splitting.
+    public static final int MIN_SLICED_PIXELS = 1280 * 720;
+
+    static ExecutorService sSlicePool = null;
+
+    ScaleSettings mSettings = null;
+    // Band plane pointers not in use. More than one thread can scale
+    // with the same scaler, e.g. in FramePipeline.
+    ConcurrentLinkedQueue<BandPlanes> mFreeBandPlanes = new ConcurrentLinkedQueue<BandPlanes>();
+
+    /* constuctor :
+     * Input : Size, format, algorithm and threads of the output.
+     */
+    public FrameScaler(ScaleSettings settings) {
+        mSettings = settings;
+    }
+    public ScaleSettings getSettings() {
+        return mSettings;
+    }
+    /* scale :
+     * Input :
+     *  Decoded frame.
+     *  Planes and line sizes of the output buffer, of the size given by
+     *  the settings for this frame.
+     * Output : True when the frame is converted.
+     */
+    public boolean scale(AVFrame src, PointerPointer<?> dstData, IntPointer dstLinesize) {
+        return scale(src.data(), src.linesize(), src.width(), src.height(), src.format(),
+                     dstData, dstLinesize);
+    }
+    /* scale :
+     * Input :
+     *  Planes, line sizes, size and format of the source image.
+     *  Planes and line sizes of the output buffer.
+     * Output : True when the image is converted.
+     *
+     * Desc : For callers which keep the plane pointers of their frame,
+     * so no pointer objects are created per frame.
+     */
+    public boolean scale(PointerPointer<?> srcData, final IntPointer srcLinesize,
+                         int srcWidth, int srcHeight, int srcFormat,
+                         PointerPointer<?> dstData, final IntPointer dstLinesize) {
+        int dstWidth = mSettings.getOutputWidth(srcWidth, srcHeight);
+        int dstHeight = mSettings.getOutputHeight(srcWidth, srcHeight);
+        List<int[]> bands = null;
+        if (mSettings.getThreads() > 1 && srcWidth * srcHeight >= MIN_SLICED_PIXELS) {
+            bands = splitBands(srcHeight, srcFormat, dstHeight,
+                               mSettings.getPixelFormat(), mSettings.getThreads());
+        }
+        if (bands == null) {
+            return scaleBand(srcData, srcLinesize, srcWidth, srcHeight, srcFormat,
+                             dstData, dstLinesize, dstWidth, dstHeight);
+        }
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        List<BandPlanes> used = new ArrayList<BandPlanes>();
+        // Plane addresses of the whole images, read once per frame.
+        LongPointer srcPlanes = new LongPointer(srcData);
+        LongPointer dstPlanes = new LongPointer(dstData);
+        boolean ok = true;
+        for (int i = 0; i < bands.size(); i++) {
+            final int band[] = bands.get(i);
+            BandPlanes srcPlanesOfBand = acquireBandPlanes(used);
+            BandPlanes dstPlanesOfBand = acquireBandPlanes(used);
+            final PointerPointer<BytePointer> srcBand = srcPlanesOfBand.offset(srcPlanes,
+                    srcLinesize, srcFormat, band[0]);
+            final PointerPointer<BytePointer> dstBand = dstPlanesOfBand.offset(dstPlanes,
+                    dstLinesize, mSettings.getPixelFormat(), band[2]);
+            final int width = srcWidth, format = srcFormat, outWidth = dstWidth;
+            if (i == bands.size() - 1) {
+                // The caller scales the last band itself.
+                ok = scaleBand(srcBand, srcLinesize, width, band[1], format,
+                               dstBand, dstLinesize, outWidth, band[3]);
+                break;
+            }
+            results.add(getSlicePool().submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return scaleBand(srcBand, srcLinesize, width, band[1], format,
+                                     dstBand, dstLinesize, outWidth, band[3]);
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            try {
+                ok &= result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ok = false;
+            } catch (ExecutionException e) {
+                System.out.println("FrameScaler : band failed " + e.getCause());
+                ok = false;
+            }
+        }
+        // Every band is done, the pointers can be used for the next frame.
+        mFreeBandPlanes.addAll(used);
+        return ok;
+    }
+    private BandPlanes acquireBandPlanes(List<BandPlanes> used) {
+        BandPlanes planes = mFreeBandPlanes.poll();
+        if (planes == null) {
+            planes = new BandPlanes();
+        }
+        used.add(planes);
+        return planes;
+    }
+    /* scaleBand :
+     * Input : Source rows and output rows of one band, or of the whole frame.
+     * Output : True when the rows are converted.
+     */
+    private boolean scaleBand(PointerPointer<?> srcData, IntPointer srcLinesize,
+                              int srcWidth, int srcHeight, int srcFormat,
+                              PointerPointer<?> dstData, IntPointer dstLinesize,
+                              int dstWidth, int dstHeight) {
+        ScalerCache.Scaler scaler = ScalerCache.acquire(srcWidth, srcHeight, srcFormat,
+                dstWidth, dstHeight, mSettings.getPixelFormat(), mSettings.getFlags());
+        if (scaler == null) {
+            System.out.println("Can not use sws for " + srcWidth + "x" + srcHeight +
+                    " format " + srcFormat);
+            return false;
+        }
+        try {
+            sws_scale(scaler.getContext(), srcData, srcLinesize, 0, srcHeight,
+                      dstData, dstLinesize);
+        } finally {
+            ScalerCache.release(scaler);
+        }
+        return true;
+    }
+    /* splitBands :
+     * Input : Source and output heights and formats, wanted number of bands.
+     * Output : Bands as {source row, source rows, output row, output rows},
+     *          null when the frame can not or need not be split.
+     */
+    static List<int[]> splitBands(int srcHeight, int srcFormat,
+                                  int dstHeight, int dstFormat, int threads) {
+        int common = gcd(srcHeight, dstHeight);
+        int srcStep = srcHeight / common;
+        int dstStep = dstHeight / common;
+        // Band edges also have to fall on whole chroma rows.
+        int srcAlign = 1 << av_pix_fmt_desc_get(srcFormat).log2_chroma_h();
+        int dstAlign = 1 << av_pix_fmt_desc_get(dstFormat).log2_chroma_h();
+        int multiple = 1;
+        while ((srcStep * multiple) % srcAlign != 0 || (dstStep * multiple) % dstAlign != 0) {
+            multiple++;
+        }
+        srcStep *= multiple;
+        dstStep *= multiple;
+        int steps = dstHeight / dstStep;
+        int count = Math.min(threads, steps);
+        if (count < 2) {
+            return null;
+        }
+        List<int[]> bands = new ArrayList<int[]>();
+        int srcRow = 0, dstRow = 0;
+        for (int i = 0; i < count; i++) {
+            int bandSteps = steps / count + ((i < steps % count) ? 1 : 0);
+            int srcRows = bandSteps * srcStep;
+            int dstRows = bandSteps * dstStep;
+            if (i == count - 1) {
+                // Whatever is left, the ratio is still exact.
+                srcRows = srcHeight - srcRow;
+                dstRows = dstHeight - dstRow;
+            }
+            bands.add(new int[] { srcRow, srcRows, dstRow, dstRows });
+            srcRow += srcRows;
+            dstRow += dstRows;
+        }
+        return bands;
+    }
+    /* This class holds the plane pointers of one band. The addresses are
+     * written straight into the native array, so a band of the next
+     * frame reuses it without any new pointer object.
+     */
+    static class BandPlanes {
+        PointerPointer<BytePointer> mPlanes = new PointerPointer<BytePointer>(4);
+        // The same native array, written as addresses.
+        LongPointer mAddresses = new LongPointer(mPlanes);
+
+        /* offset :
+         * Input : Plane addresses of an image, its line sizes, format and a row.
+         * Output : Planes starting at that row.
+         */
+        PointerPointer<BytePointer> offset(LongPointer planes, IntPointer linesize,
+                                           int format, int row) {
+            int count = av_pix_fmt_count_planes(format);
+            int chromaShift = av_pix_fmt_desc_get(format).log2_chroma_h();
+            for (int p = 0; p < count; p++) {
+                // Planes 1 and 2 are chroma in the planar and semi planar formats.
+                int planeRow = (p == 1 || p == 2) ? (row >> chromaShift) : row;
+                mAddresses.put(p, planes.get(p) + (long)planeRow * linesize.get(p));
+            }
+            for (int p = count; p < 4; p++) {
+                mAddresses.put(p, 0);
+            }
+            return mPlanes;
+        }
+    }
+    static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+    static synchronized ExecutorService getSlicePool() {
+        if (sSlicePool == null) {
+            sSlicePool = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "FrameScaler-slice");
+                            // Never keeps the process alive.
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sSlicePool;
+    }
+}
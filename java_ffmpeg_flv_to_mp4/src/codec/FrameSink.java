@@ -0,0 +1,17 @@
+package codec;
+
+import java.io.IOException;
+
+/* Last stage of a FramePipeline. Receives every converted frame.
+ * write() is called by the sink threads of the pipeline, so an
+ * implementation used with more than one sink thread has to be
+ * thread safe.
+ */
+public interface FrameSink {
+    /* write :
+     * Input : Converted frame. Only valid during the call, it goes back
+     *         to FrameBufferPool afterwards. pts is in the stream time base.
+     * Output : none.
+     */
+    void write(FrameBuffer frame) throws IOException;
+}
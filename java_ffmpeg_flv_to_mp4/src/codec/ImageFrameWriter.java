@@ -0,0 +1,58 @@
+package codec;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+import javax.imageio.ImageIO;
+
+/* This class writes the frames it receives as compressed images,
+ * <prefix>_<n>.<format> in the given directory, n counting from 1.
+ * Meant for a few frames such as thumbnails, a frame is copied once
+ * into a BufferedImage to be encoded.
+ */
+public class ImageFrameWriter implements FrameCallback {
+    public static final String DEFAULT_FORMAT = "jpg";
+
+    String mDirectoryPath = null;
+    String mPrefix = null;
+    String mFormat = null;
+    int mCount = 0;
+
+    /* constuctor :
+     * Input :
+     *  Directory where the images are written.
+     *  Prefix of the image file names.
+     *  Image format known to ImageIO, e.g. "jpg" or "png".
+     */
+    public ImageFrameWriter(String directoryPath, String prefix, String format) {
+        mDirectoryPath = directoryPath;
+        mPrefix = prefix;
+        mFormat = format;
+    }
+    @Override
+    public void onFrame(ByteBuffer pixels, int width, int height,
+                        int lineSize, long pts) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int row[] = new int[width];
+        for (int y = 0; y < height; y++) {
+            int offset = y * lineSize;
+            for (int x = 0; x < width; x++) {
+                int i = offset + x * 3;
+                row[x] = ((pixels.get(i) & 0xff) << 16) |
+                         ((pixels.get(i + 1) & 0xff) << 8) |
+                         (pixels.get(i + 2) & 0xff);
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        mCount++;
+        String fileName = String.format("%s_%04d.%s", mPrefix, mCount, mFormat);
+        if (!ImageIO.write(image, mFormat, Paths.get(mDirectoryPath, fileName).toFile())) {
+            throw new IOException("No image writer for format " + mFormat);
+        }
+    }
+    public int getCount() {
+        return mCount;
+    }
+}
@@ -1,98 +1,171 @@
 package codec;
+import static org.bytedeco.ffmpeg.global.avcodec.AVDISCARD_DEFAULT;
+import static org.bytedeco.ffmpeg.global.avcodec.AVDISCARD_NONKEY;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_decoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_flush_buffers;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_to_context;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_frame;
 import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_packet;
-import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_RGB24;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
 import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
-import static org.bytedeco.ffmpeg.global.avutil.av_image_fill_arrays;
-import static org.bytedeco.ffmpeg.global.avutil.av_image_get_buffer_size;
-import static org.bytedeco.ffmpeg.global.avutil.av_malloc;
-import static org.bytedeco.ffmpeg.global.swscale.SWS_BILINEAR;
-import static org.bytedeco.ffmpeg.global.swscale.sws_getContext;
-import static org.bytedeco.ffmpeg.global.swscale.sws_scale;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_unref;
+import static org.bytedeco.ffmpeg.presets.avutil.AVERROR_EAGAIN;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
 import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
 import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
 import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.avutil.AVFrame;
-import org.bytedeco.ffmpeg.swscale.SwsContext;
-import org.bytedeco.javacpp.BytePointer;
-import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
 import org.bytedeco.javacpp.PointerPointer;
 
-public class PacketDecoder {
+import FileUtils.NativeTracker;
+
+/* This class decodes video packets and gives out every decoded frame
+ * as RGB24, or in the size and format set with setScaleSettings().
+ *
+ * Frame extraction : decodePacket() sends one packet and drains all the
+ * frames the decoder has ready, which can be none or several. flush()
+ * drains the frames the decoder still holds at the end of the stream.
+ * Every frame is converted into mOutput and handed to a FrameCallback
+ * as a direct ByteBuffer over the native buffer, so the pixels are
+ * never copied to the Java heap.
+ *
+ * mOutput comes from FrameBufferPool and goes back to it when the size
+ * changes or the decoder is closed, so decoding file after file of the
+ * same size allocates no new output buffer.
+ */
+public class PacketDecoder implements AutoCloseable {
     AVCodecContext mAudioCodecContext = null;
     AVCodec mAudioDecoder = null;
     AVCodecContext mVideoCodecContext = null;
     AVCodec mVideoDecoder = null;
-    SwsContext mSoftwareScalingContext = null;
+    FrameScaler mScaler = new FrameScaler(new ScaleSettings());
     AVFrame mFrame = null;
-    AVFrame mRGBFrame  = null;
+    // Plane pointers of mFrame, the struct stays the same for every frame.
+    PointerPointer<?> mFrameData = null;
+    IntPointer mFrameLinesize = null;
+    FrameBuffer mOutput = null;
+    int mSourceWidth = 0;
+    int mSourceHeight = 0;
+    int mSourceFormat = -1;
+    // Frames before this pts are decoded but not converted or given out.
+    long mMinimumPts = Long.MIN_VALUE;
+    long mDecodedFrames = 0;
+
     public PacketDecoder(AVCodecParameters audioCodecParams,
                   AVCodecParameters videoCodecParams) {
+      this(videoCodecParams);
       mAudioCodecContext = avcodec_alloc_context3(null);
+      NativeTracker.allocated(NativeTracker.CODEC_CONTEXT);
       avcodec_parameters_to_context(mAudioCodecContext, audioCodecParams);
       mAudioDecoder = avcodec_find_decoder(audioCodecParams.codec_id());
+    }
+    /* constuctor :
+     * Input : Parameters of the video stream. No audio decoder is opened.
+     */
+    public PacketDecoder(AVCodecParameters videoCodecParams) {
       mVideoCodecContext = avcodec_alloc_context3(null);
+      NativeTracker.allocated(NativeTracker.CODEC_CONTEXT);
       avcodec_parameters_to_context(mVideoCodecContext, videoCodecParams);
       mVideoDecoder = avcodec_find_decoder(videoCodecParams.codec_id());
     }
-    private boolean initMemory() {
-        mFrame = av_frame_alloc();
-
-        // Allocate an AVFrame structure
-        mRGBFrame = av_frame_alloc();
-        if (mRGBFrame == null) {
+    /* initMemory :
+     * Input : Size and pixel format of the decoded frames.
+     * Output : True when the output buffer is ready.
+     *
+     * Desc : Takes an output buffer of the size given by the scale
+     * settings from the pool. Called again when the size or the format
+     * of the decoded frames changes. The scaler contexts come from
+     * ScalerCache.
+     */
+    private boolean initMemory(int width, int height, int format) {
+        freeMemory();
+        ScaleSettings settings = mScaler.getSettings();
+        mOutput = FrameBufferPool.acquire(settings.getOutputWidth(width, height),
+                                          settings.getOutputHeight(width, height),
+                                          settings.getPixelFormat());
+        if (mOutput == null) {
+            System.out.println("Can not use pixel format " + settings.getPixelFormat());
             return false;
         }
-        // Determine required buffer size and allocate buffer
-        int numBytes = av_image_get_buffer_size(AV_PIX_FMT_RGB24, 
-                mVideoCodecContext.width(),
-                mVideoCodecContext.height(), 1);
-        BytePointer buffer = new BytePointer(av_malloc(numBytes));
-        av_image_fill_arrays(mRGBFrame.data(),
-                             mRGBFrame.linesize(),
-                             buffer,
-                             AV_PIX_FMT_RGB24,
-                             mVideoCodecContext.width(),
-                             mVideoCodecContext.height(),
-                             1); 
+        mSourceWidth = width;
+        mSourceHeight = height;
+        mSourceFormat = format;
         return true;
     }
-    private void save_frame(AVFrame pFrame, int width, int height, long f_idx) throws IOException {
-        // Open file
-        String szFilename = String.format("frame%d_.ppm", f_idx);
-        OutputStream pFile = new FileOutputStream(szFilename);
-
-        // Write header
-        pFile.write(String.format("P6\n%d %d\n255\n", width, height).getBytes());
-
-        // Write pixel data
-        BytePointer data = pFrame.data(0);
-        byte[] bytes = new byte[width * 3];
-        int l = pFrame.linesize(0);
-        for(int y = 0; y < height; y++) {
-            data.position(y * l).get(bytes);
-            pFile.write(bytes);
-        }
-
-        // Close file
-        pFile.close();
-    }    
+    private void freeMemory() {
+        FrameBufferPool.release(mOutput);
+        mOutput = null;
+        mSourceFormat = -1;
+    }
+    /* setScaleSettings :
+     * Input : Size, pixel format, algorithm and threads of the frames
+     *         given to the callbacks. Has to be set before initDecoders().
+     * Output : none.
+     */
+    public void setScaleSettings(ScaleSettings settings) {
+        mScaler = new FrameScaler(settings);
+    }
+    /* setVideoDecoderThreads :
+     * Input : Number of threads the video decoder uses. 0 lets ffmpeg
+     *         pick one per core. Has to be set before initDecoders().
+     * Output : none.
+     */
+    public void setVideoDecoderThreads(int threads) {
+        mVideoCodecContext.thread_count(threads);
+    }
+    /* setKeyFramesOnly :
+     * Input : True to make the decoder drop every frame but key frames.
+     * Output : none.
+     */
+    public void setKeyFramesOnly(boolean keyFramesOnly) {
+        mVideoCodecContext.skip_frame(keyFramesOnly ? AVDISCARD_NONKEY : AVDISCARD_DEFAULT);
+    }
+    /* setMinimumPts :
+     * Input : Frames with a smaller pts are dropped after decoding,
+     *         without converting them. Used to decode from a key frame
+     *         up to a seek target.
+     * Output : none.
+     */
+    public void setMinimumPts(long pts) {
+        mMinimumPts = pts;
+    }
+    /* reset :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Drops everything the decoder holds, e.g. after a seek.
+     * Unlike flush() the frames are not given out.
+     */
+    public void reset() {
+        avcodec_flush_buffers(mVideoCodecContext);
+    }
+    /* getDecodedFrameCount :
+     * Input : none.
+     * Output : Frames decoded so far, including the ones which were
+     *          dropped and not given to a callback.
+     */
+    public long getDecodedFrameCount() {
+        return mDecodedFrames;
+    }
     public boolean initDecoders() {
-        int ret = avcodec_open2(mAudioCodecContext,
+        int ret;
+        if (mAudioCodecContext != null) {
+            ret = avcodec_open2(mAudioCodecContext,
                                 mAudioDecoder,
                                 (PointerPointer)null);
-        if (ret < 0) {
-            return false;
+            if (ret < 0) {
+                return false;
+            }
         }
         ret = avcodec_open2(mVideoCodecContext,
                 mVideoDecoder,
@@ -100,42 +173,204 @@ public class PacketDecoder {
         if (ret < 0) {
             return false;
         }
-        mSoftwareScalingContext = sws_getContext(
-                mVideoCodecContext.width(),
-                mVideoCodecContext.height(),
-                mVideoCodecContext.pix_fmt(),
-                mVideoCodecContext.width(),
-                mVideoCodecContext.height(),
-                AV_PIX_FMT_RGB24,
-                SWS_BILINEAR,
-                null,
-                null,
-                (DoublePointer)null
-            );
-        if (mSoftwareScalingContext == null) {
-            System.out.println("Can not use sws");
-            return false;
+        if (mFrame == null) {
+            mFrame = av_frame_alloc();
+            NativeTracker.allocated(NativeTracker.FRAME);
+        }
+        mFrameData = mFrame.data();
+        mFrameLinesize = mFrame.linesize();
+        if (mVideoCodecContext.width() <= 0 || mVideoCodecContext.height() <= 0) {
+            // Size not known yet. Set up with the first decoded frame.
+            return true;
+        }
+        return initMemory(mVideoCodecContext.width(),
+                          mVideoCodecContext.height(),
+                          mVideoCodecContext.pix_fmt());
+    }
+    /* decodePacket :
+     * Input :
+     *  Video packet. Still owned by the caller.
+     *  Callback which receives every frame decoded from it.
+     * Output : Number of frames given to the callback. Negative ffmpeg
+     *          error code when the packet could not be decoded.
+     *
+     * Desc : Sends the packet and receives frames until the decoder
+     * needs more input. A decoder with frame threads returns nothing for
+     * the first packets and then one frame per packet. The frames held
+     * back are returned by flush().
+     */
+    public int decodePacket(AVPacket packet, FrameCallback callback) throws IOException {
+        int ret = sendPacket(packet);
+        int frames = 0;
+        if (ret == AVERROR_EAGAIN()) {
+            // Output has to be read first. Not expected as every call
+            // drains the decoder, but handled for safety.
+            frames = receiveFrames(callback);
+            ret = sendPacket(packet);
+        }
+        if (ret < 0) {
+            return ret;
+        }
+        return frames + receiveFrames(callback);
+    }
+    /* flush :
+     * Input : Callback which receives the remaining frames.
+     * Output : Number of frames given to the callback.
+     *
+     * Desc : Signals the end of the stream and drains the frames the
+     * decoder still holds. The decoder can be used for a new stream
+     * afterwards.
+     */
+    public int flush(FrameCallback callback) throws IOException {
+        avcodec_send_packet(mVideoCodecContext, null);
+        int frames = receiveFrames(callback);
+        avcodec_flush_buffers(mVideoCodecContext);
+        return frames;
+    }
+    /* receiveFrames :
+     * Input : Callback which receives the frames.
+     * Output : Number of frames given to the callback.
+     */
+    private int receiveFrames(FrameCallback callback) throws IOException {
+        int frames = 0;
+        while (receiveFrame(mFrame)) {
+            try {
+                if (convertFrame()) {
+                    callback.onFrame(mOutput.getPixels(), mOutput.getWidth(),
+                            mOutput.getHeight(), mOutput.getLineSize(0),
+                            mFrame.best_effort_timestamp());
+                    frames++;
+                }
+            } finally {
+                av_frame_unref(mFrame);
+            }
+        }
+        return frames;
+    }
+    /* sendPacket :
+     * Input : Video packet, null to signal the end of the stream.
+     * Output : Return code of avcodec_send_packet.
+     *
+     * Desc : With receiveFrame() the decode step for callers which keep
+     * the decoded frames, e.g. the decode thread of FramePipeline.
+     */
+    int sendPacket(AVPacket packet) {
+        return avcodec_send_packet(mVideoCodecContext, packet);
+    }
+    /* receiveFrame :
+     * Input : Frame which receives the next decoded frame.
+     * Output : True when a frame was received. False when the decoder
+     *          needs more input, is drained or failed.
+     *
+     * Desc : Frames before the minimum pts are dropped here.
+     */
+    boolean receiveFrame(AVFrame frame) {
+        while (true) {
+            int ret = avcodec_receive_frame(mVideoCodecContext, frame);
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
+                return false;
+            }
+            if (ret < 0) {
+                System.out.println("PacketDecoder : Error in decoding frame " + ret);
+                return false;
+            }
+            mDecodedFrames++;
+            if (frame.best_effort_timestamp() >= mMinimumPts) {
+                return true;
+            }
+            av_frame_unref(frame);
+        }
+    }
+    /* scaleFrame :
+     * Input : Decoded frame.
+     * Output : The frame in the size and format of the scale settings,
+     *          with its pts, in a FrameBuffer from FrameBufferPool. null
+     *          when it can not be converted.
+     *
+     * Desc : For callers which keep the converted frames, e.g. the scale
+     * threads of FramePipeline. Unlike mOutput the buffer belongs to the
+     * caller, so any number of threads can convert at the same time.
+     */
+    FrameBuffer scaleFrame(AVFrame frame) {
+        ScaleSettings settings = mScaler.getSettings();
+        // The size can change in the middle of a stream, so the
+        // output size is worked out for every frame.
+        FrameBuffer scaled = FrameBufferPool.acquire(
+                settings.getOutputWidth(frame.width(), frame.height()),
+                settings.getOutputHeight(frame.width(), frame.height()),
+                settings.getPixelFormat());
+        if (scaled == null) {
+            return null;
+        }
+        if (!mScaler.scale(frame, scaled.getData(), scaled.getLinesize())) {
+            FrameBufferPool.release(scaled);
+            return null;
+        }
+        scaled.setPts(frame.best_effort_timestamp());
+        return scaled;
+    }
+    /* convertFrame :
+     * Input : none.
+     * Output : True when mFrame is converted into mOutput.
+     */
+    private boolean convertFrame() {
+        if (mFrame.width() != mSourceWidth || mFrame.height() != mSourceHeight ||
+            mFrame.format() != mSourceFormat) {
+            if (!initMemory(mFrame.width(), mFrame.height(), mFrame.format())) {
+                return false;
+            }
+        }
+        return mScaler.scale(mFrameData, mFrameLinesize, mFrame.width(), mFrame.height(),
+                             mFrame.format(), mOutput.getData(), mOutput.getLinesize());
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees the decoders and the frame, and gives the output
+     * buffer back to the pool. The SwsContexts are not owned by the
+     * decoder, they stay in ScalerCache. Can be called more than once,
+     * also when initDecoders() failed.
+     */
+    @Override
+    public void close() {
+        freeMemory();
+        if (mFrame != null) {
+            av_frame_free(mFrame);
+            NativeTracker.freed(NativeTracker.FRAME);
+            mFrame = null;
+        }
+        if (mVideoCodecContext != null) {
+            avcodec_free_context(mVideoCodecContext);
+            NativeTracker.freed(NativeTracker.CODEC_CONTEXT);
+            mVideoCodecContext = null;
+        }
+        if (mAudioCodecContext != null) {
+            avcodec_free_context(mAudioCodecContext);
+            NativeTracker.freed(NativeTracker.CODEC_CONTEXT);
+            mAudioCodecContext = null;
         }
-
-        return initMemory();
     }
-    
-    
 
+    /* decodeAndDumpPacket :
+     * Input : Video packet.
+     * Output : none.
+     *
+     * Desc : Decodes the packet and writes every frame to
+     * frame_<pts>.ppm in the current directory.
+     */
     public void decodeAndDumpPacket(AVPacket packet) throws IOException  {
-        int ret1 = -1, ret2 = -1;        
-        ret1 = avcodec_send_packet(mVideoCodecContext, packet);
-        ret2 = avcodec_receive_frame(mVideoCodecContext, mFrame);
-        System.out.printf("ret1 %d ret2 %d\n", ret1, ret2);
-        sws_scale(
-                mSoftwareScalingContext,
-                mFrame.data(),
-                mFrame.linesize(),
-                0,
-                mVideoCodecContext.height(),
-                mRGBFrame.data(),
-                mRGBFrame.linesize()
-            );
-        save_frame(mRGBFrame, mVideoCodecContext.width(), mVideoCodecContext.height(),  java.lang.System.currentTimeMillis());
+        decodePacket(packet, new FrameCallback() {
+            @Override
+            public void onFrame(ByteBuffer pixels, int width, int height,
+                                int lineSize, long pts) throws IOException {
+                save_frame(pixels, width, height, lineSize, pts);
+            }
+        });
+    }
+    private static void save_frame(ByteBuffer pixels, int width, int height,
+                                   int lineSize, long pts) throws IOException {
+        PpmFrameSink.writePpm(Paths.get(PpmFrameSink.fileName("frame", pts)),
+                              pixels, width, height, lineSize);
     }
 }
@@ -0,0 +1,84 @@
+package codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* This class writes every RGB24 frame to its own PPM file,
+ * <prefix>_<pts>.ppm in the given directory. The prefix is the base
+ * name of the input, so frames of several inputs can share a directory.
+ * It keeps no state, so any number of sink threads can use it.
+ *
+ * The header and the pixels go out in one gathered FileChannel write,
+ * straight from the native frame buffer.
+ */
+public class PpmFrameSink implements FrameSink {
+    String mDirectoryPath = null;
+    String mPrefix = null;
+
+    /* constuctor :
+     * Input :
+     *  Directory where the frames are written.
+     *  Start of the file names, usually the input file name without
+     *  extension.
+     */
+    public PpmFrameSink(String directoryPath, String prefix) {
+        mDirectoryPath = directoryPath;
+        mPrefix = prefix;
+    }
+    @Override
+    public void write(FrameBuffer frame) throws IOException {
+        Path file = Paths.get(mDirectoryPath, fileName(mPrefix, frame.getPts()));
+        writePpm(file, frame.getPixels(), frame.getWidth(), frame.getHeight(),
+                 frame.getLineSize(0));
+    }
+    /* fileName :
+     * Input : Start of the file name and pts of the frame.
+     * Output : File name of the frame, e.g. cam1_40.ppm
+     */
+    static String fileName(String prefix, long pts) {
+        return String.format("%s_%d.ppm", prefix, pts);
+    }
+    /* writePpm :
+     * Input :
+     *  File to be written.
+     *  RGB24 pixels, direct or heap buffer, from position 0.
+     *  Width and height of the image, bytes from one row to the next.
+     * Output : none.
+     *
+     * Desc : Packed rows are written as one block. Padded rows are
+     * passed as one slice per row, still in a single gathered write.
+     */
+    public static void writePpm(Path file, ByteBuffer pixels, int width, int height,
+                                int lineSize) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(String.format("P6\n%d %d\n255\n", width, height)
+                .getBytes(StandardCharsets.US_ASCII));
+        int rowBytes = width * 3;
+        ByteBuffer buffers[];
+        if (lineSize == rowBytes) {
+            ByteBuffer image = pixels.duplicate();
+            image.position(0).limit(rowBytes * height);
+            buffers = new ByteBuffer[] { header, image };
+        } else {
+            buffers = new ByteBuffer[height + 1];
+            buffers[0] = header;
+            for (int y = 0; y < height; y++) {
+                ByteBuffer row = pixels.duplicate();
+                row.position(y * lineSize).limit(y * lineSize + rowBytes);
+                buffers[y + 1] = row;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = header.remaining() + (long)rowBytes * height;
+            while (remaining > 0) {
+                // A gathered write can stop short, go on from where it stopped.
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+}
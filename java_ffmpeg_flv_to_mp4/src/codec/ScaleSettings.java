@@ -0,0 +1,109 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_RGB24;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_AREA;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_BICUBIC;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_BILINEAR;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_FAST_BILINEAR;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_LANCZOS;
+import static org.bytedeco.ffmpeg.global.swscale.SWS_POINT;
+
+/* This class describes the frames a FrameScaler produces.
+ *
+ * Size : 0 for a side keeps the aspect ratio of the source. Both 0
+ *        keeps the source size. Computed sides are rounded to even.
+ * Pixel format : Any AV_PIX_FMT_*. Default RGB24.
+ * Flags : sws algorithm, SWS_BILINEAR by default.
+ * Threads : Number of bands a large frame is scaled in, in parallel.
+ */
+public class ScaleSettings {
+    int mWidth = 0;
+    int mHeight = 0;
+    int mPixelFormat = AV_PIX_FMT_RGB24;
+    int mFlags = SWS_BILINEAR;
+    int mThreads = 1;
+
+    /* setSize :
+     * Input : Width and height of the output. 0 keeps the aspect ratio.
+     * Output : none.
+     */
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+    public void setPixelFormat(int pixelFormat) {
+        mPixelFormat = pixelFormat;
+    }
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+    /* setFlags :
+     * Input : SWS_* algorithm flags.
+     * Output : none.
+     */
+    public void setFlags(int flags) {
+        mFlags = flags;
+    }
+    public int getFlags() {
+        return mFlags;
+    }
+    /* setThreads :
+     * Input : Maximum number of threads scaling one frame.
+     * Output : none.
+     */
+    public void setThreads(int threads) {
+        mThreads = threads;
+    }
+    public int getThreads() {
+        return mThreads;
+    }
+    /* getOutputWidth :
+     * Input : Size of the source frame.
+     * Output : Width of the scaled frame.
+     */
+    public int getOutputWidth(int sourceWidth, int sourceHeight) {
+        if (mWidth > 0) {
+            return mWidth;
+        }
+        if (mHeight > 0) {
+            return even((double)sourceWidth * mHeight / sourceHeight);
+        }
+        return sourceWidth;
+    }
+    /* getOutputHeight :
+     * Input : Size of the source frame.
+     * Output : Height of the scaled frame.
+     */
+    public int getOutputHeight(int sourceWidth, int sourceHeight) {
+        if (mHeight > 0) {
+            return mHeight;
+        }
+        if (mWidth > 0) {
+            return even((double)sourceHeight * mWidth / sourceWidth);
+        }
+        return sourceHeight;
+    }
+    private static int even(double size) {
+        return Math.max(2, (int)Math.round(size / 2) * 2);
+    }
+    /* parseAlgorithm :
+     * Input : Name of a scaling algorithm. e.g. "bilinear", "area".
+     * Output : SWS_* flag, -1 for an unknown name.
+     */
+    public static int parseAlgorithm(String name) {
+        if (name.equals("fast_bilinear")) {
+            return SWS_FAST_BILINEAR;
+        } else if (name.equals("bilinear")) {
+            return SWS_BILINEAR;
+        } else if (name.equals("bicubic")) {
+            return SWS_BICUBIC;
+        } else if (name.equals("area")) {
+            return SWS_AREA;
+        } else if (name.equals("lanczos")) {
+            return SWS_LANCZOS;
+        } else if (name.equals("point")) {
+            return SWS_POINT;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,147 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.swscale.sws_freeContext;
+import static org.bytedeco.ffmpeg.global.swscale.sws_getContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.DoublePointer;
+
+import FileUtils.NativeTracker;
+
+/* This class keeps SwsContexts for reuse across frames and files.
+ *
+ * Creating a SwsContext computes the filter tables, which costs more
+ * than scaling a small frame. A batch of recordings from the same
+ * cameras needs only a few distinct (source size / format, output
+ * size / format, flags) combinations, so contexts are kept per key.
+ *
+ * A SwsContext can not be used by two threads at once. acquire() hands
+ * a context out exclusively and release() puts it back. Contexts which
+ * stay unused for the idle timeout are freed.
+ *
+ * The idle contexts are kept in one list, oldest first. It holds only a
+ * few contexts, so a search by the key fields is cheap and needs no key
+ * object per frame.
+ */
+public class ScalerCache {
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+
+    /* A context handed out by acquire().
+     */
+    public static class Scaler {
+        int mSrcWidth = 0;
+        int mSrcHeight = 0;
+        int mSrcFormat = -1;
+        int mDstWidth = 0;
+        int mDstHeight = 0;
+        int mDstFormat = -1;
+        int mFlags = 0;
+        SwsContext mContext = null;
+        long mLastUsed = 0;
+
+        public SwsContext getContext() {
+            return mContext;
+        }
+    }
+
+    static final List<Scaler> sIdle = new ArrayList<Scaler>();
+    static long sIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MS);
+    static long sLastEviction = System.nanoTime();
+    static long sCreated = 0;
+    static long sReused = 0;
+    static long sEvicted = 0;
+
+    /* acquire :
+     * Input : Source size and format, output size and format, SWS_* flags.
+     * Output : Scaler for exclusive use, null when sws does not support
+     *          the conversion. Has to be given back with release().
+     */
+    public static synchronized Scaler acquire(int srcWidth, int srcHeight, int srcFormat,
+                                              int dstWidth, int dstHeight, int dstFormat,
+                                              int flags) {
+        evictIdle();
+        // Most recently used are at the end.
+        for (int i = sIdle.size() - 1; i >= 0; i--) {
+            Scaler scaler = sIdle.get(i);
+            if (scaler.mSrcWidth == srcWidth && scaler.mSrcHeight == srcHeight &&
+                scaler.mSrcFormat == srcFormat && scaler.mDstWidth == dstWidth &&
+                scaler.mDstHeight == dstHeight && scaler.mDstFormat == dstFormat &&
+                scaler.mFlags == flags) {
+                sReused++;
+                return sIdle.remove(i);
+            }
+        }
+        SwsContext context = sws_getContext(srcWidth, srcHeight, srcFormat,
+                dstWidth, dstHeight, dstFormat, flags,
+                null, null, (DoublePointer)null);
+        if (context == null) {
+            return null;
+        }
+        sCreated++;
+        NativeTracker.allocated(NativeTracker.SWS_CONTEXT);
+        Scaler scaler = new Scaler();
+        scaler.mSrcWidth = srcWidth;
+        scaler.mSrcHeight = srcHeight;
+        scaler.mSrcFormat = srcFormat;
+        scaler.mDstWidth = dstWidth;
+        scaler.mDstHeight = dstHeight;
+        scaler.mDstFormat = dstFormat;
+        scaler.mFlags = flags;
+        scaler.mContext = context;
+        return scaler;
+    }
+    /* release :
+     * Input : Scaler from acquire(). Not to be used afterwards.
+     * Output : none.
+     */
+    public static synchronized void release(Scaler scaler) {
+        scaler.mLastUsed = System.nanoTime();
+        // The old ones age out at the start of the list.
+        sIdle.add(scaler);
+    }
+    /* setIdleTimeout :
+     * Input : Time after which an unused context is freed.
+     * Output : none.
+     */
+    public static synchronized void setIdleTimeout(long millis) {
+        sIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+    /* clear :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees all the idle contexts.
+     */
+    public static synchronized void clear() {
+        for (Scaler scaler : sIdle) {
+            sws_freeContext(scaler.mContext);
+            NativeTracker.freed(NativeTracker.SWS_CONTEXT);
+            sEvicted++;
+        }
+        sIdle.clear();
+    }
+    public static synchronized String getStats() {
+        return "created = " + sCreated + " reused = " + sReused +
+               " evicted = " + sEvicted + " idle = " + sIdle.size();
+    }
+    /* evictIdle :
+     * Desc : Frees the contexts unused for the idle timeout. Runs at
+     * most once a second.
+     */
+    private static void evictIdle() {
+        long now = System.nanoTime();
+        if (now - sLastEviction < TimeUnit.SECONDS.toNanos(1)) {
+            return;
+        }
+        sLastEviction = now;
+        while (!sIdle.isEmpty() && now - sIdle.get(0).mLastUsed > sIdleTimeoutNanos) {
+            sws_freeContext(sIdle.remove(0).mContext);
+            NativeTracker.freed(NativeTracker.SWS_CONTEXT);
+            sEvicted++;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.avcodec.AVCodecContext.FF_THREAD_FRAME;
+import static org.bytedeco.ffmpeg.avcodec.AVCodecContext.FF_THREAD_SLICE;
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_FLAG_GLOBAL_HEADER;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_alloc;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_free;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_rescale_ts;
+import static org.bytedeco.ffmpeg.global.avcodec.av_packet_unref;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_decoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_free_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_open2;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_from_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_parameters_to_context;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_frame;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_receive_packet;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_frame;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_send_packet;
+import static org.bytedeco.ffmpeg.global.avformat.AVFMT_GLOBALHEADER;
+import static org.bytedeco.ffmpeg.global.avformat.av_interleaved_write_frame;
+import static org.bytedeco.ffmpeg.global.avformat.avformat_new_stream;
+import static org.bytedeco.ffmpeg.global.avutil.AVERROR_EOF;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_unref;
+import static org.bytedeco.ffmpeg.presets.avutil.AVERROR_EAGAIN;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacpp.PointerPointer;
+
+import FileUtils.NativeTracker;
+
+/* This class decodes one input stream and encodes it again into a new
+ * stream of the output format context.
+ *
+ * The decoded frames are converted by the sub class (VideoTranscoder,
+ * AudioTranscoder) to what the encoder takes. The encoded packets are
+ * written with av_interleaved_write_frame, so packets of transcoded and
+ * copied streams can be mixed in one output.
+ *
+ * Usage :
+ *  open() before avformat_write_header, the output stream is created there.
+ *  transcode() for every packet of the input stream.
+ *  flush() at the end of the input, before av_write_trailer.
+ *  close() to free the codecs.
+ *
+ * The caller owns the packets and their timestamps. Whatever offset it
+ * applies to the packets of copied streams, it applies to the packets
+ * given to transcode() as well, so the streams stay aligned.
+ */
+public abstract class StreamTranscoder implements AutoCloseable {
+    AVStream mInputStream = null;
+    AVStream mOutputStream = null;
+    AVFormatContext mOutputFmtCtx = null;
+    AVCodecContext mDecoderContext = null;
+    AVCodecContext mEncoderContext = null;
+    EncoderSettings mSettings = null;
+    AVFrame mDecodedFrame = null;
+    AVPacket mEncodedPacket = null;
+    long mFramesEncoded = 0;
+    long mBusyNanos = 0;
+
+    /* constuctor :
+     * Input : How the stream is encoded.
+     */
+    protected StreamTranscoder(EncoderSettings settings) {
+        mSettings = settings;
+    }
+    /* open :
+     * Input :
+     *  Input format context and the stream to transcode.
+     *  Output format context. The header must not be written yet.
+     * Output : True when the decoder, the encoder and the output stream
+     *          are ready.
+     */
+    public boolean open(AVFormatContext inputFmtCtx, AVStream inputStream,
+                        AVFormatContext outputFmtCtx) {
+        mInputStream = inputStream;
+        mOutputFmtCtx = outputFmtCtx;
+        AVCodec decoder = avcodec_find_decoder(inputStream.codecpar().codec_id());
+        if (decoder == null) {
+            System.out.println("No decoder for codec " + inputStream.codecpar().codec_id());
+            return false;
+        }
+        mDecoderContext = avcodec_alloc_context3(decoder);
+        NativeTracker.allocated(NativeTracker.CODEC_CONTEXT);
+        avcodec_parameters_to_context(mDecoderContext, inputStream.codecpar());
+        mDecoderContext.pkt_timebase(inputStream.time_base());
+        setThreads(mDecoderContext);
+        if (avcodec_open2(mDecoderContext, decoder, (PointerPointer)null) < 0) {
+            System.out.println("Unable to open decoder " + decoder.name().getString());
+            return false;
+        }
+        AVCodec encoder = findEncoder();
+        if (encoder == null) {
+            return false;
+        }
+        mEncoderContext = avcodec_alloc_context3(encoder);
+        NativeTracker.allocated(NativeTracker.CODEC_CONTEXT);
+        setThreads(mEncoderContext);
+        if ((outputFmtCtx.oformat().flags() & AVFMT_GLOBALHEADER) != 0) {
+            // mp4 keeps the codec headers in the sample description.
+            mEncoderContext.flags(mEncoderContext.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+        }
+        if (!configureEncoder(inputFmtCtx, encoder)) {
+            return false;
+        }
+        if (avcodec_open2(mEncoderContext, encoder, (PointerPointer)null) < 0) {
+            System.out.println("Unable to open encoder " + encoder.name().getString());
+            return false;
+        }
+        mOutputStream = avformat_new_stream(outputFmtCtx, null);
+        avcodec_parameters_from_context(mOutputStream.codecpar(), mEncoderContext);
+        mOutputStream.time_base(mEncoderContext.time_base());
+        mDecodedFrame = av_frame_alloc();
+        NativeTracker.allocated(NativeTracker.FRAME);
+        mEncodedPacket = av_packet_alloc();
+        NativeTracker.allocated(NativeTracker.PACKET);
+        return true;
+    }
+    /* findEncoder :
+     * Output : Encoder for the output stream, null when the build has none.
+     */
+    protected abstract AVCodec findEncoder();
+    /* configureEncoder :
+     * Input : Input format context and the encoder.
+     * Output : True when mEncoderContext is set up for avcodec_open2.
+     */
+    protected abstract boolean configureEncoder(AVFormatContext inputFmtCtx, AVCodec encoder);
+    /* encodeFrame :
+     * Input : Decoded frame. Only valid during the call.
+     * Output : True when the frame is converted and sent with sendFrame().
+     */
+    protected abstract boolean encodeFrame(AVFrame frame);
+    /* drain :
+     * Desc : Sends whatever the sub class still holds at the end of the
+     * stream, e.g. buffered audio samples.
+     */
+    protected boolean drain() {
+        return true;
+    }
+    /* transcode :
+     * Input : Packet of the input stream, still owned by the caller.
+     * Output : False when writing the output failed, or the decoder takes
+     *          the packet neither before nor after its frames are read.
+     *          A packet which can not be decoded is skipped.
+     */
+    public boolean transcode(AVPacket packet) {
+        long start = System.nanoTime();
+        try {
+            int ret = avcodec_send_packet(mDecoderContext, packet);
+            if (ret == AVERROR_EAGAIN()) {
+                // Frames have to be read first. Not expected as every call
+                // drains the decoder, then the packet is sent again.
+                if (!receiveFrames()) {
+                    return false;
+                }
+                ret = avcodec_send_packet(mDecoderContext, packet);
+                if (ret == AVERROR_EAGAIN()) {
+                    System.out.println("StreamTranscoder : Decoder does not take packet");
+                    return false;
+                }
+            }
+            if (ret < 0) {
+                // A broken packet, the decoder recovers by itself.
+                System.out.println("StreamTranscoder : Error in decoding packet " + ret);
+                return true;
+            }
+            return receiveFrames();
+        } finally {
+            mBusyNanos += System.nanoTime() - start;
+        }
+    }
+    /* flush :
+     * Input : none.
+     * Output : True when the last frames and packets are written.
+     *
+     * Desc : Drains the decoder, the sub class and the encoder.
+     */
+    public boolean flush() {
+        long start = System.nanoTime();
+        try {
+            avcodec_send_packet(mDecoderContext, null);
+            if (!receiveFrames() || !drain()) {
+                return false;
+            }
+            avcodec_send_frame(mEncoderContext, null);
+            return writePackets();
+        } finally {
+            mBusyNanos += System.nanoTime() - start;
+        }
+    }
+    private boolean receiveFrames() {
+        while (true) {
+            int ret = avcodec_receive_frame(mDecoderContext, mDecodedFrame);
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
+                return true;
+            }
+            if (ret < 0) {
+                System.out.println("StreamTranscoder : Error in decoding frame " + ret);
+                return true;
+            }
+            try {
+                if (!encodeFrame(mDecodedFrame)) {
+                    return false;
+                }
+            } finally {
+                av_frame_unref(mDecodedFrame);
+            }
+        }
+    }
+    /* sendFrame :
+     * Input : Frame in the format of the encoder, pts in the encoder time
+     *         base. Still owned by the caller.
+     * Output : True when the frame is encoded and the ready packets written.
+     */
+    protected boolean sendFrame(AVFrame frame) {
+        int ret = avcodec_send_frame(mEncoderContext, frame);
+        if (ret < 0) {
+            System.out.println("StreamTranscoder : Error in encoding frame " + ret);
+            return false;
+        }
+        mFramesEncoded++;
+        return writePackets();
+    }
+    /* writePackets :
+     * Desc : Takes every ready packet out of the encoder and writes it to
+     * the output stream.
+     */
+    private boolean writePackets() {
+        while (true) {
+            int ret = avcodec_receive_packet(mEncoderContext, mEncodedPacket);
+            if (ret == AVERROR_EAGAIN() || ret == AVERROR_EOF) {
+                return true;
+            }
+            if (ret < 0) {
+                System.out.println("StreamTranscoder : Error in receiving packet " + ret);
+                return false;
+            }
+            mEncodedPacket.stream_index(mOutputStream.index());
+            // The muxer can change the stream time base in the header.
+            av_packet_rescale_ts(mEncodedPacket, mEncoderContext.time_base(),
+                                 mOutputStream.time_base());
+            ret = av_interleaved_write_frame(mOutputFmtCtx, mEncodedPacket);
+            av_packet_unref(mEncodedPacket);
+            if (ret < 0) {
+                System.out.println("StreamTranscoder : Error in writing packet " + ret);
+                return false;
+            }
+        }
+    }
+    private void setThreads(AVCodecContext context) {
+        context.thread_count(mSettings.getThreads());
+        context.thread_type(FF_THREAD_FRAME | FF_THREAD_SLICE);
+    }
+    public AVStream getInputStream() {
+        return mInputStream;
+    }
+    public AVStream getOutputStream() {
+        return mOutputStream;
+    }
+    /* getFrameCount :
+     * Input : none.
+     * Output : Frames sent to the encoder so far.
+     */
+    public long getFrameCount() {
+        return mFramesEncoded;
+    }
+    /* getBusyNanos :
+     * Input : none.
+     * Output : Time spent decoding, converting and encoding so far.
+     */
+    public long getBusyNanos() {
+        return mBusyNanos;
+    }
+    public String getEncoderName() {
+        return (mEncoderContext == null) ? "none" : mEncoderContext.codec().name().getString();
+    }
+    /* close :
+     * Input : none.
+     * Output : none.
+     *
+     * Desc : Frees the codecs, the frames and the packet, also after a
+     * failed open(). Can be called more than once.
+     */
+    @Override
+    public void close() {
+        if (mDecodedFrame != null) {
+            av_frame_free(mDecodedFrame);
+            NativeTracker.freed(NativeTracker.FRAME);
+            mDecodedFrame = null;
+        }
+        if (mEncodedPacket != null) {
+            av_packet_free(mEncodedPacket);
+            NativeTracker.freed(NativeTracker.PACKET);
+            mEncodedPacket = null;
+        }
+        if (mDecoderContext != null) {
+            avcodec_free_context(mDecoderContext);
+            NativeTracker.freed(NativeTracker.CODEC_CONTEXT);
+            mDecoderContext = null;
+        }
+        if (mEncoderContext != null) {
+            avcodec_free_context(mEncoderContext);
+            NativeTracker.freed(NativeTracker.CODEC_CONTEXT);
+            mEncoderContext = null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package codec;
+
+import static org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder;
+import static org.bytedeco.ffmpeg.global.avcodec.avcodec_find_encoder_by_name;
+import static org.bytedeco.ffmpeg.global.avformat.av_guess_frame_rate;
+import static org.bytedeco.ffmpeg.global.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PICTURE_TYPE_NONE;
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_YUV420P;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_get_buffer;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_make_writable;
+import static org.bytedeco.ffmpeg.global.avutil.av_make_q;
+import static org.bytedeco.ffmpeg.global.avutil.av_opt_set;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+
+import FileUtils.NativeTracker;
+
+/* This class transcodes a video stream to H.264.
+ *
+ * The encoder keeps the size of the input, rounded down to even as
+ * 4:2:0 needs, and its time base, so the frame timestamps pass through
+ * unchanged. Frames which are not 4:2:0 or of another size, e.g. after a
+ * resolution change in the stream, are converted with a FrameScaler.
+ *
+ * Preset and CRF are set as private options of the encoder. An encoder
+ * without them (e.g. libopenh264) gets a target bit rate instead.
+ */
+public class VideoTranscoder extends StreamTranscoder {
+    // Bits per pixel per frame when a bit rate has to be guessed.
+    static final double BITS_PER_PIXEL = 0.1;
+
+    FrameScaler mScaler = null;
+    AVFrame mScaledFrame = null;
+    long mLastPts = AV_NOPTS_VALUE;
+
+    /* constuctor :
+     * Input : How the stream is encoded.
+     */
+    public VideoTranscoder(EncoderSettings settings) {
+        super(settings);
+    }
+    @Override
+    protected AVCodec findEncoder() {
+        AVCodec encoder = avcodec_find_encoder_by_name(mSettings.getVideoEncoder());
+        if (encoder == null) {
+            encoder = avcodec_find_encoder(AV_CODEC_ID_H264);
+            if (encoder == null) {
+                System.out.println("No H.264 encoder in this ffmpeg build");
+                return null;
+            }
+            System.out.println("Encoder " + mSettings.getVideoEncoder() + " not found, using "
+                    + encoder.name().getString());
+        }
+        return encoder;
+    }
+    @Override
+    protected boolean configureEncoder(AVFormatContext inputFmtCtx, AVCodec encoder) {
+        int width = mDecoderContext.width() & ~1;
+        int height = mDecoderContext.height() & ~1;
+        if (width <= 0 || height <= 0) {
+            System.out.println("Video size of the input is not known");
+            return false;
+        }
+        AVRational frameRate = av_guess_frame_rate(inputFmtCtx, mInputStream, null);
+        if (frameRate.num() <= 0 || frameRate.den() <= 0) {
+            frameRate = av_make_q(25, 1);
+        }
+        mEncoderContext.width(width);
+        mEncoderContext.height(height);
+        mEncoderContext.pix_fmt(AV_PIX_FMT_YUV420P);
+        mEncoderContext.sample_aspect_ratio(mDecoderContext.sample_aspect_ratio());
+        mEncoderContext.time_base(mInputStream.time_base());
+        mEncoderContext.framerate(frameRate);
+        // A key frame every 2 seconds, so the output can be seeked.
+        mEncoderContext.gop_size(Math.max(1, 2 * frameRate.num() / frameRate.den()));
+
+        if (av_opt_set(mEncoderContext.priv_data(), "preset", mSettings.getPreset(), 0) < 0) {
+            System.out.println("Encoder " + encoder.name().getString() + " has no preset option");
+        }
+        boolean crf = mSettings.getCrf() >= 0 &&
+                av_opt_set(mEncoderContext.priv_data(), "crf",
+                           Integer.toString(mSettings.getCrf()), 0) >= 0;
+        if (!crf) {
+            long bitRate = mSettings.getVideoBitRate();
+            if (bitRate <= 0) {
+                double fps = frameRate.num() / (double)frameRate.den();
+                bitRate = (long)(width * height * fps * BITS_PER_PIXEL);
+            }
+            mEncoderContext.bit_rate(bitRate);
+        }
+        ScaleSettings scale = new ScaleSettings();
+        scale.setSize(width, height);
+        scale.setPixelFormat(AV_PIX_FMT_YUV420P);
+        mScaler = new FrameScaler(scale);
+        return true;
+    }
+    @Override
+    protected boolean encodeFrame(AVFrame frame) {
+        long pts = frame.best_effort_timestamp();
+        // The encoder needs strictly increasing timestamps.
+        if (pts == AV_NOPTS_VALUE || (mLastPts != AV_NOPTS_VALUE && pts <= mLastPts)) {
+            pts = (mLastPts == AV_NOPTS_VALUE) ? 0 : mLastPts + 1;
+        }
+        mLastPts = pts;
+        AVFrame input = frame;
+        if (frame.width() != mEncoderContext.width() || frame.height() != mEncoderContext.height()
+                || frame.format() != mEncoderContext.pix_fmt()) {
+            if (!convertFrame(frame)) {
+                return false;
+            }
+            input = mScaledFrame;
+        }
+        input.pts(pts);
+        // Let the encoder decide the frame types.
+        input.pict_type(AV_PICTURE_TYPE_NONE);
+        return sendFrame(input);
+    }
+    /* convertFrame :
+     * Input : Decoded frame.
+     * Output : True when the frame is converted into mScaledFrame.
+     */
+    private boolean convertFrame(AVFrame frame) {
+        if (mScaledFrame == null) {
+            mScaledFrame = av_frame_alloc();
+            NativeTracker.allocated(NativeTracker.FRAME);
+            mScaledFrame.format(mEncoderContext.pix_fmt());
+            mScaledFrame.width(mEncoderContext.width());
+            mScaledFrame.height(mEncoderContext.height());
+            if (av_frame_get_buffer(mScaledFrame, 0) < 0) {
+                return false;
+            }
+        }
+        // The encoder can still hold a reference to the last frame.
+        if (av_frame_make_writable(mScaledFrame) < 0) {
+            return false;
+        }
+        return mScaler.scale(frame, mScaledFrame.data(), mScaledFrame.linesize());
+    }
+    @Override
+    public void close() {
+        if (mScaledFrame != null) {
+            av_frame_free(mScaledFrame);
+            NativeTracker.freed(NativeTracker.FRAME);
+            mScaledFrame = null;
+        }
+        super.close();
+    }
+}